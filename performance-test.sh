@@ -67,6 +67,21 @@ performance_test "" BytecodePerformanceTest
 #
 performance_test "" EvalPerformanceTest
 
+#
+# FunctionHandlePerformanceTest.performance
+#
+performance_test "" FunctionHandlePerformanceTest
+
+#
+# EvaluationSchedulerPerformanceTest.performance
+#
+performance_test "" EvaluationSchedulerPerformanceTest
+
+#
+# BytecodeCachePerformanceTest.performance
+#
+performance_test impl BytecodeCachePerformanceTest
+
 #
 # BytecodeLifeInsuranceVariantsTest.performance
 #
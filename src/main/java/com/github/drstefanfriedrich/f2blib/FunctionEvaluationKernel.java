@@ -13,6 +13,8 @@
 package com.github.drstefanfriedrich.f2blib;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Handles mathematical functions. This interface defines a kernel (i.e. a
@@ -31,6 +33,21 @@ public interface FunctionEvaluationKernel {
      */
     void load(String functionDefinition);
 
+    /**
+     * Load a function which has been compiled at build time by
+     * {@link com.github.drstefanfriedrich.f2blib.generator.FunctionCompiler}. The
+     * class of the function and the index of all precompiled functions are looked
+     * up on the class path; the function definition is neither parsed nor compiled.
+     * The default implementation does not support precompiled functions.
+     *
+     * @param functionName The name of the function.
+     * @throws IllegalArgumentException      If the function has not been precompiled.
+     * @throws UnsupportedOperationException If the kernel cannot load precompiled functions.
+     */
+    default void loadPrecompiled(String functionName) {
+        throw new UnsupportedOperationException("Precompiled functions are not supported by this kernel");
+    }
+
     /**
      * Evaluates the given real-valued function. The contract for the function
      * evaluation is as follows: the function depends on <code>p</code> and
@@ -44,6 +61,200 @@ public interface FunctionEvaluationKernel {
      */
     void eval(String functionName, double[] p, double[] x, double[] y);
 
+    /**
+     * Evaluates the given function once per row: <code>eval(functionName, p[i],
+     * x[i], y[i])</code> for all <code>i</code>. The function is looked up only
+     * once, and the loop over the rows is part of the generated code, if the kernel
+     * generates code.
+     *
+     * @param functionName The name of the function to evaluate.
+     * @param p            The parameters of the function, one row per evaluation.
+     * @param x            The variables of the function, one row per evaluation.
+     * @param y            The results of the function evaluations, one row per evaluation.
+     */
+    default void evalBatch(String functionName, double[][] p, double[][] x, double[][] y) {
+        resolve(functionName).evalBatch(p, x, y);
+    }
+
+    /**
+     * Evaluates the given function <code>count</code> times on flat arrays. Row
+     * <code>i</code> of p consists of the elements
+     * <code>p[i * pStride] ... p[i * pStride + pStride - 1]</code>; the same holds
+     * for x and y.
+     *
+     * @param functionName The name of the function to evaluate.
+     * @param p            The parameters of the function.
+     * @param pStride      The number of parameters per row.
+     * @param x            The variables of the function.
+     * @param xStride      The number of variables per row.
+     * @param y            The results of the function evaluations.
+     * @param yStride      The number of results per row.
+     * @param count        The number of rows to evaluate.
+     */
+    default void evalBatch(String functionName, double[] p, int pStride, double[] x, int xStride,
+                           double[] y, int yStride, int count) {
+        resolve(functionName).evalBatch(p, pStride, x, xStride, y, yStride, count);
+    }
+
+    /**
+     * Evaluates the given function <code>count</code> times on flat arrays,
+     * starting at the given offsets. See {@link FunctionHandle#evalBatch(double[],
+     * int, int, double[], int, int, double[], int, int, int)}.
+     *
+     * @param functionName The name of the function to evaluate.
+     * @param p            The parameters of the function.
+     * @param pOffset      The index of the first parameter of the first row.
+     * @param pStride      The number of parameters per row.
+     * @param x            The variables of the function.
+     * @param xOffset      The index of the first variable of the first row.
+     * @param xStride      The number of variables per row.
+     * @param y            The results of the function evaluations.
+     * @param yOffset      The index of the first result of the first row.
+     * @param yStride      The number of results per row.
+     * @param count        The number of rows to evaluate.
+     */
+    default void evalBatch(String functionName, double[] p, int pOffset, int pStride, double[] x, int xOffset,
+                           int xStride, double[] y, int yOffset, int yStride, int count) {
+        resolve(functionName).evalBatch(p, pOffset, pStride, x, xOffset, xStride, y, yOffset, yStride, count);
+    }
+
+    /**
+     * Evaluates the given function once per row, in parallel on the common
+     * {@link ForkJoinPool}. See {@link FunctionHandle#evalBatchParallel(double[][],
+     * double[][], double[][], ForkJoinPool)}.
+     *
+     * @param functionName The name of the function to evaluate.
+     * @param p            The parameters of the function, one row per evaluation.
+     * @param x            The variables of the function, one row per evaluation.
+     * @param y            The results of the function evaluations, one row per evaluation.
+     */
+    default void evalBatchParallel(String functionName, double[][] p, double[][] x, double[][] y) {
+        resolve(functionName).evalBatchParallel(p, x, y);
+    }
+
+    /**
+     * Evaluates the given function once per row, in parallel on the given pool.
+     * See {@link FunctionHandle#evalBatchParallel(double[][], double[][], double[][],
+     * ForkJoinPool)}.
+     *
+     * @param functionName The name of the function to evaluate.
+     * @param p            The parameters of the function, one row per evaluation.
+     * @param x            The variables of the function, one row per evaluation.
+     * @param y            The results of the function evaluations, one row per evaluation.
+     * @param pool         The pool to evaluate the batch.
+     */
+    default void evalBatchParallel(String functionName, double[][] p, double[][] x, double[][] y,
+                                   ForkJoinPool pool) {
+        resolve(functionName).evalBatchParallel(p, x, y, pool);
+    }
+
+    /**
+     * Evaluates the given function <code>count</code> times on flat arrays, in
+     * parallel on the common {@link ForkJoinPool}. See
+     * {@link #evalBatch(String, double[], int, double[], int, double[], int, int)}.
+     *
+     * @param functionName The name of the function to evaluate.
+     * @param p            The parameters of the function.
+     * @param pStride      The number of parameters per row.
+     * @param x            The variables of the function.
+     * @param xStride      The number of variables per row.
+     * @param y            The results of the function evaluations.
+     * @param yStride      The number of results per row.
+     * @param count        The number of rows to evaluate.
+     */
+    default void evalBatchParallel(String functionName, double[] p, int pStride, double[] x, int xStride,
+                                   double[] y, int yStride, int count) {
+        resolve(functionName).evalBatchParallel(p, pStride, x, xStride, y, yStride, count);
+    }
+
+    /**
+     * Evaluates the given function <code>count</code> times on flat arrays, in
+     * parallel on the given pool. See
+     * {@link #evalBatch(String, double[], int, double[], int, double[], int, int)}.
+     *
+     * @param functionName The name of the function to evaluate.
+     * @param p            The parameters of the function.
+     * @param pStride      The number of parameters per row.
+     * @param x            The variables of the function.
+     * @param xStride      The number of variables per row.
+     * @param y            The results of the function evaluations.
+     * @param yStride      The number of results per row.
+     * @param count        The number of rows to evaluate.
+     * @param pool         The pool to evaluate the batch.
+     */
+    default void evalBatchParallel(String functionName, double[] p, int pStride, double[] x, int xStride,
+                                   double[] y, int yStride, int count, ForkJoinPool pool) {
+        resolve(functionName).evalBatchParallel(p, pStride, x, xStride, y, yStride, count, pool);
+    }
+
+    /**
+     * Evaluates the given function asynchronously. See
+     * {@link FunctionHandle#evalAsync(double[], double[])}.
+     *
+     * @param functionName The name of the function to evaluate.
+     * @param p            The parameters of the function. p in IR^k
+     * @param x            The variable of the function. x in IR^n
+     * @return A future that is completed with the result y in IR^m.
+     */
+    default CompletableFuture<double[]> evalAsync(String functionName, double[] p, double[] x) {
+        return resolve(functionName).evalAsync(p, x);
+    }
+
+    /**
+     * Hands a result vector returned by {@link #evalAsync(String, double[], double[])}
+     * back to the pool of the function. See {@link FunctionHandle#recycle(double[])}.
+     *
+     * @param functionName The name of the function that computed y.
+     * @param y            The result vector which is not needed any more.
+     */
+    default void recycle(String functionName, double[] y) {
+        resolve(functionName).recycle(y);
+    }
+
+    /**
+     * Resolve a function for repeated evaluation. Every call of
+     * {@link #eval(String, double[], double[], double[])} looks up the function
+     * by name and validates its arguments; a {@link FunctionHandle} does the lookup
+     * once and validates only when the shape of the arguments changes. Timing and
+     * logging of single evaluations are opt-in: they only happen if trace logging
+     * is enabled when the handle is resolved.
+     * <p>
+     * The default implementation simply delegates to the string-keyed
+     * <code>eval</code> method.
+     *
+     * @param functionName The name of the function to resolve.
+     * @return A handle to evaluate the function.
+     * @throws IllegalArgumentException If the function is unknown.
+     */
+    default FunctionHandle resolve(String functionName) {
+        return new FunctionHandle() {
+
+            @Override
+            public String getFunctionName() {
+                return functionName;
+            }
+
+            @Override
+            public void eval(double[] p, double[] x, double[] y) {
+                FunctionEvaluationKernel.this.eval(functionName, p, x, y);
+            }
+
+        };
+    }
+
+    /**
+     * Returns the findings about a function which were made while it was loaded,
+     * e.g. auxiliary variables whose values are never used. The default
+     * implementation returns {@link LoadDiagnostics#NONE}.
+     *
+     * @param functionName The name of the function.
+     * @return The findings about the function.
+     * @throws IllegalArgumentException If the function is unknown.
+     */
+    default LoadDiagnostics getLoadDiagnostics(String functionName) {
+        return LoadDiagnostics.NONE;
+    }
+
     /**
      * Remove a function from the kernel.
      *
@@ -0,0 +1,213 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib;
+
+import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A function that has already been looked up in a {@link FunctionEvaluationKernel}.
+ * Obtain a handle once via {@link FunctionEvaluationKernel#resolve(String)} and keep
+ * it as long as the function is needed. Evaluating through a handle avoids the
+ * lookup by function name, and the arguments are validated only once per input
+ * shape (i.e. per combination of array lengths), not on every call.
+ * <p>
+ * A handle is bound to the function definition that was loaded at the time the
+ * handle was resolved. Loading a new definition under the same name or removing the
+ * function does not affect existing handles. Handles are thread-safe.
+ */
+public interface FunctionHandle {
+
+    /**
+     * Returns the name of the function this handle is bound to.
+     *
+     * @return The function name.
+     */
+    String getFunctionName();
+
+    /**
+     * Evaluates the function. The contract is the same as for
+     * {@link FunctionEvaluationKernel#eval(String, double[], double[], double[])}.
+     *
+     * @param p The parameters of the function. p in IR^k
+     * @param x The variable of the function. x in IR^n
+     * @param y The result of the function evaluation. y in IR^m
+     */
+    void eval(double[] p, double[] x, double[] y);
+
+    /**
+     * Evaluates the function once per row: <code>eval(p[i], x[i], y[i])</code> for
+     * all <code>i</code>. All three arrays must have the same number of rows.
+     *
+     * @param p The parameters of the function, one row per evaluation.
+     * @param x The variables of the function, one row per evaluation.
+     * @param y The results of the function evaluations, one row per evaluation.
+     * @throws IllegalArgumentException If the number of rows differ, or if a row is invalid.
+     */
+    default void evalBatch(double[][] p, double[][] x, double[][] y) {
+
+        if (p.length != y.length || x.length != y.length) {
+            throw new IllegalArgumentException(String.format("p, x and y must have the same number of rows, " +
+                    "but were %d, %d and %d", p.length, x.length, y.length));
+        }
+
+        for (int i = 0; i < y.length; i++) {
+            eval(p[i], x[i], y[i]);
+        }
+    }
+
+    /**
+     * Evaluates the function <code>count</code> times on flat arrays, with the
+     * rows stored one after another. Same as
+     * {@link #evalBatch(double[], int, int, double[], int, int, double[], int, int, int)}
+     * with all offsets set to 0.
+     *
+     * @param p       The parameters of the function.
+     * @param pStride The number of parameters per row.
+     * @param x       The variables of the function.
+     * @param xStride The number of variables per row.
+     * @param y       The results of the function evaluations.
+     * @param yStride The number of results per row.
+     * @param count   The number of rows to evaluate.
+     */
+    default void evalBatch(double[] p, int pStride, double[] x, int xStride, double[] y, int yStride, int count) {
+        evalBatch(p, 0, pStride, x, 0, xStride, y, 0, yStride, count);
+    }
+
+    /**
+     * Evaluates the function <code>count</code> times on flat arrays. Row
+     * <code>i</code> of p consists of the <code>pStride</code> elements starting at
+     * <code>pOffset + i * pStride</code>; the same holds for x and y. With
+     * <code>count = 1</code> this evaluates the function at an offset into
+     * large shared arrays, without copying.
+     *
+     * @param p       The parameters of the function.
+     * @param pOffset The index of the first parameter of the first row.
+     * @param pStride The number of parameters per row.
+     * @param x       The variables of the function.
+     * @param xOffset The index of the first variable of the first row.
+     * @param xStride The number of variables per row.
+     * @param y       The results of the function evaluations.
+     * @param yOffset The index of the first result of the first row.
+     * @param yStride The number of results per row.
+     * @param count   The number of rows to evaluate.
+     */
+    default void evalBatch(double[] p, int pOffset, int pStride, double[] x, int xOffset, int xStride,
+                           double[] y, int yOffset, int yStride, int count) {
+        FunctionEvaluation functionEvaluation = this::eval;
+        functionEvaluation.evalBatch(p, pOffset, pStride, x, xOffset, xStride, y, yOffset, yStride, count);
+    }
+
+    /**
+     * Same as {@link #evalBatch(double[][], double[][], double[][])}, but the
+     * batch is split and evaluated in parallel on the common {@link ForkJoinPool}.
+     * The results are exactly the same as the ones of the sequential evaluation.
+     *
+     * @param p The parameters of the function, one row per evaluation.
+     * @param x The variables of the function, one row per evaluation.
+     * @param y The results of the function evaluations, one row per evaluation.
+     */
+    default void evalBatchParallel(double[][] p, double[][] x, double[][] y) {
+        evalBatchParallel(p, x, y, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #evalBatch(double[][], double[][], double[][])}, but the
+     * batch is split and evaluated in parallel on the given pool. Parts of the
+     * batch which are smaller than a sequential cutoff are not split any further.
+     * The cutoff is derived from the estimated cost of the function, or set by the
+     * system property <code>com.github.drstefanfriedrich.f2blib.parallel.cutoff</code>.
+     * The default implementation evaluates the batch sequentially.
+     *
+     * @param p    The parameters of the function, one row per evaluation.
+     * @param x    The variables of the function, one row per evaluation.
+     * @param y    The results of the function evaluations, one row per evaluation.
+     * @param pool The pool to evaluate the batch.
+     */
+    default void evalBatchParallel(double[][] p, double[][] x, double[][] y, ForkJoinPool pool) {
+        evalBatch(p, x, y);
+    }
+
+    /**
+     * Same as {@link #evalBatch(double[], int, double[], int, double[], int, int)},
+     * but the batch is split and evaluated in parallel on the common
+     * {@link ForkJoinPool}.
+     *
+     * @param p       The parameters of the function.
+     * @param pStride The number of parameters per row.
+     * @param x       The variables of the function.
+     * @param xStride The number of variables per row.
+     * @param y       The results of the function evaluations.
+     * @param yStride The number of results per row.
+     * @param count   The number of rows to evaluate.
+     */
+    default void evalBatchParallel(double[] p, int pStride, double[] x, int xStride, double[] y, int yStride,
+                                   int count) {
+        evalBatchParallel(p, pStride, x, xStride, y, yStride, count, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #evalBatch(double[], int, double[], int, double[], int, int)},
+     * but the batch is split and evaluated in parallel on the given pool. See
+     * {@link #evalBatchParallel(double[][], double[][], double[][], ForkJoinPool)}.
+     * The default implementation evaluates the batch sequentially.
+     *
+     * @param p       The parameters of the function.
+     * @param pStride The number of parameters per row.
+     * @param x       The variables of the function.
+     * @param xStride The number of variables per row.
+     * @param y       The results of the function evaluations.
+     * @param yStride The number of results per row.
+     * @param count   The number of rows to evaluate.
+     * @param pool    The pool to evaluate the batch.
+     */
+    default void evalBatchParallel(double[] p, int pStride, double[] x, int xStride, double[] y, int yStride,
+                                   int count, ForkJoinPool pool) {
+        evalBatch(p, pStride, x, xStride, y, yStride, count);
+    }
+
+    /**
+     * Evaluates the function asynchronously on the bounded executor of the kernel.
+     * The result vector y is taken from a pool of the function; hand it back via
+     * {@link #recycle(double[])} as soon as it is not needed any more. p and x
+     * must not be modified until the returned future is completed.
+     * <p>
+     * The executor does not queue an unbounded number of evaluations: if it is
+     * saturated, the returned future is completed exceptionally with a
+     * {@link java.util.concurrent.RejectedExecutionException}, and the caller has
+     * to slow down. The default implementation does not support asynchronous
+     * evaluation and returns an exceptionally completed future.
+     *
+     * @param p The parameters of the function. p in IR^k
+     * @param x The variable of the function. x in IR^n
+     * @return A future that is completed with the result y in IR^m.
+     */
+    default CompletableFuture<double[]> evalAsync(double[] p, double[] x) {
+        CompletableFuture<double[]> result = new CompletableFuture<>();
+        result.completeExceptionally(new UnsupportedOperationException("Asynchronous evaluation is not supported"));
+        return result;
+    }
+
+    /**
+     * Hands a result vector returned by {@link #evalAsync(double[], double[])} back
+     * to the pool of the function. The array must not be used after it has been
+     * recycled. The default implementation does nothing.
+     *
+     * @param y The result vector which is not needed any more.
+     */
+    default void recycle(double[] y) {
+    }
+
+}
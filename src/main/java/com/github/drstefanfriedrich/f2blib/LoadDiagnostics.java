@@ -0,0 +1,76 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Findings about a function which were made while it was loaded into a
+ * {@link FunctionEvaluationKernel}. They do not prevent the function from being
+ * loaded and evaluated.
+ */
+public final class LoadDiagnostics {
+
+    /**
+     * No findings at all.
+     */
+    public static final LoadDiagnostics NONE = new LoadDiagnostics(Collections.emptyList());
+
+    private final List<String> unusedAuxiliaryVariables;
+
+    public LoadDiagnostics(List<String> unusedAuxiliaryVariables) {
+        this.unusedAuxiliaryVariables = Collections.unmodifiableList(new ArrayList<>(unusedAuxiliaryVariables));
+    }
+
+    /**
+     * The auxiliary variables with at least one assignment whose value is never
+     * used, neither by a function nor by the Markov shift. These assignments are
+     * not evaluated at all.
+     *
+     * @return The names of the auxiliary variables, in the order of their first
+     * unused assignment.
+     */
+    public List<String> getUnusedAuxiliaryVariables() {
+        return unusedAuxiliaryVariables;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("unusedAuxiliaryVariables", unusedAuxiliaryVariables)
+                .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        LoadDiagnostics that = (LoadDiagnostics) o;
+        return unusedAuxiliaryVariables.equals(that.unusedAuxiliaryVariables);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(unusedAuxiliaryVariables);
+    }
+
+}
@@ -15,6 +15,8 @@ package com.github.drstefanfriedrich.f2blib.ast;
 import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
 import com.google.common.base.MoreObjects;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -30,25 +32,64 @@ public abstract class AbstractSumProduct implements Expression, IntExpression {
 
     private final IntExpression end;
 
+    private final List<SharedExpression> invariants;
+
+    private final List<Recurrence> recurrences;
+
     public AbstractSumProduct(Expression inner, String variableName, IntExpression start, IntExpression end) {
+        this(inner, variableName, start, end, Collections.emptyList());
+    }
+
+    public AbstractSumProduct(Expression inner, String variableName, IntExpression start, IntExpression end,
+                              List<SharedExpression> invariants) {
+        this(inner, variableName, start, end, invariants, Collections.emptyList());
+    }
+
+    public AbstractSumProduct(Expression inner, String variableName, IntExpression start, IntExpression end,
+                              List<SharedExpression> invariants, List<Recurrence> recurrences) {
         this.inner = inner;
         this.variableName = variableName;
         this.start = start;
         this.end = end;
+        this.invariants = invariants;
+        this.recurrences = recurrences;
     }
 
     public String getVariableName() {
         return variableName;
     }
 
+    /**
+     * The values which do not depend on the variable of the sum or the product.
+     * They are evaluated once, after the start and the end, and before the inner
+     * expression is evaluated for the first time.
+     */
+    public List<SharedExpression> getInvariants() {
+        return invariants;
+    }
+
+    /**
+     * The values which are carried from one iteration to the next. They are
+     * computed at the beginning of each iteration, before the inner expression.
+     */
+    public List<Recurrence> getRecurrences() {
+        return recurrences;
+    }
+
     @Override
     public String toString() {
-        return MoreObjects.toStringHelper(this)
+        MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this)
                 .add("inner", inner)
                 .add("variableName", variableName)
                 .add("start", start)
-                .add("end", end)
-                .toString();
+                .add("end", end);
+        if (!invariants.isEmpty()) {
+            helper.add("invariants", invariants);
+        }
+        if (!recurrences.isEmpty()) {
+            helper.add("recurrences", recurrences);
+        }
+        return helper.toString();
     }
 
     @Override
@@ -63,12 +104,14 @@ public abstract class AbstractSumProduct implements Expression, IntExpression {
         return inner.equals(that.inner) &&
                 variableName.equals(that.variableName) &&
                 start.equals(that.start) &&
-                end.equals(that.end);
+                end.equals(that.end) &&
+                invariants.equals(that.invariants) &&
+                recurrences.equals(that.recurrences);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(inner, variableName, start, end);
+        return Objects.hash(inner, variableName, start, end, invariants, recurrences);
     }
 
     @Override
@@ -80,6 +123,14 @@ public abstract class AbstractSumProduct implements Expression, IntExpression {
         return inner.accept(visitor);
     }
 
+    public IntExpression getStart() {
+        return start;
+    }
+
+    public IntExpression getEnd() {
+        return end;
+    }
+
     public <T> T acceptStart(Visitor visitor) {
         return start.accept(visitor);
     }
@@ -0,0 +1,62 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.ast;
+
+import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+/**
+ * The power <code>(-1)^n</code> of an integer exponent <code>n</code>, i.e.
+ * <code>1</code> if <code>n</code> is even and <code>-1</code> if it is odd.
+ * The value is an int or a double, like the power it replaces.
+ */
+public final class AlternatingSign extends UnaryExpression implements IntExpression {
+
+    private final boolean evaluatesToDouble;
+
+    public AlternatingSign(IntExpression exponent, boolean evaluatesToDouble) {
+        super(exponent);
+        this.evaluatesToDouble = evaluatesToDouble;
+    }
+
+    @Override
+    public <T> T accept(Visitor visitor) {
+        return visitor.visit(this);
+    }
+
+    @Override
+    public boolean evaluatesToDouble() {
+        return evaluatesToDouble;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("exponent", expression)
+                .add("evaluatesToDouble", evaluatesToDouble)
+                .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && evaluatesToDouble == ((AlternatingSign) o).evaluatesToDouble;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), evaluatesToDouble);
+    }
+
+}
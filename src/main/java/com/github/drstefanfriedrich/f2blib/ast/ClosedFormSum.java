@@ -0,0 +1,110 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.ast;
+
+import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+/**
+ * A sum which is computed in closed form, without iterating. The sum is an
+ * arithmetic or a geometric series: its terms differ by a constant difference,
+ * or by a constant ratio, which is the step of the series. The first term is the
+ * inner expression of the sum, evaluated like in the first iteration of the sum.
+ * With <code>n</code> the number of terms, the value is
+ * <ul>
+ * <li><code>n * first + difference * n * (n - 1) / 2</code> for an arithmetic
+ * series, which is exact for int sums,</li>
+ * <li><code>first * (ratio^n - 1) / (ratio - 1)</code> for a geometric series.
+ * If the ratio is 1, the sum is evaluated by its loop instead.</li>
+ * </ul>
+ * The value of an empty sum is 0. Synthesized by the optimizer, not by the parser.
+ */
+public final class ClosedFormSum implements Expression, IntExpression {
+
+    public enum Kind {
+        ARITHMETIC, GEOMETRIC
+    }
+
+    private final Kind kind;
+
+    private final Sum sum;
+
+    private final Expression step;
+
+    public ClosedFormSum(Kind kind, Sum sum, Expression step) {
+        this.kind = kind;
+        this.sum = sum;
+        this.step = step;
+    }
+
+    @Override
+    public <T> T accept(Visitor visitor) {
+        return visitor.visit(this);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Sum getSum() {
+        return sum;
+    }
+
+    /**
+     * The difference or the ratio of two consecutive terms. It does not depend on
+     * the variable of the sum.
+     */
+    public <T> T acceptStep(Visitor visitor) {
+        return step.accept(visitor);
+    }
+
+    public boolean stepEvaluatesToDouble() {
+        return step.evaluatesToDouble();
+    }
+
+    @Override
+    public boolean evaluatesToDouble() {
+        return sum.evaluatesToDouble();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("kind", kind)
+                .add("sum", sum)
+                .add("step", step)
+                .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ClosedFormSum that = (ClosedFormSum) o;
+        return kind == that.kind &&
+                sum.equals(that.sum) &&
+                step.equals(that.step);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, sum, step);
+    }
+
+}
@@ -16,6 +16,8 @@ import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
 import com.google.common.base.MoreObjects;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -33,13 +35,21 @@ public final class ForLoop implements Serializable, ASTElement {
 
     private final FunctionsWrapper functionsWrapper;
 
+    private final List<SharedExpression> invariants;
+
     public ForLoop(String variableName, IntExpression start, IntExpression end, IntExpression step,
                    FunctionsWrapper functionsWrapper) {
+        this(variableName, start, end, step, functionsWrapper, Collections.emptyList());
+    }
+
+    public ForLoop(String variableName, IntExpression start, IntExpression end, IntExpression step,
+                   FunctionsWrapper functionsWrapper, List<SharedExpression> invariants) {
         this.variableName = variableName;
         this.start = start;
         this.end = end;
         this.step = step;
         this.functionsWrapper = functionsWrapper;
+        this.invariants = invariants;
     }
 
     public String getVariableName() {
@@ -67,15 +77,27 @@ public final class ForLoop implements Serializable, ASTElement {
         return functionsWrapper.accept(visitor);
     }
 
+    /**
+     * The values which do not change while the loop runs. They are evaluated
+     * once, after the start, the end and the step, and before the body is
+     * evaluated for the first time.
+     */
+    public List<SharedExpression> getInvariants() {
+        return invariants;
+    }
+
     @Override
     public String toString() {
-        return MoreObjects.toStringHelper(this)
+        MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this)
                 .add("variableName", variableName)
                 .add("start", start)
                 .add("end", end)
                 .add("step", step)
-                .add("functionsWrapper", functionsWrapper)
-                .toString();
+                .add("functionsWrapper", functionsWrapper);
+        if (!invariants.isEmpty()) {
+            helper.add("invariants", invariants);
+        }
+        return helper.toString();
     }
 
     @Override
@@ -91,12 +113,13 @@ public final class ForLoop implements Serializable, ASTElement {
                 Objects.equals(start, forLoop.start) &&
                 Objects.equals(end, forLoop.end) &&
                 Objects.equals(step, forLoop.step) &&
-                Objects.equals(functionsWrapper, forLoop.functionsWrapper);
+                Objects.equals(functionsWrapper, forLoop.functionsWrapper) &&
+                Objects.equals(invariants, forLoop.invariants);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(variableName, start, end, step, functionsWrapper);
+        return Objects.hash(variableName, start, end, step, functionsWrapper, invariants);
     }
 
 }
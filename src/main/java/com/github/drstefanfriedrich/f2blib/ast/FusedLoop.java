@@ -0,0 +1,111 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.ast;
+
+import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
+import com.google.common.base.MoreObjects;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Sums and products with the same variable and the same bounds, which are
+ * evaluated in one loop with one accumulator each. The bounds are evaluated
+ * once; the invariants of all loops are evaluated before the loop, the
+ * recurrences of all loops at the beginning of each iteration, and then the
+ * inner expressions, one after another. The value of each loop is stored in a
+ * synthetic local variable, which the other occurrences of the loops load by a
+ * {@link SharedVar}; the value of the first loop is the value of the expression.
+ * A loop may use the invariants and recurrences of the loops before it.
+ * Synthesized by the optimizer, not by the parser.
+ */
+public final class FusedLoop implements Expression, IntExpression {
+
+    private final List<AbstractSumProduct> loops;
+
+    private final List<Integer> indexes;
+
+    public FusedLoop(List<AbstractSumProduct> loops, List<Integer> indexes) {
+        this.loops = loops;
+        this.indexes = indexes;
+    }
+
+    @Override
+    public <T> T accept(Visitor visitor) {
+        return visitor.visit(this);
+    }
+
+    public List<AbstractSumProduct> getLoops() {
+        return loops;
+    }
+
+    public String getVariableName() {
+        return loops.get(0).getVariableName();
+    }
+
+    public <T> T acceptStart(Visitor visitor) {
+        return loops.get(0).acceptStart(visitor);
+    }
+
+    public <T> T acceptEnd(Visitor visitor) {
+        return loops.get(0).acceptEnd(visitor);
+    }
+
+    /**
+     * The synthetic local variables which store the values of the loops, one per loop.
+     */
+    public List<SharedVar> getSharedVars() {
+        List<SharedVar> sharedVars = new ArrayList<>();
+        for (int i = 0; i < loops.size(); i++) {
+            sharedVars.add(new SharedVar(indexes.get(i), loops.get(i)));
+        }
+        return sharedVars;
+    }
+
+    public List<Integer> getIndexes() {
+        return indexes;
+    }
+
+    @Override
+    public boolean evaluatesToDouble() {
+        return loops.get(0).evaluatesToDouble();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("loops", loops)
+                .add("indexes", indexes)
+                .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        FusedLoop that = (FusedLoop) o;
+        return loops.equals(that.loops) &&
+                indexes.equals(that.indexes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(loops, indexes);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.ast;
+
+import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+/**
+ * A sum with constant bounds which is a polynomial in one variable
+ * <code>v</code>: <code>sum(c_k * v^(k + offset), k, start, end)</code>, where
+ * the coefficients <code>c_k</code> depend on <code>k</code> only. The
+ * coefficients are precomputed into a table, and the value is computed by the
+ * Horner scheme,
+ * <code>v^(start + offset) * (c_start + v * (c_start+1 + ... + v * c_end))</code>.
+ * The sum itself is not evaluated any more; it is kept to print the expression.
+ * Synthesized by the optimizer, not by the parser.
+ */
+public final class Polynomial implements Expression, IntExpression {
+
+    private final Sum sum;
+
+    private final Precomputed coefficients;
+
+    private final Expression variable;
+
+    private final int offset;
+
+    public Polynomial(Sum sum, Precomputed coefficients, Expression variable, int offset) {
+        this.sum = sum;
+        this.coefficients = coefficients;
+        this.variable = variable;
+        this.offset = offset;
+    }
+
+    @Override
+    public <T> T accept(Visitor visitor) {
+        return visitor.visit(this);
+    }
+
+    public Sum getSum() {
+        return sum;
+    }
+
+    /**
+     * The table of the coefficients, from <code>c_start</code> to <code>c_end</code>.
+     */
+    public Precomputed getCoefficients() {
+        return coefficients;
+    }
+
+    public <T> T acceptVariable(Visitor visitor) {
+        return variable.accept(visitor);
+    }
+
+    public boolean variableEvaluatesToDouble() {
+        return variable.evaluatesToDouble();
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public boolean evaluatesToDouble() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("sum", sum)
+                .add("coefficients", coefficients)
+                .add("variable", variable)
+                .add("offset", offset)
+                .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        Polynomial that = (Polynomial) o;
+        return offset == that.offset &&
+                sum.equals(that.sum) &&
+                coefficients.equals(that.coefficients) &&
+                variable.equals(that.variable);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sum, coefficients, variable, offset);
+    }
+
+}
@@ -0,0 +1,131 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.ast;
+
+import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+/**
+ * An expression which is computed once, when the class of the function is
+ * initialized, instead of on every evaluation. Either the expression is
+ * constant and its value is stored in a static field, or it depends on the
+ * integer variable of an enclosing sum or product with constant bounds only,
+ * and its values for all iterations are stored in a static table, which is
+ * indexed by the integer variable. Synthesized by the optimizer, not by the parser.
+ */
+public final class Precomputed implements Expression, IntExpression {
+
+    private final int index;
+
+    private final Expression expression;
+
+    private final String variableName;
+
+    private final int start;
+
+    private final int end;
+
+    /**
+     * A constant expression.
+     */
+    public Precomputed(int index, Expression expression) {
+        this(index, expression, null, 0, -1);
+    }
+
+    /**
+     * A table of the values of the expression for the integer variable running
+     * from start to end.
+     */
+    public Precomputed(int index, Expression expression, String variableName, int start, int end) {
+        this.index = index;
+        this.expression = expression;
+        this.variableName = variableName;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public <T> T accept(Visitor visitor) {
+        return visitor.visit(this);
+    }
+
+    /**
+     * The index is unique within a function.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public <T> T acceptExpression(Visitor visitor) {
+        return expression.accept(visitor);
+    }
+
+    public boolean isTable() {
+        return variableName != null;
+    }
+
+    /**
+     * @return The integer variable of a table, or null for a constant.
+     */
+    public String getVariableName() {
+        return variableName;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public boolean evaluatesToDouble() {
+        return expression.evaluatesToDouble();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("index", index)
+                .add("expression", expression)
+                .add("variableName", variableName)
+                .add("start", start)
+                .add("end", end)
+                .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        Precomputed that = (Precomputed) o;
+        return index == that.index &&
+                start == that.start &&
+                end == that.end &&
+                expression.equals(that.expression) &&
+                Objects.equals(variableName, that.variableName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(index, expression, variableName, start, end);
+    }
+
+}
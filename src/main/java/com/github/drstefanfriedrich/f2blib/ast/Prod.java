@@ -14,12 +14,24 @@ package com.github.drstefanfriedrich.f2blib.ast;
 
 import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
 
+import java.util.List;
+
 public final class Prod extends AbstractSumProduct {
 
     public Prod(Expression inner, String variableName, IntExpression start, IntExpression end) {
         super(inner, variableName, start, end);
     }
 
+    public Prod(Expression inner, String variableName, IntExpression start, IntExpression end,
+                List<SharedExpression> invariants) {
+        super(inner, variableName, start, end, invariants);
+    }
+
+    public Prod(Expression inner, String variableName, IntExpression start, IntExpression end,
+                List<SharedExpression> invariants, List<Recurrence> recurrences) {
+        super(inner, variableName, start, end, invariants, recurrences);
+    }
+
     @Override
     public <T> T accept(Visitor visitor) {
         return visitor.visit(this);
@@ -0,0 +1,131 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.ast;
+
+import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
+import com.google.common.base.MoreObjects;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A value which is carried from one iteration of a sum or a product to the next.
+ * At the beginning of the first iteration, the value is the result of
+ * <code>first</code>; at the beginning of every further iteration, it is the
+ * result of <code>next</code>, which may use the value of the previous iteration
+ * by the {@link SharedVar} of the recurrence. The inner expression of the loop
+ * loads the value by the same {@link SharedVar}. The expression is the one the
+ * recurrence computes; it is kept for printing and for the type of the value.
+ * <p>
+ * A recurrence may be valid from a certain value of the loop variable on only:
+ * in the iterations before <code>from</code>, the value is the result of
+ * <code>first</code> as well.
+ */
+public final class Recurrence implements Serializable {
+
+    private final int index;
+
+    private final Expression expression;
+
+    private final Expression first;
+
+    private final Expression next;
+
+    private final int from;
+
+    public Recurrence(int index, Expression expression, Expression first, Expression next) {
+        this(index, expression, first, next, Integer.MIN_VALUE);
+    }
+
+    public Recurrence(int index, Expression expression, Expression first, Expression next, int from) {
+        this.index = index;
+        this.expression = expression;
+        this.first = first;
+        this.next = next;
+        this.from = from;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public SharedVar getSharedVar() {
+        return new SharedVar(index, expression);
+    }
+
+    /**
+     * @return The first value of the loop variable for which <code>next</code> is
+     * used, or <code>Integer.MIN_VALUE</code>, if it is used in every iteration but
+     * the first one.
+     */
+    public int getFrom() {
+        return from;
+    }
+
+    public boolean isGuarded() {
+        return from != Integer.MIN_VALUE;
+    }
+
+    public boolean evaluatesToDouble() {
+        return expression.evaluatesToDouble();
+    }
+
+    public <T> T acceptFirst(Visitor visitor) {
+        return first.accept(visitor);
+    }
+
+    public <T> T acceptNext(Visitor visitor) {
+        return next.accept(visitor);
+    }
+
+    /**
+     * A copy of this recurrence with other expressions for the first and the
+     * further iterations.
+     */
+    public Recurrence with(Expression first, Expression next) {
+        return new Recurrence(index, expression, first, next, from);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("index", index)
+                .add("expression", expression)
+                .add("first", first)
+                .add("next", next)
+                .add("from", from)
+                .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        Recurrence that = (Recurrence) o;
+        return index == that.index &&
+                from == that.from &&
+                expression.equals(that.expression) &&
+                first.equals(that.first) &&
+                next.equals(that.next);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(index, expression, first, next, from);
+    }
+
+}
@@ -0,0 +1,71 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.ast;
+
+import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+/**
+ * The first evaluation of a common subexpression. The value of the expression
+ * is stored in a local variable and then used like the expression itself; all
+ * further occurrences of the expression are replaced by a {@link SharedVar}
+ * with the same index. Synthesized by the optimizer, not by the parser.
+ */
+public final class SharedExpression extends UnaryExpression implements IntExpression {
+
+    private final int index;
+
+    public SharedExpression(int index, Expression expression) {
+        super(expression);
+        this.index = index;
+    }
+
+    @Override
+    public <T> T accept(Visitor visitor) {
+        return visitor.visit(this);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public SharedVar getSharedVar() {
+        return new SharedVar(index, expression);
+    }
+
+    @Override
+    public boolean evaluatesToDouble() {
+        return expression.evaluatesToDouble();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("index", index)
+                .add("expression", expression)
+                .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && index == ((SharedExpression) o).index;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(index, expression);
+    }
+
+}
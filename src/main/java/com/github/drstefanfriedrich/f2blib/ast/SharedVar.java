@@ -0,0 +1,80 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.ast;
+
+import com.github.drstefanfriedrich.f2blib.visitor.Visitor;
+import com.google.common.base.MoreObjects;
+
+import java.util.Objects;
+
+/**
+ * Uses the value of a common subexpression, which has been stored by the
+ * {@link SharedExpression} with the same index. The expression is kept for
+ * printing and for the type of the value only; it is not evaluated again.
+ */
+public final class SharedVar implements IntExpression {
+
+    private final int index;
+
+    private final Expression expression;
+
+    public SharedVar(int index, Expression expression) {
+        this.index = index;
+        this.expression = expression;
+    }
+
+    @Override
+    public <T> T accept(Visitor visitor) {
+        return visitor.visit(this);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public <T> T acceptExpression(Visitor visitor) {
+        return expression.accept(visitor);
+    }
+
+    @Override
+    public boolean evaluatesToDouble() {
+        return expression.evaluatesToDouble();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("index", index)
+                .add("expression", expression)
+                .toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        SharedVar that = (SharedVar) o;
+        return index == that.index &&
+                expression.equals(that.expression);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(index, expression);
+    }
+
+}
@@ -0,0 +1,347 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidatorImpl;
+import com.google.common.base.MoreObjects;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static java.lang.String.format;
+
+/**
+ * Persistent cache of generated classes. Parsing a function definition and
+ * generating its class is by far the most expensive part of loading a function.
+ * With a warm cache, loading a function only means reading one small file and
+ * defining the class.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the source text of the function
+ * definition, the version of the library and the version of the cache format, so
+ * a new library version never picks up classes generated by an older one. Every
+ * entry stores its key and a CRC32 checksum. Entries which cannot be read, which
+ * are stale or whose checksum does not match are deleted and treated as missing;
+ * the function is then generated again. Writing the cache is best effort: if an
+ * entry cannot be written, the function is loaded anyway.
+ */
+public class BytecodeCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BytecodeCache.class);
+
+    /**
+     * Must be incremented whenever the file format or the generated bytecode
+     * changes without a change of the library version.
+     */
+    static final int FORMAT_VERSION = 2;
+
+    static final String LIBRARY_VERSION = MoreObjects.firstNonNull(
+            BytecodeCache.class.getPackage().getImplementationVersion(), "development");
+
+    private static final int MAGIC = 0xF2B1CAC4;
+
+    private static final String FILE_EXTENSION = ".f2b";
+
+    private final Path directory;
+
+    /**
+     * The cached information about one function.
+     */
+    public static class Entry {
+
+        private final String className;
+        private final byte[] bytecode;
+        private final FunctionEvaluationValidatorImpl functionEvaluationValidator;
+        private final String prettyPrintedFunction;
+        private final long cost;
+        private final List<String> unusedAuxiliaryVariables;
+
+        public Entry(String className, byte[] bytecode, FunctionEvaluationValidatorImpl functionEvaluationValidator,
+                     String prettyPrintedFunction, long cost) {
+            this(className, bytecode, functionEvaluationValidator, prettyPrintedFunction, cost,
+                    Collections.emptyList());
+        }
+
+        public Entry(String className, byte[] bytecode, FunctionEvaluationValidatorImpl functionEvaluationValidator,
+                     String prettyPrintedFunction, long cost, List<String> unusedAuxiliaryVariables) {
+            this.className = className;
+            this.bytecode = bytecode;
+            this.functionEvaluationValidator = functionEvaluationValidator;
+            this.prettyPrintedFunction = prettyPrintedFunction;
+            this.cost = cost;
+            this.unusedAuxiliaryVariables = unusedAuxiliaryVariables;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public byte[] getBytecode() {
+            return bytecode;
+        }
+
+        public FunctionEvaluationValidatorImpl getFunctionEvaluationValidator() {
+            return functionEvaluationValidator;
+        }
+
+        public String getPrettyPrintedFunction() {
+            return prettyPrintedFunction;
+        }
+
+        /**
+         * The estimated cost of one evaluation of the function.
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        /**
+         * The auxiliary variables of the function whose values are never used.
+         */
+        public List<String> getUnusedAuxiliaryVariables() {
+            return unusedAuxiliaryVariables;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("className", className)
+                    .add("bytecode.length", bytecode.length)
+                    .add("functionEvaluationValidator", functionEvaluationValidator)
+                    .add("cost", cost)
+                    .add("unusedAuxiliaryVariables", unusedAuxiliaryVariables)
+                    .toString();
+        }
+
+    }
+
+    public BytecodeCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The key of a function definition.
+     *
+     * @param functionDefinition The source text of the function definition.
+     * @return A hex string which can be used as a file name.
+     */
+    public static String key(String functionDefinition) {
+        return Hashing.sha256().newHasher()
+                .putString(LIBRARY_VERSION, StandardCharsets.UTF_8)
+                .putInt(FORMAT_VERSION)
+                .putString(functionDefinition, StandardCharsets.UTF_8)
+                .hash()
+                .toString();
+    }
+
+    /**
+     * Looks up a function definition. Corrupt or stale entries are deleted.
+     *
+     * @param functionDefinition The source text of the function definition.
+     * @return The cached entry, if there is a valid one.
+     */
+    public Optional<Entry> get(String functionDefinition) {
+
+        String key = key(functionDefinition);
+        Path file = file(key);
+
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return Optional.of(read(in, key));
+        } catch (IOException e) {
+            LOG.warn("Removing invalid cache entry {}: {}", file, e.getMessage());
+            remove(functionDefinition);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores an entry. The entry is written to a temporary file first and then
+     * moved, so concurrent readers never see a partially written entry.
+     *
+     * @param functionDefinition The source text of the function definition.
+     * @param entry              The entry to store.
+     */
+    public void put(String functionDefinition, Entry entry) {
+
+        String key = key(functionDefinition);
+        Path file = file(key);
+        Path tempFile = null;
+
+        try {
+
+            Files.createDirectories(directory);
+            tempFile = Files.createTempFile(directory, key, ".tmp");
+
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+                write(out, key, entry);
+            }
+
+            try {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            LOG.debug("Function {} stored in cache entry {}", entry.getClassName(), file);
+
+        } catch (IOException e) {
+            LOG.warn("Could not write cache entry {}: {}", file, e.getMessage());
+            deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * Removes the entry of a function definition, if there is one.
+     *
+     * @param functionDefinition The source text of the function definition.
+     */
+    public void remove(String functionDefinition) {
+        deleteQuietly(file(key(functionDefinition)));
+    }
+
+    /**
+     * Writes an entry in the format of the cache files.
+     *
+     * @param out   The stream to write to.
+     * @param key   The key of the entry.
+     * @param entry The entry.
+     * @throws IOException If the entry cannot be written.
+     */
+    public static void write(OutputStream out, String key, Entry entry) throws IOException {
+
+        CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32());
+        DataOutputStream data = new DataOutputStream(checked);
+
+        FunctionEvaluationValidatorImpl validator = entry.getFunctionEvaluationValidator();
+
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeUTF(key);
+        data.writeUTF(entry.getClassName());
+        writeString(data, entry.getPrettyPrintedFunction());
+        data.writeLong(entry.getCost());
+        data.writeInt(validator.getSizeP());
+        data.writeInt(validator.getSizeX());
+        data.writeInt(validator.getSizeY());
+        data.writeBoolean(validator.isAtLeastOneParameterIsIntExpression());
+        data.writeBoolean(validator.isAtLeastOneVariableIsIntExpression());
+        data.writeInt(entry.getUnusedAuxiliaryVariables().size());
+        for (String unusedAuxiliaryVariable : entry.getUnusedAuxiliaryVariables()) {
+            data.writeUTF(unusedAuxiliaryVariable);
+        }
+        data.writeInt(entry.getBytecode().length);
+        data.write(entry.getBytecode());
+        data.flush();
+
+        data.writeLong(checked.getChecksum().getValue());
+        data.flush();
+    }
+
+    /**
+     * Reads an entry in the format of the cache files.
+     *
+     * @param in          The stream to read from.
+     * @param expectedKey The key the entry must have.
+     * @return The entry.
+     * @throws IOException If the entry cannot be read, is stale or is corrupt.
+     */
+    public static Entry read(InputStream in, String expectedKey) throws IOException {
+
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        DataInputStream data = new DataInputStream(checked);
+
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a cache entry");
+        }
+
+        int formatVersion = data.readInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException(format("Format version %d is stale", formatVersion));
+        }
+
+        String key = data.readUTF();
+        if (!key.equals(expectedKey)) {
+            throw new IOException(format("Key %s does not match", key));
+        }
+
+        String className = data.readUTF();
+        String prettyPrintedFunction = readString(data);
+        long cost = data.readLong();
+        FunctionEvaluationValidatorImpl validator = new FunctionEvaluationValidatorImpl(data.readInt(),
+                data.readInt(), data.readInt(), data.readBoolean(), data.readBoolean());
+        int unusedAuxiliaryVariablesCount = checkLength(data.readInt());
+        List<String> unusedAuxiliaryVariables = new ArrayList<>();
+        for (int i = 0; i < unusedAuxiliaryVariablesCount; i++) {
+            unusedAuxiliaryVariables.add(data.readUTF());
+        }
+        byte[] bytecode = new byte[checkLength(data.readInt())];
+        data.readFully(bytecode);
+
+        long checksum = checked.getChecksum().getValue();
+        if (data.readLong() != checksum) {
+            throw new IOException("Checksum does not match");
+        }
+
+        return new Entry(className, bytecode, validator, prettyPrintedFunction, cost, unusedAuxiliaryVariables);
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        // writeUTF() is limited to 64 KB, which a pretty printed function may exceed
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[checkLength(data.readInt())];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > 64 * 1024 * 1024) {
+            throw new IOException(format("Invalid length %d", length));
+        }
+        return length;
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + FILE_EXTENSION);
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Could not delete {}: {}", file, e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+
+import static java.lang.String.format;
+
+/**
+ * Defines the generated classes in the JVM. The strategy decides which class
+ * loader a class ends up in, and thereby how much metaspace a class costs and
+ * when it can be unloaded. Every strategy allows to define a class with the
+ * same name again, e.g. when a function is loaded in a new version.
+ */
+public interface ClassDefinitionStrategy {
+
+    /**
+     * The strategy: <code>hidden</code>, <code>grouped</code> or
+     * <code>isolated</code>. Defaults to <code>hidden</code> on Java 15 and
+     * later, and to <code>grouped</code> otherwise.
+     */
+    String STRATEGY_PROPERTY = "com.github.drstefanfriedrich.f2blib.classdefinition";
+
+    /**
+     * The number of classes per class loader of the <code>grouped</code> strategy.
+     */
+    String GROUP_SIZE_PROPERTY = "com.github.drstefanfriedrich.f2blib.classdefinition.groupSize";
+
+    /**
+     * Defines a class.
+     *
+     * @param className The fully qualified name of the class.
+     * @param bytecode  The class file.
+     * @return The defined class.
+     */
+    Class<? extends FunctionEvaluation> define(String className, byte[] bytecode);
+
+    /**
+     * Tells the strategy that a class defined by it is not used any more. The
+     * class must not be instantiated afterwards. It is unloaded as soon as
+     * neither the class nor one of its instances is referenced any more. The
+     * default implementation does nothing.
+     *
+     * @param clazz The class which is not used any more.
+     */
+    default void release(Class<?> clazz) {
+    }
+
+    /**
+     * Creates the strategy configured by the system properties
+     * {@value #STRATEGY_PROPERTY} and {@value #GROUP_SIZE_PROPERTY}.
+     *
+     * @return The strategy.
+     * @throws IllegalArgumentException If the strategy is unknown or not supported.
+     */
+    static ClassDefinitionStrategy fromSystemProperties() {
+
+        String strategy = System.getProperty(STRATEGY_PROPERTY,
+                HiddenClassDefinitionStrategy.isSupported() ? "hidden" : "grouped");
+
+        switch (strategy) {
+            case "hidden":
+                if (!HiddenClassDefinitionStrategy.isSupported()) {
+                    throw new IllegalArgumentException("Hidden classes are supported on Java 15 and later only");
+                }
+                return new HiddenClassDefinitionStrategy();
+            case "grouped":
+                return new GroupedClassDefinitionStrategy(Integer.getInteger(GROUP_SIZE_PROPERTY,
+                        GroupedClassDefinitionStrategy.DEFAULT_GROUP_SIZE));
+            case "isolated":
+                return new IsolatedClassDefinitionStrategy();
+            default:
+                throw new IllegalArgumentException(format("Unknown class definition strategy: %s", strategy));
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import com.github.drstefanfriedrich.f2blib.parser.FunctionParser;
+import com.github.drstefanfriedrich.f2blib.visitor.CostEstimationVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidatorImpl;
+import com.github.drstefanfriedrich.f2blib.visitor.PrettyPrintVisitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+
+/**
+ * Compiles function files at build time. Every <code>*.f</code> file below the
+ * source directory is parsed and compiled to a <code>.class</code> file in the
+ * output directory, and all functions are listed in a
+ * {@link PrecompiledFunctionIndex}. Put the output directory into the jar, and
+ * load the functions with
+ * {@link com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel#loadPrecompiled(String)};
+ * neither the parser nor the bytecode generator is needed at runtime then.
+ * <p>
+ * Usage: <code>java com.github.drstefanfriedrich.f2blib.generator.FunctionCompiler
+ * &lt;source directory&gt; &lt;output directory&gt;</code>
+ */
+public class FunctionCompiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FunctionCompiler.class);
+
+    private static final String FUNCTION_FILE_EXTENSION = ".f";
+
+    private final FunctionParser parser;
+
+    private final FunctionEvaluationBytecodeGenerator generator;
+
+    public FunctionCompiler() {
+        this(new AntlrFunctionParser(), new FunctionEvaluationBytecodeGeneratorImpl());
+    }
+
+    public FunctionCompiler(FunctionParser parser, FunctionEvaluationBytecodeGenerator generator) {
+        this.parser = parser;
+        this.generator = generator;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 2) {
+            System.err.println("Usage: FunctionCompiler <source directory> <output directory>");
+            System.exit(2);
+        }
+
+        List<String> functions = new FunctionCompiler().compile(Paths.get(args[0]), Paths.get(args[1]));
+
+        System.out.println(format("%d functions compiled", functions.size()));
+    }
+
+    /**
+     * Compiles all function files below a directory.
+     *
+     * @param sourceDirectory The directory containing the <code>*.f</code> files.
+     * @param outputDirectory The directory to write the class files and the index to.
+     * @return The names of the compiled functions.
+     * @throws IOException              If a file cannot be read or written.
+     * @throws IllegalArgumentException If a function is defined twice.
+     */
+    public List<String> compile(Path sourceDirectory, Path outputDirectory) throws IOException {
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(sourceDirectory)) {
+            files = paths.filter(Files::isRegularFile)
+                    .filter(path -> path.getFileName().toString().endsWith(FUNCTION_FILE_EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        PrecompiledFunctionIndex index = new PrecompiledFunctionIndex();
+        List<String> result = new ArrayList<>();
+
+        for (Path file : files) {
+
+            PrecompiledFunctionIndex.Entry entry = compileFile(file, outputDirectory);
+
+            if (index.get(entry.getClassName()) != null) {
+                throw new IllegalArgumentException(format("Function %s is defined twice, the second time in %s",
+                        entry.getClassName(), file));
+            }
+
+            index.add(entry);
+            result.add(entry.getClassName());
+        }
+
+        Path indexFile = outputDirectory.resolve(PrecompiledFunctionIndex.INDEX_RESOURCE);
+        Files.createDirectories(indexFile.getParent());
+
+        try (OutputStream out = Files.newOutputStream(indexFile)) {
+            index.write(out);
+        }
+
+        LOG.info("{} functions compiled from {} to {}", result.size(), sourceDirectory, outputDirectory);
+        return result;
+    }
+
+    private PrecompiledFunctionIndex.Entry compileFile(Path file, Path outputDirectory) throws IOException {
+
+        String source = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+
+        FunctionDefinition fd;
+        try {
+            fd = parser.parse(source);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(format("Cannot parse %s: %s", file, e.getMessage()), e);
+        }
+
+        FunctionEvaluationWrapper wrapper = generator.generateAndInstantiate(fd);
+        String className = wrapper.getClassName();
+
+        Path classFile = outputDirectory.resolve(className.replace('.', '/') + ".class");
+        if (classFile.getParent() != null) {
+            Files.createDirectories(classFile.getParent());
+        }
+        Files.write(classFile, wrapper.getBytecode());
+
+        PrettyPrintVisitor prettyPrintVisitor = new PrettyPrintVisitor();
+        fd.accept(prettyPrintVisitor);
+
+        CostEstimationVisitor costEstimationVisitor = new CostEstimationVisitor();
+        fd.accept(costEstimationVisitor);
+
+        LOG.debug("Function {} compiled from {}", className, file);
+
+        return new PrecompiledFunctionIndex.Entry(className,
+                (FunctionEvaluationValidatorImpl) wrapper.getFunctionEvaluationValidator(),
+                prettyPrintVisitor.getString(), costEstimationVisitor.getCost());
+    }
+
+}
@@ -13,6 +13,7 @@
 package com.github.drstefanfriedrich.f2blib.generator;
 
 import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidator;
 
 /**
  * Abstraction layer to decouple the system and to improve testability.
@@ -21,4 +22,26 @@ public interface FunctionEvaluationBytecodeGenerator {
 
     FunctionEvaluationWrapper generateAndInstantiate(FunctionDefinition functionDefinition);
 
+    /**
+     * Defines and instantiates a class which has been generated before, e.g. one
+     * read from a {@link BytecodeCache}.
+     *
+     * @param className                   The fully qualified name of the class.
+     * @param bytecode                    The class file.
+     * @param functionEvaluationValidator The validator of the function.
+     * @return The instantiated function evaluation.
+     */
+    FunctionEvaluationWrapper instantiate(String className, byte[] bytecode,
+                                          FunctionEvaluationValidator functionEvaluationValidator);
+
+    /**
+     * Tells the generator that a class it has defined is not used any more, so
+     * that it can be unloaded. See {@link ClassDefinitionStrategy#release(Class)}.
+     * The default implementation does nothing.
+     *
+     * @param clazz The class which is not used any more.
+     */
+    default void release(Class<?> clazz) {
+    }
+
 }
@@ -22,9 +22,37 @@ import java.lang.reflect.InvocationTargetException;
 
 public class FunctionEvaluationBytecodeGeneratorImpl implements FunctionEvaluationBytecodeGenerator {
 
+    private final ClassDefinitionStrategy classDefinitionStrategy;
+
+    private final FunctionOptimizer functionOptimizer;
+
+    /**
+     * Uses the class definition strategy and the optimizer configured by the
+     * system properties, see {@link ClassDefinitionStrategy#fromSystemProperties()}
+     * and {@link FunctionOptimizer#FunctionOptimizer()}.
+     */
+    public FunctionEvaluationBytecodeGeneratorImpl() {
+        this(ClassDefinitionStrategy.fromSystemProperties());
+    }
+
+    public FunctionEvaluationBytecodeGeneratorImpl(ClassDefinitionStrategy classDefinitionStrategy) {
+        this(classDefinitionStrategy, new FunctionOptimizer());
+    }
+
+    public FunctionEvaluationBytecodeGeneratorImpl(ClassDefinitionStrategy classDefinitionStrategy,
+                                                   FunctionOptimizer functionOptimizer) {
+        this.classDefinitionStrategy = classDefinitionStrategy;
+        this.functionOptimizer = functionOptimizer;
+    }
+
     @Override
     public FunctionEvaluationWrapper generateAndInstantiate(FunctionDefinition functionDefinition) {
 
+        // The function is validated as it has been defined, before the optimizer drops
+        // unused auxiliary variables; the arguments are validated against it as well
+        ValidationVisitor definitionValidationVisitor = new ValidationVisitorImpl();
+        functionDefinition.accept(definitionValidationVisitor);
+
         ValidationVisitor validationVisitor = new ValidationVisitorImpl();
         LocalVariables localVariables = validationVisitor.getLocalVariables();
         SpecialFunctionsUsage specialFunctionsUsage = validationVisitor.getSpecialFunctionsUsage();
@@ -33,7 +61,12 @@ public class FunctionEvaluationBytecodeGeneratorImpl implements FunctionEvaluati
 
         BytecodeVisitor bytecodeVisitor = new BytecodeVisitorImpl(localVariables, specialFunctionsUsage, stackDepthVisitor);
 
-        return generateAndInstantiate(functionDefinition, validationVisitor, bytecodeVisitor, stackDepthVisitor);
+        FunctionEvaluationWrapper wrapper = generateAndInstantiate(functionOptimizer.optimize(functionDefinition),
+                validationVisitor, bytecodeVisitor, stackDepthVisitor);
+
+        return new FunctionEvaluationWrapper(wrapper.getFunctionEvaluation(),
+                definitionValidationVisitor.getFunctionEvaluationValidator(), wrapper.getBytecode(),
+                wrapper.getClassName());
     }
 
     @VisibleForTesting
@@ -47,9 +80,10 @@ public class FunctionEvaluationBytecodeGeneratorImpl implements FunctionEvaluati
             functionDefinition.accept(stackDepthVisitor);
             functionDefinition.accept(bytecodeVisitor);
 
-            Class<? extends FunctionEvaluation> clazz = bytecodeVisitor.generate();
+            Class<? extends FunctionEvaluation> clazz = bytecodeVisitor.generate(classDefinitionStrategy);
 
-            return new FunctionEvaluationWrapper(instantiate(clazz), validationVisitor.getFunctionEvaluationValidator());
+            return new FunctionEvaluationWrapper(instantiate(clazz), validationVisitor.getFunctionEvaluationValidator(),
+                    bytecodeVisitor.getBytecode(), functionDefinition.getName());
 
         } catch (NoSuchMethodException | IllegalAccessException | InstantiationException e) {
             throw new BytecodeGenerationException("Cannot instantiate class", e);
@@ -62,6 +96,31 @@ public class FunctionEvaluationBytecodeGeneratorImpl implements FunctionEvaluati
         }
     }
 
+    @Override
+    public FunctionEvaluationWrapper instantiate(String className, byte[] bytecode,
+                                                 FunctionEvaluationValidator functionEvaluationValidator) {
+        try {
+
+            Class<? extends FunctionEvaluation> clazz = classDefinitionStrategy.define(className, bytecode);
+
+            return new FunctionEvaluationWrapper(instantiate(clazz), functionEvaluationValidator, bytecode, className);
+
+        } catch (NoSuchMethodException | IllegalAccessException | InstantiationException e) {
+            throw new BytecodeGenerationException("Cannot instantiate class", e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new BytecodeGenerationException("Exception thrown from constructor invocation", cause);
+        }
+    }
+
+    @Override
+    public void release(Class<?> clazz) {
+        classDefinitionStrategy.release(clazz);
+    }
+
     @VisibleForTesting
     protected FunctionEvaluation instantiate(Class<? extends FunctionEvaluation> clazz) throws NoSuchMethodException,
             IllegalAccessException, InvocationTargetException, InstantiationException {
@@ -22,10 +22,24 @@ public class FunctionEvaluationWrapper {
 
     private final FunctionEvaluation functionEvaluation;
     private final FunctionEvaluationValidator functionEvaluationValidator;
+    private final byte[] bytecode;
+    private final String className;
 
     public FunctionEvaluationWrapper(FunctionEvaluation functionEvaluation, FunctionEvaluationValidator functionEvaluationValidator) {
+        this(functionEvaluation, functionEvaluationValidator, null);
+    }
+
+    public FunctionEvaluationWrapper(FunctionEvaluation functionEvaluation, FunctionEvaluationValidator functionEvaluationValidator,
+                                     byte[] bytecode) {
+        this(functionEvaluation, functionEvaluationValidator, bytecode, null);
+    }
+
+    public FunctionEvaluationWrapper(FunctionEvaluation functionEvaluation, FunctionEvaluationValidator functionEvaluationValidator,
+                                     byte[] bytecode, String className) {
         this.functionEvaluation = functionEvaluation;
         this.functionEvaluationValidator = functionEvaluationValidator;
+        this.bytecode = bytecode;
+        this.className = className;
     }
 
     public FunctionEvaluation getFunctionEvaluation() {
@@ -36,6 +50,22 @@ public class FunctionEvaluationWrapper {
         return functionEvaluationValidator;
     }
 
+    /**
+     * The class file of the function evaluation, or null if it is not known.
+     */
+    public byte[] getBytecode() {
+        return bytecode;
+    }
+
+    /**
+     * The name of the class of the function evaluation. This is the name of the
+     * function; it differs from the name of the class object if the class is a
+     * hidden class.
+     */
+    public String getClassName() {
+        return className != null ? className : functionEvaluation.getClass().getName();
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
@@ -0,0 +1,118 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.visitor.ClosedFormSumVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.CommonSubexpressionVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.ConstantFoldingVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.DeadAuxiliaryVariableVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.HornerVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.LoopFusionVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.LoopInvariantCodeMotionVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.PrecomputationVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.RunningProductVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.StrengthReductionVisitor;
+
+/**
+ * Rewrites the AST of a function before bytecode is generated for it, or before
+ * it is interpreted. Every transformation but three keeps the results of the
+ * function exactly the same, bit for bit; it only removes work from the generated
+ * code. The exceptions are {@link StrengthReductionVisitor}, which replaces
+ * <code>Math.pow</code> by multiplications, {@link ClosedFormSumVisitor},
+ * which replaces arithmetic and geometric series of doubles by their closed form,
+ * and {@link HornerVisitor}, which evaluates polynomials by the Horner scheme;
+ * they may differ in the last few bits, and more where intermediate results
+ * overflow (see the visitors). Auxiliary variables whose values are
+ * never used are not evaluated at all, see {@link DeadAuxiliaryVariableVisitor}.
+ * Hence an exception which their evaluation would throw, e.g. by a binomial
+ * coefficient with k &gt; n, is not thrown either. Functions must be validated
+ * before they are optimized, since the unused auxiliary variables may refer to
+ * undefined variables or to variables beyond the ones used by the functions.
+ * The optimizer can be switched off by the system property
+ * {@value #ENABLED_PROPERTY}, e.g. to compare the generated code.
+ */
+public class FunctionOptimizer {
+
+    /**
+     * Whether functions are optimized. Defaults to <code>true</code>.
+     */
+    public static final String ENABLED_PROPERTY = "com.github.drstefanfriedrich.f2blib.optimizer.enabled";
+
+    private final boolean enabled;
+
+    /**
+     * Enabled unless the system property {@value #ENABLED_PROPERTY} is
+     * <code>false</code>.
+     */
+    public FunctionOptimizer() {
+        this(Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true")));
+    }
+
+    public FunctionOptimizer(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Optimizes a function.
+     *
+     * @param functionDefinition The function to optimize.
+     * @return The optimized function, or the given function if the optimizer is disabled.
+     */
+    public FunctionDefinition optimize(FunctionDefinition functionDefinition) {
+
+        if (!enabled) {
+            return functionDefinition;
+        }
+
+        FunctionDefinition live = DeadAuxiliaryVariableVisitor.eliminate(functionDefinition);
+        FunctionDefinition folded = live.accept(new ConstantFoldingVisitor());
+        FunctionDefinition precomputed = PrecomputationVisitor.precompute(folded);
+        FunctionDefinition polynomials = HornerVisitor.rewrite(precomputed);
+        FunctionDefinition carried = RunningProductVisitor.carry(polynomials);
+        FunctionDefinition closed = ClosedFormSumVisitor.close(carried);
+        FunctionDefinition reduced = StrengthReductionVisitor.reduce(closed);
+        FunctionDefinition hoisted = LoopInvariantCodeMotionVisitor.hoist(reduced);
+        FunctionDefinition fused = LoopFusionVisitor.fuse(hoisted);
+
+        return CommonSubexpressionVisitor.eliminate(fused);
+    }
+
+    /**
+     * Optimizes a function for the interpreter. The interpreter does not follow
+     * the typing rules of the generated code, and it has no class to initialize,
+     * so constants are not folded, powers are not reduced, series and polynomials
+     * are not rewritten and nothing is precomputed; only unused auxiliary
+     * variables are dropped, products are carried from one iteration to the next,
+     * the loop-invariant expressions are hoisted and the loops are fused.
+     *
+     * @param functionDefinition The function to optimize.
+     * @return The optimized function, or the given function if the optimizer is disabled.
+     */
+    public FunctionDefinition optimizeForInterpreter(FunctionDefinition functionDefinition) {
+
+        if (!enabled) {
+            return functionDefinition;
+        }
+
+        FunctionDefinition live = DeadAuxiliaryVariableVisitor.eliminate(functionDefinition);
+        FunctionDefinition carried = RunningProductVisitor.carry(live);
+
+        return LoopFusionVisitor.fuse(LoopInvariantCodeMotionVisitor.hoist(carried));
+    }
+
+}
@@ -0,0 +1,130 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.lang.String.format;
+
+/**
+ * Defines up to <code>groupSize</code> classes in one class loader, so that the
+ * metaspace overhead of a class loader is shared by the classes of a group. A
+ * group, and all of its classes, are unloaded when none of its classes is
+ * referenced any more. A new group is started when the current one is full,
+ * when it already contains a class with the same name, or when all of its
+ * classes have been released; so the strategy never keeps a group alive
+ * whose classes are not used any more.
+ */
+public class GroupedClassDefinitionStrategy implements ClassDefinitionStrategy {
+
+    static final int DEFAULT_GROUP_SIZE = 64;
+
+    private final int groupSize;
+
+    private final ClassLoader parent = FunctionEvaluation.class.getClassLoader();
+
+    private GroupClassLoader current;
+
+    public GroupedClassDefinitionStrategy() {
+        this(DEFAULT_GROUP_SIZE);
+    }
+
+    /**
+     * @param groupSize The maximum number of classes per class loader.
+     */
+    public GroupedClassDefinitionStrategy(int groupSize) {
+
+        if (groupSize < 1) {
+            throw new IllegalArgumentException(format("The group size must be positive, but was %d", groupSize));
+        }
+
+        this.groupSize = groupSize;
+    }
+
+    @Override
+    public synchronized Class<? extends FunctionEvaluation> define(String className, byte[] bytecode) {
+
+        if (current == null || !current.canDefine(className)) {
+            current = new GroupClassLoader(parent, groupSize);
+        }
+
+        return current.define(className, bytecode);
+    }
+
+    @Override
+    public void release(Class<?> clazz) {
+
+        if (!(clazz.getClassLoader() instanceof GroupClassLoader)) {
+            return;
+        }
+
+        GroupClassLoader group = (GroupClassLoader) clazz.getClassLoader();
+
+        if (group.release(clazz.getName())) {
+            synchronized (this) {
+                if (current == group) {
+                    current = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * The class loader of the current group, or null if there is none.
+     */
+    synchronized ClassLoader getCurrentGroup() {
+        return current;
+    }
+
+    private static class GroupClassLoader extends ClassLoader {
+
+        private final int groupSize;
+
+        private final Set<String> liveClasses = new HashSet<>();
+
+        private int definedClasses;
+
+        GroupClassLoader(ClassLoader parent, int groupSize) {
+            super(parent);
+            this.groupSize = groupSize;
+        }
+
+        synchronized boolean canDefine(String className) {
+            return definedClasses < groupSize && findLoadedClass(className) == null;
+        }
+
+        synchronized Class<? extends FunctionEvaluation> define(String className, byte[] bytecode) {
+
+            @SuppressWarnings("unchecked")
+            Class<? extends FunctionEvaluation> result = (Class<? extends FunctionEvaluation>) defineClass(className,
+                    bytecode, 0, bytecode.length);
+
+            definedClasses++;
+            liveClasses.add(className);
+
+            return result;
+        }
+
+        /**
+         * @return true, if all classes of the group have been released.
+         */
+        synchronized boolean release(String className) {
+            return liveClasses.remove(className) && liveClasses.isEmpty();
+        }
+
+    }
+
+}
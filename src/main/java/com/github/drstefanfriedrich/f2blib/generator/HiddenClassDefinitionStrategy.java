@@ -0,0 +1,161 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.exception.BytecodeGenerationException;
+import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.String.format;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Defines every class as a hidden class (Java 15 and later). A hidden class
+ * does not need a class loader of its own, and it is unloaded as soon as it is
+ * not referenced any more.
+ * <p>
+ * A hidden class must be defined in the package of the lookup which defines it.
+ * Therefore an empty host class is defined once per package of the generated
+ * classes, and the hidden classes are defined through the lookups of these
+ * hosts. The hidden class API is called reflectively, so the library still
+ * runs on Java 8; see {@link #isSupported()}.
+ */
+public class HiddenClassDefinitionStrategy implements ClassDefinitionStrategy {
+
+    private static final String HOST_CLASS_NAME = "F2BLibHiddenClassHost";
+
+    private static final String LOOKUP_DESCRIPTOR = "()Ljava/lang/invoke/MethodHandles$Lookup;";
+
+    private static final Method DEFINE_HIDDEN_CLASS;
+
+    private static final Object NO_CLASS_OPTIONS;
+
+    static {
+        Method defineHiddenClass = null;
+        Object noClassOptions = null;
+        try {
+            Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            noClassOptions = Array.newInstance(classOption, 0);
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class,
+                    boolean.class, noClassOptions.getClass());
+        } catch (ReflectiveOperationException e) {
+            // Java 14 or earlier
+        }
+        DEFINE_HIDDEN_CLASS = defineHiddenClass;
+        NO_CLASS_OPTIONS = noClassOptions;
+    }
+
+    private final HostClassLoader hostClassLoader = new HostClassLoader(FunctionEvaluation.class.getClassLoader());
+
+    private final Map<String, MethodHandles.Lookup> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @return true, if the JVM supports hidden classes.
+     */
+    public static boolean isSupported() {
+        return DEFINE_HIDDEN_CLASS != null;
+    }
+
+    public HiddenClassDefinitionStrategy() {
+        if (!isSupported()) {
+            throw new IllegalStateException("Hidden classes are supported on Java 15 and later only");
+        }
+    }
+
+    @Override
+    public Class<? extends FunctionEvaluation> define(String className, byte[] bytecode) {
+
+        MethodHandles.Lookup host = hosts.computeIfAbsent(packageName(className), this::defineHost);
+
+        try {
+            MethodHandles.Lookup lookup = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(host, bytecode, true,
+                    NO_CLASS_OPTIONS);
+            return lookup.lookupClass().asSubclass(FunctionEvaluation.class);
+        } catch (IllegalAccessException e) {
+            throw new BytecodeGenerationException(format("Cannot define hidden class %s", className), e);
+        } catch (InvocationTargetException e) {
+            throw unwrap(e, className);
+        }
+    }
+
+    /**
+     * Defines the host class of a package, and returns a lookup with full
+     * privilege access in it.
+     */
+    private MethodHandles.Lookup defineHost(String packageName) {
+
+        String hostClassName = packageName.isEmpty() ? HOST_CLASS_NAME : packageName + "." + HOST_CLASS_NAME;
+
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, hostClassName.replace('.', '/'), null,
+                "java/lang/Object", null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "lookup", LOOKUP_DESCRIPTOR, null, null);
+        mv.visitCode();
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", LOOKUP_DESCRIPTOR, false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(1, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        try {
+            Class<?> host = hostClassLoader.define(hostClassName, cw.toByteArray());
+            return (MethodHandles.Lookup) host.getMethod("lookup").invoke(null);
+        } catch (IllegalAccessException | NoSuchMethodException e) {
+            throw new BytecodeGenerationException(format("Cannot define host class %s", hostClassName), e);
+        } catch (InvocationTargetException e) {
+            throw unwrap(e, hostClassName);
+        }
+    }
+
+    private static String packageName(String className) {
+        int index = className.lastIndexOf('.');
+        return index < 0 ? "" : className.substring(0, index);
+    }
+
+    private static RuntimeException unwrap(InvocationTargetException e, String className) {
+
+        Throwable cause = e.getTargetException();
+
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+
+        return new BytecodeGenerationException(format("Cannot define class %s", className), cause);
+    }
+
+    private static class HostClassLoader extends ClassLoader {
+
+        HostClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        synchronized Class<?> define(String className, byte[] bytecode) {
+            return defineClass(className, bytecode, 0, bytecode.length);
+        }
+
+    }
+
+}
@@ -0,0 +1,30 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+import com.github.drstefanfriedrich.f2blib.visitor.AbstractBytecodeVisitor;
+
+/**
+ * Defines every class in its own class loader. A class is unloaded as soon as
+ * it is not referenced any more, but every class loader costs metaspace of its
+ * own.
+ */
+public class IsolatedClassDefinitionStrategy implements ClassDefinitionStrategy {
+
+    @Override
+    public Class<? extends FunctionEvaluation> define(String className, byte[] bytecode) {
+        return AbstractBytecodeVisitor.defineClass(className, bytecode);
+    }
+
+}
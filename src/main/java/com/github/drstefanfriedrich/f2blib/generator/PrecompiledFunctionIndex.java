@@ -0,0 +1,240 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidatorImpl;
+import com.google.common.base.MoreObjects;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import static java.lang.String.format;
+
+/**
+ * The index of the functions compiled at build time by {@link FunctionCompiler}.
+ * The compiled functions are ordinary <code>.class</code> files on the class path,
+ * and the index lists, per class, everything else the kernel needs to load the
+ * function: the shape of the validator, the pretty printed function and the
+ * estimated cost. The index is a properties file at {@value #INDEX_RESOURCE};
+ * every jar on the class path can contain one.
+ */
+public class PrecompiledFunctionIndex {
+
+    public static final String INDEX_RESOURCE = "META-INF/f2blib/functions.properties";
+
+    private static final String SHAPE = ".shape";
+    private static final String COST = ".cost";
+    private static final String PRETTY_PRINTED = ".prettyPrinted";
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * A precompiled function.
+     */
+    public static class Entry {
+
+        private final String className;
+        private final FunctionEvaluationValidatorImpl functionEvaluationValidator;
+        private final String prettyPrintedFunction;
+        private final long cost;
+
+        public Entry(String className, FunctionEvaluationValidatorImpl functionEvaluationValidator,
+                     String prettyPrintedFunction, long cost) {
+            this.className = className;
+            this.functionEvaluationValidator = functionEvaluationValidator;
+            this.prettyPrintedFunction = prettyPrintedFunction;
+            this.cost = cost;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public FunctionEvaluationValidatorImpl getFunctionEvaluationValidator() {
+            return functionEvaluationValidator;
+        }
+
+        public String getPrettyPrintedFunction() {
+            return prettyPrintedFunction;
+        }
+
+        /**
+         * The estimated cost of one evaluation of the function.
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("className", className)
+                    .add("functionEvaluationValidator", functionEvaluationValidator)
+                    .add("cost", cost)
+                    .toString();
+        }
+
+    }
+
+    public void add(Entry entry) {
+        entries.put(entry.getClassName(), entry);
+    }
+
+    /**
+     * @param className The name of the function, which is the name of its class.
+     * @return The function, or null if it is not in the index.
+     */
+    public Entry get(String className) {
+        return entries.get(className);
+    }
+
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Reads and merges the indexes of all jars and directories of a class loader.
+     *
+     * @param classLoader The class loader to search.
+     * @return The merged index.
+     * @throws IOException If an index cannot be read or is invalid.
+     */
+    public static PrecompiledFunctionIndex read(ClassLoader classLoader) throws IOException {
+
+        PrecompiledFunctionIndex result = new PrecompiledFunctionIndex();
+        Enumeration<URL> resources = classLoader.getResources(INDEX_RESOURCE);
+
+        while (resources.hasMoreElements()) {
+            URL resource = resources.nextElement();
+            try (InputStream in = resource.openStream()) {
+                result.read(new InputStreamReader(in, StandardCharsets.UTF_8), resource.toString());
+            }
+        }
+
+        return result;
+    }
+
+    private void read(Reader reader, String source) throws IOException {
+
+        Properties properties = new Properties();
+        properties.load(reader);
+
+        for (String key : properties.stringPropertyNames()) {
+
+            if (!key.endsWith(SHAPE)) {
+                continue;
+            }
+
+            String className = key.substring(0, key.length() - SHAPE.length());
+            String[] shape = properties.getProperty(key).split(",");
+            String cost = properties.getProperty(className + COST);
+            String prettyPrinted = properties.getProperty(className + PRETTY_PRINTED);
+
+            if (shape.length != 5 || cost == null || prettyPrinted == null) {
+                throw new IOException(format("Invalid entry for function %s in %s", className, source));
+            }
+
+            try {
+                add(new Entry(className, new FunctionEvaluationValidatorImpl(Integer.parseInt(shape[0]),
+                        Integer.parseInt(shape[1]), Integer.parseInt(shape[2]), Boolean.parseBoolean(shape[3]),
+                        Boolean.parseBoolean(shape[4])), prettyPrinted, Long.parseLong(cost)));
+            } catch (NumberFormatException e) {
+                throw new IOException(format("Invalid entry for function %s in %s", className, source), e);
+            }
+        }
+    }
+
+    /**
+     * Writes the index, sorted by class name, so that builds are reproducible.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If the index cannot be written.
+     */
+    public void write(OutputStream out) throws IOException {
+
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writer.write("# Functions precompiled by F2BLib. Generated file, do not edit.\n");
+
+        for (String className : new TreeSet<>(entries.keySet())) {
+
+            Entry entry = entries.get(className);
+            FunctionEvaluationValidatorImpl validator = entry.getFunctionEvaluationValidator();
+
+            writeProperty(writer, className + COST, Long.toString(entry.getCost()));
+            writeProperty(writer, className + PRETTY_PRINTED, entry.getPrettyPrintedFunction());
+            writeProperty(writer, className + SHAPE, format("%d,%d,%d,%b,%b", validator.getSizeP(),
+                    validator.getSizeX(), validator.getSizeY(), validator.isAtLeastOneParameterIsIntExpression(),
+                    validator.isAtLeastOneVariableIsIntExpression()));
+        }
+
+        writer.flush();
+    }
+
+    private static void writeProperty(Writer writer, String key, String value) throws IOException {
+        writer.write(escape(key, true) + "=" + escape(value, false) + "\n");
+    }
+
+    /**
+     * Escapes like {@link Properties#store(Writer, String)}, which cannot be used
+     * because it writes a timestamp.
+     */
+    private static String escape(String value, boolean key) {
+
+        StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    result.append("\\\\");
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                case '\r':
+                    result.append("\\r");
+                    break;
+                case '\t':
+                    result.append("\\t");
+                    break;
+                case '=':
+                case ':':
+                case '#':
+                case '!':
+                    result.append('\\').append(c);
+                    break;
+                case ' ':
+                    result.append(key || i == 0 ? "\\ " : " ");
+                    break;
+                default:
+                    result.append(c);
+            }
+        }
+
+        return result.toString();
+    }
+
+}
@@ -13,13 +13,18 @@
 package com.github.drstefanfriedrich.f2blib.impl;
 
 import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.FunctionHandle;
+import com.github.drstefanfriedrich.f2blib.LoadDiagnostics;
 import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
 import com.github.drstefanfriedrich.f2blib.parser.FunctionParser;
+import com.github.drstefanfriedrich.f2blib.visitor.CostEstimationVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.DeadAuxiliaryVariableVisitor;
 import com.github.drstefanfriedrich.f2blib.visitor.PrettyPrintVisitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -30,10 +35,16 @@ abstract class AbstractFEKImpl implements FunctionEvaluationKernel {
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractFEKImpl.class);
 
+    static final String SEQUENTIAL_CUTOFF_PROPERTY = "com.github.drstefanfriedrich.f2blib.parallel.cutoff";
+
+    static final long SEQUENTIAL_COST = 50_000;
+
     protected final Map<String, FunctionInfo> cache = new ConcurrentHashMap<>();
 
     protected final FunctionParser parser;
 
+    private final AsyncExecutor asyncExecutor = new AsyncExecutor();
+
     AbstractFEKImpl(FunctionParser parser) {
         this.parser = parser;
     }
@@ -48,6 +59,53 @@ abstract class AbstractFEKImpl implements FunctionEvaluationKernel {
 
     }
 
+    @Override
+    public FunctionHandle resolve(String functionName) {
+
+        FunctionInfo fi = cache.get(functionName);
+
+        if (fi == null) {
+            throw new IllegalArgumentException(format("Unknown function name: %s", functionName));
+        }
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Function {} resolved with tracing", functionName);
+            return new TracingFunctionHandle(functionName, fi, asyncExecutor);
+        }
+
+        // Handles are thread-safe, so one handle per function is enough. If two
+        // threads resolve the function at the same time, both handles are valid.
+        FunctionHandle handle = fi.getHandle();
+
+        if (handle == null) {
+            handle = new FunctionHandleImpl(functionName, fi, asyncExecutor);
+            fi.setHandle(handle);
+            LOG.debug("Function {} resolved", functionName);
+        }
+
+        return handle;
+    }
+
+    /**
+     * Hands y back to the pool of the function directly, without resolving a
+     * handle, since recycling does neither validate nor trace.
+     */
+    @Override
+    public void recycle(String functionName, double[] y) {
+
+        FunctionInfo fi = cache.get(functionName);
+
+        if (fi == null) {
+            throw new IllegalArgumentException(format("Unknown function name: %s", functionName));
+        }
+
+        ResultBufferPool resultBufferPool = fi.getResultBufferPool();
+
+        if (resultBufferPool != null) {
+            resultBufferPool.recycle(y);
+        }
+    }
+
     @Override
     public boolean remove(String functionName) {
 
@@ -57,11 +115,33 @@ abstract class AbstractFEKImpl implements FunctionEvaluationKernel {
             LOG.debug("Function {} not found for removal", functionName);
             return false;
         } else {
+            release(fi);
             LOG.debug("Function {} removed", functionName);
             return true;
         }
     }
 
+    /**
+     * Puts a function into the cache. A function with the same name which has
+     * been loaded before is released.
+     */
+    protected void store(String functionName, FunctionInfo fi) {
+
+        FunctionInfo previous = cache.put(functionName, fi);
+
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    /**
+     * Called when a function has been removed from the kernel or replaced by a
+     * new definition. Existing handles may still use the function. The default
+     * implementation does nothing.
+     */
+    protected void release(FunctionInfo fi) {
+    }
+
     @Override
     public Set<String> list() {
 
@@ -85,6 +165,73 @@ abstract class AbstractFEKImpl implements FunctionEvaluationKernel {
         return prettyPrintedFunction;
     }
 
+    @Override
+    public LoadDiagnostics getLoadDiagnostics(String functionName) {
+
+        FunctionInfo fi = cache.get(functionName);
+
+        if (fi == null) {
+            throw new IllegalArgumentException(format("Unknown function name: %s", functionName));
+        }
+
+        return fi.getLoadDiagnostics();
+    }
+
+    /**
+     * The findings about a function which has just been parsed. They are logged,
+     * if there are any.
+     */
+    protected LoadDiagnostics loadDiagnostics(FunctionDefinition functionDefinition) {
+        return loadDiagnostics(functionDefinition.getName(), DeadAuxiliaryVariableVisitor.unused(functionDefinition));
+    }
+
+    /**
+     * Same as {@link #loadDiagnostics(FunctionDefinition)}, for the names of the
+     * unused auxiliary variables of a function which have already been determined.
+     */
+    protected LoadDiagnostics loadDiagnostics(String functionName, List<String> unusedAuxiliaryVariables) {
+
+        if (unusedAuxiliaryVariables.isEmpty()) {
+            return LoadDiagnostics.NONE;
+        }
+
+        LOG.info("The values of the auxiliary variables {} of function {} are never used",
+                unusedAuxiliaryVariables, functionName);
+        return new LoadDiagnostics(unusedAuxiliaryVariables);
+    }
+
+    /**
+     * The number of rows up to which a batch is evaluated sequentially. It can be
+     * set by the system property {@value #SEQUENTIAL_CUTOFF_PROPERTY}. Otherwise it
+     * is derived from the estimated cost of the function, so that a sequential
+     * part of a batch costs about {@value #SEQUENTIAL_COST} operations.
+     */
+    protected int sequentialCutoff(FunctionDefinition functionDefinition) {
+        return sequentialCutoff(estimateCost(functionDefinition));
+    }
+
+    /**
+     * Same as {@link #sequentialCutoff(FunctionDefinition)}, for a function whose
+     * cost has already been estimated.
+     */
+    protected int sequentialCutoff(long estimatedCost) {
+
+        Integer cutoff = Integer.getInteger(SEQUENTIAL_CUTOFF_PROPERTY);
+        if (cutoff != null && cutoff > 0) {
+            return cutoff;
+        }
+
+        long cost = Math.max(1, estimatedCost);
+
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, SEQUENTIAL_COST / cost));
+    }
+
+    protected long estimateCost(FunctionDefinition functionDefinition) {
+        CostEstimationVisitor costEstimationVisitor = new CostEstimationVisitor();
+        functionDefinition.accept(costEstimationVisitor);
+        return costEstimationVisitor.getCost();
+    }
+
     protected String prettyPrint(FunctionDefinition functionDefinition) {
         PrettyPrintVisitor ppv = new PrettyPrintVisitor();
         functionDefinition.accept(ppv);
@@ -0,0 +1,88 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bounded executor of a kernel for asynchronous evaluations. The threads are
+ * only started once the first asynchronous evaluation is requested, and they are
+ * daemon threads, so they never keep the JVM alive. If all threads are busy and
+ * the queue is full, further tasks are rejected with a
+ * {@link java.util.concurrent.RejectedExecutionException} instead of letting
+ * the queue grow without bounds.
+ * <p>
+ * The number of threads and the capacity of the queue can be set by the system
+ * properties {@value #THREADS_PROPERTY} and {@value #QUEUE_CAPACITY_PROPERTY}.
+ */
+class AsyncExecutor implements Executor {
+
+    static final String THREADS_PROPERTY = "com.github.drstefanfriedrich.f2blib.async.threads";
+
+    static final String QUEUE_CAPACITY_PROPERTY = "com.github.drstefanfriedrich.f2blib.async.queueCapacity";
+
+    static final int QUEUE_CAPACITY = Integer.getInteger(QUEUE_CAPACITY_PROPERTY, 1024);
+
+    private static final int THREADS = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+
+    private final int threads;
+
+    private final int queueCapacity;
+
+    private volatile ThreadPoolExecutor executor;
+
+    AsyncExecutor() {
+        this(THREADS, QUEUE_CAPACITY);
+    }
+
+    AsyncExecutor(int threads, int queueCapacity) {
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        getExecutor().execute(command);
+    }
+
+    /**
+     * The number of tasks waiting for a thread.
+     */
+    int getQueueSize() {
+        ThreadPoolExecutor result = executor;
+        return result == null ? 0 : result.getQueue().size();
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+
+        ThreadPoolExecutor result = executor;
+
+        if (result == null) {
+            synchronized (this) {
+                result = executor;
+                if (result == null) {
+                    result = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<>(queueCapacity), new DaemonThreadFactory("f2blib-async"),
+                            new ThreadPoolExecutor.AbortPolicy());
+                    executor = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+}
@@ -0,0 +1,63 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates a range of rows of a batch. Ranges larger than the sequential cutoff
+ * are split in halves, which are evaluated in parallel. Every row is evaluated
+ * exactly like in the sequential batch evaluation, hence the results are the same.
+ */
+class BatchEvaluationTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Sequential evaluation of the rows <code>from</code> (inclusive) to
+     * <code>to</code> (exclusive).
+     */
+    @FunctionalInterface
+    interface RowRange {
+
+        void eval(int from, int to);
+
+    }
+
+    private final transient RowRange rowRange;
+    private final int from;
+    private final int to;
+    private final int sequentialCutoff;
+
+    BatchEvaluationTask(RowRange rowRange, int from, int to, int sequentialCutoff) {
+        this.rowRange = rowRange;
+        this.from = from;
+        this.to = to;
+        this.sequentialCutoff = sequentialCutoff;
+    }
+
+    @Override
+    protected void compute() {
+
+        if (to - from <= sequentialCutoff) {
+            rowRange.eval(from, to);
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+
+        invokeAll(new BatchEvaluationTask(rowRange, from, middle, sequentialCutoff),
+                new BatchEvaluationTask(rowRange, middle, to, sequentialCutoff));
+    }
+
+}
@@ -0,0 +1,75 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import java.util.function.Supplier;
+
+/**
+ * A function evaluation whose generated class may be evicted from a
+ * {@link CompiledFunctionCache}. The class file is kept, so that an evicted
+ * class is defined again on the next evaluation, without parsing the function.
+ */
+class BoundedFunctionEvaluation implements FunctionEvaluation {
+
+    private final String className;
+
+    private final int weight;
+
+    private final Supplier<FunctionEvaluation> compiler;
+
+    private final CompiledFunctionCache compiledFunctionCache;
+
+    /**
+     * @param className             The name of the generated class.
+     * @param weight                The size of the class file.
+     * @param compiler              Defines and instantiates the class again.
+     * @param compiledFunctionCache The cache of the instances.
+     */
+    BoundedFunctionEvaluation(String className, int weight, Supplier<FunctionEvaluation> compiler,
+                              CompiledFunctionCache compiledFunctionCache) {
+        this.className = className;
+        this.weight = weight;
+        this.compiler = compiler;
+        this.compiledFunctionCache = compiledFunctionCache;
+    }
+
+    @Override
+    public void eval(double[] p, double[] x, double[] y) {
+        compiledFunctionCache.get(this).eval(p, x, y);
+    }
+
+    @Override
+    public void evalBatch(double[][] p, double[][] x, double[][] y, int from, int to) {
+        compiledFunctionCache.get(this).evalBatch(p, x, y, from, to);
+    }
+
+    @Override
+    public void evalBatch(double[] p, int pOffset, int pStride, double[] x, int xOffset, int xStride,
+                          double[] y, int yOffset, int yStride, int count) {
+        compiledFunctionCache.get(this).evalBatch(p, pOffset, pStride, x, xOffset, xStride, y, yOffset, yStride,
+                count);
+    }
+
+    FunctionEvaluation compile() {
+        return compiler.get();
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    int getWeight() {
+        return weight;
+    }
+
+}
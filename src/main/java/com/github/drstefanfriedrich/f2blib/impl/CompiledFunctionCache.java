@@ -0,0 +1,102 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.exception.BytecodeGenerationException;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+import static java.lang.String.format;
+
+/**
+ * Holds the instances of the generated classes of {@link BoundedFunctionEvaluation}s.
+ * The total size of the class files of the cached instances is bounded; the
+ * least recently used instances are evicted first. An instance which is evicted
+ * or invalidated is handed to a release callback, so that its class can be
+ * unloaded.
+ */
+class CompiledFunctionCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompiledFunctionCache.class);
+
+    private final Cache<BoundedFunctionEvaluation, FunctionEvaluation> cache;
+
+    /**
+     * @param maximumWeight The maximum total size of the class files of the cached
+     *                      instances, in bytes.
+     * @param release       Called for every instance which is removed from the cache.
+     */
+    CompiledFunctionCache(long maximumWeight, Consumer<FunctionEvaluation> release) {
+
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException(format("The maximum weight must be positive, but was %d",
+                    maximumWeight));
+        }
+
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((BoundedFunctionEvaluation key, FunctionEvaluation value) -> key.getWeight())
+                .removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        LOG.debug("Function {} evicted", notification.getKey().getClassName());
+                    }
+                    release.accept(notification.getValue());
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the cached instance of a function, and defines its class again if
+     * it has been evicted. Concurrent callers wait for the same definition.
+     */
+    FunctionEvaluation get(BoundedFunctionEvaluation functionEvaluation) {
+        try {
+            return cache.get(functionEvaluation, functionEvaluation::compile);
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new BytecodeGenerationException(format("Cannot compile function %s",
+                    functionEvaluation.getClassName()), e.getCause());
+        } catch (UncheckedExecutionException | ExecutionError e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    void put(BoundedFunctionEvaluation functionEvaluation, FunctionEvaluation instance) {
+        cache.put(functionEvaluation, instance);
+    }
+
+    void invalidate(BoundedFunctionEvaluation functionEvaluation) {
+        cache.invalidate(functionEvaluation);
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+}
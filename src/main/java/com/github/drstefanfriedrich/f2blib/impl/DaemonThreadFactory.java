@@ -0,0 +1,42 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads, so that the threads of a kernel never keep the JVM
+ * alive. The threads are named <code>prefix-N-M</code>, where N numbers the
+ * factories with the same prefix and M the threads of a factory.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    private static final AtomicInteger FACTORY_NUMBER = new AtomicInteger();
+
+    private final String prefix;
+
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    DaemonThreadFactory(String prefix) {
+        this.prefix = prefix + "-" + FACTORY_NUMBER.incrementAndGet() + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
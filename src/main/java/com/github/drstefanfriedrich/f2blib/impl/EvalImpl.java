@@ -14,8 +14,9 @@ package com.github.drstefanfriedrich.f2blib.impl;
 
 import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
 import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionOptimizer;
 import com.github.drstefanfriedrich.f2blib.parser.FunctionParser;
-import com.github.drstefanfriedrich.f2blib.visitor.EvalVisitorImpl;
+import com.github.drstefanfriedrich.f2blib.visitor.Interpreter;
 import com.github.drstefanfriedrich.f2blib.visitor.ValidationVisitor;
 import com.github.drstefanfriedrich.f2blib.visitor.ValidationVisitorImpl;
 import org.slf4j.Logger;
@@ -24,7 +25,7 @@ import org.slf4j.LoggerFactory;
 import static java.lang.String.format;
 
 /**
- * Implementation of {@link FunctionEvaluationKernel} using {@link EvalVisitorImpl}.
+ * Implementation of {@link FunctionEvaluationKernel} using an {@link Interpreter}.
  */
 public class EvalImpl extends AbstractFEKImpl {
 
@@ -42,7 +43,10 @@ public class EvalImpl extends AbstractFEKImpl {
         ValidationVisitor validationVisitor = new ValidationVisitorImpl();
         fd.accept(validationVisitor);
 
-        FunctionInfo fi = new FunctionInfo(fd, prettyPrint(fd), validationVisitor.getFunctionEvaluationValidator());
+        FunctionEvaluation functionEvaluation = interpreter(fd);
+
+        FunctionInfo fi = new FunctionInfo(functionEvaluation, fd, prettyPrint(fd),
+                validationVisitor.getFunctionEvaluationValidator(), sequentialCutoff(fd), loadDiagnostics(fd));
 
         String name = fd.getName();
         cache.put(name, fi);
@@ -50,6 +54,15 @@ public class EvalImpl extends AbstractFEKImpl {
         LOG.info("Function {} loaded into the kernel", name);
     }
 
+    /**
+     * A function evaluation which interprets a function. The function is optimized
+     * for the interpreter and translated into the nodes of the interpreter once.
+     */
+    static FunctionEvaluation interpreter(FunctionDefinition fd) {
+        FunctionDefinition optimized = new FunctionOptimizer().optimizeForInterpreter(fd);
+        return Interpreter.of(optimized)::eval;
+    }
+
     @Override
     public void eval(String functionName, double[] p, double[] x, double[] y) {
 
@@ -61,14 +74,8 @@ public class EvalImpl extends AbstractFEKImpl {
 
         long start = System.nanoTime();
 
-        FunctionDefinition fd = fi.getFunctionDefinition();
         fi.getFunctionEvaluationValidator().validate(p, x, y);
-
-        EvalVisitorImpl evalVisitorImpl = new EvalVisitorImpl(x, p, y.length);
-        fd.accept(evalVisitorImpl);
-        double[] result = evalVisitorImpl.getResult();
-
-        System.arraycopy(result, 0, y, 0, y.length);
+        fi.getFunctionEvaluation().eval(p, x, y);
 
         long end = System.nanoTime();
 
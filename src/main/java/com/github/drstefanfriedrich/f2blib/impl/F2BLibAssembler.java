@@ -13,11 +13,14 @@
 package com.github.drstefanfriedrich.f2blib.impl;
 
 import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.generator.BytecodeCache;
 import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGeneratorImpl;
 import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Paths;
+
 /**
  * Separate construction of a system from using it.
  */
@@ -25,8 +28,24 @@ public class F2BLibAssembler extends AbstractFEPImpl {
 
     private static final Logger LOG = LoggerFactory.getLogger(F2BLibAssembler.class);
 
+    /**
+     * If set, generated classes are cached in this directory.
+     */
+    static final String CACHE_DIRECTORY_PROPERTY = "com.github.drstefanfriedrich.f2blib.cache.directory";
+
+    /**
+     * If set, at most this many bytes of generated classes are kept defined; the
+     * least recently used functions are evicted and defined again on demand.
+     */
+    static final String MAX_COMPILED_BYTES_PROPERTY = "com.github.drstefanfriedrich.f2blib.compiled.maxBytes";
+
     protected FunctionEvaluationKernel constructInstance() {
-        F2BLibImpl f2BLib = new F2BLibImpl(new AntlrFunctionParser(), new FunctionEvaluationBytecodeGeneratorImpl());
+
+        String cacheDirectory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+        BytecodeCache bytecodeCache = cacheDirectory == null ? null : new BytecodeCache(Paths.get(cacheDirectory));
+
+        F2BLibImpl f2BLib = new F2BLibImpl(new AntlrFunctionParser(), new FunctionEvaluationBytecodeGeneratorImpl(),
+                bytecodeCache, Long.getLong(MAX_COMPILED_BYTES_PROPERTY, 0L));
         LOG.info("F2BLib started successfully");
         return f2BLib;
     }
@@ -13,13 +13,24 @@
 package com.github.drstefanfriedrich.f2blib.impl;
 
 import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.LoadDiagnostics;
 import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.exception.BytecodeGenerationException;
+import com.github.drstefanfriedrich.f2blib.generator.BytecodeCache;
 import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGenerator;
 import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationWrapper;
+import com.github.drstefanfriedrich.f2blib.generator.PrecompiledFunctionIndex;
 import com.github.drstefanfriedrich.f2blib.parser.FunctionParser;
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidator;
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidatorImpl;
+import com.google.common.cache.CacheStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Optional;
+
 import static java.lang.String.format;
 
 /**
@@ -32,9 +43,39 @@ public class F2BLibImpl extends AbstractFEKImpl {
 
     private final FunctionEvaluationBytecodeGenerator generator;
 
+    private final BytecodeCache bytecodeCache;
+
+    private final CompiledFunctionCache compiledFunctionCache;
+
+    private volatile PrecompiledFunctionIndex precompiledFunctionIndex;
+
     F2BLibImpl(FunctionParser parser, FunctionEvaluationBytecodeGenerator generator) {
+        this(parser, generator, null);
+    }
+
+    /**
+     * @param bytecodeCache The cache of generated classes, or null if classes are
+     *                      always generated.
+     */
+    F2BLibImpl(FunctionParser parser, FunctionEvaluationBytecodeGenerator generator, BytecodeCache bytecodeCache) {
+        this(parser, generator, bytecodeCache, 0);
+    }
+
+    /**
+     * @param bytecodeCache    The cache of generated classes, or null if classes are
+     *                         always generated.
+     * @param maxCompiledBytes The maximum total size of the class files of the
+     *                         functions which are kept defined, or 0 if all functions
+     *                         are kept defined. The least recently used functions are
+     *                         evicted and defined again on their next evaluation.
+     */
+    F2BLibImpl(FunctionParser parser, FunctionEvaluationBytecodeGenerator generator, BytecodeCache bytecodeCache,
+               long maxCompiledBytes) {
         super(parser);
         this.generator = generator;
+        this.bytecodeCache = bytecodeCache;
+        this.compiledFunctionCache = maxCompiledBytes > 0 ? new CompiledFunctionCache(maxCompiledBytes,
+                instance -> generator.release(instance.getClass())) : null;
     }
 
     /**
@@ -45,19 +86,179 @@ public class F2BLibImpl extends AbstractFEKImpl {
     @Override
     public void load(String functionDefinition) {
 
+        if (bytecodeCache != null && loadFromCache(functionDefinition)) {
+            return;
+        }
+
         FunctionDefinition fd = parser.parse(functionDefinition);
 
         FunctionEvaluationWrapper wrapper = generator.generateAndInstantiate(fd);
-        FunctionEvaluation instance = wrapper.getFunctionEvaluation();
+        FunctionEvaluation instance = bound(wrapper);
+
+        long cost = estimateCost(fd);
+        String prettyPrintedFunction = prettyPrint(fd);
+        LoadDiagnostics loadDiagnostics = loadDiagnostics(fd);
 
-        FunctionInfo fi = new FunctionInfo(instance, prettyPrint(fd), wrapper.getFunctionEvaluationValidator());
+        FunctionInfo fi = new FunctionInfo(instance, fd, prettyPrintedFunction, wrapper.getFunctionEvaluationValidator(),
+                sequentialCutoff(cost), loadDiagnostics);
 
-        String name = instance.getClass().getName();
-        cache.put(name, fi);
+        String name = wrapper.getClassName();
+        store(name, fi);
+
+        if (bytecodeCache != null && wrapper.getBytecode() != null
+                && wrapper.getFunctionEvaluationValidator() instanceof FunctionEvaluationValidatorImpl) {
+            bytecodeCache.put(functionDefinition, new BytecodeCache.Entry(name, wrapper.getBytecode(),
+                    (FunctionEvaluationValidatorImpl) wrapper.getFunctionEvaluationValidator(), prettyPrintedFunction,
+                    cost, loadDiagnostics.getUnusedAuxiliaryVariables()));
+        }
 
         LOG.info("Function {} loaded into the kernel", name);
     }
 
+    /**
+     * Defines the class of a function from the cache, without parsing the function
+     * definition. If the cached class cannot be defined, the entry is removed.
+     *
+     * @return true, if the function was loaded from the cache.
+     */
+    private boolean loadFromCache(String functionDefinition) {
+
+        Optional<BytecodeCache.Entry> cached = bytecodeCache.get(functionDefinition);
+
+        if (!cached.isPresent()) {
+            return false;
+        }
+
+        BytecodeCache.Entry entry = cached.get();
+        FunctionEvaluationWrapper wrapper;
+
+        try {
+            wrapper = generator.instantiate(entry.getClassName(), entry.getBytecode(),
+                    entry.getFunctionEvaluationValidator());
+        } catch (LinkageError | BytecodeGenerationException e) {
+            LOG.warn("Cached class {} is invalid and is generated again", entry.getClassName(), e);
+            bytecodeCache.remove(functionDefinition);
+            return false;
+        }
+
+        FunctionInfo fi = new FunctionInfo(bound(wrapper), null, entry.getPrettyPrintedFunction(),
+                wrapper.getFunctionEvaluationValidator(), sequentialCutoff(entry.getCost()),
+                loadDiagnostics(entry.getClassName(), entry.getUnusedAuxiliaryVariables()));
+
+        store(entry.getClassName(), fi);
+
+        LOG.info("Function {} loaded into the kernel from the cache", entry.getClassName());
+        return true;
+    }
+
+    @Override
+    public void loadPrecompiled(String functionName) {
+
+        ClassLoader classLoader = getClassLoader();
+        PrecompiledFunctionIndex.Entry entry = getPrecompiledFunctionIndex(classLoader).get(functionName);
+
+        if (entry == null) {
+            throw new IllegalArgumentException(format("Precompiled function not found: %s", functionName));
+        }
+
+        FunctionEvaluation instance;
+        try {
+            instance = Class.forName(functionName, true, classLoader).asSubclass(FunctionEvaluation.class)
+                    .getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new BytecodeGenerationException(format("Cannot instantiate precompiled function %s", functionName), e);
+        }
+
+        FunctionInfo fi = new FunctionInfo(instance, null, entry.getPrettyPrintedFunction(),
+                entry.getFunctionEvaluationValidator(), sequentialCutoff(entry.getCost()));
+
+        store(functionName, fi);
+
+        LOG.info("Precompiled function {} loaded into the kernel", functionName);
+    }
+
+    /**
+     * The index is read once, when the first precompiled function is loaded.
+     */
+    private PrecompiledFunctionIndex getPrecompiledFunctionIndex(ClassLoader classLoader) {
+
+        PrecompiledFunctionIndex result = precompiledFunctionIndex;
+
+        if (result == null) {
+            try {
+                result = PrecompiledFunctionIndex.read(classLoader);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read the index of precompiled functions", e);
+            }
+            precompiledFunctionIndex = result;
+        }
+
+        return result;
+    }
+
+    private static ClassLoader getClassLoader() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return classLoader == null ? F2BLibImpl.class.getClassLoader() : classLoader;
+    }
+
+    /**
+     * Puts a generated instance into the compiled function cache, if the number
+     * of defined functions is bounded.
+     */
+    private FunctionEvaluation bound(FunctionEvaluationWrapper wrapper) {
+
+        byte[] bytecode = wrapper.getBytecode();
+
+        if (compiledFunctionCache == null || bytecode == null) {
+            return wrapper.getFunctionEvaluation();
+        }
+
+        String className = wrapper.getClassName();
+        FunctionEvaluationValidator validator = wrapper.getFunctionEvaluationValidator();
+
+        BoundedFunctionEvaluation result = new BoundedFunctionEvaluation(className, bytecode.length,
+                () -> generator.instantiate(className, bytecode, validator).getFunctionEvaluation(),
+                compiledFunctionCache);
+        compiledFunctionCache.put(result, wrapper.getFunctionEvaluation());
+
+        return result;
+    }
+
+    /**
+     * Releases the generated class, so that it can be unloaded once the last
+     * handle to the function is gone.
+     */
+    @Override
+    protected void release(FunctionInfo fi) {
+
+        FunctionEvaluation functionEvaluation = fi.getFunctionEvaluation();
+
+        if (functionEvaluation instanceof BoundedFunctionEvaluation) {
+            compiledFunctionCache.invalidate((BoundedFunctionEvaluation) functionEvaluation);
+        } else {
+            generator.release(functionEvaluation.getClass());
+        }
+    }
+
+    /**
+     * Statistics of the compiled function cache: a miss is an evaluation of a
+     * function whose class had been evicted and had to be defined again. All
+     * counts are zero if the number of defined functions is not bounded.
+     *
+     * @return The statistics of the compiled function cache.
+     */
+    public CacheStats getCompiledFunctionCacheStats() {
+        return compiledFunctionCache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : compiledFunctionCache.stats();
+    }
+
+    /**
+     * @return The number of functions whose classes are currently defined, if the
+     * number is bounded, and the number of all functions otherwise.
+     */
+    public long getCompiledFunctionCount() {
+        return compiledFunctionCache == null ? cache.size() : compiledFunctionCache.size();
+    }
+
     /**
      * Evaluate a function.
      *
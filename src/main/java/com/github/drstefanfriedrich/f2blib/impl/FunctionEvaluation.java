@@ -31,4 +31,58 @@ public interface FunctionEvaluation {
      */
     void eval(double[] p, double[] x, double[] y);
 
+    /**
+     * Evaluates the function for the rows <code>from</code> (inclusive) to
+     * <code>to</code> (exclusive), i.e. <code>eval(p[i], x[i], y[i])</code> for
+     * all these rows. Generated classes override this method, so the loop over the
+     * rows does not leave the generated code.
+     *
+     * @param p    The parameters of the function, one row per evaluation.
+     * @param x    The variables of the function, one row per evaluation.
+     * @param y    The results of the function evaluations, one row per evaluation.
+     * @param from The first row to evaluate.
+     * @param to   The row after the last row to evaluate.
+     */
+    default void evalBatch(double[][] p, double[][] x, double[][] y, int from, int to) {
+        for (int i = from; i < to; i++) {
+            eval(p[i], x[i], y[i]);
+        }
+    }
+
+    /**
+     * Evaluates the function <code>count</code> times on flat arrays. Row
+     * <code>i</code> of p consists of the <code>pStride</code> elements starting at
+     * <code>pOffset + i * pStride</code>; the same holds for x and y. Generated
+     * classes override this method and address the rows in place, as long as
+     * all indices into p and x are constants and there is no Markov shift.
+     * The default implementation copies each row.
+     *
+     * @param p       The parameters of the function.
+     * @param pOffset The index of the first parameter of the first row.
+     * @param pStride The number of parameters per row.
+     * @param x       The variables of the function.
+     * @param xOffset The index of the first variable of the first row.
+     * @param xStride The number of variables per row.
+     * @param y       The results of the function evaluations.
+     * @param yOffset The index of the first result of the first row.
+     * @param yStride The number of results per row.
+     * @param count   The number of rows to evaluate.
+     */
+    default void evalBatch(double[] p, int pOffset, int pStride, double[] x, int xOffset, int xStride,
+                           double[] y, int yOffset, int yStride, int count) {
+
+        double[] pRow = new double[pStride];
+        double[] xRow = new double[xStride];
+        double[] yRow = new double[yStride];
+
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(p, pOffset + i * pStride, pRow, 0, pStride);
+            System.arraycopy(x, xOffset + i * xStride, xRow, 0, xStride);
+            eval(pRow, xRow, yRow);
+            // The Markov shift modifies x
+            System.arraycopy(xRow, 0, x, xOffset + i * xStride, xStride);
+            System.arraycopy(yRow, 0, y, yOffset + i * yStride, yStride);
+        }
+    }
+
 }
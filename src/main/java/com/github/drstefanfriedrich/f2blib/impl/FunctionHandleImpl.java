@@ -0,0 +1,223 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionHandle;
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidator;
+import com.google.common.base.MoreObjects;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.lang.String.format;
+
+/**
+ * Default {@link FunctionHandle}. Holds direct references to the
+ * {@link FunctionEvaluation} and its {@link FunctionEvaluationValidator}, so there
+ * is no lookup by function name. The validator only depends on the lengths of
+ * the arrays, hence the shape of the last successful validation is remembered
+ * and the validation is skipped as long as the shape does not change.
+ */
+class FunctionHandleImpl implements FunctionHandle {
+
+    /**
+     * The array lengths of a successful validation. Instances are immutable, so
+     * publishing them through a plain field is safe: a thread either sees a fully
+     * constructed shape or an outdated one, which only leads to a superfluous
+     * validation.
+     */
+    private static final class Shape {
+
+        private final int sizeP;
+        private final int sizeX;
+        private final int sizeY;
+
+        private Shape(int sizeP, int sizeX, int sizeY) {
+            this.sizeP = sizeP;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+        }
+
+        private boolean matches(int sizeP, int sizeX, int sizeY) {
+            return this.sizeP == sizeP && this.sizeX == sizeX && this.sizeY == sizeY;
+        }
+
+    }
+
+    private final String functionName;
+    private final FunctionEvaluation functionEvaluation;
+    private final FunctionEvaluationValidator functionEvaluationValidator;
+    private final int sequentialCutoff;
+    private final ResultBufferPool resultBufferPool;
+    private final Executor asyncExecutor;
+
+    private Shape validatedShape;
+
+    FunctionHandleImpl(String functionName, FunctionInfo functionInfo, Executor asyncExecutor) {
+        this.functionName = functionName;
+        this.functionEvaluation = functionInfo.getFunctionEvaluation();
+        this.functionEvaluationValidator = functionInfo.getFunctionEvaluationValidator();
+        this.sequentialCutoff = functionInfo.getSequentialCutoff();
+        this.resultBufferPool = functionInfo.getResultBufferPool();
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    @Override
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    @Override
+    public void eval(double[] p, double[] x, double[] y) {
+        validate(p, x, y);
+        functionEvaluation.eval(p, x, y);
+    }
+
+    @Override
+    public void evalBatch(double[][] p, double[][] x, double[][] y) {
+        validateBatch(p, x, y);
+        functionEvaluation.evalBatch(p, x, y, 0, y.length);
+    }
+
+    @Override
+    public void evalBatch(double[] p, int pOffset, int pStride, double[] x, int xOffset, int xStride,
+                          double[] y, int yOffset, int yStride, int count) {
+        validateBatch(p, pOffset, pStride, x, xOffset, xStride, y, yOffset, yStride, count);
+        functionEvaluation.evalBatch(p, pOffset, pStride, x, xOffset, xStride, y, yOffset, yStride, count);
+    }
+
+    @Override
+    public void evalBatchParallel(double[][] p, double[][] x, double[][] y, ForkJoinPool pool) {
+
+        validateBatch(p, x, y);
+
+        pool.invoke(new BatchEvaluationTask((from, to) -> functionEvaluation.evalBatch(p, x, y, from, to),
+                0, y.length, sequentialCutoff));
+    }
+
+    @Override
+    public void evalBatchParallel(double[] p, int pStride, double[] x, int xStride, double[] y, int yStride,
+                                  int count, ForkJoinPool pool) {
+
+        validateBatch(p, 0, pStride, x, 0, xStride, y, 0, yStride, count);
+
+        pool.invoke(new BatchEvaluationTask((from, to) -> functionEvaluation.evalBatch(
+                p, from * pStride, pStride, x, from * xStride, xStride, y, from * yStride, yStride, to - from),
+                0, count, sequentialCutoff));
+    }
+
+    @Override
+    public CompletableFuture<double[]> evalAsync(double[] p, double[] x) {
+
+        CompletableFuture<double[]> result = new CompletableFuture<>();
+
+        if (resultBufferPool == null) {
+            result.completeExceptionally(new IllegalStateException(format("The size of y of function %s is unknown",
+                    functionName)));
+            return result;
+        }
+
+        try {
+            asyncExecutor.execute(() -> {
+                double[] y = resultBufferPool.acquire();
+                try {
+                    eval(p, x, y);
+                } catch (Throwable t) {
+                    resultBufferPool.recycle(y);
+                    result.completeExceptionally(t);
+                    return;
+                }
+                result.complete(y);
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void recycle(double[] y) {
+        if (resultBufferPool != null) {
+            resultBufferPool.recycle(y);
+        }
+    }
+
+    private void validateBatch(double[][] p, double[][] x, double[][] y) {
+
+        if (p.length != y.length || x.length != y.length) {
+            throw new IllegalArgumentException(format("p, x and y must have the same number of rows, " +
+                    "but were %d, %d and %d", p.length, x.length, y.length));
+        }
+
+        for (int i = 0; i < y.length; i++) {
+            validate(p[i], x[i], y[i]);
+        }
+    }
+
+    private void validateBatch(double[] p, int pOffset, int pStride, double[] x, int xOffset, int xStride,
+                               double[] y, int yOffset, int yStride, int count) {
+
+        if (count < 0) {
+            throw new IllegalArgumentException(format("count must not be negative, but was %d", count));
+        }
+
+        checkRows("p", p, pOffset, pStride, count);
+        checkRows("x", x, xOffset, xStride, count);
+        checkRows("y", y, yOffset, yStride, count);
+
+        validate(pStride, xStride, yStride);
+    }
+
+    private static void checkRows(String name, double[] array, int offset, int stride, int count) {
+
+        if (offset < 0 || stride < 0) {
+            throw new IllegalArgumentException(format("Offset and stride of %s must not be negative, but were %d and %d",
+                    name, offset, stride));
+        }
+
+        long requiredSize = offset + (long) stride * count;
+
+        if (array.length < requiredSize) {
+            throw new IllegalArgumentException(format("%s must have at least size %d, but was %d",
+                    name, requiredSize, array.length));
+        }
+    }
+
+    void validate(double[] p, double[] x, double[] y) {
+        Shape shape = validatedShape;
+        if (shape == null || !shape.matches(p.length, x.length, y.length)) {
+            functionEvaluationValidator.validate(p, x, y);
+            validatedShape = new Shape(p.length, x.length, y.length);
+        }
+    }
+
+    void validate(int sizeP, int sizeX, int sizeY) {
+        Shape shape = validatedShape;
+        if (shape == null || !shape.matches(sizeP, sizeX, sizeY)) {
+            functionEvaluationValidator.validate(sizeP, sizeX, sizeY);
+            validatedShape = new Shape(sizeP, sizeX, sizeY);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("functionName", functionName)
+                .add("functionEvaluation", functionEvaluation)
+                .toString();
+    }
+
+}
@@ -12,6 +12,8 @@
 
 package com.github.drstefanfriedrich.f2blib.impl;
 
+import com.github.drstefanfriedrich.f2blib.FunctionHandle;
+import com.github.drstefanfriedrich.f2blib.LoadDiagnostics;
 import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
 import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidator;
 import com.google.common.base.MoreObjects;
@@ -27,21 +29,43 @@ class FunctionInfo {
     private final String prettyPrintedFunction;
     private final FunctionDefinition functionDefinition;
     private final FunctionEvaluationValidator functionEvaluationValidator;
+    private final int sequentialCutoff;
+    private final ResultBufferPool resultBufferPool;
+    private final LoadDiagnostics loadDiagnostics;
+
+    private volatile FunctionHandle handle;
 
     public FunctionInfo(FunctionEvaluation functionEvaluation, String prettyPrintedFunction,
                         FunctionEvaluationValidator functionEvaluationValidator) {
-        this.functionEvaluation = functionEvaluation;
-        this.prettyPrintedFunction = prettyPrintedFunction;
-        this.functionDefinition = null;
-        this.functionEvaluationValidator = functionEvaluationValidator;
+        this(functionEvaluation, null, prettyPrintedFunction, functionEvaluationValidator, 1);
     }
 
-    public FunctionInfo(FunctionDefinition functionDefinition, String prettyPrintedFunction,
-                        FunctionEvaluationValidator functionEvaluationValidator) {
-        this.functionEvaluation = null;
+    public FunctionInfo(FunctionEvaluation functionEvaluation, FunctionDefinition functionDefinition,
+                        String prettyPrintedFunction, FunctionEvaluationValidator functionEvaluationValidator,
+                        int sequentialCutoff) {
+        this(functionEvaluation, functionDefinition, prettyPrintedFunction, functionEvaluationValidator,
+                sequentialCutoff, LoadDiagnostics.NONE);
+    }
+
+    public FunctionInfo(FunctionEvaluation functionEvaluation, FunctionDefinition functionDefinition,
+                        String prettyPrintedFunction, FunctionEvaluationValidator functionEvaluationValidator,
+                        int sequentialCutoff, LoadDiagnostics loadDiagnostics) {
+        this.functionEvaluation = functionEvaluation;
         this.prettyPrintedFunction = prettyPrintedFunction;
         this.functionDefinition = functionDefinition;
         this.functionEvaluationValidator = functionEvaluationValidator;
+        this.sequentialCutoff = sequentialCutoff;
+        this.resultBufferPool = createResultBufferPool(functionEvaluationValidator);
+        this.loadDiagnostics = loadDiagnostics;
+    }
+
+    private static ResultBufferPool createResultBufferPool(FunctionEvaluationValidator functionEvaluationValidator) {
+
+        if (functionEvaluationValidator == null || functionEvaluationValidator.getSizeY() < 0) {
+            return null;
+        }
+
+        return new ResultBufferPool(functionEvaluationValidator.getSizeY(), AsyncExecutor.QUEUE_CAPACITY);
     }
 
     public FunctionEvaluation getFunctionEvaluation() {
@@ -60,6 +84,41 @@ class FunctionInfo {
         return functionEvaluationValidator;
     }
 
+    /**
+     * The number of rows of a batch up to which the batch is evaluated sequentially,
+     * instead of being split for parallel evaluation.
+     */
+    public int getSequentialCutoff() {
+        return sequentialCutoff;
+    }
+
+    /**
+     * The pool of result vectors for asynchronous evaluations, or null if the size
+     * of y is unknown.
+     */
+    public ResultBufferPool getResultBufferPool() {
+        return resultBufferPool;
+    }
+
+    /**
+     * The findings about the function which were made while it was loaded.
+     */
+    public LoadDiagnostics getLoadDiagnostics() {
+        return loadDiagnostics;
+    }
+
+    /**
+     * The handle which is shared by all callers of the function, or null if the
+     * function has not been resolved yet.
+     */
+    public FunctionHandle getHandle() {
+        return handle;
+    }
+
+    public void setHandle(FunctionHandle handle) {
+        this.handle = handle;
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
@@ -67,6 +126,8 @@ class FunctionInfo {
                 .add("prettyPrintedFunction", prettyPrintedFunction)
                 .add("functionDefinition", prettyPrintedFunction)
                 .add("functionEvaluationValidator", functionEvaluationValidator)
+                .add("sequentialCutoff", sequentialCutoff)
+                .add("loadDiagnostics", loadDiagnostics)
                 .toString();
     }
 
@@ -79,15 +140,18 @@ class FunctionInfo {
             return false;
         }
         FunctionInfo that = (FunctionInfo) o;
-        return functionEvaluation.equals(that.functionEvaluation) &&
+        return sequentialCutoff == that.sequentialCutoff &&
+                functionEvaluation.equals(that.functionEvaluation) &&
                 prettyPrintedFunction.equals(that.prettyPrintedFunction) &&
                 functionEvaluationValidator.equals(that.functionEvaluationValidator) &&
-                functionDefinition.equals(that.functionDefinition);
+                Objects.equals(functionDefinition, that.functionDefinition) &&
+                loadDiagnostics.equals(that.loadDiagnostics);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(functionEvaluation, prettyPrintedFunction, functionDefinition, functionEvaluationValidator);
+        return Objects.hash(functionEvaluation, prettyPrintedFunction, functionDefinition, functionEvaluationValidator,
+                sequentialCutoff, loadDiagnostics);
     }
 
 }
@@ -0,0 +1,86 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionOptimizer;
+import com.github.drstefanfriedrich.f2blib.parser.FunctionParser;
+import com.github.drstefanfriedrich.f2blib.visitor.MethodHandleFunction;
+import com.github.drstefanfriedrich.f2blib.visitor.ValidationVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.ValidationVisitorImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.lang.String.format;
+
+/**
+ * Implementation of {@link FunctionEvaluationKernel} using a
+ * {@link MethodHandleFunction}. A function is optimized like for the bytecode
+ * generator and assembled into a single method handle, so it returns the same
+ * results as the generated code, but loading it neither generates nor verifies
+ * bytecode, and no class loader is created.
+ */
+public class MethodHandleImpl extends AbstractFEKImpl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandleImpl.class);
+
+    MethodHandleImpl(FunctionParser parser) {
+        super(parser);
+    }
+
+    @Override
+    public void load(String functionDefinition) {
+
+        FunctionDefinition fd = parser.parse(functionDefinition);
+
+        ValidationVisitor validationVisitor = new ValidationVisitorImpl();
+        fd.accept(validationVisitor);
+
+        // The optimizer introduces local variables of its own
+        FunctionDefinition optimized = new FunctionOptimizer().optimize(fd);
+        ValidationVisitor optimizedValidationVisitor = new ValidationVisitorImpl();
+        optimized.accept(optimizedValidationVisitor);
+
+        MethodHandleFunction function = MethodHandleFunction.of(optimized, optimizedValidationVisitor.getLocalVariables());
+
+        FunctionInfo fi = new FunctionInfo(function::eval, fd, prettyPrint(fd),
+                validationVisitor.getFunctionEvaluationValidator(), sequentialCutoff(fd), loadDiagnostics(fd));
+
+        String name = fd.getName();
+        store(name, fi);
+
+        LOG.info("Function {} loaded into the kernel", name);
+    }
+
+    @Override
+    public void eval(String functionName, double[] p, double[] x, double[] y) {
+
+        FunctionInfo fi = cache.get(functionName);
+
+        if (fi == null) {
+            throw new IllegalArgumentException(format("Unknown function name: %s", functionName));
+        }
+
+        long start = System.nanoTime();
+
+        fi.getFunctionEvaluationValidator().validate(p, x, y);
+        fi.getFunctionEvaluation().eval(p, x, y);
+
+        long end = System.nanoTime();
+
+        LOG.trace("Evaluation of function {} took {} ns", functionName, (end - start));
+        LOG.debug("Function {} evaluated", functionName);
+    }
+
+}
@@ -0,0 +1,87 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionOptimizer;
+import com.github.drstefanfriedrich.f2blib.parser.FunctionParser;
+import com.github.drstefanfriedrich.f2blib.visitor.RegisterMachine;
+import com.github.drstefanfriedrich.f2blib.visitor.ValidationVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.ValidationVisitorImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.lang.String.format;
+
+/**
+ * Implementation of {@link FunctionEvaluationKernel} using a {@link RegisterMachine}.
+ * A function is optimized like for the bytecode generator and compiled into a
+ * linear array of instructions, which a single loop executes. The results are
+ * the same as the ones of the generated code, but no class is defined when a
+ * function is loaded, so this kernel also runs where classes cannot be defined
+ * at runtime.
+ */
+public class RegisterMachineImpl extends AbstractFEKImpl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RegisterMachineImpl.class);
+
+    RegisterMachineImpl(FunctionParser parser) {
+        super(parser);
+    }
+
+    @Override
+    public void load(String functionDefinition) {
+
+        FunctionDefinition fd = parser.parse(functionDefinition);
+
+        ValidationVisitor validationVisitor = new ValidationVisitorImpl();
+        fd.accept(validationVisitor);
+
+        // The optimizer introduces local variables of its own
+        FunctionDefinition optimized = new FunctionOptimizer().optimize(fd);
+        ValidationVisitor optimizedValidationVisitor = new ValidationVisitorImpl();
+        optimized.accept(optimizedValidationVisitor);
+
+        RegisterMachine registerMachine = RegisterMachine.of(optimized, optimizedValidationVisitor.getLocalVariables());
+
+        FunctionInfo fi = new FunctionInfo(registerMachine::eval, fd, prettyPrint(fd),
+                validationVisitor.getFunctionEvaluationValidator(), sequentialCutoff(fd), loadDiagnostics(fd));
+
+        String name = fd.getName();
+        store(name, fi);
+
+        LOG.info("Function {} loaded into the kernel", name);
+    }
+
+    @Override
+    public void eval(String functionName, double[] p, double[] x, double[] y) {
+
+        FunctionInfo fi = cache.get(functionName);
+
+        if (fi == null) {
+            throw new IllegalArgumentException(format("Unknown function name: %s", functionName));
+        }
+
+        long start = System.nanoTime();
+
+        fi.getFunctionEvaluationValidator().validate(p, x, y);
+        fi.getFunctionEvaluation().eval(p, x, y);
+
+        long end = System.nanoTime();
+
+        LOG.trace("Evaluation of function {} took {} ns", functionName, (end - start));
+        LOG.debug("Function {} evaluated", functionName);
+    }
+
+}
@@ -0,0 +1,75 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of result vectors y of a function. Under a steady load of asynchronous
+ * evaluations the result vectors handed back via
+ * {@link com.github.drstefanfriedrich.f2blib.FunctionHandle#recycle(double[])} are
+ * reused, instead of allocating a new array per evaluation. At most
+ * <code>capacity</code> arrays are retained; further arrays are left to the
+ * garbage collector.
+ */
+class ResultBufferPool {
+
+    private final int sizeY;
+    private final int capacity;
+    private final Queue<double[]> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    ResultBufferPool(int sizeY, int capacity) {
+        this.sizeY = sizeY;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a zeroed array of the size of y.
+     */
+    double[] acquire() {
+
+        double[] buffer = buffers.poll();
+
+        if (buffer == null) {
+            return new double[sizeY];
+        }
+
+        size.decrementAndGet();
+        // Not every function writes all elements of y, e.g. a for loop without iterations
+        Arrays.fill(buffer, 0);
+        return buffer;
+    }
+
+    void recycle(double[] buffer) {
+
+        if (buffer == null || buffer.length != sizeY) {
+            return;
+        }
+
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return;
+        }
+
+        buffers.offer(buffer);
+    }
+
+    int size() {
+        return size.get();
+    }
+
+}
@@ -0,0 +1,53 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+/**
+ * Closed forms of series, for {@link com.github.drstefanfriedrich.f2blib.ast.ClosedFormSum}.
+ * The generated code and the interpreter call these methods.
+ */
+public final class Series {
+
+    private Series() {
+    }
+
+    /**
+     * The sum <code>1 + r + r^2 + ... + r^(n - 1)</code>, i.e.
+     * <code>(r^n - 1) / (r - 1)</code>. Close to <code>r = 1</code>, the difference
+     * <code>r^n - 1</code> is computed as <code>expm1(n * log1p(r - 1))</code>,
+     * which does not suffer from cancellation.
+     *
+     * @param ratio The ratio <code>r</code>, which must not be 1.
+     * @param n     The number of terms, at least 1.
+     * @return The sum of the first n powers of r.
+     */
+    public static double geometric(double ratio, long n) {
+
+        if (Double.isInfinite(ratio)) {
+            // The sum does not change any more after the third term
+            double sum = 0;
+            for (long i = 0; i < Math.min(n, 3); i++) {
+                sum += Math.pow(ratio, i);
+            }
+            return sum;
+        }
+
+        double exponent = n * Math.log1p(ratio - 1);
+        if (ratio > 0 && Math.abs(exponent) < 1) {
+            return Math.expm1(exponent) / (ratio - 1);
+        }
+
+        return (Math.pow(ratio, n) - 1) / (ratio - 1);
+    }
+
+}
@@ -0,0 +1,45 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGeneratorImpl;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Construct an instance of {@link TieredImpl}.
+ */
+public class TieredAssembler extends AbstractFEPImpl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TieredAssembler.class);
+
+    /**
+     * The number of interpreted evaluations after which a function is compiled.
+     */
+    static final String THRESHOLD_PROPERTY = "com.github.drstefanfriedrich.f2blib.tiered.threshold";
+
+    protected FunctionEvaluationKernel constructInstance() {
+        TieredImpl tiered = new TieredImpl(new AntlrFunctionParser(), new FunctionEvaluationBytecodeGeneratorImpl(),
+                Long.getLong(THRESHOLD_PROPERTY, TieredImpl.DEFAULT_THRESHOLD));
+        LOG.info("F2BLib started successfully");
+        return tiered;
+    }
+
+    @Override
+    public String getKernelIdentifier() {
+        return "tiered";
+    }
+
+}
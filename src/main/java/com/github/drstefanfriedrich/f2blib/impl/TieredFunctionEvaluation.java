@@ -0,0 +1,142 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * A function evaluation which interprets a function until it has been evaluated
+ * <code>threshold</code> times, and then switches to the generated class. The
+ * class is generated by the compiler passed to the constructor, usually on a
+ * background thread; until it is available, the function is interpreted further.
+ */
+class TieredFunctionEvaluation implements FunctionEvaluation {
+
+    private final FunctionDefinition functionDefinition;
+
+    private final FunctionEvaluation interpreter;
+
+    private final long threshold;
+
+    private final Consumer<TieredFunctionEvaluation> compiler;
+
+    private final AtomicLong interpretedEvaluations = new AtomicLong();
+
+    private final AtomicReference<TieredImpl.Tier> tier = new AtomicReference<>(TieredImpl.Tier.INTERPRETED);
+
+    private volatile FunctionEvaluation compiled;
+
+    TieredFunctionEvaluation(FunctionDefinition functionDefinition, long threshold,
+                             Consumer<TieredFunctionEvaluation> compiler) {
+        this.functionDefinition = functionDefinition;
+        this.interpreter = EvalImpl.interpreter(functionDefinition);
+        this.threshold = threshold;
+        this.compiler = compiler;
+    }
+
+    @Override
+    public void eval(double[] p, double[] x, double[] y) {
+
+        FunctionEvaluation functionEvaluation = compiled;
+
+        if (functionEvaluation != null) {
+            functionEvaluation.eval(p, x, y);
+            return;
+        }
+
+        interpreter.eval(p, x, y);
+        count(1);
+    }
+
+    @Override
+    public void evalBatch(double[][] p, double[][] x, double[][] y, int from, int to) {
+
+        FunctionEvaluation functionEvaluation = compiled;
+
+        if (functionEvaluation != null) {
+            functionEvaluation.evalBatch(p, x, y, from, to);
+        } else {
+            FunctionEvaluation.super.evalBatch(p, x, y, from, to);
+        }
+    }
+
+    @Override
+    public void evalBatch(double[] p, int pOffset, int pStride, double[] x, int xOffset, int xStride,
+                          double[] y, int yOffset, int yStride, int count) {
+
+        FunctionEvaluation functionEvaluation = compiled;
+
+        if (functionEvaluation != null) {
+            functionEvaluation.evalBatch(p, pOffset, pStride, x, xOffset, xStride, y, yOffset, yStride, count);
+        } else {
+            FunctionEvaluation.super.evalBatch(p, pOffset, pStride, x, xOffset, xStride, y, yOffset, yStride,
+                    count);
+        }
+    }
+
+    /**
+     * Hands the function to the compiler once the threshold is reached. Only the
+     * first thread which reaches the threshold does so.
+     */
+    private void count(long evaluations) {
+        if (interpretedEvaluations.addAndGet(evaluations) >= threshold) {
+            compile();
+        }
+    }
+
+    void compile() {
+        if (tier.compareAndSet(TieredImpl.Tier.INTERPRETED, TieredImpl.Tier.COMPILING)) {
+            compiler.accept(this);
+        }
+    }
+
+    /**
+     * Switches to the generated class. Evaluations which have already started
+     * finish in the interpreter.
+     */
+    void compiled(FunctionEvaluation functionEvaluation) {
+        compiled = functionEvaluation;
+        tier.set(TieredImpl.Tier.COMPILED);
+    }
+
+    /**
+     * The class could not be generated; the function is interpreted from now on.
+     */
+    void failed() {
+        tier.set(TieredImpl.Tier.FAILED);
+    }
+
+    FunctionDefinition getFunctionDefinition() {
+        return functionDefinition;
+    }
+
+    /**
+     * The generated class, or null if the function is interpreted.
+     */
+    FunctionEvaluation getCompiled() {
+        return compiled;
+    }
+
+    TieredImpl.Tier getTier() {
+        return tier.get();
+    }
+
+    long getInterpretedEvaluations() {
+        return interpretedEvaluations.get();
+    }
+
+}
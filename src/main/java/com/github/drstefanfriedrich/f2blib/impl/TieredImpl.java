@@ -0,0 +1,234 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGenerator;
+import com.github.drstefanfriedrich.f2blib.parser.FunctionParser;
+import com.github.drstefanfriedrich.f2blib.visitor.ValidationVisitor;
+import com.github.drstefanfriedrich.f2blib.visitor.ValidationVisitorImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * Implementation of {@link FunctionEvaluationKernel} with tiered execution. A
+ * function is interpreted like in {@link EvalImpl} right after it has been
+ * loaded, so loading is cheap. Once the function has been evaluated
+ * <code>threshold</code> times, its class is generated like in
+ * {@link F2BLibImpl} on a background thread, and all further evaluations,
+ * including the ones through existing handles, use the generated class.
+ */
+public class TieredImpl extends AbstractFEKImpl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TieredImpl.class);
+
+    static final long DEFAULT_THRESHOLD = 1000;
+
+    /**
+     * The tiers of a function.
+     */
+    public enum Tier {
+
+        /**
+         * The function is interpreted.
+         */
+        INTERPRETED,
+
+        /**
+         * The function is interpreted while its class is being generated.
+         */
+        COMPILING,
+
+        /**
+         * The function is evaluated by the generated class.
+         */
+        COMPILED,
+
+        /**
+         * The class of the function could not be generated; the function is
+         * interpreted.
+         */
+        FAILED
+
+    }
+
+    private final FunctionEvaluationBytecodeGenerator generator;
+
+    private final long threshold;
+
+    private final Executor compilerExecutor;
+
+    private final AtomicLong compilations = new AtomicLong();
+
+    private final AtomicLong compilationFailures = new AtomicLong();
+
+    private final AtomicLong compilationTimeNanos = new AtomicLong();
+
+    TieredImpl(FunctionParser parser, FunctionEvaluationBytecodeGenerator generator) {
+        this(parser, generator, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold The number of interpreted evaluations after which the class
+     *                  of a function is generated. If the threshold is not
+     *                  positive, the class is generated right after loading.
+     */
+    TieredImpl(FunctionParser parser, FunctionEvaluationBytecodeGenerator generator, long threshold) {
+        super(parser);
+        this.generator = generator;
+        this.threshold = threshold;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new DaemonThreadFactory("f2blib-compiler"));
+        executor.allowCoreThreadTimeOut(true);
+        this.compilerExecutor = executor;
+    }
+
+    @Override
+    public void load(String functionDefinition) {
+
+        FunctionDefinition fd = parser.parse(functionDefinition);
+
+        ValidationVisitor validationVisitor = new ValidationVisitorImpl();
+        fd.accept(validationVisitor);
+
+        TieredFunctionEvaluation functionEvaluation = new TieredFunctionEvaluation(fd, threshold, this::compile);
+
+        FunctionInfo fi = new FunctionInfo(functionEvaluation, fd, prettyPrint(fd),
+                validationVisitor.getFunctionEvaluationValidator(), sequentialCutoff(fd), loadDiagnostics(fd));
+
+        String name = fd.getName();
+        store(name, fi);
+
+        if (threshold <= 0) {
+            functionEvaluation.compile();
+        }
+
+        LOG.info("Function {} loaded into the kernel", name);
+    }
+
+    private void compile(TieredFunctionEvaluation functionEvaluation) {
+        compilerExecutor.execute(() -> {
+
+            String name = functionEvaluation.getFunctionDefinition().getName();
+            long start = System.nanoTime();
+
+            try {
+                FunctionEvaluation compiled = generator.generateAndInstantiate(
+                        functionEvaluation.getFunctionDefinition()).getFunctionEvaluation();
+                functionEvaluation.compiled(compiled);
+                compilations.incrementAndGet();
+                LOG.info("Function {} compiled after {} interpreted evaluations", name,
+                        functionEvaluation.getInterpretedEvaluations());
+            } catch (RuntimeException | LinkageError e) {
+                functionEvaluation.failed();
+                compilationFailures.incrementAndGet();
+                LOG.warn("Function {} cannot be compiled and is interpreted", name, e);
+            } finally {
+                compilationTimeNanos.addAndGet(System.nanoTime() - start);
+            }
+        });
+    }
+
+    @Override
+    protected void release(FunctionInfo fi) {
+
+        FunctionEvaluation compiled = ((TieredFunctionEvaluation) fi.getFunctionEvaluation()).getCompiled();
+
+        if (compiled != null) {
+            generator.release(compiled.getClass());
+        }
+    }
+
+    @Override
+    public void eval(String functionName, double[] p, double[] x, double[] y) {
+
+        FunctionInfo fi = cache.get(functionName);
+
+        if (fi == null) {
+            throw new IllegalArgumentException(format("Unknown function name: %s", functionName));
+        }
+
+        long start = System.nanoTime();
+
+        fi.getFunctionEvaluationValidator().validate(p, x, y);
+        fi.getFunctionEvaluation().eval(p, x, y);
+
+        long end = System.nanoTime();
+
+        LOG.trace("Evaluation of function {} took {} ns", functionName, (end - start));
+        LOG.debug("Function {} evaluated", functionName);
+    }
+
+    /**
+     * The current tier of a function.
+     *
+     * @param functionName The name of the function.
+     * @return The tier of the function.
+     */
+    public Tier getTier(String functionName) {
+        return getTieredFunctionEvaluation(functionName).getTier();
+    }
+
+    /**
+     * The number of evaluations of a function by the interpreter. The number does
+     * not grow any more once the function has been compiled.
+     *
+     * @param functionName The name of the function.
+     * @return The number of interpreted evaluations.
+     */
+    public long getInterpretedEvaluations(String functionName) {
+        return getTieredFunctionEvaluation(functionName).getInterpretedEvaluations();
+    }
+
+    /**
+     * @return The number of functions compiled by this kernel.
+     */
+    public long getCompilations() {
+        return compilations.get();
+    }
+
+    /**
+     * @return The number of functions which could not be compiled.
+     */
+    public long getCompilationFailures() {
+        return compilationFailures.get();
+    }
+
+    /**
+     * @return The total time spent generating classes, in nanoseconds.
+     */
+    public long getCompilationTimeNanos() {
+        return compilationTimeNanos.get();
+    }
+
+    private TieredFunctionEvaluation getTieredFunctionEvaluation(String functionName) {
+
+        FunctionInfo fi = cache.get(functionName);
+
+        if (fi == null) {
+            throw new IllegalArgumentException(format("Unknown function name: %s", functionName));
+        }
+
+        return (TieredFunctionEvaluation) fi.getFunctionEvaluation();
+    }
+
+}
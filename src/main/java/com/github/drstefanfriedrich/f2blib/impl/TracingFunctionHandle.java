@@ -0,0 +1,90 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * {@link FunctionHandleImpl} which measures and logs every single evaluation,
+ * just like the string-keyed <code>eval</code> methods of the kernels do. Only
+ * used if trace logging is enabled when the handle is resolved.
+ */
+class TracingFunctionHandle extends FunctionHandleImpl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TracingFunctionHandle.class);
+
+    TracingFunctionHandle(String functionName, FunctionInfo functionInfo, Executor asyncExecutor) {
+        super(functionName, functionInfo, asyncExecutor);
+    }
+
+    @Override
+    public void eval(double[] p, double[] x, double[] y) {
+
+        long start = System.nanoTime();
+        super.eval(p, x, y);
+        long end = System.nanoTime();
+
+        LOG.trace("Evaluation of function {} took {} ns", getFunctionName(), (end - start));
+    }
+
+    @Override
+    public void evalBatch(double[][] p, double[][] x, double[][] y) {
+
+        long start = System.nanoTime();
+        super.evalBatch(p, x, y);
+        long end = System.nanoTime();
+
+        LOG.trace("Batch evaluation of function {} with {} rows took {} ns", getFunctionName(), y.length,
+                (end - start));
+    }
+
+    @Override
+    public void evalBatch(double[] p, int pOffset, int pStride, double[] x, int xOffset, int xStride,
+                          double[] y, int yOffset, int yStride, int count) {
+
+        long start = System.nanoTime();
+        super.evalBatch(p, pOffset, pStride, x, xOffset, xStride, y, yOffset, yStride, count);
+        long end = System.nanoTime();
+
+        LOG.trace("Batch evaluation of function {} with {} rows took {} ns", getFunctionName(), count,
+                (end - start));
+    }
+
+    @Override
+    public void evalBatchParallel(double[][] p, double[][] x, double[][] y, ForkJoinPool pool) {
+
+        long start = System.nanoTime();
+        super.evalBatchParallel(p, x, y, pool);
+        long end = System.nanoTime();
+
+        LOG.trace("Parallel batch evaluation of function {} with {} rows took {} ns", getFunctionName(), y.length,
+                (end - start));
+    }
+
+    @Override
+    public void evalBatchParallel(double[] p, int pStride, double[] x, int xStride, double[] y, int yStride,
+                                  int count, ForkJoinPool pool) {
+
+        long start = System.nanoTime();
+        super.evalBatchParallel(p, pStride, x, xStride, y, yStride, count, pool);
+        long end = System.nanoTime();
+
+        LOG.trace("Parallel batch evaluation of function {} with {} rows took {} ns", getFunctionName(), count,
+                (end - start));
+    }
+
+}
@@ -13,6 +13,7 @@
 package com.github.drstefanfriedrich.f2blib.parser;
 
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 import com.github.drstefanfriedrich.f2blib.antlr.FunctionsLexer;
 import com.github.drstefanfriedrich.f2blib.antlr.FunctionsParser;
@@ -20,28 +21,111 @@ import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
 
 import static java.lang.String.format;
 
+/**
+ * Parses function definitions in two stages: first with the fast SLL
+ * prediction, which bails out at the first syntax error, and only if that
+ * fails once more with full LL prediction, which reports the error. For a valid
+ * function both stages build the same tree. Every thread reuses its own lexer
+ * and parser; the DFA caches of ANTLR are shared by all of them, and are warmed
+ * up when this class is initialized.
+ */
 public class AntlrFunctionParser implements FunctionParser {
 
+    private static final ANTLRErrorListener THROWING_ERROR_LISTENER = new BaseErrorListener() {
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
+                                int line, int charPositionInLine, String msg, RecognitionException e) {
+            throw new ParseCancellationException(format("line: %d, column: %d, message: %s, offendingSymbol: %s, exception: %s",
+                    line, charPositionInLine, msg, offendingSymbol, e));
+        }
+    };
+
+    private static final ThreadLocal<Recognizers> RECOGNIZERS = ThreadLocal.withInitial(Recognizers::new);
+
+    /**
+     * A function which uses most rules of the grammar.
+     */
+    private static final String WARM_UP = "function com.github.drstefanfriedrich.f2blib.WarmUp;\n" +
+            "begin\n" +
+            "    for i from 1 to round(x_1) step 1;\n" +
+            "    begin\n" +
+            "        A := abs(x_1) + arccos(x_2) * arcosh(p_1) - arcsin(x_{i}) / arctan(2.5e-3);\n" +
+            "        B := arsinh(A) + artanh(x_2) ^ binomial(5, 2) + 3! + cos(pi) + cosh(euler) + exp(-A);\n" +
+            "        f_1 := ln(B) + sin(boltzmann) + sinh(+x_1) + sqrt(A) + tan(B) + tanh(p_{i + 1});\n" +
+            "        f_2 := sum(prod(k * l, l, 1, k), k, 0, round(x_1)) * (-1)^i;\n" +
+            "        markov_shift(2 * i);\n" +
+            "    end\n" +
+            "end\n";
+
+    static {
+        new AntlrFunctionParser().parse(WARM_UP);
+    }
+
+    /**
+     * The lexer, the token stream and the parser of a thread, which are reset for
+     * every function definition.
+     */
+    private static final class Recognizers {
+
+        private final FunctionsLexer lexer = new FunctionsLexer(CharStreams.fromString(""));
+
+        private final CommonTokenStream tokens = new CommonTokenStream(lexer);
+
+        private final FunctionsParser parser = new FunctionsParser(tokens);
+
+        private final ANTLRErrorStrategy bailErrorStrategy = new BailErrorStrategy();
+
+        private final ANTLRErrorStrategy defaultErrorStrategy = new DefaultErrorStrategy();
+
+        private Recognizers() {
+            lexer.removeErrorListeners();
+            parser.removeErrorListeners();
+        }
+
+    }
+
     @Override
     public FunctionDefinition parse(String functionDefinition) {
 
-        FunctionsLexer lexer = new FunctionsLexer(CharStreams.fromString(functionDefinition));
-        lexer.removeErrorListeners();
+        Recognizers recognizers = RECOGNIZERS.get();
+        FunctionsLexer lexer = recognizers.lexer;
+        CommonTokenStream tokens = recognizers.tokens;
+        FunctionsParser parser = recognizers.parser;
+
+        lexer.setInputStream(CharStreams.fromString(functionDefinition));
+        tokens.setTokenSource(lexer);
+        parser.setTokenStream(tokens);
 
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        try {
 
-        FunctionsParser parser = new FunctionsParser(tokens);
-        parser.removeErrorListeners();
-        parser.addErrorListener(new BaseErrorListener() {
-            @Override
-            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
-                                    int line, int charPositionInLine, String msg, RecognitionException e) {
-                throw new ParseCancellationException(format("line: %d, column: %d, message: %s, offendingSymbol: %s, exception: %s",
-                        line, charPositionInLine, msg, offendingSymbol, e));
+            FunctionsParser.Function_definitionContext context;
+
+            try {
+                parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+                parser.setErrorHandler(recognizers.bailErrorStrategy);
+                context = parser.function_definition();
+            } catch (ParseCancellationException e) {
+                // Either a syntax error, or SLL is not powerful enough for this input
+                tokens.seek(0);
+                parser.reset();
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+                parser.setErrorHandler(recognizers.defaultErrorStrategy);
+                parser.addErrorListener(THROWING_ERROR_LISTENER);
+                try {
+                    context = parser.function_definition();
+                } finally {
+                    parser.removeErrorListeners();
+                }
             }
-        });
 
-        return (FunctionDefinition) parser.function_definition().accept(new AntlrVisitor());
+            return (FunctionDefinition) context.accept(new AntlrVisitor());
+
+        } finally {
+            // Do not keep the last function definition alive
+            lexer.setInputStream(CharStreams.fromString(""));
+            tokens.setTokenSource(lexer);
+            parser.setTokenStream(tokens);
+        }
     }
 
 }
@@ -0,0 +1,57 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.scheduler;
+
+/**
+ * A request to evaluate a function, submitted to an {@link EvaluationScheduler}.
+ * The scheduler writes the result into the array returned by {@link #getY()} and
+ * then calls either {@link #completed()} or {@link #failed(RuntimeException)}.
+ * Both callbacks are invoked on a thread of the scheduler, so they should return
+ * quickly.
+ */
+public interface EvaluationRequest {
+
+    /**
+     * @return The name of the function to evaluate.
+     */
+    String getFunctionName();
+
+    /**
+     * @return The parameters of the function. p in IR^k
+     */
+    double[] getP();
+
+    /**
+     * @return The variable of the function. x in IR^n
+     */
+    double[] getX();
+
+    /**
+     * @return The array to store the result of the function evaluation. y in IR^m
+     */
+    double[] getY();
+
+    /**
+     * Called after the result has been written into y.
+     */
+    void completed();
+
+    /**
+     * Called if the function could not be evaluated, e.g. because the function is
+     * unknown or the arguments are invalid.
+     *
+     * @param e The reason of the failure.
+     */
+    void failed(RuntimeException e);
+
+}
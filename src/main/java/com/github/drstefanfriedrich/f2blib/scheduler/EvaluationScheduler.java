@@ -0,0 +1,395 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.scheduler;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.FunctionHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+
+/**
+ * Evaluates requests from many producer threads in batches. Producers put
+ * {@link EvaluationRequest}s into a pre-allocated, lock-free ring buffer. The
+ * threads of the scheduler take up to <code>maxBatchSize</code> requests at a
+ * time, group them by function name and evaluate every group with one call of
+ * {@link FunctionHandle#evalBatch(double[][], double[][], double[][])}. Compared
+ * to a {@link java.util.concurrent.BlockingQueue} with one <code>take()</code>
+ * per request, this avoids locking and the lookup of the function per request.
+ * <p>
+ * Functions are resolved once per group, so functions loaded or removed while
+ * the scheduler runs are picked up with the next batch. If the evaluation of a
+ * group fails, the variables of its requests are restored, since a Markov shift
+ * changes them in place, and the requests are evaluated one by one. The scheduler
+ * must be started before requests are processed, and closed to stop its threads.
+ */
+public class EvaluationScheduler implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EvaluationScheduler.class);
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    private static final AtomicInteger SCHEDULER_NUMBER = new AtomicInteger();
+
+    private final FunctionEvaluationKernel kernel;
+    private final RingBuffer<EvaluationRequest> ringBuffer;
+    private final int threads;
+    private final int maxBatchSize;
+    private final WaitStrategy waitStrategy;
+
+    private final List<Thread> workers = new ArrayList<>();
+    private final LongAdder evaluatedRequests = new LongAdder();
+    private final LongAdder evaluatedBatches = new LongAdder();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+
+    private volatile boolean running;
+
+    /**
+     * Creates a scheduler with one thread, a capacity of {@value #DEFAULT_CAPACITY},
+     * batches of at most {@value #DEFAULT_MAX_BATCH_SIZE} requests and the
+     * {@link WaitStrategy#PARK} wait strategy.
+     *
+     * @param kernel The kernel to evaluate the requests.
+     */
+    public EvaluationScheduler(FunctionEvaluationKernel kernel) {
+        this(kernel, DEFAULT_CAPACITY, 1, DEFAULT_MAX_BATCH_SIZE, WaitStrategy.PARK);
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param kernel       The kernel to evaluate the requests.
+     * @param capacity     The number of requests the ring buffer can hold; a power of two.
+     * @param threads      The number of threads evaluating requests.
+     * @param maxBatchSize The maximum number of requests taken from the ring buffer at a time.
+     * @param waitStrategy How threads wait for requests, and producers for free slots.
+     */
+    public EvaluationScheduler(FunctionEvaluationKernel kernel, int capacity, int threads, int maxBatchSize,
+                               WaitStrategy waitStrategy) {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException(format("threads must be positive, but was %d", threads));
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException(format("maxBatchSize must be positive, but was %d", maxBatchSize));
+        }
+
+        this.kernel = kernel;
+        this.ringBuffer = new RingBuffer<>(capacity);
+        this.threads = threads;
+        this.maxBatchSize = maxBatchSize;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Starts the threads of the scheduler.
+     *
+     * @throws IllegalStateException If the scheduler has already been started.
+     */
+    public synchronized void start() {
+
+        if (!workers.isEmpty()) {
+            throw new IllegalStateException("The scheduler has already been started");
+        }
+
+        running = true;
+
+        int schedulerNumber = SCHEDULER_NUMBER.incrementAndGet();
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(), "f2blib-scheduler-" + schedulerNumber + "-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        LOG.debug("Scheduler started with {} threads and wait strategy {}", threads, waitStrategy);
+    }
+
+    /**
+     * Submits a request, if there is room in the ring buffer.
+     *
+     * @param request The request to evaluate.
+     * @return true, if the request was accepted, and false, if the ring buffer is full.
+     */
+    public boolean offer(EvaluationRequest request) {
+        return ringBuffer.offer(request);
+    }
+
+    /**
+     * Submits a request and waits according to the wait strategy as long as the
+     * ring buffer is full.
+     *
+     * @param request The request to evaluate.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void submit(EvaluationRequest request) throws InterruptedException {
+        while (!ringBuffer.offer(request)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            waitStrategy.idle();
+        }
+    }
+
+    /**
+     * Processes all requests which are still in the ring buffer and stops the
+     * threads of the scheduler. Requests submitted after the scheduler has been
+     * closed are not processed any more.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting for the threads.
+     */
+    @Override
+    public synchronized void close() throws InterruptedException {
+
+        running = false;
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        LOG.debug("Scheduler stopped after {} requests in {} batches", getEvaluatedRequests(), getEvaluatedBatches());
+    }
+
+    /**
+     * @return The number of requests waiting in the ring buffer.
+     */
+    public int getQueueDepth() {
+        return ringBuffer.size();
+    }
+
+    /**
+     * @return The highest number of requests that waited in the ring buffer so far.
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return The number of requests the ring buffer can hold.
+     */
+    public int getCapacity() {
+        return ringBuffer.capacity();
+    }
+
+    /**
+     * @return The number of requests evaluated so far, including failed ones.
+     */
+    public long getEvaluatedRequests() {
+        return evaluatedRequests.sum();
+    }
+
+    /**
+     * @return The number of batches taken from the ring buffer so far.
+     */
+    public long getEvaluatedBatches() {
+        return evaluatedBatches.sum();
+    }
+
+    private class Worker implements Runnable {
+
+        private final EvaluationRequest[] batch = new EvaluationRequest[maxBatchSize];
+        private final EvaluationRequest[] group = new EvaluationRequest[maxBatchSize];
+
+        // The rows of the groups, by group size, and copies of the variables
+        private final double[][][] p = new double[maxBatchSize + 1][][];
+        private final double[][][] x = new double[maxBatchSize + 1][][];
+        private final double[][][] y = new double[maxBatchSize + 1][][];
+        private final double[][] xCopy = new double[maxBatchSize][];
+
+        @Override
+        public void run() {
+
+            while (true) {
+
+                long queueDepth = ringBuffer.size();
+                int count = ringBuffer.drainTo(batch, maxBatchSize);
+
+                if (count == 0) {
+                    if (!running) {
+                        break;
+                    }
+                    waitStrategy.idle();
+                    continue;
+                }
+
+                if (queueDepth > maxQueueDepth.get()) {
+                    maxQueueDepth.accumulateAndGet(queueDepth, Math::max);
+                }
+
+                process(count);
+
+                evaluatedRequests.add(count);
+                evaluatedBatches.increment();
+            }
+        }
+
+        /**
+         * Groups the requests by function name in place: the requests of the first
+         * function are moved to the group, all others to the front of the batch.
+         * This is repeated until the batch is empty.
+         */
+        private void process(int count) {
+
+            int remaining = count;
+
+            while (remaining > 0) {
+
+                String functionName = batch[0].getFunctionName();
+                int groupSize = 0;
+                int rest = 0;
+
+                for (int i = 0; i < remaining; i++) {
+                    EvaluationRequest request = batch[i];
+                    batch[i] = null;
+                    if (functionName.equals(request.getFunctionName())) {
+                        group[groupSize++] = request;
+                    } else {
+                        batch[rest++] = request;
+                    }
+                }
+
+                evaluate(functionName, groupSize);
+
+                remaining = rest;
+            }
+        }
+
+        private void evaluate(String functionName, int groupSize) {
+
+            try {
+
+                FunctionHandle handle;
+                try {
+                    handle = kernel.resolve(functionName);
+                } catch (RuntimeException e) {
+                    for (int i = 0; i < groupSize; i++) {
+                        failed(group[i], e);
+                    }
+                    return;
+                }
+
+                if (evaluateBatch(handle, groupSize)) {
+                    for (int i = 0; i < groupSize; i++) {
+                        completed(group[i]);
+                    }
+                } else {
+                    evaluateOneByOne(handle, groupSize);
+                }
+
+            } finally {
+                for (int i = 0; i < groupSize; i++) {
+                    group[i] = null;
+                }
+            }
+        }
+
+        private boolean evaluateBatch(FunctionHandle handle, int groupSize) {
+
+            double[][] pRows = rows(p, groupSize);
+            double[][] xRows = rows(x, groupSize);
+            double[][] yRows = rows(y, groupSize);
+
+            for (int i = 0; i < groupSize; i++) {
+                pRows[i] = group[i].getP();
+                xRows[i] = group[i].getX();
+                yRows[i] = group[i].getY();
+                copy(i, xRows[i]);
+            }
+
+            try {
+                handle.evalBatch(pRows, xRows, yRows);
+                return true;
+            } catch (RuntimeException e) {
+                LOG.debug("Batch evaluation of function {} failed, evaluating one by one", handle.getFunctionName(), e);
+                for (int i = 0; i < groupSize; i++) {
+                    restore(i, xRows[i]);
+                }
+                return false;
+            } finally {
+                for (int i = 0; i < groupSize; i++) {
+                    pRows[i] = null;
+                    xRows[i] = null;
+                    yRows[i] = null;
+                }
+            }
+        }
+
+        private double[][] rows(double[][][] rowsBySize, int groupSize) {
+            if (rowsBySize[groupSize] == null) {
+                rowsBySize[groupSize] = new double[groupSize][];
+            }
+            return rowsBySize[groupSize];
+        }
+
+        private void copy(int i, double[] values) {
+            if (values == null) {
+                return;
+            }
+            if (xCopy[i] == null || xCopy[i].length < values.length) {
+                xCopy[i] = new double[values.length];
+            }
+            System.arraycopy(values, 0, xCopy[i], 0, values.length);
+        }
+
+        private void restore(int i, double[] values) {
+            if (values != null) {
+                System.arraycopy(xCopy[i], 0, values, 0, values.length);
+            }
+        }
+
+        /**
+         * Evaluates the requests of a failed batch separately, so that only the
+         * requests which are actually invalid fail.
+         */
+        private void evaluateOneByOne(FunctionHandle handle, int groupSize) {
+            for (int i = 0; i < groupSize; i++) {
+                EvaluationRequest request = group[i];
+                try {
+                    handle.eval(request.getP(), request.getX(), request.getY());
+                } catch (RuntimeException e) {
+                    failed(request, e);
+                    continue;
+                }
+                completed(request);
+            }
+        }
+
+        private void completed(EvaluationRequest request) {
+            try {
+                request.completed();
+            } catch (RuntimeException e) {
+                LOG.error("Callback of request for function {} failed", request.getFunctionName(), e);
+            }
+        }
+
+        private void failed(EvaluationRequest request, RuntimeException failure) {
+            try {
+                request.failed(failure);
+            } catch (RuntimeException e) {
+                LOG.error("Callback of request for function {} failed", request.getFunctionName(), e);
+            }
+        }
+
+    }
+
+}
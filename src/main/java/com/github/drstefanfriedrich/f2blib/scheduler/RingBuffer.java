@@ -0,0 +1,154 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.scheduler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.String.format;
+
+/**
+ * A bounded, lock-free queue for many producers and many consumers. All slots
+ * are allocated up front. Every slot carries a sequence number which tells
+ * whether the slot may currently be written (sequence equals the position of the
+ * producer) or read (sequence equals the position of the consumer plus one).
+ * Producers and consumers claim positions with a CAS on <code>tail</code> and
+ * <code>head</code>, respectively; there are no locks and no allocations per
+ * element. See D. Vyukov, Bounded MPMC queue.
+ *
+ * @param <E> The type of the elements.
+ */
+class RingBuffer<E> {
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    RingBuffer(int capacity) {
+
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(format("capacity must be a power of two, but was %d", capacity));
+        }
+
+        elements = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element, if there is room for it.
+     *
+     * @return true, if the element was added, and false, if the buffer is full.
+     */
+    boolean offer(E element) {
+
+        long position = tail.get();
+
+        while (true) {
+
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    // Publishes the element to the consumer
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element.
+     *
+     * @return The element, or null, if the buffer is empty.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+
+        long position = head.get();
+
+        while (true) {
+
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) elements[index];
+                    elements[index] = null;
+                    // Hands the slot back to the producers for the next round
+                    sequences.lazySet(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Removes up to <code>maxElements</code> elements and stores them in
+     * <code>target</code>, starting at index 0.
+     *
+     * @return The number of removed elements.
+     */
+    int drainTo(E[] target, int maxElements) {
+
+        int count = 0;
+
+        while (count < maxElements) {
+
+            E element = poll();
+
+            if (element == null) {
+                break;
+            }
+
+            target[count++] = element;
+        }
+
+        return count;
+    }
+
+    /**
+     * The number of elements in the buffer. Only an estimate while producers or
+     * consumers are active.
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, elements.length));
+    }
+
+    int capacity() {
+        return elements.length;
+    }
+
+}
@@ -0,0 +1,61 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.scheduler;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread of the {@link EvaluationScheduler} waits if there is nothing to do,
+ * and how a producer waits if the ring buffer is full. The strategies trade
+ * latency for CPU usage.
+ */
+public enum WaitStrategy {
+
+    /**
+     * Spin in a tight loop. Lowest latency, but every waiting thread occupies a
+     * core completely. Only use it if there are more cores than busy threads.
+     */
+    BUSY_SPIN {
+        @Override
+        void idle() {
+            // Just try again
+        }
+    },
+
+    /**
+     * Give up the core to other threads, but stay runnable. Low latency, and
+     * other threads can make progress.
+     */
+    YIELD {
+        @Override
+        void idle() {
+            Thread.yield();
+        }
+    },
+
+    /**
+     * Sleep for {@value #PARK_NANOS} ns. Highest latency, but hardly any CPU
+     * usage while idle.
+     */
+    PARK {
+        @Override
+        void idle() {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    };
+
+    static final long PARK_NANOS = 50_000;
+
+    abstract void idle();
+
+}
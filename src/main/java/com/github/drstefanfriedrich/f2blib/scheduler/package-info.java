@@ -0,0 +1,6 @@
+/**
+ * This package contains the {@link com.github.drstefanfriedrich.f2blib.scheduler.EvaluationScheduler}, which
+ * takes evaluation requests from many producer threads, collects them in a lock-free ring buffer and evaluates
+ * them in batches on a {@link com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel}.
+ */
+package com.github.drstefanfriedrich.f2blib.scheduler;
@@ -14,14 +14,18 @@ package com.github.drstefanfriedrich.f2blib.visitor;
 
 import com.github.drstefanfriedrich.f2blib.ast.*;
 import com.github.drstefanfriedrich.f2blib.exception.BytecodeGenerationException;
+import com.github.drstefanfriedrich.f2blib.generator.ClassDefinitionStrategy;
 import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
 
 import static java.lang.String.format;
 import static org.objectweb.asm.Opcodes.*;
@@ -50,6 +54,8 @@ public abstract class AbstractBytecodeVisitor implements BytecodeVisitor {
 
     public static final String ARTANH_BIN_CLASS = "org/apache/commons/math3/analysis/function/Atanh";
 
+    private static final String PRECOMPUTED = "PRECOMPUTED_";
+
     private static final String INIT_TYPE = "<init>";
 
     private static final String VALUE_METHOD_NAME = "value";
@@ -62,10 +68,23 @@ public abstract class AbstractBytecodeVisitor implements BytecodeVisitor {
 
     private final ClassWriter cw = new ClassWriter(0);
 
-    final MethodVisitor evalMethod = cw.visitMethod(ACC_PUBLIC, "eval", "([D[D[D)V", null, null);
+    /**
+     * The method the function body is currently generated into. This is the
+     * <code>eval</code> method, or one of the <code>evalBatch</code> methods while
+     * these are generated.
+     */
+    MethodVisitor evalMethod = cw.visitMethod(ACC_PUBLIC, "eval", "([D[D[D)V", null, null);
 
     String className;
 
+    /**
+     * The precomputed expressions by index, collected while the methods are
+     * generated. They are computed by the static initializer.
+     */
+    final Map<Integer, Precomputed> precomputed = new TreeMap<>();
+
+    private byte[] bytecode;
+
     AbstractBytecodeVisitor(LocalVariables localVariables, SpecialFunctionsUsage specialFunctionsUsage,
                             StackDepthVisitor stackDepthVisitor) {
         this.localVariables = localVariables;
@@ -75,11 +94,34 @@ public abstract class AbstractBytecodeVisitor implements BytecodeVisitor {
 
     @Override
     public Class<? extends FunctionEvaluation> generate() {
+        return generate(AbstractBytecodeVisitor::defineClass);
+    }
 
-        byte[] bytecode = generateBytecode();
+    @Override
+    public Class<? extends FunctionEvaluation> generate(ClassDefinitionStrategy classDefinitionStrategy) {
+
+        bytecode = generateBytecode();
 
         writeClassFileToDisk(bytecode);
 
+        return classDefinitionStrategy.define(className, bytecode);
+    }
+
+    @Override
+    public byte[] getBytecode() {
+        return bytecode;
+    }
+
+    /**
+     * Defines a generated class in its own class loader, so that it can be
+     * unloaded as soon as it is not referenced any more.
+     *
+     * @param className The fully qualified name of the class.
+     * @param bytecode  The class file.
+     * @return The defined class.
+     */
+    public static Class<? extends FunctionEvaluation> defineClass(String className, byte[] bytecode) {
+
         @SuppressWarnings("unchecked")
         Class<? extends FunctionEvaluation> result = (Class<? extends FunctionEvaluation>) new ClassLoader() {
             Class<?> defineClass(byte[] bytes) {
@@ -120,6 +162,10 @@ public abstract class AbstractBytecodeVisitor implements BytecodeVisitor {
                 new String[]{FunctionEvaluation.class.getName().replaceAll("\\.", "/")});
     }
 
+    MethodVisitor generateMethod(String name, String descriptor) {
+        return cw.visitMethod(ACC_PUBLIC, name, descriptor, null, null);
+    }
+
     void generateStaticFields() {
 
         FieldVisitor fv;
@@ -138,6 +184,21 @@ public abstract class AbstractBytecodeVisitor implements BytecodeVisitor {
             fv = cw.visitField(ACC_PRIVATE + ACC_FINAL + ACC_STATIC, ARTANH, ARTANH_TYPE, null, null);
             fv.visitEnd();
         }
+
+        for (Precomputed p : precomputed.values()) {
+            fv = cw.visitField(ACC_PRIVATE + ACC_FINAL + ACC_STATIC, precomputedField(p), precomputedType(p),
+                    null, null);
+            fv.visitEnd();
+        }
+    }
+
+    static String precomputedField(Precomputed precomputed) {
+        return PRECOMPUTED + precomputed.getIndex();
+    }
+
+    static String precomputedType(Precomputed precomputed) {
+        String type = precomputed.evaluatesToDouble() ? "D" : "I";
+        return precomputed.isTable() ? "[" + type : type;
     }
 
     void generateStaticInitializers() {
@@ -166,11 +227,63 @@ public abstract class AbstractBytecodeVisitor implements BytecodeVisitor {
             mv.visitFieldInsn(PUTSTATIC, className.replaceAll("\\.", "/"), ARTANH, ARTANH_TYPE);
         }
 
+        // The precomputed expressions are generated like the function body, into the static initializer
+        MethodVisitor singleEvalMethod = evalMethod;
+        evalMethod = mv;
+        precomputed.values().forEach(this::generatePrecomputation);
+        evalMethod = singleEvalMethod;
+
         mv.visitInsn(RETURN);
-        mv.visitMaxs(2, 0);
+        if (precomputed.isEmpty()) {
+            mv.visitMaxs(2, 0);
+        } else {
+            mv.visitMaxs(Math.max(stackDepthVisitor.getMaxStackDepth(), 2), localVariables.getMaxLocals());
+        }
         mv.visitEnd();
     }
 
+    /*
+     * A table gets one value for each value of the integer variable, from start to
+     * end. The integer variable uses the same local variable as in the eval method.
+     */
+    private void generatePrecomputation(Precomputed p) {
+
+        String owner = className.replaceAll("\\.", "/");
+
+        if (!p.isTable()) {
+            p.acceptExpression(this);
+            evalMethod.visitFieldInsn(PUTSTATIC, owner, precomputedField(p), precomputedType(p));
+            return;
+        }
+
+        int index = localVariables.getIndexForIntVar(new IntVar(p.getVariableName()));
+        Label loop = new Label();
+        Label end = new Label();
+
+        evalMethod.visitLdcInsn(p.getEnd() - p.getStart() + 1);
+        evalMethod.visitIntInsn(NEWARRAY, p.evaluatesToDouble() ? T_DOUBLE : T_INT);
+        evalMethod.visitFieldInsn(PUTSTATIC, owner, precomputedField(p), precomputedType(p));
+
+        evalMethod.visitLdcInsn(p.getStart());
+        evalMethod.visitVarInsn(ISTORE, index);
+
+        evalMethod.visitLabel(loop);
+        evalMethod.visitVarInsn(ILOAD, index);
+        evalMethod.visitLdcInsn(p.getEnd());
+        evalMethod.visitJumpInsn(IF_ICMPGT, end);
+
+        evalMethod.visitFieldInsn(GETSTATIC, owner, precomputedField(p), precomputedType(p));
+        evalMethod.visitVarInsn(ILOAD, index);
+        evalMethod.visitLdcInsn(p.getStart());
+        evalMethod.visitInsn(ISUB);
+        p.acceptExpression(this);
+        evalMethod.visitInsn(p.evaluatesToDouble() ? DASTORE : IASTORE);
+
+        evalMethod.visitIincInsn(index, 1);
+        evalMethod.visitJumpInsn(GOTO, loop);
+        evalMethod.visitLabel(end);
+    }
+
     void generateDefaultConstructor() {
 
         MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, INIT_TYPE, "()V", null, null);
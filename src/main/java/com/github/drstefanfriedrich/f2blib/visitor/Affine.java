@@ -0,0 +1,140 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An integer expression <code>k + c</code> of an integer variable <code>k</code>
+ * and a constant <code>c</code>, like <code>k</code>, <code>k + 1</code>,
+ * <code>1 + k</code> or <code>k - 1</code>.
+ */
+final class Affine {
+
+    private static final TransformationVisitor COPY = new TransformationVisitor();
+
+    private final String variableName;
+
+    private final int offset;
+
+    private Affine(String variableName, int offset) {
+        this.variableName = variableName;
+        this.offset = offset;
+    }
+
+    /**
+     * @return The expression as <code>k + c</code>, or null, if it has another form.
+     */
+    static Affine of(Expression expression) {
+
+        if (expression instanceof IntVar) {
+            return new Affine(((IntVar) expression).getVariableName(), 0);
+        }
+
+        if (expression instanceof Addition || expression instanceof Subtraction) {
+
+            BinaryExpression binaryExpression = (BinaryExpression) expression;
+            Expression left = binaryExpression.acceptLeft(COPY);
+            Expression right = binaryExpression.acceptRight(COPY);
+            int sign = expression instanceof Addition ? 1 : -1;
+
+            if (left instanceof IntVar && right instanceof Int) {
+                return new Affine(((IntVar) left).getVariableName(), sign * ((Int) right).getValue());
+            }
+
+            if (expression instanceof Addition && left instanceof Int && right instanceof IntVar) {
+                return new Affine(((IntVar) right).getVariableName(), ((Int) left).getValue());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The difference of two integer expressions as <code>k + c</code>, e.g.
+     * <code>round(p_1) + k - 1</code> minus <code>round(p_1)</code> is
+     * <code>k - 1</code>. Both expressions are taken as sums of terms with
+     * constant coefficients; the terms which are neither constants nor sums must
+     * be equal to cancel out. Both expressions must evaluate to an int; the
+     * conversion of a double to an int is not linear.
+     *
+     * @return The difference as <code>k + c</code>, or null, if it has another form.
+     */
+    static Affine difference(Expression minuend, Expression subtrahend) {
+
+        if (minuend.evaluatesToDouble() || subtrahend.evaluatesToDouble()) {
+            return null;
+        }
+
+        Map<Expression, Long> terms = new HashMap<>();
+        long constant = collect(minuend, 1, terms) + collect(subtrahend, -1, terms);
+        terms.values().removeIf(coefficient -> coefficient == 0);
+
+        if (terms.size() != 1 || constant < Integer.MIN_VALUE || constant > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        Map.Entry<Expression, Long> term = terms.entrySet().iterator().next();
+        if (!(term.getKey() instanceof IntVar) || term.getValue() != 1) {
+            return null;
+        }
+
+        return new Affine(((IntVar) term.getKey()).getVariableName(), (int) constant);
+    }
+
+    /*
+     * Adds the terms of the expression, times the sign, and returns its constant
+     * part, times the sign
+     */
+    private static long collect(Expression expression, int sign, Map<Expression, Long> terms) {
+
+        if (expression instanceof Int) {
+            return sign * (long) ((Int) expression).getValue();
+        }
+
+        if (expression instanceof Parenthesis) {
+            return collect(((Parenthesis) expression).acceptExpression(COPY), sign, terms);
+        }
+
+        if (expression instanceof Pos) {
+            return collect(((Pos) expression).acceptExpression(COPY), sign, terms);
+        }
+
+        if (expression instanceof Neg) {
+            return collect(((Neg) expression).acceptExpression(COPY), -sign, terms);
+        }
+
+        if (expression instanceof Addition || expression instanceof Subtraction) {
+            BinaryExpression binaryExpression = (BinaryExpression) expression;
+            int rightSign = expression instanceof Addition ? sign : -sign;
+            return collect(binaryExpression.acceptLeft(COPY), sign, terms) +
+                    collect(binaryExpression.acceptRight(COPY), rightSign, terms);
+        }
+
+        terms.merge(expression, (long) sign, Long::sum);
+
+        return 0;
+    }
+
+    String getVariableName() {
+        return variableName;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+}
@@ -226,6 +226,7 @@ public class BaseVisitor extends AbstractVisitor {
         forLoop.acceptStart(this);
         forLoop.acceptEnd(this);
         forLoop.acceptStep(this);
+        forLoop.getInvariants().forEach(invariant -> invariant.accept(this));
         forLoop.acceptFunctionsWrapper(this);
         return null;
     }
@@ -251,6 +252,11 @@ public class BaseVisitor extends AbstractVisitor {
         sum.acceptInner(this);
         sum.acceptStart(this);
         sum.acceptEnd(this);
+        sum.getInvariants().forEach(invariant -> invariant.accept(this));
+        sum.getRecurrences().forEach(recurrence -> {
+            recurrence.acceptFirst(this);
+            recurrence.acceptNext(this);
+        });
         return null;
     }
 
@@ -259,6 +265,11 @@ public class BaseVisitor extends AbstractVisitor {
         prod.acceptInner(this);
         prod.acceptStart(this);
         prod.acceptEnd(this);
+        prod.getInvariants().forEach(invariant -> invariant.accept(this));
+        prod.getRecurrences().forEach(recurrence -> {
+            recurrence.acceptFirst(this);
+            recurrence.acceptNext(this);
+        });
         return null;
     }
 
@@ -274,4 +285,48 @@ public class BaseVisitor extends AbstractVisitor {
         return null;
     }
 
+    @Override
+    public <T> T visit(SharedExpression sharedExpression) {
+        sharedExpression.acceptExpression(this);
+        return null;
+    }
+
+    @Override
+    public <T> T visit(SharedVar sharedVar) {
+        return null;
+    }
+
+    @Override
+    public <T> T visit(AlternatingSign alternatingSign) {
+        alternatingSign.acceptExpression(this);
+        return null;
+    }
+
+    @Override
+    public <T> T visit(ClosedFormSum closedFormSum) {
+        closedFormSum.getSum().accept(this);
+        closedFormSum.acceptStep(this);
+        return null;
+    }
+
+    @Override
+    public <T> T visit(Precomputed precomputed) {
+        precomputed.acceptExpression(this);
+        return null;
+    }
+
+    @Override
+    public <T> T visit(Polynomial polynomial) {
+        polynomial.getSum().accept(this);
+        polynomial.getCoefficients().accept(this);
+        polynomial.acceptVariable(this);
+        return null;
+    }
+
+    @Override
+    public <T> T visit(FusedLoop fusedLoop) {
+        fusedLoop.getLoops().forEach(loop -> loop.accept(this));
+        return null;
+    }
+
 }
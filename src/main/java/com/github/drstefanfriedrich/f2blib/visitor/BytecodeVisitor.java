@@ -12,6 +12,7 @@
 
 package com.github.drstefanfriedrich.f2blib.visitor;
 
+import com.github.drstefanfriedrich.f2blib.generator.ClassDefinitionStrategy;
 import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
 
 /**
@@ -22,4 +23,19 @@ public interface BytecodeVisitor extends Visitor {
 
     Class<? extends FunctionEvaluation> generate();
 
+    /**
+     * Same as {@link #generate()}, but the class is defined by the given strategy.
+     *
+     * @param classDefinitionStrategy The strategy which defines the class.
+     * @return The defined class.
+     */
+    Class<? extends FunctionEvaluation> generate(ClassDefinitionStrategy classDefinitionStrategy);
+
+    /**
+     * The bytecode of the class defined by {@link #generate()}.
+     *
+     * @return The class file, or null if no class has been generated yet.
+     */
+    byte[] getBytecode();
+
 }
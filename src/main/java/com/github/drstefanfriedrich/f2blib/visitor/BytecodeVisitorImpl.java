@@ -14,6 +14,13 @@ package com.github.drstefanfriedrich.f2blib.visitor;
 
 import com.github.drstefanfriedrich.f2blib.ast.*;
 import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import static java.lang.String.format;
 import static org.objectweb.asm.Opcodes.*;
@@ -27,6 +34,8 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
 
     private static final String COMBINATORICS_UTILS = "org/apache/commons/math3/util/CombinatoricsUtils";
 
+    private static final String SERIES = "com/github/drstefanfriedrich/f2blib/impl/Series";
+
     private static final String ILLEGAL_ARGUMENT_EXCEPTION = "java/lang/IllegalArgumentException";
 
     private static final String INIT = "<init>";
@@ -35,6 +44,32 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
 
     private static final String DOUBLE_BIFUNC = "(DD)D";
 
+    private static final String EVAL_BATCH = "evalBatch";
+
+    /**
+     * True, while the body of the strided <code>evalBatch</code> method is generated.
+     * Then all indices into p[], x[] and y[] are relative to the current row.
+     */
+    private boolean strided;
+
+    private boolean stridedBatchSupported;
+
+    /**
+     * True, while the body of a batch method is generated. Then the loops of an
+     * expression are evaluated before the expression, see {@link #evaluate(Consumer, Runnable)}.
+     */
+    private boolean spilling;
+
+    /**
+     * The loops and shared expressions which have been evaluated before the expression
+     * they belong to, with the index of the local variable which holds their value.
+     */
+    private final Map<Expression, Integer> spilled = new IdentityHashMap<>();
+
+    private int nextLocal;
+
+    private int maxLocals;
+
     public BytecodeVisitorImpl(LocalVariables localVariables, SpecialFunctionsUsage specialFunctionsUsage,
                                StackDepthVisitor stackDepthVisitor) {
         super(localVariables, specialFunctionsUsage, stackDepthVisitor);
@@ -45,6 +80,10 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
 
         className = functionDefinition.getName();
 
+        StridedBatchSupport stridedBatchSupport = new StridedBatchSupport();
+        functionDefinition.accept(stridedBatchSupport);
+        stridedBatchSupported = stridedBatchSupport.supported;
+
         generateClassHeader();
         generateDefaultConstructor();
 
@@ -61,28 +100,343 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
 
         evalMethod.visitCode();
 
+        generateFunctionBody(functionBody);
+
+        evalMethod.visitMaxs(stackDepthVisitor.getMaxStackDepth(), localVariables.getMaxLocals());
+        evalMethod.visitInsn(RETURN);
+        evalMethod.visitEnd();
+
+        MethodVisitor singleEvalMethod = evalMethod;
+
+        generateBatchMethod(functionBody);
+        if (stridedBatchSupported) {
+            generateStridedBatchMethod(functionBody);
+        }
+
+        evalMethod = singleEvalMethod;
+
+        return null;
+    }
+
+    /*
+     * evalBatch(double[][] p, double[][] x, double[][] y, int from, int to): the rows
+     * are loaded into the local variables of p[], x[] and y[], so the function body
+     * can be generated exactly like in the eval method.
+     */
+    private void generateBatchMethod(FunctionBody functionBody) {
+
+        evalMethod = generateMethod(EVAL_BATCH, "([[D[[D[[DII)V");
+
+        Label loop = new Label();
+        Label end = new Label();
+
+        evalMethod.visitCode();
+
+        // Move the arguments out of the way of the function body
+        evalMethod.visitVarInsn(ALOAD, 1);
+        evalMethod.visitVarInsn(ASTORE, localVariables.getBatchP());
+        evalMethod.visitVarInsn(ALOAD, 2);
+        evalMethod.visitVarInsn(ASTORE, localVariables.getBatchX());
+        evalMethod.visitVarInsn(ALOAD, 3);
+        evalMethod.visitVarInsn(ASTORE, localVariables.getBatchY());
+        evalMethod.visitVarInsn(ILOAD, 4);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchIndex());
+        evalMethod.visitVarInsn(ILOAD, 5);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchEnd());
+
+        // for (i = from; i < to; i++)
+        evalMethod.visitLabel(loop);
+        evalMethod.visitVarInsn(ILOAD, localVariables.getBatchIndex());
+        evalMethod.visitVarInsn(ILOAD, localVariables.getBatchEnd());
+        evalMethod.visitJumpInsn(IF_ICMPGE, end);
+
+        loadRow(localVariables.getBatchP(), 1);
+        loadRow(localVariables.getBatchX(), 2);
+        loadRow(localVariables.getBatchY(), 3);
+
+        generateSpilledFunctionBody(functionBody);
+
+        evalMethod.visitIincInsn(localVariables.getBatchIndex(), 1);
+        evalMethod.visitJumpInsn(GOTO, loop);
+
+        evalMethod.visitLabel(end);
+        evalMethod.visitInsn(RETURN);
+        evalMethod.visitMaxs(Math.max(stackDepthVisitor.getMaxStackDepth(), 2), maxLocals);
+        evalMethod.visitEnd();
+    }
+
+    private void loadRow(int arrayIndex, int rowIndex) {
+        evalMethod.visitVarInsn(ALOAD, arrayIndex);
+        evalMethod.visitVarInsn(ILOAD, localVariables.getBatchIndex());
+        evalMethod.visitInsn(AALOAD);
+        evalMethod.visitVarInsn(ASTORE, rowIndex);
+    }
+
+    /*
+     * evalBatch(double[] p, int pOffset, int pStride, double[] x, int xOffset, int xStride,
+     *           double[] y, int yOffset, int yStride, int count): the arrays stay where
+     * the function body expects them, and every index is shifted by the offset of the
+     * current row.
+     */
+    private void generateStridedBatchMethod(FunctionBody functionBody) {
+
+        evalMethod = generateMethod(EVAL_BATCH, "([DII[DII[DIII)V");
+
+        Label loop = new Label();
+        Label end = new Label();
+
+        evalMethod.visitCode();
+
+        // Move the arguments out of the way of the function body
+        evalMethod.visitVarInsn(ILOAD, 2);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchP());
+        evalMethod.visitVarInsn(ILOAD, 3);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchPStride());
+        evalMethod.visitVarInsn(ILOAD, 5);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchX());
+        evalMethod.visitVarInsn(ILOAD, 6);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchXStride());
+        evalMethod.visitVarInsn(ILOAD, 8);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchY());
+        evalMethod.visitVarInsn(ILOAD, 9);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchYStride());
+        evalMethod.visitVarInsn(ILOAD, 10);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchEnd());
+        evalMethod.visitVarInsn(ALOAD, 4); // push x[] on the operand stack
+        evalMethod.visitVarInsn(ASTORE, 2);
+        evalMethod.visitVarInsn(ALOAD, 7); // push y[] on the operand stack
+        evalMethod.visitVarInsn(ASTORE, 3);
+        evalMethod.visitInsn(ICONST_0);
+        evalMethod.visitVarInsn(ISTORE, localVariables.getBatchIndex());
+
+        // for (i = 0; i < count; i++)
+        evalMethod.visitLabel(loop);
+        evalMethod.visitVarInsn(ILOAD, localVariables.getBatchIndex());
+        evalMethod.visitVarInsn(ILOAD, localVariables.getBatchEnd());
+        evalMethod.visitJumpInsn(IF_ICMPGE, end);
+
+        strided = true;
+        generateSpilledFunctionBody(functionBody);
+        strided = false;
+
+        nextRow(localVariables.getBatchP(), localVariables.getBatchPStride());
+        nextRow(localVariables.getBatchX(), localVariables.getBatchXStride());
+        nextRow(localVariables.getBatchY(), localVariables.getBatchYStride());
+        evalMethod.visitIincInsn(localVariables.getBatchIndex(), 1);
+        evalMethod.visitJumpInsn(GOTO, loop);
+
+        evalMethod.visitLabel(end);
+        evalMethod.visitInsn(RETURN);
+        // Shifting an index by the offset of the row needs one more stack slot
+        evalMethod.visitMaxs(Math.max(stackDepthVisitor.getMaxStackDepth() + 1, 2), maxLocals);
+        evalMethod.visitEnd();
+    }
+
+    private void nextRow(int offsetIndex, int strideIndex) {
+        evalMethod.visitVarInsn(ILOAD, offsetIndex);
+        evalMethod.visitVarInsn(ILOAD, strideIndex);
+        evalMethod.visitInsn(IADD);
+        evalMethod.visitVarInsn(ISTORE, offsetIndex);
+    }
+
+    private void generateFunctionBody(FunctionBody functionBody) {
         if (functionBody.isForLoop()) {
             functionBody.getForLoop().accept(this);
         } else {
             functionBody.getFunctionsWrapper().accept(this);
         }
+    }
 
-        evalMethod.visitMaxs(stackDepthVisitor.getMaxStackDepth(), localVariables.getMaxLocals());
-        evalMethod.visitInsn(RETURN);
-        evalMethod.visitEnd();
+    /*
+     * The values of the spilled loops are kept in local variables behind the ones
+     * of the batch method.
+     */
+    private void generateSpilledFunctionBody(FunctionBody functionBody) {
+        spilling = true;
+        nextLocal = localVariables.getMaxLocalsForBatch();
+        maxLocals = nextLocal;
+        generateFunctionBody(functionBody);
+        spilling = false;
+    }
 
-        return null;
+    /**
+     * Push the given index into p[], x[] or y[] on the operand stack. In the strided
+     * batch method the offset of the current row is added.
+     */
+    private void pushIndex(int index, int offsetIndex) {
+        evalMethod.visitIntInsn(BIPUSH, index);
+        addRowOffset(offsetIndex);
+    }
+
+    private void addRowOffset(int offsetIndex) {
+        if (strided) {
+            evalMethod.visitVarInsn(ILOAD, offsetIndex);
+            evalMethod.visitInsn(IADD);
+        }
+    }
+
+    /**
+     * The strided batch method is only generated if all accesses to p[] and x[] are
+     * known at compile time, and if no Markov shift is used. Otherwise the default
+     * implementation of {@link com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation}
+     * is used, which copies each row, since neither an index expression nor the
+     * Markov shift must be able to leave its row.
+     */
+    private static class StridedBatchSupport extends BaseVisitor {
+
+        private boolean supported = true;
+
+        @Override
+        public <T> T visit(Parameter parameter) {
+            supported &= parameter.getIndexExpression() == null;
+            return null;
+        }
+
+        @Override
+        public <T> T visit(Variable variable) {
+            supported &= variable.getIndexExpression() == null;
+            return null;
+        }
+
+        @Override
+        public <T> T visit(MarkovShift markovShift) {
+            supported = false;
+            return null;
+        }
+
+    }
+
+    /**
+     * The loops of an expression and the shared expressions before them, in the
+     * order in which they are evaluated. The loops within them are left to the
+     * code of the loops.
+     */
+    private static class Spills extends BaseVisitor {
+
+        private final List<Expression> elements = new ArrayList<>();
+
+        @Override
+        public <T> T visit(Sum sum) {
+            elements.add(sum);
+            return null;
+        }
+
+        @Override
+        public <T> T visit(Prod prod) {
+            elements.add(prod);
+            return null;
+        }
+
+        @Override
+        public <T> T visit(FusedLoop fusedLoop) {
+            elements.add(fusedLoop);
+            return null;
+        }
+
+        @Override
+        public <T> T visit(ClosedFormSum closedFormSum) {
+            elements.add(closedFormSum);
+            return null;
+        }
+
+        @Override
+        public <T> T visit(Polynomial polynomial) {
+            elements.add(polynomial);
+            return null;
+        }
+
+        @Override
+        public <T> T visit(SharedExpression sharedExpression) {
+            sharedExpression.acceptExpression(this);
+            elements.add(sharedExpression);
+            return null;
+        }
+
+        @Override
+        public <T> T visit(Precomputed precomputed) {
+            // Computed by the static initializer
+            return null;
+        }
+
+    }
+
+    /**
+     * Generates an expression which is evaluated on an empty operand stack.
+     */
+    private void evaluate(Consumer<Visitor> expression) {
+        evaluate(expression, () -> expression.accept(this));
+    }
+
+    /**
+     * Generates the code of an expression which is evaluated on an empty operand
+     * stack. The loops keep their state in local variables, but the operands of
+     * an expression around a loop would still be on the operand stack at the end
+     * of the loop. HotSpot cannot compile such a loop on stack replacement, so a
+     * batch method would run interpreted until it has been invoked often enough,
+     * which hardly ever happens. So in the batch methods the loops of the
+     * expression are evaluated first and stored into local variables, as well as
+     * the shared expressions before them, whose values the loops may use. The
+     * code of the expression then loads them.
+     */
+    private void evaluate(Consumer<Visitor> expression, Runnable code) {
+
+        if (!spilling) {
+            code.run();
+            return;
+        }
+
+        Spills spills = new Spills();
+        expression.accept(spills);
+
+        int firstLocal = nextLocal;
+        for (Expression element : spills.elements) {
+            int index;
+            if (element instanceof SharedExpression) {
+                SharedExpression sharedExpression = (SharedExpression) element;
+                sharedExpression.acceptExpression(this);
+                index = localVariables.getIndexForSharedVar(sharedExpression.getSharedVar());
+            } else {
+                element.accept(this);
+                index = nextLocal;
+                nextLocal += element.evaluatesToDouble() ? 2 : 1;
+                maxLocals = Math.max(maxLocals, nextLocal);
+            }
+            evalMethod.visitVarInsn(element.evaluatesToDouble() ? DSTORE : ISTORE, index);
+            spilled.put(element, index);
+        }
+
+        code.run();
+
+        spills.elements.forEach(spilled::remove);
+        nextLocal = firstLocal;
+    }
+
+    /**
+     * Loads the value of a loop or a shared expression which has been evaluated
+     * before the expression it belongs to.
+     */
+    private boolean loadSpilled(Expression expression) {
+
+        Integer index = spilled.get(expression);
+        if (index == null) {
+            return false;
+        }
+
+        evalMethod.visitVarInsn(expression.evaluatesToDouble() ? DLOAD : ILOAD, index);
+        return true;
     }
 
     @Override
     public Void visit(Function function) {
 
         int index = function.getIndex();
-        evalMethod.visitVarInsn(ALOAD, 3); // push y[] on the operand stack
-        evalMethod.visitIntInsn(BIPUSH, index);
 
         // Visiting the function expression pushes the result value on the stack
-        function.acceptExpression(this);
+        evaluate(function::acceptExpression, () -> {
+            evalMethod.visitVarInsn(ALOAD, 3); // push y[] on the operand stack
+            pushIndex(index, localVariables.getBatchY());
+            function.acceptExpression(this);
+        });
 
         if (!function.evaluatesToDouble()) {
             evalMethod.visitInsn(I2D);
@@ -99,7 +453,7 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
         AuxVar auxVar = auxiliaryVariable.getAuxVar();
 
         // Push a double on the operand stack
-        auxiliaryVariable.acceptInner(this);
+        evaluate(auxiliaryVariable::acceptInner);
 
         if (!auxiliaryVariable.evaluatesToDoublel()) {
             evalMethod.visitInsn(I2D);
@@ -132,13 +486,14 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
     public Void visit(Parameter parameter) {
         if (parameter.getIndexExpression() == null) {
             evalMethod.visitVarInsn(ALOAD, 1); // push p[] on the operand stack
-            evalMethod.visitIntInsn(BIPUSH, parameter.getIndex());
+            pushIndex(parameter.getIndex(), localVariables.getBatchP());
             evalMethod.visitInsn(DALOAD);
         } else {
             evalMethod.visitVarInsn(ALOAD, 1); // push p[] on the operand stack
             parameter.getIndexExpression().accept(this);
             evalMethod.visitInsn(ICONST_M1);
             evalMethod.visitInsn(IADD);
+            addRowOffset(localVariables.getBatchP());
             evalMethod.visitInsn(DALOAD);
         }
         return null;
@@ -148,13 +503,14 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
     public Void visit(Variable variable) {
         if (variable.getIndexExpression() == null) {
             evalMethod.visitVarInsn(ALOAD, 2); // push x[] on the operand stack
-            evalMethod.visitIntInsn(BIPUSH, variable.getIndex());
+            pushIndex(variable.getIndex(), localVariables.getBatchX());
             evalMethod.visitInsn(DALOAD);
         } else {
             evalMethod.visitVarInsn(ALOAD, 2); // push x[] on the operand stack
             variable.getIndexExpression().accept(this);
             evalMethod.visitInsn(ICONST_M1);
             evalMethod.visitInsn(IADD);
+            addRowOffset(localVariables.getBatchX());
             evalMethod.visitInsn(DALOAD);
         }
         return null;
@@ -529,12 +885,13 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
         Label throwException = new Label();
 
         // Calculate the integers on the stack and store them
-        forLoop.acceptStart(this);
+        evaluate(forLoop::acceptStart);
         evalMethod.visitVarInsn(ISTORE, localVariables.getIndexForIntVar(intVar));
-        forLoop.acceptEnd(this);
+        evaluate(forLoop::acceptEnd);
         evalMethod.visitVarInsn(ISTORE, localVariables.getIndexForForLoopEnd());
-        forLoop.acceptStep(this);
+        evaluate(forLoop::acceptStep);
         evalMethod.visitVarInsn(ISTORE, localVariables.getIndexForForLoopStep());
+        storeInvariants(forLoop.getInvariants());
 
         // Check: step != 0
         evalMethod.visitVarInsn(ILOAD, localVariables.getIndexForForLoopStep());
@@ -615,7 +972,7 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
         Label forLoopCopyEnd = new Label();
 
         // Calculate 'offset' and store it into a local variable
-        markovShift.getOffset().accept(this);
+        evaluate(markovShift.getOffset()::accept);
         evalMethod.visitVarInsn(ISTORE, localVariables.getMarkovShiftOffset());
 
         // Calculate 'm' and store it into a local variable
@@ -722,21 +1079,32 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
         return null;
     }
 
+    /**
+     * The end of the loop and the partial result are kept in local variables, so
+     * the loop leaves the operand stack as it finds it.
+     */
     @Override
     public Void visit(Sum sum) {
 
+        if (loadSpilled(sum)) {
+            return null;
+        }
+
         Label loop = new Label();
+        Label body = new Label();
         Label end = new Label();
 
         boolean evaluatesToDouble = sum.evaluatesToDouble();
         IntVar intVar = new IntVar(sum.getVariableName());
 
         int intVarIndex = localVariables.getIndexForIntVar(intVar);
+        int endIndex = localVariables.getEndIndex(intVar);
         int sumIndex = localVariables.getSumIndex(intVar);
 
-        sum.acceptStart(this);
+        evaluate(sum::acceptStart);
         evalMethod.visitVarInsn(ISTORE, intVarIndex);
-        sum.acceptEnd(this);
+        evaluate(sum::acceptEnd);
+        evalMethod.visitVarInsn(ISTORE, endIndex);
         if (evaluatesToDouble) {
             evalMethod.visitInsn(DCONST_0);
             evalMethod.visitVarInsn(DSTORE, sumIndex);
@@ -744,12 +1112,19 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
             evalMethod.visitInsn(ICONST_0);
             evalMethod.visitVarInsn(ISTORE, sumIndex);
         }
+        storeInvariants(sum.getInvariants());
+        List<Recurrence> recurrences = sum.getRecurrences();
+        if (!recurrences.isEmpty()) {
+            storeFirstRecurrences(recurrences, intVarIndex, endIndex, end, body);
+        }
 
         evalMethod.visitLabel(loop);
-        evalMethod.visitInsn(DUP);
+        evalMethod.visitVarInsn(ILOAD, endIndex);
         evalMethod.visitVarInsn(ILOAD, intVarIndex);
         evalMethod.visitJumpInsn(IF_ICMPLT, end);
-        sum.acceptInner(this);
+        storeNextRecurrences(recurrences, intVarIndex);
+        evalMethod.visitLabel(body);
+        evaluate(sum::acceptInner);
         if (evaluatesToDouble) {
             evalMethod.visitVarInsn(DLOAD, sumIndex);
             evalMethod.visitInsn(DADD);
@@ -766,7 +1141,6 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
         evalMethod.visitJumpInsn(GOTO, loop);
 
         evalMethod.visitLabel(end);
-        evalMethod.visitInsn(POP);
         if (evaluatesToDouble) {
             evalMethod.visitVarInsn(DLOAD, sumIndex);
         } else {
@@ -779,18 +1153,25 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
     @Override
     public Void visit(Prod prod) {
 
+        if (loadSpilled(prod)) {
+            return null;
+        }
+
         Label loop = new Label();
+        Label body = new Label();
         Label end = new Label();
 
         boolean evaluatesToDouble = prod.evaluatesToDouble();
         IntVar intVar = new IntVar(prod.getVariableName());
 
         int intVarIndex = localVariables.getIndexForIntVar(intVar);
+        int endIndex = localVariables.getEndIndex(intVar);
         int prodIndex = localVariables.getProdIndex(intVar);
 
-        prod.acceptStart(this);
+        evaluate(prod::acceptStart);
         evalMethod.visitVarInsn(ISTORE, intVarIndex);
-        prod.acceptEnd(this);
+        evaluate(prod::acceptEnd);
+        evalMethod.visitVarInsn(ISTORE, endIndex);
         if (evaluatesToDouble) {
             evalMethod.visitInsn(DCONST_1);
             evalMethod.visitVarInsn(DSTORE, prodIndex);
@@ -798,12 +1179,19 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
             evalMethod.visitInsn(ICONST_1);
             evalMethod.visitVarInsn(ISTORE, prodIndex);
         }
+        storeInvariants(prod.getInvariants());
+        List<Recurrence> recurrences = prod.getRecurrences();
+        if (!recurrences.isEmpty()) {
+            storeFirstRecurrences(recurrences, intVarIndex, endIndex, end, body);
+        }
 
         evalMethod.visitLabel(loop);
-        evalMethod.visitInsn(DUP);
+        evalMethod.visitVarInsn(ILOAD, endIndex);
         evalMethod.visitVarInsn(ILOAD, intVarIndex);
         evalMethod.visitJumpInsn(IF_ICMPLT, end);
-        prod.acceptInner(this);
+        storeNextRecurrences(recurrences, intVarIndex);
+        evalMethod.visitLabel(body);
+        evaluate(prod::acceptInner);
         if (evaluatesToDouble) {
             evalMethod.visitVarInsn(DLOAD, prodIndex);
             evalMethod.visitInsn(DMUL);
@@ -820,7 +1208,6 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
         evalMethod.visitJumpInsn(GOTO, loop);
 
         evalMethod.visitLabel(end);
-        evalMethod.visitInsn(POP);
         if (evaluatesToDouble) {
             evalMethod.visitVarInsn(DLOAD, prodIndex);
         } else {
@@ -830,4 +1217,471 @@ public class BytecodeVisitorImpl extends AbstractBytecodeVisitor {
         return null;
     }
 
+    /**
+     * Like a sum or a product, but the accumulators are the synthetic local
+     * variables of the loops, and each iteration evaluates the inner expressions
+     * of all loops, one after another.
+     */
+    @Override
+    public Void visit(FusedLoop fusedLoop) {
+
+        if (loadSpilled(fusedLoop)) {
+            return null;
+        }
+
+        Label loop = new Label();
+        Label body = new Label();
+        Label end = new Label();
+
+        List<AbstractSumProduct> loops = fusedLoop.getLoops();
+        List<SharedVar> sharedVars = fusedLoop.getSharedVars();
+        IntVar intVar = new IntVar(fusedLoop.getVariableName());
+        int intVarIndex = localVariables.getIndexForIntVar(intVar);
+        int endIndex = localVariables.getEndIndex(intVar);
+
+        evaluate(fusedLoop::acceptStart);
+        evalMethod.visitVarInsn(ISTORE, intVarIndex);
+        evaluate(fusedLoop::acceptEnd);
+        evalMethod.visitVarInsn(ISTORE, endIndex);
+        for (int i = 0; i < loops.size(); i++) {
+            boolean prod = loops.get(i) instanceof Prod;
+            int index = localVariables.getIndexForSharedVar(sharedVars.get(i));
+            if (loops.get(i).evaluatesToDouble()) {
+                evalMethod.visitInsn(prod ? DCONST_1 : DCONST_0);
+                evalMethod.visitVarInsn(DSTORE, index);
+            } else {
+                evalMethod.visitInsn(prod ? ICONST_1 : ICONST_0);
+                evalMethod.visitVarInsn(ISTORE, index);
+            }
+        }
+        List<Recurrence> recurrences = new ArrayList<>();
+        for (AbstractSumProduct sumProduct : loops) {
+            storeInvariants(sumProduct.getInvariants());
+            recurrences.addAll(sumProduct.getRecurrences());
+        }
+        if (!recurrences.isEmpty()) {
+            storeFirstRecurrences(recurrences, intVarIndex, endIndex, end, body);
+        }
+
+        evalMethod.visitLabel(loop);
+        evalMethod.visitVarInsn(ILOAD, endIndex);
+        evalMethod.visitVarInsn(ILOAD, intVarIndex);
+        evalMethod.visitJumpInsn(IF_ICMPLT, end);
+        storeNextRecurrences(recurrences, intVarIndex);
+        evalMethod.visitLabel(body);
+        for (int i = 0; i < loops.size(); i++) {
+            boolean prod = loops.get(i) instanceof Prod;
+            int index = localVariables.getIndexForSharedVar(sharedVars.get(i));
+            evaluate(loops.get(i)::acceptInner);
+            if (loops.get(i).evaluatesToDouble()) {
+                evalMethod.visitVarInsn(DLOAD, index);
+                evalMethod.visitInsn(prod ? DMUL : DADD);
+                evalMethod.visitVarInsn(DSTORE, index);
+            } else {
+                evalMethod.visitVarInsn(ILOAD, index);
+                evalMethod.visitInsn(prod ? IMUL : IADD);
+                evalMethod.visitVarInsn(ISTORE, index);
+            }
+        }
+        evalMethod.visitVarInsn(ILOAD, intVarIndex);
+        evalMethod.visitInsn(ICONST_1);
+        evalMethod.visitInsn(IADD);
+        evalMethod.visitVarInsn(ISTORE, intVarIndex);
+        evalMethod.visitJumpInsn(GOTO, loop);
+
+        evalMethod.visitLabel(end);
+        // The value of the first loop is the value of the expression
+        evalMethod.visitVarInsn(fusedLoop.evaluatesToDouble() ? DLOAD : ILOAD,
+                localVariables.getIndexForSharedVar(sharedVars.get(0)));
+
+        return null;
+    }
+
+    /**
+     * Evaluates the invariants of a loop once, before the loop, and stores them.
+     */
+    private void storeInvariants(List<SharedExpression> invariants) {
+        for (SharedExpression invariant : invariants) {
+            evaluate(invariant::acceptExpression);
+            evalMethod.visitVarInsn(invariant.evaluatesToDouble() ? DSTORE : ISTORE,
+                    localVariables.getIndexForSharedVar(invariant.getSharedVar()));
+        }
+    }
+
+    /**
+     * The first iteration computes the first values of the recurrences and
+     * continues with the body of the loop, if the loop iterates at all.
+     */
+    private void storeFirstRecurrences(List<Recurrence> recurrences, int intVarIndex, int endIndex, Label end,
+                                       Label body) {
+        evalMethod.visitVarInsn(ILOAD, endIndex);
+        evalMethod.visitVarInsn(ILOAD, intVarIndex);
+        evalMethod.visitJumpInsn(IF_ICMPLT, end);
+        storeRecurrences(recurrences, recurrence -> evaluate(recurrence::acceptFirst));
+        evalMethod.visitJumpInsn(GOTO, body);
+    }
+
+    /**
+     * Every further iteration computes the next values of the recurrences, or
+     * the first values, as long as the loop variable is less than the one from
+     * which on a recurrence is valid.
+     */
+    private void storeNextRecurrences(List<Recurrence> recurrences, int intVarIndex) {
+        storeRecurrences(recurrences, recurrence -> {
+            if (!recurrence.isGuarded()) {
+                evaluate(recurrence::acceptNext);
+                return;
+            }
+            Label first = new Label();
+            Label value = new Label();
+            evalMethod.visitVarInsn(ILOAD, intVarIndex);
+            evalMethod.visitLdcInsn(recurrence.getFrom());
+            evalMethod.visitJumpInsn(IF_ICMPLT, first);
+            evaluate(recurrence::acceptNext);
+            evalMethod.visitJumpInsn(GOTO, value);
+            evalMethod.visitLabel(first);
+            evaluate(recurrence::acceptFirst);
+            evalMethod.visitLabel(value);
+        });
+    }
+
+    private void storeRecurrences(List<Recurrence> recurrences, Consumer<Recurrence> value) {
+        for (Recurrence recurrence : recurrences) {
+            value.accept(recurrence);
+            evalMethod.visitVarInsn(recurrence.evaluatesToDouble() ? DSTORE : ISTORE,
+                    localVariables.getIndexForSharedVar(recurrence.getSharedVar()));
+        }
+    }
+
+    @Override
+    public Void visit(SharedExpression sharedExpression) {
+
+        if (loadSpilled(sharedExpression)) {
+            return null;
+        }
+
+        int index = localVariables.getIndexForSharedVar(sharedExpression.getSharedVar());
+
+        // Leave the value on the operand stack and store a copy
+        sharedExpression.acceptExpression(this);
+
+        if (sharedExpression.evaluatesToDouble()) {
+            evalMethod.visitInsn(DUP2);
+            evalMethod.visitVarInsn(DSTORE, index);
+        } else {
+            evalMethod.visitInsn(DUP);
+            evalMethod.visitVarInsn(ISTORE, index);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visit(SharedVar sharedVar) {
+
+        int index = localVariables.getIndexForSharedVar(sharedVar);
+
+        if (sharedVar.evaluatesToDouble()) {
+            evalMethod.visitVarInsn(DLOAD, index);
+        } else {
+            evalMethod.visitVarInsn(ILOAD, index);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visit(AlternatingSign alternatingSign) {
+
+        // 1 - 2 * (n & 1), which is correct for negative n, too
+        alternatingSign.acceptExpression(this);
+        evalMethod.visitInsn(ICONST_1);
+        evalMethod.visitInsn(IAND);
+        evalMethod.visitInsn(ICONST_1);
+        evalMethod.visitInsn(ISHL);
+        evalMethod.visitInsn(ICONST_1);
+        evalMethod.visitInsn(SWAP);
+        evalMethod.visitInsn(ISUB);
+
+        if (alternatingSign.evaluatesToDouble()) {
+            evalMethod.visitInsn(I2D);
+        }
+
+        return null;
+    }
+
+    /**
+     * The number of terms is computed as a long, since <code>end - start + 1</code>
+     * might not fit into an int. The first term is the inner expression, evaluated
+     * like in the first iteration of the sum. It is kept in the local variable of
+     * the sum, and the step in the one of the product, so the operands are evaluated
+     * on an empty operand stack, like the ones of a loop.
+     */
+    @Override
+    public Void visit(ClosedFormSum closedFormSum) {
+
+        if (loadSpilled(closedFormSum)) {
+            return null;
+        }
+
+        Label loop = new Label();
+        Label empty = new Label();
+        Label end = new Label();
+
+        Sum sum = closedFormSum.getSum();
+        boolean evaluatesToDouble = closedFormSum.evaluatesToDouble();
+        IntVar intVar = new IntVar(sum.getVariableName());
+        int intVarIndex = localVariables.getIndexForIntVar(intVar);
+        int endIndex = localVariables.getEndIndex(intVar);
+        int firstIndex = localVariables.getSumIndex(intVar);
+        int stepIndex = localVariables.getProdIndex(intVar);
+
+        evaluate(sum::acceptStart);
+        evalMethod.visitVarInsn(ISTORE, intVarIndex);
+        evaluate(sum::acceptEnd);
+        evalMethod.visitVarInsn(ISTORE, endIndex);
+        terms(intVarIndex, endIndex);
+        evalMethod.visitInsn(LCONST_0);
+        evalMethod.visitInsn(LCMP);
+        evalMethod.visitJumpInsn(IFLE, empty);
+
+        if (closedFormSum.getKind() == ClosedFormSum.Kind.GEOMETRIC) {
+
+            // first * (ratio^n - 1) / (ratio - 1), unless the ratio is 1
+            evaluate(closedFormSum::acceptStep);
+            evalMethod.visitInsn(DUP2);
+            evalMethod.visitVarInsn(DSTORE, stepIndex);
+            evalMethod.visitInsn(DCONST_1);
+            evalMethod.visitInsn(DCMPL);
+            evalMethod.visitJumpInsn(IFEQ, loop);
+            firstTerm(sum, intVarIndex);
+            evalMethod.visitVarInsn(DSTORE, firstIndex);
+            evalMethod.visitVarInsn(DLOAD, stepIndex);
+            terms(intVarIndex, endIndex);
+            evalMethod.visitMethodInsn(INVOKESTATIC, SERIES, "geometric", "(DJ)D", false);
+            evalMethod.visitVarInsn(DLOAD, firstIndex);
+            evalMethod.visitInsn(DMUL);
+            finiteOrLoop(loop, end);
+
+            evalMethod.visitLabel(loop);
+            sum.accept(this);
+            evalMethod.visitJumpInsn(GOTO, end);
+
+        } else if (evaluatesToDouble) {
+
+            // n * first + difference * (n * (n - 1) / 2)
+            firstTerm(sum, intVarIndex);
+            evalMethod.visitVarInsn(DSTORE, firstIndex);
+            evaluate(closedFormSum::acceptStep);
+            if (!closedFormSum.stepEvaluatesToDouble()) {
+                evalMethod.visitInsn(I2D);
+            }
+            evalMethod.visitVarInsn(DSTORE, stepIndex);
+            terms(intVarIndex, endIndex);
+            evalMethod.visitInsn(L2D);
+            evalMethod.visitVarInsn(DLOAD, firstIndex);
+            evalMethod.visitInsn(DMUL);
+            terms(intVarIndex, endIndex);
+            triangularNumber();
+            evalMethod.visitInsn(L2D);
+            evalMethod.visitVarInsn(DLOAD, stepIndex);
+            evalMethod.visitInsn(DMUL);
+            evalMethod.visitInsn(DADD);
+            finiteOrLoop(loop, end);
+
+            evalMethod.visitLabel(loop);
+            sum.accept(this);
+            evalMethod.visitJumpInsn(GOTO, end);
+
+        } else {
+
+            // The same in int arithmetic, which overflows like the sum
+            firstTerm(sum, intVarIndex);
+            evalMethod.visitVarInsn(ISTORE, firstIndex);
+            evaluate(closedFormSum::acceptStep);
+            evalMethod.visitVarInsn(ISTORE, stepIndex);
+            terms(intVarIndex, endIndex);
+            evalMethod.visitInsn(L2I);
+            evalMethod.visitVarInsn(ILOAD, firstIndex);
+            evalMethod.visitInsn(IMUL);
+            terms(intVarIndex, endIndex);
+            triangularNumber();
+            evalMethod.visitInsn(L2I);
+            evalMethod.visitVarInsn(ILOAD, stepIndex);
+            evalMethod.visitInsn(IMUL);
+            evalMethod.visitInsn(IADD);
+            evalMethod.visitJumpInsn(GOTO, end);
+        }
+
+        evalMethod.visitLabel(empty);
+        evalMethod.visitInsn(evaluatesToDouble ? DCONST_0 : ICONST_0);
+
+        evalMethod.visitLabel(end);
+
+        return null;
+    }
+
+    /**
+     * Pushes the number of terms <code>end - start + 1</code> as a long. The
+     * integer variable holds the start.
+     */
+    private void terms(int intVarIndex, int endIndex) {
+        evalMethod.visitVarInsn(ILOAD, endIndex);
+        evalMethod.visitInsn(I2L);
+        evalMethod.visitVarInsn(ILOAD, intVarIndex);
+        evalMethod.visitInsn(I2L);
+        evalMethod.visitInsn(LSUB);
+        evalMethod.visitInsn(LCONST_1);
+        evalMethod.visitInsn(LADD);
+    }
+
+    /**
+     * Keeps the closed form or the Horner scheme of a sum of doubles on the stack,
+     * if it is finite. Adding 0 turns -0 into 0, like in the loop, which starts
+     * with 0. Otherwise an intermediate result has overflowed, or a term is
+     * infinite or NaN, where it differs from the loop: it is dropped and the loop
+     * is evaluated.
+     */
+    private void finiteOrLoop(Label loop, Label end) {
+
+        Label finite = new Label();
+
+        evalMethod.visitInsn(DUP2);
+        evalMethod.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "isFinite", "(D)Z", false);
+        evalMethod.visitJumpInsn(IFNE, finite);
+        evalMethod.visitInsn(POP2);
+        evalMethod.visitJumpInsn(GOTO, loop);
+
+        evalMethod.visitLabel(finite);
+        evalMethod.visitInsn(DCONST_0);
+        evalMethod.visitInsn(DADD);
+        evalMethod.visitJumpInsn(GOTO, end);
+    }
+
+    /**
+     * The inner expression of a sum, evaluated like in its first iteration. The
+     * integer variable holds the start already.
+     */
+    private void firstTerm(Sum sum, int intVarIndex) {
+        storeInvariants(sum.getInvariants());
+        storeRecurrences(sum.getRecurrences(), recurrence -> evaluate(recurrence::acceptFirst));
+        evaluate(sum::acceptInner);
+    }
+
+    /**
+     * n * (n - 1) / 2 for the long n on the stack. The product fits into an
+     * unsigned long, since n is at most 2^32.
+     */
+    private void triangularNumber() {
+        evalMethod.visitInsn(DUP2);
+        evalMethod.visitInsn(LCONST_1);
+        evalMethod.visitInsn(LSUB);
+        evalMethod.visitInsn(LMUL);
+        evalMethod.visitInsn(ICONST_1);
+        evalMethod.visitInsn(LUSHR);
+    }
+
+    /**
+     * Loads the value from the static field, or from the table at the current
+     * value of the integer variable.
+     */
+    @Override
+    public Void visit(Precomputed p) {
+
+        String owner = className.replaceAll("\\.", "/");
+
+        precomputed.put(p.getIndex(), p);
+        evalMethod.visitFieldInsn(GETSTATIC, owner, precomputedField(p), precomputedType(p));
+
+        if (p.isTable()) {
+            evalMethod.visitVarInsn(ILOAD, localVariables.getIndexForIntVar(new IntVar(p.getVariableName())));
+            if (p.getStart() != 0) {
+                evalMethod.visitLdcInsn(p.getStart());
+                evalMethod.visitInsn(ISUB);
+            }
+            evalMethod.visitInsn(p.evaluatesToDouble() ? DALOAD : IALOAD);
+        }
+
+        return null;
+    }
+
+    /**
+     * The Horner scheme runs from the last coefficient down to the first one; the
+     * local variables of the sum hold the index into the table and the variable,
+     * and the one of the product the partial result.
+     */
+    @Override
+    public Void visit(Polynomial polynomial) {
+
+        if (loadSpilled(polynomial)) {
+            return null;
+        }
+
+        Precomputed coefficients = polynomial.getCoefficients();
+        IntVar intVar = new IntVar(polynomial.getSum().getVariableName());
+        int index = localVariables.getIndexForIntVar(intVar);
+        int variable = localVariables.getSumIndex(intVar);
+        int accumulator = localVariables.getProdIndex(intVar);
+        int power = coefficients.getStart() + polynomial.getOffset();
+
+        String owner = className.replaceAll("\\.", "/");
+        int load = coefficients.evaluatesToDouble() ? DALOAD : IALOAD;
+        Label loop = new Label();
+        Label end = new Label();
+
+        precomputed.put(coefficients.getIndex(), coefficients);
+
+        evaluate(polynomial::acceptVariable);
+        if (!polynomial.variableEvaluatesToDouble()) {
+            evalMethod.visitInsn(I2D);
+        }
+        evalMethod.visitVarInsn(DSTORE, variable);
+
+        evalMethod.visitFieldInsn(GETSTATIC, owner, precomputedField(coefficients), precomputedType(coefficients));
+        evalMethod.visitLdcInsn(coefficients.getEnd() - coefficients.getStart());
+        evalMethod.visitInsn(load);
+        if (load == IALOAD) {
+            evalMethod.visitInsn(I2D);
+        }
+        evalMethod.visitVarInsn(DSTORE, accumulator);
+
+        evalMethod.visitLdcInsn(coefficients.getEnd() - coefficients.getStart() - 1);
+        evalMethod.visitVarInsn(ISTORE, index);
+
+        evalMethod.visitLabel(loop);
+        evalMethod.visitVarInsn(ILOAD, index);
+        evalMethod.visitJumpInsn(IFLT, end);
+        evalMethod.visitVarInsn(DLOAD, accumulator);
+        evalMethod.visitVarInsn(DLOAD, variable);
+        evalMethod.visitInsn(DMUL);
+        evalMethod.visitFieldInsn(GETSTATIC, owner, precomputedField(coefficients), precomputedType(coefficients));
+        evalMethod.visitVarInsn(ILOAD, index);
+        evalMethod.visitInsn(load);
+        if (load == IALOAD) {
+            evalMethod.visitInsn(I2D);
+        }
+        evalMethod.visitInsn(DADD);
+        evalMethod.visitVarInsn(DSTORE, accumulator);
+        evalMethod.visitIincInsn(index, -1);
+        evalMethod.visitJumpInsn(GOTO, loop);
+        evalMethod.visitLabel(end);
+        evalMethod.visitVarInsn(DLOAD, accumulator);
+
+        if (power != 0) {
+            evalMethod.visitVarInsn(DLOAD, variable);
+            evalMethod.visitLdcInsn((double) power);
+            evalMethod.visitMethodInsn(INVOKESTATIC, MATH_TYPE, "pow", DOUBLE_BIFUNC, false);
+            evalMethod.visitInsn(DMUL);
+        }
+
+        Label sum = new Label();
+        Label done = new Label();
+        finiteOrLoop(sum, done);
+        evalMethod.visitLabel(sum);
+        polynomial.getSum().accept(this);
+        evalMethod.visitLabel(done);
+
+        return null;
+    }
+
 }
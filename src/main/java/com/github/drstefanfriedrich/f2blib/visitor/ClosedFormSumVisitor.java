@@ -0,0 +1,195 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+/**
+ * Replaces sums which are arithmetic or geometric series by their closed form
+ * ({@link ClosedFormSum}), so they are computed in constant time:
+ * <ul>
+ * <li>A sum over <code>k</code> is an arithmetic series if its inner expression
+ * is linear in <code>k</code>: it is built from <code>k</code> and from
+ * expressions which do not depend on <code>k</code> by additions, subtractions,
+ * negations, and multiplications and divisions by expressions which do not
+ * depend on <code>k</code>, like <code>k</code>, <code>2 * k + 1</code> or
+ * <code>x_1 * (k - 1) / p_1</code>.</li>
+ * <li>It is a geometric series if its inner expression is a power
+ * <code>v^(k + c)</code> of a double <code>v</code> which does not depend on
+ * <code>k</code>, multiplied or divided by expressions which do not depend on
+ * <code>k</code>, like <code>x_1 * v^(k + 1)</code>. If the ratio <code>v</code>
+ * is 1, the loop is evaluated instead.</li>
+ * </ul>
+ * Sums of ints are computed exactly, with the same overflows. For sums of
+ * doubles the closed form is rounded differently than the loop, so the results
+ * differ in the last few bits. If the closed form of a sum of doubles is
+ * infinite or NaN, which it is if the first term or the difference or ratio is,
+ * the loop is evaluated instead, since e.g. an infinite difference times 0 is NaN
+ * for a single term; a negative zero is turned into 0 like in the loop. So the
+ * results differ more only if the loop overflows, but the closed form does not.
+ * Use {@link #close(FunctionDefinition)}.
+ */
+public class ClosedFormSumVisitor extends TransformationVisitor {
+
+    /*
+     * The difference of an expression which does not depend on the variable
+     */
+    private static final Expression ZERO = new Int(0);
+
+    private static final Expression ONE = new Int(1);
+
+    private static final TransformationVisitor COPY = new TransformationVisitor();
+
+    /**
+     * Replaces the arithmetic and geometric series of a function by their closed form.
+     *
+     * @param functionDefinition The function.
+     * @return The function with the series in closed form.
+     */
+    public static FunctionDefinition close(FunctionDefinition functionDefinition) {
+        return functionDefinition.accept(new ClosedFormSumVisitor());
+    }
+
+    @Override
+    public Expression visit(Sum sum) {
+
+        Sum transformed = (Sum) super.visit(sum);
+
+        if (!transformed.getInvariants().isEmpty() || !transformed.getRecurrences().isEmpty()) {
+            return transformed;
+        }
+
+        String variableName = sum.getVariableName();
+        Expression inner = transformed.acceptInner(COPY);
+
+        Expression ratio = ratio(inner, variableName);
+        if (ratio != null) {
+            return new ClosedFormSum(ClosedFormSum.Kind.GEOMETRIC, transformed, ratio);
+        }
+
+        Expression difference = difference(inner, variableName);
+        if (difference != null) {
+            return new ClosedFormSum(ClosedFormSum.Kind.ARITHMETIC, transformed, difference);
+        }
+
+        return transformed;
+    }
+
+    private static boolean isInvariant(Expression expression, String variableName) {
+        return !References.of(expression).intVars.contains(variableName);
+    }
+
+    /**
+     * @return The ratio of two consecutive values of the expression, or null, if
+     * the expression is not a term of a geometric series.
+     */
+    private static Expression ratio(Expression expression, String variableName) {
+
+        if (expression instanceof Parenthesis || expression instanceof Pos || expression instanceof Neg) {
+            return ratio(((UnaryExpression) expression).acceptExpression(COPY), variableName);
+        }
+
+        if (expression instanceof Power) {
+            Power power = (Power) expression;
+            Expression base = power.acceptLeft(COPY);
+            Expression right = power.acceptRight(COPY);
+            while (right instanceof Parenthesis) {
+                right = ((Parenthesis) right).acceptExpression(COPY);
+            }
+            Affine exponent = Affine.of(right);
+            boolean isTerm = base.evaluatesToDouble() && isInvariant(base, variableName) &&
+                    exponent != null && exponent.getVariableName().equals(variableName);
+            return isTerm ? base : null;
+        }
+
+        if (expression instanceof Multiplication || expression instanceof Division) {
+            BinaryExpression binaryExpression = (BinaryExpression) expression;
+            Expression left = binaryExpression.acceptLeft(COPY);
+            Expression right = binaryExpression.acceptRight(COPY);
+            if (isInvariant(right, variableName)) {
+                return ratio(left, variableName);
+            }
+            if (expression instanceof Multiplication && isInvariant(left, variableName)) {
+                return ratio(right, variableName);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The difference of two consecutive values of the expression, or null,
+     * if the expression is not linear in the variable.
+     */
+    private static Expression difference(Expression expression, String variableName) {
+
+        if (isInvariant(expression, variableName)) {
+            return ZERO;
+        }
+
+        if (expression instanceof IntVar) {
+            return ONE;
+        }
+
+        if (expression instanceof Parenthesis || expression instanceof Pos) {
+            return difference(((UnaryExpression) expression).acceptExpression(COPY), variableName);
+        }
+
+        if (expression instanceof Neg) {
+            Expression difference = difference(((Neg) expression).acceptExpression(COPY), variableName);
+            return difference == null || difference == ZERO ? difference : new Neg(difference);
+        }
+
+        if (!(expression instanceof BinaryExpression)) {
+            return null;
+        }
+
+        BinaryExpression binaryExpression = (BinaryExpression) expression;
+        Expression left = binaryExpression.acceptLeft(COPY);
+        Expression right = binaryExpression.acceptRight(COPY);
+
+        if (expression instanceof Addition || expression instanceof Subtraction) {
+            Expression leftDifference = difference(left, variableName);
+            Expression rightDifference = difference(right, variableName);
+            if (leftDifference == null || rightDifference == null) {
+                return null;
+            }
+            if (rightDifference == ZERO) {
+                return leftDifference;
+            }
+            if (expression instanceof Subtraction) {
+                return leftDifference == ZERO ? new Neg(rightDifference) :
+                        new Subtraction(leftDifference, rightDifference);
+            }
+            return leftDifference == ZERO ? rightDifference : new Addition(leftDifference, rightDifference);
+        }
+
+        if (expression instanceof Multiplication && isInvariant(left, variableName)) {
+            Expression difference = difference(right, variableName);
+            return difference == ONE ? left : difference == null ? null : new Multiplication(left, difference);
+        }
+
+        if (expression instanceof Multiplication && isInvariant(right, variableName)) {
+            Expression difference = difference(left, variableName);
+            return difference == ONE ? right : difference == null ? null : new Multiplication(difference, right);
+        }
+
+        if (expression instanceof Division && isInvariant(right, variableName)) {
+            Expression difference = difference(left, variableName);
+            return difference == null ? null : new Division(difference, right);
+        }
+
+        return null;
+    }
+
+}
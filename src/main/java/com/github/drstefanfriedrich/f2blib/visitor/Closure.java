@@ -0,0 +1,131 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates a function with the same results as the code generated by
+ * {@link BytecodeVisitorImpl}, but without defining a class. The optimized and
+ * validated abstract syntax tree is compiled once into a tree of lambdas. Like
+ * the generated code, a {@link DoubleNode} computes in double and an
+ * {@link IntNode} in int arithmetic; the variables are kept in the slots of a
+ * frame whose indexes are the ones of the local variables of the generated
+ * code, see {@link LocalVariables}. Every thread reuses its own frame, so an
+ * evaluation does not allocate any memory.
+ */
+public final class Closure {
+
+    /**
+     * The state of one evaluation.
+     */
+    static final class Frame {
+
+        double[] p;
+
+        double[] x;
+
+        double[] y;
+
+        final double[] doubles;
+
+        final int[] ints;
+
+        Frame(int size) {
+            this.doubles = new double[size];
+            this.ints = new int[size];
+        }
+
+    }
+
+    /**
+     * An expression which evaluates to a double.
+     */
+    @FunctionalInterface
+    interface DoubleNode {
+        double eval(Frame frame);
+    }
+
+    /**
+     * An expression which evaluates to an int.
+     */
+    @FunctionalInterface
+    interface IntNode {
+        int eval(Frame frame);
+    }
+
+    /**
+     * The assignment of an auxiliary variable or a function, a Markov shift, a
+     * for loop or a sequence of these.
+     */
+    @FunctionalInterface
+    interface Statement {
+        void execute(Frame frame);
+    }
+
+    private final Statement body;
+
+    private final ThreadLocal<Frame> frames;
+
+    private Closure(Statement body, int slots) {
+        this.body = body;
+        this.frames = ThreadLocal.withInitial(() -> new Frame(slots));
+    }
+
+    /**
+     * Compiles a function. Any constant expressions the function contains are
+     * computed right away, like the generated code computes them when its class
+     * is initialized.
+     *
+     * @param functionDefinition The optimized function, which must have been
+     *                           validated with the given local variables.
+     * @param localVariables     The local variables of the function.
+     * @return The compiled function.
+     */
+    public static Closure of(FunctionDefinition functionDefinition, LocalVariables localVariables) {
+        ClosureVisitor closureVisitor = new ClosureVisitor(localVariables);
+        Statement body = functionDefinition.accept(closureVisitor);
+        return new Closure(body, localVariables.getMaxLocals());
+    }
+
+    /**
+     * Evaluates the function. The contract is the same as for
+     * {@link com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation#eval(double[], double[], double[])}.
+     *
+     * @param p The parameters of the function. p in IR^k
+     * @param x The variable of the function. x in IR^n
+     * @param y The result of the function evaluation. y in IR^m
+     */
+    public void eval(double[] p, double[] x, double[] y) {
+
+        Frame frame = frames.get();
+        frame.p = p;
+        frame.x = x;
+        frame.y = y;
+
+        // Nothing must be left over from the previous evaluation
+        Arrays.fill(frame.doubles, 0);
+        Arrays.fill(frame.ints, 0);
+
+        try {
+            body.execute(frame);
+        } finally {
+            frame.p = null;
+            frame.x = null;
+            frame.y = null;
+        }
+    }
+
+}
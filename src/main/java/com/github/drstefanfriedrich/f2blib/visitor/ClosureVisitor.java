@@ -0,0 +1,953 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.impl.Series;
+import com.github.drstefanfriedrich.f2blib.visitor.Closure.DoubleNode;
+import com.github.drstefanfriedrich.f2blib.visitor.Closure.Frame;
+import com.github.drstefanfriedrich.f2blib.visitor.Closure.IntNode;
+import com.github.drstefanfriedrich.f2blib.visitor.Closure.Statement;
+import org.apache.commons.math3.analysis.function.Acosh;
+import org.apache.commons.math3.analysis.function.Asinh;
+import org.apache.commons.math3.analysis.function.Atanh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+import static org.apache.commons.math3.util.CombinatoricsUtils.binomialCoefficient;
+import static org.apache.commons.math3.util.CombinatoricsUtils.factorial;
+
+/**
+ * Translates the optimized abstract syntax tree of a function into the nodes of
+ * a {@link Closure}. Every visit method returns a {@link DoubleNode} or an
+ * {@link IntNode} for an expression, following the typing rules of
+ * {@link BytecodeVisitorImpl}, and a {@link Statement} for everything else. All
+ * nodes evaluate exactly like the bytecode generated for them.
+ */
+class ClosureVisitor extends BaseVisitor {
+
+    private static final Asinh ARSINH = new Asinh();
+
+    private static final Acosh ARCOSH = new Acosh();
+
+    private static final Atanh ARTANH = new Atanh();
+
+    private static final Statement NOTHING = frame -> {
+    };
+
+    private final LocalVariables localVariables;
+
+    /**
+     * The values of the precomputed expressions by index: a Double, an Integer,
+     * a double[] or an int[].
+     */
+    private final Map<Integer, Object> precomputed = new HashMap<>();
+
+    ClosureVisitor(LocalVariables localVariables) {
+        this.localVariables = localVariables;
+    }
+
+    private static DoubleNode asDouble(Object node) {
+        if (node instanceof IntNode) {
+            IntNode intNode = (IntNode) node;
+            return frame -> intNode.eval(frame);
+        }
+        return (DoubleNode) node;
+    }
+
+    private static IntNode asInt(Object node) {
+        if (node instanceof DoubleNode) {
+            throw new IllegalStateException("An int expression must not evaluate to a double");
+        }
+        return (IntNode) node;
+    }
+
+    private static boolean isInt(Object left, Object right) {
+        return left instanceof IntNode && right instanceof IntNode;
+    }
+
+    private static Statement sequence(List<Statement> statements) {
+        if (statements.isEmpty()) {
+            return NOTHING;
+        }
+        if (statements.size() == 1) {
+            return statements.get(0);
+        }
+        Statement[] array = statements.toArray(new Statement[0]);
+        return frame -> {
+            for (Statement statement : array) {
+                statement.execute(frame);
+            }
+        };
+    }
+
+    private int intVarIndex(String variableName) {
+        return localVariables.getIndexForIntVar(new IntVar(variableName));
+    }
+
+    /**
+     * Stores the value of an expression into the local variable of a shared
+     * variable.
+     */
+    private Statement store(SharedVar sharedVar, Object node) {
+        int index = localVariables.getIndexForSharedVar(sharedVar);
+        if (sharedVar.evaluatesToDouble()) {
+            DoubleNode value = asDouble(node);
+            return frame -> frame.doubles[index] = value.eval(frame);
+        } else {
+            IntNode value = asInt(node);
+            return frame -> frame.ints[index] = value.eval(frame);
+        }
+    }
+
+    private Statement invariants(List<SharedExpression> invariants) {
+        List<Statement> statements = new ArrayList<>();
+        for (SharedExpression invariant : invariants) {
+            statements.add(store(invariant.getSharedVar(), invariant.acceptExpression(this)));
+        }
+        return sequence(statements);
+    }
+
+    private Statement firstRecurrences(List<Recurrence> recurrences) {
+        List<Statement> statements = new ArrayList<>();
+        for (Recurrence recurrence : recurrences) {
+            statements.add(store(recurrence.getSharedVar(), recurrence.acceptFirst(this)));
+        }
+        return sequence(statements);
+    }
+
+    /**
+     * The next values of the recurrences, or the first values, as long as the
+     * loop variable is less than the one from which on a recurrence is valid.
+     */
+    private Statement nextRecurrences(List<Recurrence> recurrences, int intVarIndex) {
+        List<Statement> statements = new ArrayList<>();
+        for (Recurrence recurrence : recurrences) {
+            Statement next = store(recurrence.getSharedVar(), recurrence.acceptNext(this));
+            if (recurrence.isGuarded()) {
+                Statement first = store(recurrence.getSharedVar(), recurrence.acceptFirst(this));
+                int from = recurrence.getFrom();
+                statements.add(frame -> {
+                    if (frame.ints[intVarIndex] < from) {
+                        first.execute(frame);
+                    } else {
+                        next.execute(frame);
+                    }
+                });
+            } else {
+                statements.add(next);
+            }
+        }
+        return sequence(statements);
+    }
+
+    /**
+     * Like the generated code, the loop variable lives in its local variable, and
+     * the invariants are evaluated even if the loop does not iterate at all.
+     */
+    private Object sumProduct(AbstractSumProduct loop, boolean product) {
+
+        IntNode startNode = asInt(loop.acceptStart(this));
+        IntNode endNode = asInt(loop.acceptEnd(this));
+        int index = intVarIndex(loop.getVariableName());
+        Statement invariants = invariants(loop.getInvariants());
+        Statement first = firstRecurrences(loop.getRecurrences());
+        Statement next = nextRecurrences(loop.getRecurrences(), index);
+        Object inner = loop.acceptInner(this);
+
+        if (loop.evaluatesToDouble()) {
+
+            DoubleNode term = asDouble(inner);
+
+            return (DoubleNode) frame -> {
+                int[] ints = frame.ints;
+                ints[index] = startNode.eval(frame);
+                int end = endNode.eval(frame);
+                double acc = product ? 1 : 0;
+                invariants.execute(frame);
+                if (ints[index] > end) {
+                    return acc;
+                }
+                first.execute(frame);
+                acc = product ? term.eval(frame) * acc : term.eval(frame) + acc;
+                while (++ints[index] <= end) {
+                    next.execute(frame);
+                    acc = product ? term.eval(frame) * acc : term.eval(frame) + acc;
+                }
+                return acc;
+            };
+        }
+
+        IntNode term = asInt(inner);
+
+        return (IntNode) frame -> {
+            int[] ints = frame.ints;
+            ints[index] = startNode.eval(frame);
+            int end = endNode.eval(frame);
+            int acc = product ? 1 : 0;
+            invariants.execute(frame);
+            if (ints[index] > end) {
+                return acc;
+            }
+            first.execute(frame);
+            acc = product ? term.eval(frame) * acc : term.eval(frame) + acc;
+            while (++ints[index] <= end) {
+                next.execute(frame);
+                acc = product ? term.eval(frame) * acc : term.eval(frame) + acc;
+            }
+            return acc;
+        };
+    }
+
+    private Object index(IndexedExpression indexedExpression) {
+        IntExpression indexExpression = indexedExpression.getIndexExpression();
+        return indexExpression == null ? null : indexExpression.accept(this);
+    }
+
+    @Override
+    public DoubleNode visit(Abs abs) {
+        DoubleNode expression = asDouble(abs.acceptExpression(this));
+        return frame -> Math.abs(expression.eval(frame));
+    }
+
+    @Override
+    public Object visit(Addition addition) {
+        Object left = addition.acceptLeft(this);
+        Object right = addition.acceptRight(this);
+        if (isInt(left, right)) {
+            IntNode l = (IntNode) left;
+            IntNode r = (IntNode) right;
+            return (IntNode) frame -> l.eval(frame) + r.eval(frame);
+        }
+        DoubleNode l = asDouble(left);
+        DoubleNode r = asDouble(right);
+        return (DoubleNode) frame -> l.eval(frame) + r.eval(frame);
+    }
+
+    @Override
+    public DoubleNode visit(Arccos arccos) {
+        DoubleNode expression = asDouble(arccos.acceptExpression(this));
+        return frame -> Math.acos(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Arcosh arcosh) {
+        DoubleNode expression = asDouble(arcosh.acceptExpression(this));
+        return frame -> ARCOSH.value(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Arcsin arcsin) {
+        DoubleNode expression = asDouble(arcsin.acceptExpression(this));
+        return frame -> Math.asin(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Arctan arctan) {
+        DoubleNode expression = asDouble(arctan.acceptExpression(this));
+        return frame -> Math.atan(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Arsinh arsinh) {
+        DoubleNode expression = asDouble(arsinh.acceptExpression(this));
+        return frame -> ARSINH.value(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Artanh artanh) {
+        DoubleNode expression = asDouble(artanh.acceptExpression(this));
+        return frame -> ARTANH.value(expression.eval(frame));
+    }
+
+    @Override
+    public IntNode visit(Binomial binomial) {
+        IntNode n = asInt(binomial.acceptN(this));
+        IntNode k = asInt(binomial.acceptK(this));
+        return frame -> (int) binomialCoefficient(n.eval(frame), k.eval(frame));
+    }
+
+    @Override
+    public IntNode visit(Faculty faculty) {
+        IntNode n = asInt(faculty.acceptExpression(this));
+        return frame -> (int) factorial(n.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Constant constant) {
+        switch (constant) {
+            case PI:
+                return frame -> Math.PI;
+            case E:
+                return frame -> Math.E;
+            case BOLTZMANN:
+                return frame -> 1.38064852e-23;
+            default:
+                throw new IllegalStateException(format("Unrecognized constant: %s", constant.name()));
+        }
+    }
+
+    @Override
+    public DoubleNode visit(Cos cos) {
+        DoubleNode expression = asDouble(cos.acceptExpression(this));
+        return frame -> Math.cos(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Cosh cosh) {
+        DoubleNode expression = asDouble(cosh.acceptExpression(this));
+        return frame -> Math.cosh(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Division division) {
+        DoubleNode left = asDouble(division.acceptLeft(this));
+        DoubleNode right = asDouble(division.acceptRight(this));
+        return frame -> left.eval(frame) / right.eval(frame);
+    }
+
+    @Override
+    public DoubleNode visit(Exp exp) {
+        DoubleNode expression = asDouble(exp.acceptExpression(this));
+        return frame -> Math.exp(expression.eval(frame));
+    }
+
+    @Override
+    public Statement visit(FunctionDefinition functionDefinition) {
+        return functionDefinition.getFunctionBody().accept(this);
+    }
+
+    @Override
+    public Statement visit(FunctionBody functionBody) {
+
+        if (functionBody.isForLoop()) {
+            return functionBody.getForLoop().accept(this);
+        } else {
+            return functionBody.getFunctionsWrapper().accept(this);
+        }
+    }
+
+    @Override
+    public Statement visit(FunctionsWrapper functionsWrapper) {
+
+        List<Statement> statements = new ArrayList<>();
+
+        functionsWrapper.getAuxiliaryVariables().forEach(av -> statements.add(av.accept(this)));
+
+        functionsWrapper.getFunctions().forEach(f -> statements.add(f.accept(this)));
+
+        functionsWrapper.<Statement>acceptMarkovShift(this).ifPresent(statements::add);
+
+        return sequence(statements);
+    }
+
+    @Override
+    public Statement visit(ForLoop forLoop) {
+
+        int index = intVarIndex(forLoop.getVariableName());
+
+        IntNode startNode = asInt(forLoop.acceptStart(this));
+        IntNode endNode = asInt(forLoop.acceptEnd(this));
+        IntNode stepNode = asInt(forLoop.acceptStep(this));
+        Statement invariants = invariants(forLoop.getInvariants());
+        Statement body = forLoop.acceptFunctionsWrapper(this);
+
+        return frame -> {
+
+            int[] ints = frame.ints;
+            ints[index] = startNode.eval(frame);
+            int end = endNode.eval(frame);
+            int step = stepNode.eval(frame);
+
+            invariants.execute(frame);
+
+            if (step == 0) {
+
+                if (ints[index] != end) {
+                    throw new IllegalArgumentException("step must not be 0");
+                }
+                body.execute(frame);
+
+            } else if (step > 0) {
+
+                while (ints[index] <= end) {
+                    body.execute(frame);
+                    ints[index] += step;
+                }
+
+            } else {
+
+                while (ints[index] >= end) {
+                    body.execute(frame);
+                    ints[index] += step;
+                }
+            }
+        };
+    }
+
+    @Override
+    public Statement visit(Function function) {
+        int index = function.getIndex();
+        DoubleNode expression = asDouble(function.acceptExpression(this));
+        return frame -> frame.y[index] = expression.eval(frame);
+    }
+
+    @Override
+    public Statement visit(AuxiliaryVariable auxiliaryVariable) {
+        int index = localVariables.getIndexForAuxVar(auxiliaryVariable.getAuxVar());
+        DoubleNode inner = asDouble(auxiliaryVariable.acceptInner(this));
+        return frame -> frame.doubles[index] = inner.eval(frame);
+    }
+
+    @Override
+    public IntNode visit(Int i) {
+        int value = i.getValue();
+        return frame -> value;
+    }
+
+    @Override
+    public DoubleNode visit(Doub doub) {
+        double value = doub.getValue();
+        return frame -> value;
+    }
+
+    @Override
+    public DoubleNode visit(Sqrt sqrt) {
+        DoubleNode expression = asDouble(sqrt.acceptExpression(this));
+        return frame -> Math.sqrt(expression.eval(frame));
+    }
+
+    @Override
+    public Object visit(NoOp noOp) {
+        throw new IllegalStateException("NoOp must not be used");
+    }
+
+    @Override
+    public DoubleNode visit(Ln ln) {
+        DoubleNode expression = asDouble(ln.acceptExpression(this));
+        return frame -> Math.log(expression.eval(frame));
+    }
+
+    @Override
+    public Object visit(Multiplication multiplication) {
+        Object left = multiplication.acceptLeft(this);
+        Object right = multiplication.acceptRight(this);
+        if (isInt(left, right)) {
+            IntNode l = (IntNode) left;
+            IntNode r = (IntNode) right;
+            return (IntNode) frame -> l.eval(frame) * r.eval(frame);
+        }
+        DoubleNode l = asDouble(left);
+        DoubleNode r = asDouble(right);
+        return (DoubleNode) frame -> l.eval(frame) * r.eval(frame);
+    }
+
+    @Override
+    public Object visit(Parenthesis parenthesis) {
+        return parenthesis.acceptExpression(this);
+    }
+
+    @Override
+    public Object visit(Power power) {
+        Object left = power.acceptLeft(this);
+        Object right = power.acceptRight(this);
+        if (isInt(left, right)) {
+            IntNode l = (IntNode) left;
+            IntNode r = (IntNode) right;
+            return (IntNode) frame -> (int) Math.pow(l.eval(frame), r.eval(frame));
+        }
+        DoubleNode l = asDouble(left);
+        DoubleNode r = asDouble(right);
+        return (DoubleNode) frame -> Math.pow(l.eval(frame), r.eval(frame));
+    }
+
+    @Override
+    public IntNode visit(Round round) {
+        DoubleNode expression = asDouble(round.acceptExpression(this));
+        return frame -> (int) Math.round(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Sin sin) {
+        DoubleNode expression = asDouble(sin.acceptExpression(this));
+        return frame -> Math.sin(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Sinh sinh) {
+        DoubleNode expression = asDouble(sinh.acceptExpression(this));
+        return frame -> Math.sinh(expression.eval(frame));
+    }
+
+    @Override
+    public Object visit(Subtraction subtraction) {
+        Object left = subtraction.acceptLeft(this);
+        Object right = subtraction.acceptRight(this);
+        if (isInt(left, right)) {
+            IntNode l = (IntNode) left;
+            IntNode r = (IntNode) right;
+            return (IntNode) frame -> l.eval(frame) - r.eval(frame);
+        }
+        DoubleNode l = asDouble(left);
+        DoubleNode r = asDouble(right);
+        return (DoubleNode) frame -> l.eval(frame) - r.eval(frame);
+    }
+
+    @Override
+    public DoubleNode visit(Tan tan) {
+        DoubleNode expression = asDouble(tan.acceptExpression(this));
+        return frame -> Math.tan(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Tanh tanh) {
+        DoubleNode expression = asDouble(tanh.acceptExpression(this));
+        return frame -> Math.tanh(expression.eval(frame));
+    }
+
+    @Override
+    public DoubleNode visit(Variable variable) {
+
+        Object index = index(variable);
+
+        if (index == null) {
+            int i = variable.getIndex();
+            return frame -> frame.x[i];
+        } else {
+            IntNode indexNode = asInt(index);
+            return frame -> frame.x[indexNode.eval(frame) - 1];
+        }
+    }
+
+    @Override
+    public DoubleNode visit(Parameter parameter) {
+
+        Object index = index(parameter);
+
+        if (index == null) {
+            int i = parameter.getIndex();
+            return frame -> frame.p[i];
+        } else {
+            IntNode indexNode = asInt(index);
+            return frame -> frame.p[indexNode.eval(frame) - 1];
+        }
+    }
+
+    @Override
+    public Object visit(Neg neg) {
+        Object expression = neg.acceptExpression(this);
+        if (expression instanceof IntNode) {
+            IntNode intNode = (IntNode) expression;
+            return (IntNode) frame -> -intNode.eval(frame);
+        }
+        DoubleNode doubleNode = (DoubleNode) expression;
+        return (DoubleNode) frame -> -doubleNode.eval(frame);
+    }
+
+    @Override
+    public Object visit(Pos pos) {
+        return pos.acceptExpression(this);
+    }
+
+    @Override
+    public IntNode visit(IntVar intVar) {
+        int index = localVariables.getIndexForIntVar(intVar);
+        return frame -> frame.ints[index];
+    }
+
+    @Override
+    public DoubleNode visit(AuxVar auxVar) {
+        int index = localVariables.getIndexForAuxVar(auxVar);
+        return frame -> frame.doubles[index];
+    }
+
+    @Override
+    public Statement visit(MarkovShift markovShift) {
+
+        IntNode offsetNode = asInt(markovShift.getOffset().accept(this));
+
+        return frame -> {
+
+            int offset = offsetNode.eval(frame);
+            double[] x = frame.x;
+            double[] y = frame.y;
+            int m = y.length;
+            int n = x.length;
+
+            if (offset < 0) {
+                throw new IllegalArgumentException("offset must not be negative");
+            }
+            if (n - offset < m) {
+                throw new IllegalArgumentException("x.lenth - offset must be greater or equal than y.length");
+            }
+
+            // Move to the right
+            for (int i = n - 1; i >= offset + m; i--) {
+                x[i] = x[i - m];
+            }
+
+            // Copy f into x
+            System.arraycopy(y, 0, x, offset, m);
+        };
+    }
+
+    @Override
+    public Object visit(Sum sum) {
+        return sumProduct(sum, false);
+    }
+
+    @Override
+    public Object visit(Prod prod) {
+        return sumProduct(prod, true);
+    }
+
+    @Override
+    public Object visit(SharedExpression sharedExpression) {
+
+        int index = localVariables.getIndexForSharedVar(sharedExpression.getSharedVar());
+        Object expression = sharedExpression.acceptExpression(this);
+
+        if (sharedExpression.evaluatesToDouble()) {
+            DoubleNode value = asDouble(expression);
+            return (DoubleNode) frame -> frame.doubles[index] = value.eval(frame);
+        } else {
+            IntNode value = asInt(expression);
+            return (IntNode) frame -> frame.ints[index] = value.eval(frame);
+        }
+    }
+
+    @Override
+    public Object visit(SharedVar sharedVar) {
+
+        int index = localVariables.getIndexForSharedVar(sharedVar);
+
+        if (sharedVar.evaluatesToDouble()) {
+            return (DoubleNode) frame -> frame.doubles[index];
+        } else {
+            return (IntNode) frame -> frame.ints[index];
+        }
+    }
+
+    @Override
+    public Object visit(AlternatingSign alternatingSign) {
+
+        // 1 - 2 * (n & 1), which is correct for negative n, too
+        IntNode exponent = asInt(alternatingSign.acceptExpression(this));
+
+        if (alternatingSign.evaluatesToDouble()) {
+            return (DoubleNode) frame -> 1 - ((exponent.eval(frame) & 1) << 1);
+        } else {
+            return (IntNode) frame -> 1 - ((exponent.eval(frame) & 1) << 1);
+        }
+    }
+
+    /**
+     * The number of terms is computed as a long, since <code>end - start + 1</code>
+     * might not fit into an int. The first term is the inner expression, evaluated
+     * like in the first iteration of the sum.
+     */
+    @Override
+    public Object visit(ClosedFormSum closedFormSum) {
+
+        Sum sum = closedFormSum.getSum();
+        int index = intVarIndex(sum.getVariableName());
+
+        IntNode startNode = asInt(sum.acceptStart(this));
+        IntNode endNode = asInt(sum.acceptEnd(this));
+        Statement invariants = invariants(sum.getInvariants());
+        Statement first = firstRecurrences(sum.getRecurrences());
+        Object inner = sum.acceptInner(this);
+        Object step = closedFormSum.acceptStep(this);
+
+        if (closedFormSum.getKind() == ClosedFormSum.Kind.GEOMETRIC) {
+
+            // first * (ratio^n - 1) / (ratio - 1), unless the ratio is 1
+            DoubleNode loop = asDouble(sum.accept(this));
+            DoubleNode ratioNode = asDouble(step);
+            DoubleNode term = asDouble(inner);
+
+            return (DoubleNode) frame -> {
+                int start = startNode.eval(frame);
+                frame.ints[index] = start;
+                long n = (long) endNode.eval(frame) - start + 1;
+                if (n <= 0) {
+                    return 0d;
+                }
+                double ratio = ratioNode.eval(frame);
+                if (ratio == 1) {
+                    return loop.eval(frame);
+                }
+                double geometric = Series.geometric(ratio, n);
+                invariants.execute(frame);
+                first.execute(frame);
+                double closed = geometric * term.eval(frame);
+                // Like the generated code, see BytecodeVisitorImpl#finiteOrLoop
+                return Double.isFinite(closed) ? closed + 0d : loop.eval(frame);
+            };
+
+        } else if (closedFormSum.evaluatesToDouble()) {
+
+            // n * first + difference * (n * (n - 1) / 2)
+            DoubleNode loop = asDouble(sum.accept(this));
+            DoubleNode term = asDouble(inner);
+            DoubleNode difference = asDouble(step);
+
+            return (DoubleNode) frame -> {
+                int start = startNode.eval(frame);
+                frame.ints[index] = start;
+                long n = (long) endNode.eval(frame) - start + 1;
+                if (n <= 0) {
+                    return 0d;
+                }
+                invariants.execute(frame);
+                first.execute(frame);
+                double firstTerm = n * term.eval(frame);
+                double closed = firstTerm + ((n * (n - 1)) >>> 1) * difference.eval(frame);
+                return Double.isFinite(closed) ? closed + 0d : loop.eval(frame);
+            };
+
+        } else {
+
+            // The same in int arithmetic, which overflows like the sum
+            IntNode term = asInt(inner);
+            IntNode difference = asInt(step);
+
+            return (IntNode) frame -> {
+                int start = startNode.eval(frame);
+                frame.ints[index] = start;
+                long n = (long) endNode.eval(frame) - start + 1;
+                if (n <= 0) {
+                    return 0;
+                }
+                invariants.execute(frame);
+                first.execute(frame);
+                int firstTerm = (int) n * term.eval(frame);
+                return firstTerm + (int) ((n * (n - 1)) >>> 1) * difference.eval(frame);
+            };
+        }
+    }
+
+    /**
+     * A precomputed expression is computed once, while the closure is built, like
+     * the generated code computes it when its class is initialized. A table gets
+     * one value for each value of the integer variable, from start to end.
+     */
+    @Override
+    public Object visit(Precomputed p) {
+
+        Object value = precomputed(p);
+
+        if (!p.isTable()) {
+            if (p.evaluatesToDouble()) {
+                double d = (Double) value;
+                return (DoubleNode) frame -> d;
+            } else {
+                int n = (Integer) value;
+                return (IntNode) frame -> n;
+            }
+        }
+
+        int index = intVarIndex(p.getVariableName());
+        int start = p.getStart();
+
+        if (p.evaluatesToDouble()) {
+            double[] table = (double[]) value;
+            return (DoubleNode) frame -> table[frame.ints[index] - start];
+        } else {
+            int[] table = (int[]) value;
+            return (IntNode) frame -> table[frame.ints[index] - start];
+        }
+    }
+
+    private Object precomputed(Precomputed p) {
+        Object value = precomputed.get(p.getIndex());
+        if (value == null) {
+            value = precompute(p);
+            precomputed.put(p.getIndex(), value);
+        }
+        return value;
+    }
+
+    private Object precompute(Precomputed p) {
+
+        Object expression = p.acceptExpression(this);
+        Frame frame = new Frame(localVariables.getMaxLocals());
+
+        if (!p.isTable()) {
+            if (p.evaluatesToDouble()) {
+                return asDouble(expression).eval(frame);
+            } else {
+                return asInt(expression).eval(frame);
+            }
+        }
+
+        int index = intVarIndex(p.getVariableName());
+        int length = p.getEnd() - p.getStart() + 1;
+
+        if (p.evaluatesToDouble()) {
+            DoubleNode node = asDouble(expression);
+            double[] table = new double[length];
+            for (int i = 0; i < length; i++) {
+                frame.ints[index] = p.getStart() + i;
+                table[i] = node.eval(frame);
+            }
+            return table;
+        } else {
+            IntNode node = asInt(expression);
+            int[] table = new int[length];
+            for (int i = 0; i < length; i++) {
+                frame.ints[index] = p.getStart() + i;
+                table[i] = node.eval(frame);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * The Horner scheme runs from the last coefficient down to the first one. If
+     * the result is not finite, the sum is evaluated instead.
+     */
+    @Override
+    public DoubleNode visit(Polynomial polynomial) {
+
+        Precomputed coefficients = polynomial.getCoefficients();
+        int last = coefficients.getEnd() - coefficients.getStart();
+        double power = coefficients.getStart() + polynomial.getOffset();
+
+        DoubleNode variable = asDouble(polynomial.acceptVariable(this));
+        Object value = precomputed(coefficients);
+
+        double[] table;
+        if (value instanceof int[]) {
+            int[] ints = (int[]) value;
+            table = new double[ints.length];
+            for (int i = 0; i < ints.length; i++) {
+                table[i] = ints[i];
+            }
+        } else {
+            table = (double[]) value;
+        }
+
+        DoubleNode loop = asDouble(polynomial.getSum().accept(this));
+
+        // Like the generated code, see BytecodeVisitorImpl#finiteOrLoop
+        if (power == 0) {
+            return frame -> {
+                double v = variable.eval(frame);
+                double acc = table[last];
+                for (int i = last - 1; i >= 0; i--) {
+                    acc = acc * v + table[i];
+                }
+                return Double.isFinite(acc) ? acc + 0d : loop.eval(frame);
+            };
+        }
+
+        return frame -> {
+            double v = variable.eval(frame);
+            double acc = table[last];
+            for (int i = last - 1; i >= 0; i--) {
+                acc = acc * v + table[i];
+            }
+            acc *= Math.pow(v, power);
+            return Double.isFinite(acc) ? acc + 0d : loop.eval(frame);
+        };
+    }
+
+    /**
+     * Like a sum or a product, but the accumulators are the local variables of
+     * the shared variables of the loops, and each iteration evaluates the inner
+     * expressions of all loops, one after another.
+     */
+    @Override
+    public Object visit(FusedLoop fusedLoop) {
+
+        List<AbstractSumProduct> loops = fusedLoop.getLoops();
+        List<SharedVar> sharedVars = fusedLoop.getSharedVars();
+        int index = intVarIndex(fusedLoop.getVariableName());
+
+        IntNode startNode = asInt(fusedLoop.acceptStart(this));
+        IntNode endNode = asInt(fusedLoop.acceptEnd(this));
+
+        List<Statement> inits = new ArrayList<>();
+        List<Statement> accumulations = new ArrayList<>();
+        List<SharedExpression> invariantList = new ArrayList<>();
+        List<Recurrence> recurrenceList = new ArrayList<>();
+
+        for (int i = 0; i < loops.size(); i++) {
+            AbstractSumProduct loop = loops.get(i);
+            boolean product = loop instanceof Prod;
+            int accumulator = localVariables.getIndexForSharedVar(sharedVars.get(i));
+            Object inner = loop.acceptInner(this);
+            if (loop.evaluatesToDouble()) {
+                DoubleNode term = asDouble(inner);
+                double init = product ? 1 : 0;
+                inits.add(frame -> frame.doubles[accumulator] = init);
+                accumulations.add(product
+                        ? frame -> frame.doubles[accumulator] = term.eval(frame) * frame.doubles[accumulator]
+                        : frame -> frame.doubles[accumulator] = term.eval(frame) + frame.doubles[accumulator]);
+            } else {
+                IntNode term = asInt(inner);
+                int init = product ? 1 : 0;
+                inits.add(frame -> frame.ints[accumulator] = init);
+                accumulations.add(product
+                        ? frame -> frame.ints[accumulator] = term.eval(frame) * frame.ints[accumulator]
+                        : frame -> frame.ints[accumulator] = term.eval(frame) + frame.ints[accumulator]);
+            }
+            invariantList.addAll(loop.getInvariants());
+            recurrenceList.addAll(loop.getRecurrences());
+        }
+
+        Statement init = sequence(inits);
+        Statement invariants = invariants(invariantList);
+        Statement first = firstRecurrences(recurrenceList);
+        Statement next = nextRecurrences(recurrenceList, index);
+        Statement body = sequence(accumulations);
+
+        Statement loop = frame -> {
+            int[] ints = frame.ints;
+            ints[index] = startNode.eval(frame);
+            int end = endNode.eval(frame);
+            init.execute(frame);
+            invariants.execute(frame);
+            if (ints[index] > end) {
+                return;
+            }
+            first.execute(frame);
+            body.execute(frame);
+            while (++ints[index] <= end) {
+                next.execute(frame);
+                body.execute(frame);
+            }
+        };
+
+        // The value of the first loop is the value of the expression
+        int result = localVariables.getIndexForSharedVar(sharedVars.get(0));
+
+        if (fusedLoop.evaluatesToDouble()) {
+            return (DoubleNode) frame -> {
+                loop.execute(frame);
+                return frame.doubles[result];
+            };
+        } else {
+            return (IntNode) frame -> {
+                loop.execute(frame);
+                return frame.ints[result];
+            };
+        }
+    }
+
+}
@@ -0,0 +1,436 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Eliminates common subexpressions. An expression which is evaluated more than
+ * once with the same value is evaluated only the first time; the value is
+ * stored in a synthetic local variable ({@link SharedExpression}), and all
+ * further occurrences load it from there ({@link SharedVar}).
+ * <p>
+ * The elements are visited in the order in which the generated code evaluates
+ * them, and a value is available after its first evaluation. The inner
+ * expression of a sum or a product and the body of a for loop open a new scope:
+ * they may use the values available in the enclosing scopes, but their own values
+ * are dropped at the end of the scope, since they depend on the integer variable,
+ * or might not be evaluated at all. A value which depends on an auxiliary
+ * variable is dropped when the auxiliary variable is assigned, and a value which
+ * depends on <code>x</code> is dropped before a for loop with a Markov shift.
+ * <p>
+ * The visitor needs two passes: the first one counts how often each value is
+ * used, the second one rewrites the AST. Use {@link #eliminate(FunctionDefinition)}.
+ */
+public class CommonSubexpressionVisitor extends TransformationVisitor {
+
+    /*
+     * The number of uses per value, as counted in the first pass; null in the
+     * first pass itself.
+     */
+    private final Map<Integer, Integer> uses;
+
+    private final Map<Integer, Integer> counts = new HashMap<>();
+
+    private final Deque<Map<Expression, Integer>> scopes = new ArrayDeque<>();
+
+    private int nextIndex;
+
+    private CommonSubexpressionVisitor(Map<Integer, Integer> uses, int firstIndex) {
+        this.uses = uses;
+        this.nextIndex = firstIndex;
+        scopes.push(new HashMap<>());
+    }
+
+    /**
+     * Eliminates the common subexpressions of a function.
+     *
+     * @param functionDefinition The function.
+     * @return The function without common subexpressions.
+     */
+    public static FunctionDefinition eliminate(FunctionDefinition functionDefinition) {
+
+        // The indexes of the values which are shared already must not be used again
+        int firstIndex = 1 + SharedIndexes.max(functionDefinition);
+
+        CommonSubexpressionVisitor counting = new CommonSubexpressionVisitor(null, firstIndex);
+        functionDefinition.accept(counting);
+
+        return functionDefinition.accept(new CommonSubexpressionVisitor(counting.counts, firstIndex));
+    }
+
+    private Integer lookup(Expression expression) {
+        for (Map<Expression, Integer> scope : scopes) {
+            Integer index = scope.get(expression);
+            if (index != null) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private Expression share(Expression expression, Supplier<Expression> transformation) {
+
+        Integer index = lookup(expression);
+
+        if (index != null) {
+            counts.merge(index, 1, Integer::sum);
+            return new SharedVar(index, expression);
+        }
+
+        Expression transformed = transformation.get();
+
+        // The value is available once it has been evaluated completely
+        index = nextIndex++;
+        scopes.peek().put(expression, index);
+        counts.put(index, 1);
+
+        if (uses != null && uses.get(index) > 1) {
+            return new SharedExpression(index, transformed);
+        }
+
+        return transformed;
+    }
+
+    /*
+     * Either the first or the next value of a recurrence is computed in an
+     * iteration, so they do not share values with each other or with the inner
+     * expression.
+     */
+    @Override
+    protected List<Recurrence> transformRecurrences(List<Recurrence> recurrences) {
+
+        List<Recurrence> transformed = new ArrayList<>();
+
+        for (Recurrence recurrence : recurrences) {
+            scopes.push(new HashMap<>());
+            Expression first = recurrence.acceptFirst(this);
+            scopes.pop();
+            scopes.push(new HashMap<>());
+            Expression next = recurrence.acceptNext(this);
+            scopes.pop();
+            transformed.add(recurrence.with(first, next));
+        }
+
+        return transformed;
+    }
+
+    private void drop(Predicate<References> dependsOn) {
+        for (Map<Expression, Integer> scope : scopes) {
+            scope.keySet().removeIf(expression -> dependsOn.test(References.of(expression)));
+        }
+    }
+
+    @Override
+    public AuxiliaryVariable visit(AuxiliaryVariable auxiliaryVariable) {
+
+        AuxiliaryVariable transformed = super.visit(auxiliaryVariable);
+
+        String variableName = auxiliaryVariable.getAuxVar().getVariableName();
+        drop(references -> references.auxVars.contains(variableName));
+
+        return transformed;
+    }
+
+    @Override
+    public ForLoop visit(ForLoop forLoop) {
+
+        Expression start = forLoop.acceptStart(this);
+        Expression end = forLoop.acceptEnd(this);
+        Expression step = forLoop.acceptStep(this);
+
+        // The body is evaluated again and again, so values which it changes are not available in it
+        References assigned = References.assignedBy(forLoop);
+        drop(references -> references.dependsOn(assigned));
+
+        List<SharedExpression> invariants = transformInvariants(forLoop.getInvariants());
+
+        scopes.push(new HashMap<>());
+        FunctionsWrapper functionsWrapper = forLoop.acceptFunctionsWrapper(this);
+        scopes.pop();
+
+        return new ForLoop(forLoop.getVariableName(), asIntExpression(start), asIntExpression(end),
+                asIntExpression(step), functionsWrapper, invariants);
+    }
+
+    @Override
+    public Expression visit(Sum sum) {
+        return share(sum, () -> {
+            Expression start = sum.acceptStart(this);
+            Expression end = sum.acceptEnd(this);
+            List<SharedExpression> invariants = transformInvariants(sum.getInvariants());
+            List<Recurrence> recurrences = transformRecurrences(sum.getRecurrences());
+            scopes.push(new HashMap<>());
+            Expression inner = sum.acceptInner(this);
+            scopes.pop();
+            return new Sum(inner, sum.getVariableName(), asIntExpression(start), asIntExpression(end), invariants,
+                    recurrences);
+        });
+    }
+
+    @Override
+    public Expression visit(Prod prod) {
+        return share(prod, () -> {
+            Expression start = prod.acceptStart(this);
+            Expression end = prod.acceptEnd(this);
+            List<SharedExpression> invariants = transformInvariants(prod.getInvariants());
+            List<Recurrence> recurrences = transformRecurrences(prod.getRecurrences());
+            scopes.push(new HashMap<>());
+            Expression inner = prod.acceptInner(this);
+            scopes.pop();
+            return new Prod(inner, prod.getVariableName(), asIntExpression(start), asIntExpression(end), invariants,
+                    recurrences);
+        });
+    }
+
+    /*
+     * The inner expressions of the loops are evaluated one after another in the
+     * same iteration, so they share one scope.
+     */
+    @Override
+    public Expression visit(FusedLoop fusedLoop) {
+
+        List<AbstractSumProduct> loops = fusedLoop.getLoops();
+        IntExpression start = asIntExpression(fusedLoop.acceptStart(this));
+        IntExpression end = asIntExpression(fusedLoop.acceptEnd(this));
+
+        List<List<SharedExpression>> invariants = new ArrayList<>();
+        List<List<Recurrence>> recurrences = new ArrayList<>();
+        for (AbstractSumProduct loop : loops) {
+            invariants.add(transformInvariants(loop.getInvariants()));
+            recurrences.add(transformRecurrences(loop.getRecurrences()));
+        }
+
+        List<AbstractSumProduct> transformed = new ArrayList<>();
+        scopes.push(new HashMap<>());
+        for (int i = 0; i < loops.size(); i++) {
+            AbstractSumProduct loop = loops.get(i);
+            Expression inner = loop.acceptInner(this);
+            if (loop instanceof Prod) {
+                transformed.add(new Prod(inner, loop.getVariableName(), start, end, invariants.get(i),
+                        recurrences.get(i)));
+            } else {
+                transformed.add(new Sum(inner, loop.getVariableName(), start, end, invariants.get(i),
+                        recurrences.get(i)));
+            }
+        }
+        scopes.pop();
+
+        return new FusedLoop(transformed, fusedLoop.getIndexes());
+    }
+
+    /*
+     * The step, the first term and the loop are evaluated only if the sum is not
+     * empty, so they do not share values with the rest of the function.
+     */
+    @Override
+    public Expression visit(ClosedFormSum closedFormSum) {
+        return share(closedFormSum, () -> {
+            Sum sum = closedFormSum.getSum();
+            Expression start = sum.acceptStart(this);
+            Expression end = sum.acceptEnd(this);
+            scopes.push(new HashMap<>());
+            Expression step = closedFormSum.acceptStep(this);
+            scopes.pop();
+            scopes.push(new HashMap<>());
+            List<SharedExpression> invariants = transformInvariants(sum.getInvariants());
+            List<Recurrence> recurrences = transformRecurrences(sum.getRecurrences());
+            scopes.push(new HashMap<>());
+            Expression inner = sum.acceptInner(this);
+            scopes.pop();
+            scopes.pop();
+            return new ClosedFormSum(closedFormSum.getKind(), new Sum(inner, sum.getVariableName(),
+                    asIntExpression(start), asIntExpression(end), invariants, recurrences), step);
+        });
+    }
+
+    @Override
+    public Expression visit(Abs abs) {
+        return share(abs, () -> super.visit(abs));
+    }
+
+    @Override
+    public Expression visit(Addition addition) {
+        return share(addition, () -> super.visit(addition));
+    }
+
+    @Override
+    public Expression visit(Arccos arccos) {
+        return share(arccos, () -> super.visit(arccos));
+    }
+
+    @Override
+    public Expression visit(Arcosh arcosh) {
+        return share(arcosh, () -> super.visit(arcosh));
+    }
+
+    @Override
+    public Expression visit(Arcsin arcsin) {
+        return share(arcsin, () -> super.visit(arcsin));
+    }
+
+    @Override
+    public Expression visit(Arctan arctan) {
+        return share(arctan, () -> super.visit(arctan));
+    }
+
+    @Override
+    public Expression visit(Arsinh arsinh) {
+        return share(arsinh, () -> super.visit(arsinh));
+    }
+
+    @Override
+    public Expression visit(Artanh artanh) {
+        return share(artanh, () -> super.visit(artanh));
+    }
+
+    @Override
+    public Expression visit(Binomial binomial) {
+        return share(binomial, () -> super.visit(binomial));
+    }
+
+    @Override
+    public Expression visit(Cos cos) {
+        return share(cos, () -> super.visit(cos));
+    }
+
+    @Override
+    public Expression visit(Cosh cosh) {
+        return share(cosh, () -> super.visit(cosh));
+    }
+
+    @Override
+    public Expression visit(Division division) {
+        return share(division, () -> super.visit(division));
+    }
+
+    @Override
+    public Expression visit(Exp exp) {
+        return share(exp, () -> super.visit(exp));
+    }
+
+    @Override
+    public Expression visit(Faculty faculty) {
+        return share(faculty, () -> super.visit(faculty));
+    }
+
+    @Override
+    public Expression visit(Ln ln) {
+        return share(ln, () -> super.visit(ln));
+    }
+
+    @Override
+    public Expression visit(Multiplication multiplication) {
+        return share(multiplication, () -> super.visit(multiplication));
+    }
+
+    @Override
+    public Expression visit(Neg neg) {
+        return share(neg, () -> super.visit(neg));
+    }
+
+    @Override
+    public Expression visit(Parameter parameter) {
+        if (parameter.getIndexExpression() == null) {
+            return parameter;
+        }
+        return share(parameter, () -> super.visit(parameter));
+    }
+
+    @Override
+    public Expression visit(Power power) {
+        return share(power, () -> super.visit(power));
+    }
+
+    @Override
+    public Expression visit(Round round) {
+        return share(round, () -> super.visit(round));
+    }
+
+    @Override
+    public Expression visit(Sin sin) {
+        return share(sin, () -> super.visit(sin));
+    }
+
+    @Override
+    public Expression visit(Sinh sinh) {
+        return share(sinh, () -> super.visit(sinh));
+    }
+
+    @Override
+    public Expression visit(Sqrt sqrt) {
+        return share(sqrt, () -> super.visit(sqrt));
+    }
+
+    @Override
+    public Expression visit(Subtraction subtraction) {
+        return share(subtraction, () -> super.visit(subtraction));
+    }
+
+    @Override
+    public Expression visit(Tan tan) {
+        return share(tan, () -> super.visit(tan));
+    }
+
+    @Override
+    public Expression visit(Tanh tanh) {
+        return share(tanh, () -> super.visit(tanh));
+    }
+
+    @Override
+    public Expression visit(Variable variable) {
+        if (variable.getIndexExpression() == null) {
+            return variable;
+        }
+        return share(variable, () -> super.visit(variable));
+    }
+
+    /**
+     * The largest index of a shared value in the AST, or -1.
+     */
+    static class SharedIndexes extends BaseVisitor {
+
+        private int max = -1;
+
+        static int max(ASTElement element) {
+            SharedIndexes sharedIndexes = new SharedIndexes();
+            element.accept(sharedIndexes);
+            return sharedIndexes.max;
+        }
+
+        @Override
+        public <T> T visit(SharedExpression sharedExpression) {
+            max = Math.max(max, sharedExpression.getIndex());
+            return super.visit(sharedExpression);
+        }
+
+        @Override
+        public <T> T visit(FusedLoop fusedLoop) {
+            fusedLoop.getIndexes().forEach(index -> max = Math.max(max, index));
+            return super.visit(fusedLoop);
+        }
+
+        @Override
+        public <T> T visit(SharedVar sharedVar) {
+            // The value of a recurrence is used by shared variables only
+            max = Math.max(max, sharedVar.getIndex());
+            return super.visit(sharedVar);
+        }
+
+    }
+
+}
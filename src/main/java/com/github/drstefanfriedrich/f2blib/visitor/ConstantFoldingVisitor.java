@@ -0,0 +1,397 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.apache.commons.math3.analysis.function.Acosh;
+import org.apache.commons.math3.analysis.function.Asinh;
+import org.apache.commons.math3.analysis.function.Atanh;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntBinaryOperator;
+
+import static org.apache.commons.math3.util.CombinatoricsUtils.binomialCoefficient;
+import static org.apache.commons.math3.util.CombinatoricsUtils.factorial;
+
+/**
+ * Folds constant subtrees and applies algebraic identities, before bytecode is
+ * generated. The folded values are computed exactly like the bytecode generated
+ * by {@link BytecodeVisitorImpl} computes them: int subtrees with int arithmetic
+ * (including overflow and the truncation of <code>binomial</code>,
+ * <code>fac</code>, <code>round</code> and int powers), double subtrees with the
+ * same methods of {@link Math} and Commons Math which the generated code calls.
+ * So the optimized function returns the same results bit for bit.
+ * <p>
+ * An identity is only applied if it holds for all IEEE 754 values, and if it
+ * does not change the type (int or double) of the expression:
+ * <ul>
+ * <li><code>x*1</code>, <code>1*x</code>, <code>x/1</code>, <code>x^1</code>,
+ * <code>x-0</code> and <code>--x</code> are replaced by <code>x</code>;</li>
+ * <li><code>x+0</code> is only replaced for int expressions, because
+ * <code>-0.0 + 0.0</code> is <code>+0.0</code>;</li>
+ * <li>parentheses and unary plus are removed.</li>
+ * </ul>
+ * A constant subtree whose evaluation throws, e.g. <code>binomial(2, 3)</code>,
+ * is not folded, so it still throws when the function is evaluated.
+ */
+public class ConstantFoldingVisitor extends TransformationVisitor {
+
+    private static final Asinh ARSINH = new Asinh();
+
+    private static final Acosh ARCOSH = new Acosh();
+
+    private static final Atanh ARTANH = new Atanh();
+
+    private static boolean isConstant(Expression expression) {
+        return expression instanceof Int || expression instanceof Doub || expression instanceof Constant;
+    }
+
+    private static boolean isOne(Expression expression) {
+        return expression instanceof Int && ((Int) expression).getValue() == 1
+                || expression instanceof Doub && ((Doub) expression).getValue() == 1d;
+    }
+
+    /**
+     * Only <code>+0.0</code> is zero here, so that <code>x-0</code> holds for
+     * <code>x = -0.0</code>.
+     */
+    private static boolean isZero(Expression expression) {
+        return expression instanceof Int && ((Int) expression).getValue() == 0
+                || expression instanceof Doub
+                && Double.doubleToRawLongBits(((Doub) expression).getValue()) == 0L;
+    }
+
+    private static int intValue(Expression expression) {
+        return ((Int) expression).getValue();
+    }
+
+    private static double doubleValue(Expression expression) {
+        if (expression instanceof Int) {
+            return ((Int) expression).getValue();
+        } else if (expression instanceof Doub) {
+            return ((Doub) expression).getValue();
+        } else {
+            return constantValue((Constant) expression);
+        }
+    }
+
+    /**
+     * The values pushed by {@link BytecodeVisitorImpl#visit(Constant)}.
+     */
+    private static double constantValue(Constant constant) {
+        switch (constant) {
+            case PI:
+                return Math.PI;
+            case E:
+                return Math.E;
+            default:
+                return 1.38064852e-23;
+        }
+    }
+
+    /**
+     * Replaces <code>element</code> by <code>replacement</code> only if both have
+     * the same type, otherwise the surrounding code would change.
+     */
+    private static Expression replaceIfSameType(Expression element, Expression replacement) {
+        return element.evaluatesToDouble() == replacement.evaluatesToDouble() ? replacement : element;
+    }
+
+    private static Expression foldUnary(Expression element, Expression operand, DoubleUnaryOperator operator) {
+        if (isConstant(operand)) {
+            return new Doub(operator.applyAsDouble(doubleValue(operand)));
+        }
+        return element;
+    }
+
+    private static Expression foldSpecialUnary(Expression element, Expression operand, UnivariateFunction function) {
+        if (isConstant(operand)) {
+            try {
+                return new Doub(function.value(doubleValue(operand)));
+            } catch (RuntimeException e) {
+                return element;
+            }
+        }
+        return element;
+    }
+
+    private static Expression foldBinary(Expression element, Expression left, Expression right,
+                                         IntBinaryOperator intOperator, DoubleBinaryOperator doubleOperator) {
+
+        if (!isConstant(left) || !isConstant(right)) {
+            return element;
+        }
+
+        if (!element.evaluatesToDouble()) {
+            return new Int(intOperator.applyAsInt(intValue(left), intValue(right)));
+        }
+
+        return new Doub(doubleOperator.applyAsDouble(doubleValue(left), doubleValue(right)));
+    }
+
+    @Override
+    public Expression visit(Abs abs) {
+        Expression operand = abs.acceptExpression(this);
+        return foldUnary(new Abs(operand), operand, Math::abs);
+    }
+
+    @Override
+    public Expression visit(Arccos arccos) {
+        Expression operand = arccos.acceptExpression(this);
+        return foldUnary(new Arccos(operand), operand, Math::acos);
+    }
+
+    @Override
+    public Expression visit(Arcosh arcosh) {
+        Expression operand = arcosh.acceptExpression(this);
+        return foldSpecialUnary(new Arcosh(operand), operand, ARCOSH);
+    }
+
+    @Override
+    public Expression visit(Arcsin arcsin) {
+        Expression operand = arcsin.acceptExpression(this);
+        return foldUnary(new Arcsin(operand), operand, Math::asin);
+    }
+
+    @Override
+    public Expression visit(Arctan arctan) {
+        Expression operand = arctan.acceptExpression(this);
+        return foldUnary(new Arctan(operand), operand, Math::atan);
+    }
+
+    @Override
+    public Expression visit(Arsinh arsinh) {
+        Expression operand = arsinh.acceptExpression(this);
+        return foldSpecialUnary(new Arsinh(operand), operand, ARSINH);
+    }
+
+    @Override
+    public Expression visit(Artanh artanh) {
+        Expression operand = artanh.acceptExpression(this);
+        return foldSpecialUnary(new Artanh(operand), operand, ARTANH);
+    }
+
+    @Override
+    public Expression visit(Cos cos) {
+        Expression operand = cos.acceptExpression(this);
+        return foldUnary(new Cos(operand), operand, Math::cos);
+    }
+
+    @Override
+    public Expression visit(Cosh cosh) {
+        Expression operand = cosh.acceptExpression(this);
+        return foldUnary(new Cosh(operand), operand, Math::cosh);
+    }
+
+    @Override
+    public Expression visit(Exp exp) {
+        Expression operand = exp.acceptExpression(this);
+        return foldUnary(new Exp(operand), operand, Math::exp);
+    }
+
+    @Override
+    public Expression visit(Ln ln) {
+        Expression operand = ln.acceptExpression(this);
+        return foldUnary(new Ln(operand), operand, Math::log);
+    }
+
+    @Override
+    public Expression visit(Sin sin) {
+        Expression operand = sin.acceptExpression(this);
+        return foldUnary(new Sin(operand), operand, Math::sin);
+    }
+
+    @Override
+    public Expression visit(Sinh sinh) {
+        Expression operand = sinh.acceptExpression(this);
+        return foldUnary(new Sinh(operand), operand, Math::sinh);
+    }
+
+    @Override
+    public Expression visit(Sqrt sqrt) {
+        Expression operand = sqrt.acceptExpression(this);
+        return foldUnary(new Sqrt(operand), operand, Math::sqrt);
+    }
+
+    @Override
+    public Expression visit(Tan tan) {
+        Expression operand = tan.acceptExpression(this);
+        return foldUnary(new Tan(operand), operand, Math::tan);
+    }
+
+    @Override
+    public Expression visit(Tanh tanh) {
+        Expression operand = tanh.acceptExpression(this);
+        return foldUnary(new Tanh(operand), operand, Math::tanh);
+    }
+
+    @Override
+    public Expression visit(Round round) {
+
+        Expression operand = round.acceptExpression(this);
+
+        if (isConstant(operand)) {
+            return new Int((int) Math.round(doubleValue(operand)));
+        }
+
+        return new Round(operand);
+    }
+
+    @Override
+    public Expression visit(Neg neg) {
+
+        Expression operand = neg.acceptExpression(this);
+
+        if (operand instanceof Neg) {
+            return ((Neg) operand).acceptExpression(new TransformationVisitor());
+        }
+
+        if (operand instanceof Int) {
+            return new Int(-intValue(operand));
+        }
+
+        if (isConstant(operand)) {
+            return new Doub(-doubleValue(operand));
+        }
+
+        return new Neg(operand);
+    }
+
+    @Override
+    public Expression visit(Pos pos) {
+        return pos.acceptExpression(this);
+    }
+
+    @Override
+    public Expression visit(Parenthesis parenthesis) {
+        return parenthesis.acceptExpression(this);
+    }
+
+    @Override
+    public Expression visit(Addition addition) {
+
+        Expression left = addition.acceptLeft(this);
+        Expression right = addition.acceptRight(this);
+        Expression element = new Addition(left, right);
+
+        if (!element.evaluatesToDouble()) {
+            if (isZero(right)) {
+                return left;
+            }
+            if (isZero(left)) {
+                return right;
+            }
+        }
+
+        return foldBinary(element, left, right, (a, b) -> a + b, (a, b) -> a + b);
+    }
+
+    @Override
+    public Expression visit(Subtraction subtraction) {
+
+        Expression left = subtraction.acceptLeft(this);
+        Expression right = subtraction.acceptRight(this);
+        Expression element = new Subtraction(left, right);
+
+        if (isZero(right)) {
+            return replaceIfSameType(element, left);
+        }
+
+        return foldBinary(element, left, right, (a, b) -> a - b, (a, b) -> a - b);
+    }
+
+    @Override
+    public Expression visit(Multiplication multiplication) {
+
+        Expression left = multiplication.acceptLeft(this);
+        Expression right = multiplication.acceptRight(this);
+        Expression element = new Multiplication(left, right);
+
+        if (isOne(right) && !isConstant(left)) {
+            return replaceIfSameType(element, left);
+        }
+        if (isOne(left) && !isConstant(right)) {
+            return replaceIfSameType(element, right);
+        }
+
+        return foldBinary(element, left, right, (a, b) -> a * b, (a, b) -> a * b);
+    }
+
+    @Override
+    public Expression visit(Division division) {
+
+        Expression left = division.acceptLeft(this);
+        Expression right = division.acceptRight(this);
+        Expression element = new Division(left, right);
+
+        if (isOne(right) && !isConstant(left)) {
+            return replaceIfSameType(element, left);
+        }
+
+        if (isConstant(left) && isConstant(right)) {
+            return new Doub(doubleValue(left) / doubleValue(right));
+        }
+
+        return element;
+    }
+
+    @Override
+    public Expression visit(Power power) {
+
+        Expression left = power.acceptLeft(this);
+        Expression right = power.acceptRight(this);
+        Expression element = new Power(left, right);
+
+        if (isOne(right) && !isConstant(left)) {
+            return replaceIfSameType(element, left);
+        }
+
+        return foldBinary(element, left, right, (a, b) -> (int) Math.pow(a, b), Math::pow);
+    }
+
+    @Override
+    public Expression visit(Binomial binomial) {
+
+        Expression n = binomial.acceptN(this);
+        Expression k = binomial.acceptK(this);
+
+        if (n instanceof Int && k instanceof Int) {
+            try {
+                return new Int((int) binomialCoefficient(intValue(n), intValue(k)));
+            } catch (RuntimeException e) {
+                // Not folded, so the evaluation still throws
+            }
+        }
+
+        return new Binomial(asIntExpression(n), asIntExpression(k));
+    }
+
+    @Override
+    public Expression visit(Faculty faculty) {
+
+        Expression n = faculty.acceptExpression(this);
+
+        if (n instanceof Int) {
+            try {
+                return new Int((int) factorial(intValue(n)));
+            } catch (RuntimeException e) {
+                // Not folded, so the evaluation still throws
+            }
+        }
+
+        return new Faculty(asIntExpression(n));
+    }
+
+}
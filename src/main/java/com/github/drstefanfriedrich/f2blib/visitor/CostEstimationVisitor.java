@@ -0,0 +1,419 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A {@link Visitor} that estimates the cost of one evaluation of a function, measured
+ * in (very roughly) simple arithmetic operations. Calls of {@link Math} functions
+ * are much more expensive than an addition, and the bodies of sums, products and
+ * for loops are weighted with the number of iterations. If the number of iterations
+ * is not known at compile time, {@link #UNKNOWN_ITERATIONS} is assumed.
+ * The estimate is used to decide how to split batches of evaluations.
+ */
+public class CostEstimationVisitor implements Visitor {
+
+    static final long UNKNOWN_ITERATIONS = 100;
+
+    private static final long ARITHMETIC = 1;
+
+    private static final long DIVISION = 4;
+
+    private static final long MATH_FUNCTION = 20;
+
+    private static final long SPECIAL_FUNCTION = 30;
+
+    private static final long POWER = 40;
+
+    private static final long COMBINATORICS = 20;
+
+    private long cost;
+
+    public long getCost() {
+        return cost;
+    }
+
+    @Override
+    public Void visit(FunctionDefinition functionDefinition) {
+        cost = functionDefinition.getFunctionBody().accept(this);
+        return null;
+    }
+
+    @Override
+    public Long visit(FunctionBody functionBody) {
+        if (functionBody.isForLoop()) {
+            return functionBody.getForLoop().accept(this);
+        } else {
+            return functionBody.getFunctionsWrapper().accept(this);
+        }
+    }
+
+    @Override
+    public Long visit(FunctionsWrapper functionsWrapper) {
+        long result = 0;
+        for (AuxiliaryVariable auxiliaryVariable : functionsWrapper.getAuxiliaryVariables()) {
+            result = add(result, auxiliaryVariable.accept(this));
+        }
+        for (Function function : functionsWrapper.getFunctions()) {
+            result = add(result, function.accept(this));
+        }
+        Optional<Long> markovShift = functionsWrapper.acceptMarkovShift(this);
+        return add(result, markovShift.orElse(0L));
+    }
+
+    @Override
+    public Long visit(Function function) {
+        return add(ARITHMETIC, function.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(AuxiliaryVariable auxiliaryVariable) {
+        return add(ARITHMETIC, auxiliaryVariable.acceptInner(this));
+    }
+
+    @Override
+    public Long visit(ForLoop forLoop) {
+
+        Integer start = forLoop.acceptStart(new ConstantIntVisitor());
+        Integer end = forLoop.acceptEnd(new ConstantIntVisitor());
+        Integer step = forLoop.acceptStep(new ConstantIntVisitor());
+
+        long iterations = UNKNOWN_ITERATIONS;
+        if (start != null && end != null && step != null && step != 0) {
+            iterations = Math.max(1, ((long) end - start) / step + 1);
+        }
+
+        long bounds = add(add(forLoop.acceptStart(this), forLoop.acceptEnd(this)), forLoop.acceptStep(this));
+        bounds = add(bounds, visitInvariants(forLoop.getInvariants()));
+        return add(bounds, multiply(iterations, add(ARITHMETIC, forLoop.acceptFunctionsWrapper(this))));
+    }
+
+    @Override
+    public Long visit(MarkovShift markovShift) {
+        return add(10 * ARITHMETIC, markovShift.getOffset().accept(this));
+    }
+
+    @Override
+    public Long visit(Sum sum) {
+        return visitSumProduct(sum);
+    }
+
+    @Override
+    public Long visit(Prod prod) {
+        return visitSumProduct(prod);
+    }
+
+    private long visitSumProduct(AbstractSumProduct sumProduct) {
+        return visitLoops(Collections.singletonList(sumProduct));
+    }
+
+    /*
+     * Loops with the same bounds, which are evaluated in one loop
+     */
+    private long visitLoops(List<AbstractSumProduct> loops) {
+
+        AbstractSumProduct first = loops.get(0);
+        Integer start = first.acceptStart(new ConstantIntVisitor());
+        Integer end = first.acceptEnd(new ConstantIntVisitor());
+
+        long iterations = UNKNOWN_ITERATIONS;
+        if (start != null && end != null) {
+            iterations = Math.max(0, (long) end - start + 1);
+        }
+
+        long bounds = add(first.acceptStart(this), first.acceptEnd(this));
+        long iteration = 0;
+        for (AbstractSumProduct sumProduct : loops) {
+            bounds = add(bounds, visitInvariants(sumProduct.getInvariants()));
+            iteration = add(iteration, add(2 * ARITHMETIC, sumProduct.acceptInner(this)));
+            for (Recurrence recurrence : sumProduct.getRecurrences()) {
+                iteration = add(iteration, recurrence.<Long>acceptNext(this));
+            }
+        }
+        return add(bounds, multiply(iterations, iteration));
+    }
+
+    private long visitInvariants(List<SharedExpression> invariants) {
+        long cost = 0;
+        for (SharedExpression invariant : invariants) {
+            cost = add(cost, invariant.accept(this));
+        }
+        return cost;
+    }
+
+    @Override
+    public Long visit(Abs abs) {
+        return add(ARITHMETIC, abs.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Arccos arccos) {
+        return add(MATH_FUNCTION, arccos.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Arcsin arcsin) {
+        return add(MATH_FUNCTION, arcsin.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Arctan arctan) {
+        return add(MATH_FUNCTION, arctan.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Arsinh arsinh) {
+        return add(SPECIAL_FUNCTION, arsinh.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Arcosh arcosh) {
+        return add(SPECIAL_FUNCTION, arcosh.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Artanh artanh) {
+        return add(SPECIAL_FUNCTION, artanh.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Cos cos) {
+        return add(MATH_FUNCTION, cos.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Cosh cosh) {
+        return add(MATH_FUNCTION, cosh.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Exp exp) {
+        return add(MATH_FUNCTION, exp.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Ln ln) {
+        return add(MATH_FUNCTION, ln.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Sin sin) {
+        return add(MATH_FUNCTION, sin.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Sinh sinh) {
+        return add(MATH_FUNCTION, sinh.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Tan tan) {
+        return add(MATH_FUNCTION, tan.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Tanh tanh) {
+        return add(MATH_FUNCTION, tanh.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Sqrt sqrt) {
+        return add(DIVISION, sqrt.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Round round) {
+        return add(2 * ARITHMETIC, round.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Parenthesis parenthesis) {
+        return parenthesis.acceptExpression(this);
+    }
+
+    @Override
+    public Long visit(Neg neg) {
+        return add(ARITHMETIC, neg.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Pos pos) {
+        return pos.acceptExpression(this);
+    }
+
+    @Override
+    public Long visit(Addition addition) {
+        return add(ARITHMETIC, add(addition.acceptLeft(this), addition.acceptRight(this)));
+    }
+
+    @Override
+    public Long visit(Subtraction subtraction) {
+        return add(ARITHMETIC, add(subtraction.acceptLeft(this), subtraction.acceptRight(this)));
+    }
+
+    @Override
+    public Long visit(Multiplication multiplication) {
+        return add(ARITHMETIC, add(multiplication.acceptLeft(this), multiplication.acceptRight(this)));
+    }
+
+    @Override
+    public Long visit(Division division) {
+        return add(DIVISION, add(division.acceptLeft(this), division.acceptRight(this)));
+    }
+
+    @Override
+    public Long visit(Power power) {
+        return add(POWER, add(power.acceptLeft(this), power.acceptRight(this)));
+    }
+
+    @Override
+    public Long visit(Binomial binomial) {
+        return add(COMBINATORICS, add(binomial.acceptN(this), binomial.acceptK(this)));
+    }
+
+    @Override
+    public Long visit(Faculty faculty) {
+        return add(COMBINATORICS, faculty.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(Parameter parameter) {
+        IntExpression indexExpression = parameter.getIndexExpression();
+        return indexExpression == null ? ARITHMETIC : add(ARITHMETIC, indexExpression.accept(this));
+    }
+
+    @Override
+    public Long visit(Variable variable) {
+        IntExpression indexExpression = variable.getIndexExpression();
+        return indexExpression == null ? ARITHMETIC : add(ARITHMETIC, indexExpression.accept(this));
+    }
+
+    @Override
+    public Long visit(Constant constant) {
+        return ARITHMETIC;
+    }
+
+    @Override
+    public Long visit(Int i) {
+        return ARITHMETIC;
+    }
+
+    @Override
+    public Long visit(Doub doub) {
+        return ARITHMETIC;
+    }
+
+    @Override
+    public Long visit(IntVar intVar) {
+        return ARITHMETIC;
+    }
+
+    @Override
+    public Long visit(AuxVar auxVar) {
+        return ARITHMETIC;
+    }
+
+    @Override
+    public Long visit(NoOp noOp) {
+        return 0L;
+    }
+
+    private static long add(long a, long b) {
+        long result = a + b;
+        return result < 0 ? Long.MAX_VALUE : result;
+    }
+
+    private static long multiply(long a, long b) {
+        return a != 0 && b > Long.MAX_VALUE / a ? Long.MAX_VALUE : a * b;
+    }
+
+    /**
+     * Returns the value of an integer constant, and null for all other expressions.
+     */
+    private static class ConstantIntVisitor extends BaseVisitor {
+
+        @Override
+        public Integer visit(Int i) {
+            return i.getValue();
+        }
+
+        @Override
+        public Integer visit(Neg neg) {
+            Integer value = neg.acceptExpression(this);
+            return value == null ? null : -value;
+        }
+
+        @Override
+        public Integer visit(Parenthesis parenthesis) {
+            return parenthesis.acceptExpression(this);
+        }
+
+    }
+
+    @Override
+    public Long visit(SharedExpression sharedExpression) {
+        return add(ARITHMETIC, sharedExpression.acceptExpression(this));
+    }
+
+    @Override
+    public Long visit(SharedVar sharedVar) {
+        return ARITHMETIC;
+    }
+
+    @Override
+    public Long visit(AlternatingSign alternatingSign) {
+        return add(2 * ARITHMETIC, alternatingSign.acceptExpression(this));
+    }
+
+    /**
+     * The first term and the step are evaluated once; the loop, which is the
+     * fallback of a geometric series, is not taken into account.
+     */
+    @Override
+    public Long visit(ClosedFormSum closedFormSum) {
+
+        Sum sum = closedFormSum.getSum();
+
+        long cost = add(sum.acceptStart(this), sum.acceptEnd(this));
+        cost = add(cost, visitInvariants(sum.getInvariants()));
+        for (Recurrence recurrence : sum.getRecurrences()) {
+            cost = add(cost, recurrence.<Long>acceptFirst(this));
+        }
+        cost = add(cost, add(sum.acceptInner(this), closedFormSum.acceptStep(this)));
+
+        return add(cost, closedFormSum.getKind() == ClosedFormSum.Kind.GEOMETRIC ? POWER : 4 * ARITHMETIC);
+    }
+
+    @Override
+    public Long visit(Precomputed precomputed) {
+        return ARITHMETIC;
+    }
+
+    @Override
+    public Long visit(Polynomial polynomial) {
+        Precomputed coefficients = polynomial.getCoefficients();
+        long terms = coefficients.getEnd() - coefficients.getStart() + 1L;
+        return add(polynomial.acceptVariable(this), add(POWER, 3 * ARITHMETIC * terms));
+    }
+
+    @Override
+    public Long visit(FusedLoop fusedLoop) {
+        return visitLoops(fusedLoop.getLoops());
+    }
+
+}
@@ -0,0 +1,120 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.*;
+
+/**
+ * Removes the assignments of auxiliary variables whose values are never used.
+ * A value is used if a function, the Markov shift or the assignment of another
+ * used value reads it before the auxiliary variable is assigned again. The body
+ * of a for loop is evaluated again and again, so a value which is assigned at
+ * the end of the body is also used if the beginning of the body reads it.
+ * <p>
+ * An unused assignment is not evaluated at all, so it does not throw either.
+ * Use {@link #eliminate(FunctionDefinition)} and {@link #unused(FunctionDefinition)}.
+ */
+public class DeadAuxiliaryVariableVisitor extends TransformationVisitor {
+
+    private final Set<String> unused = new LinkedHashSet<>();
+
+    private boolean repeated;
+
+    private DeadAuxiliaryVariableVisitor() {
+    }
+
+    /**
+     * Removes the unused assignments of auxiliary variables of a function.
+     *
+     * @param functionDefinition The function.
+     * @return The function without unused assignments.
+     */
+    public static FunctionDefinition eliminate(FunctionDefinition functionDefinition) {
+        return functionDefinition.accept(new DeadAuxiliaryVariableVisitor());
+    }
+
+    /**
+     * The auxiliary variables of a function with at least one unused assignment,
+     * in the order of their first unused assignment.
+     *
+     * @param functionDefinition The function.
+     * @return The names of the auxiliary variables.
+     */
+    public static List<String> unused(FunctionDefinition functionDefinition) {
+        DeadAuxiliaryVariableVisitor visitor = new DeadAuxiliaryVariableVisitor();
+        functionDefinition.accept(visitor);
+        return new ArrayList<>(visitor.unused);
+    }
+
+    @Override
+    public ForLoop visit(ForLoop forLoop) {
+        repeated = true;
+        return super.visit(forLoop);
+    }
+
+    @Override
+    public FunctionsWrapper visit(FunctionsWrapper functionsWrapper) {
+
+        List<AuxiliaryVariable> auxiliaryVariables = functionsWrapper.getAuxiliaryVariables();
+
+        References references = new References();
+        functionsWrapper.getFunctions().forEach(function -> function.acceptExpression(references));
+        functionsWrapper.acceptMarkovShift(references);
+
+        boolean[] used = new boolean[auxiliaryVariables.size()];
+        Set<String> usedAfterwards = new HashSet<>(references.auxVars);
+        Set<String> usedBefore = used(auxiliaryVariables, usedAfterwards, used);
+
+        // The next iteration starts with the values of the previous one
+        while (repeated && usedAfterwards.addAll(usedBefore)) {
+            usedBefore = used(auxiliaryVariables, usedAfterwards, used);
+        }
+
+        List<AuxiliaryVariable> transformed = new ArrayList<>();
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                transformed.add(auxiliaryVariables.get(i));
+            } else {
+                unused.add(auxiliaryVariables.get(i).getAuxVar().getVariableName());
+            }
+        }
+
+        Optional<MarkovShift> markovShift = functionsWrapper.acceptMarkovShift(this);
+
+        return new FunctionsWrapper(transformed, functionsWrapper.getFunctions(), markovShift.orElse(null));
+    }
+
+    /**
+     * Marks the used assignments, from the last to the first one.
+     *
+     * @return The auxiliary variables which are read before they are assigned.
+     */
+    private static Set<String> used(List<AuxiliaryVariable> auxiliaryVariables, Set<String> usedAfterwards,
+                                    boolean[] used) {
+
+        Set<String> read = new HashSet<>(usedAfterwards);
+
+        for (int i = auxiliaryVariables.size() - 1; i >= 0; i--) {
+            AuxiliaryVariable auxiliaryVariable = auxiliaryVariables.get(i);
+            used[i] = read.remove(auxiliaryVariable.getAuxVar().getVariableName());
+            if (used[i]) {
+                read.addAll(References.of(auxiliaryVariable.getInner()).auxVars);
+            }
+        }
+
+        return read;
+    }
+
+}
@@ -0,0 +1,63 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.Expression;
+
+/**
+ * What the value of an expression depends on. An expression is classified by
+ * its strongest dependency; the classes are ordered from the weakest to the
+ * strongest one.
+ */
+enum Dependency {
+
+    /**
+     * The value is the same in every evaluation of the function.
+     */
+    CONSTANT,
+
+    /**
+     * The value depends on the integer variables of enclosing sums, products or
+     * for loops only.
+     */
+    LOOP_INDEX,
+
+    /**
+     * The value depends on <code>p</code>, and maybe on integer variables, but not
+     * on <code>x</code>.
+     */
+    PARAMETER,
+
+    /**
+     * The value depends on <code>x</code>, on an auxiliary variable, or on a
+     * value which is kept in a local variable of the generated code.
+     */
+    VARIABLE;
+
+    static Dependency of(Expression expression) {
+
+        References references = References.of(expression);
+
+        if (references.variables || !references.auxVars.isEmpty() || references.sharedVars) {
+            return VARIABLE;
+        }
+        if (references.parameters) {
+            return PARAMETER;
+        }
+        if (!references.freeIntVars().isEmpty()) {
+            return LOOP_INDEX;
+        }
+        return CONSTANT;
+    }
+
+}
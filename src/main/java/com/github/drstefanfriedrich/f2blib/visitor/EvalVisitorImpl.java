@@ -14,11 +14,13 @@ package com.github.drstefanfriedrich.f2blib.visitor;
 
 import com.github.drstefanfriedrich.f2blib.ast.*;
 import com.github.drstefanfriedrich.f2blib.exception.BytecodeGenerationException;
+import com.github.drstefanfriedrich.f2blib.impl.Series;
 import org.apache.commons.math3.analysis.function.Acosh;
 import org.apache.commons.math3.analysis.function.Asinh;
 import org.apache.commons.math3.analysis.function.Atanh;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static java.lang.String.format;
@@ -53,6 +55,11 @@ public class EvalVisitorImpl extends BaseVisitor {
      */
     private final Map<AuxVar, Double> auxVariable2Value = new HashMap<>();
 
+    /*
+     * Maps the index of each common subexpression to its value
+     */
+    private final Map<Integer, Double> sharedVariable2Value = new HashMap<>();
+
     public EvalVisitorImpl(double[] x, double[] p, int lengthResultArray) {
         this.x = x;
         this.p = p;
@@ -190,6 +197,8 @@ public class EvalVisitorImpl extends BaseVisitor {
         int end = endNumber.intValue();
         int step = stepNumber.intValue();
 
+        forLoop.getInvariants().forEach(invariant -> invariant.accept(this));
+
         if (step == 0) {
 
             if (start != end) {
@@ -394,8 +403,15 @@ public class EvalVisitorImpl extends BaseVisitor {
             return tmp;
         }
 
+        sum.getInvariants().forEach(invariant -> invariant.accept(this));
+
         for (int i = start; i <= end; i++) {
             intVariable2Value.put(intVar, i);
+            for (Recurrence recurrence : sum.getRecurrences()) {
+                Double value = i == start || i < recurrence.getFrom() ? recurrence.acceptFirst(this) :
+                        recurrence.acceptNext(this);
+                sharedVariable2Value.put(recurrence.getIndex(), value);
+            }
             Number res = sum.acceptInner(this);
             tmp += res.doubleValue();
         }
@@ -420,8 +436,15 @@ public class EvalVisitorImpl extends BaseVisitor {
             return tmp;
         }
 
+        prod.getInvariants().forEach(invariant -> invariant.accept(this));
+
         for (int i = start; i <= end; i++) {
             intVariable2Value.put(intVar, i);
+            for (Recurrence recurrence : prod.getRecurrences()) {
+                Double value = i == start || i < recurrence.getFrom() ? recurrence.acceptFirst(this) :
+                        recurrence.acceptNext(this);
+                sharedVariable2Value.put(recurrence.getIndex(), value);
+            }
             Number res = prod.acceptInner(this);
             tmp *= res.doubleValue();
         }
@@ -430,4 +453,137 @@ public class EvalVisitorImpl extends BaseVisitor {
         return tmp;
     }
 
+    @Override
+    public Double visit(SharedExpression sharedExpression) {
+        Double res = sharedExpression.acceptExpression(this);
+        sharedVariable2Value.put(sharedExpression.getIndex(), res);
+        return res;
+    }
+
+    @Override
+    public Double visit(SharedVar sharedVar) {
+        return sharedVariable2Value.get(sharedVar.getIndex());
+    }
+
+    @Override
+    public Double visit(AlternatingSign alternatingSign) {
+        Number exponent = alternatingSign.acceptExpression(this);
+        return (exponent.intValue() & 1) == 0 ? 1d : -1d;
+    }
+
+    @Override
+    public Double visit(ClosedFormSum closedFormSum) {
+
+        Sum sum = closedFormSum.getSum();
+        IntVar intVar = new IntVar(sum.getVariableName());
+
+        Number startNumber = sum.acceptStart(this);
+        Number endNumber = sum.acceptEnd(this);
+
+        int start = startNumber.intValue();
+        int end = endNumber.intValue();
+
+        if (start > end) {
+            return 0d;
+        }
+
+        long n = (long) end - start + 1;
+        double first;
+        double step;
+
+        if (closedFormSum.getKind() == ClosedFormSum.Kind.GEOMETRIC) {
+            step = closedFormSum.<Number>acceptStep(this).doubleValue();
+            if (step == 1) {
+                return sum.accept(this);
+            }
+            first = firstTerm(sum, intVar, start);
+            return finiteOrLoop(first * Series.geometric(step, n), sum);
+        }
+
+        first = firstTerm(sum, intVar, start);
+        step = closedFormSum.<Number>acceptStep(this).doubleValue();
+
+        return finiteOrLoop(n * first + step * ((n * (n - 1)) >>> 1), sum);
+    }
+
+    /**
+     * Like the generated code, the loop is evaluated if the closed form is not
+     * finite, and -0 is turned into 0.
+     */
+    private double finiteOrLoop(double closed, Sum sum) {
+        return Double.isFinite(closed) ? closed + 0d : sum.<Number>accept(this).doubleValue();
+    }
+
+    private double firstTerm(Sum sum, IntVar intVar, int start) {
+
+        sum.getInvariants().forEach(invariant -> invariant.accept(this));
+
+        intVariable2Value.put(intVar, start);
+        for (Recurrence recurrence : sum.getRecurrences()) {
+            sharedVariable2Value.put(recurrence.getIndex(), recurrence.acceptFirst(this));
+        }
+        Number first = sum.acceptInner(this);
+        intVariable2Value.remove(intVar);
+
+        return first.doubleValue();
+    }
+
+    @Override
+    public Double visit(Precomputed precomputed) {
+        return precomputed.acceptExpression(this);
+    }
+
+    @Override
+    public Double visit(Polynomial polynomial) {
+        return polynomial.getSum().accept(this);
+    }
+
+    @Override
+    public Double visit(FusedLoop fusedLoop) {
+
+        List<AbstractSumProduct> loops = fusedLoop.getLoops();
+        double[] tmp = new double[loops.size()];
+        for (int j = 0; j < tmp.length; j++) {
+            tmp[j] = loops.get(j) instanceof Prod ? 1 : 0;
+        }
+        IntVar intVar = new IntVar(fusedLoop.getVariableName());
+
+        Number startNumber = fusedLoop.acceptStart(this);
+        Number endNumber = fusedLoop.acceptEnd(this);
+
+        int start = startNumber.intValue();
+        int end = endNumber.intValue();
+
+        if (start <= end) {
+
+            loops.forEach(loop -> loop.getInvariants().forEach(invariant -> invariant.accept(this)));
+
+            for (int i = start; i <= end; i++) {
+                intVariable2Value.put(intVar, i);
+                for (AbstractSumProduct loop : loops) {
+                    for (Recurrence recurrence : loop.getRecurrences()) {
+                        Double value = i == start || i < recurrence.getFrom() ? recurrence.acceptFirst(this) :
+                                recurrence.acceptNext(this);
+                        sharedVariable2Value.put(recurrence.getIndex(), value);
+                    }
+                }
+                for (int j = 0; j < tmp.length; j++) {
+                    Number res = loops.get(j).acceptInner(this);
+                    if (loops.get(j) instanceof Prod) {
+                        tmp[j] *= res.doubleValue();
+                    } else {
+                        tmp[j] += res.doubleValue();
+                    }
+                }
+            }
+            intVariable2Value.remove(intVar);
+        }
+
+        for (int j = 0; j < tmp.length; j++) {
+            sharedVariable2Value.put(fusedLoop.getIndexes().get(j), tmp[j]);
+        }
+
+        return tmp[0];
+    }
+
 }
@@ -15,4 +15,26 @@ public interface FunctionEvaluationValidator {
      */
     void validate(double[] p, double[] x, double[] y);
 
+    /**
+     * Validate a function evaluation with arguments of the given sizes. Useful if
+     * the arguments are rows of larger arrays.
+     *
+     * @param sizeP The number of parameters.
+     * @param sizeX The number of variables.
+     * @param sizeY The number of results.
+     * @throws IllegalArgumentException If the function invocation is illegal.
+     */
+    default void validate(int sizeP, int sizeX, int sizeY) {
+        validate(new double[sizeP], new double[sizeX], new double[sizeY]);
+    }
+
+    /**
+     * The size of the result vector y, if it is known.
+     *
+     * @return The size of y, or -1 if it is unknown.
+     */
+    default int getSizeY() {
+        return -1;
+    }
+
 }
@@ -14,7 +14,7 @@ package com.github.drstefanfriedrich.f2blib.visitor;
 
 import static java.lang.String.format;
 
-class FunctionEvaluationValidatorImpl implements FunctionEvaluationValidator {
+public class FunctionEvaluationValidatorImpl implements FunctionEvaluationValidator {
 
     private final int sizeP;
     private final int sizeX;
@@ -33,10 +33,32 @@ class FunctionEvaluationValidatorImpl implements FunctionEvaluationValidator {
 
     @Override
     public void validate(double[] p, double[] x, double[] y) {
+        validate(p.length, x.length, y.length);
+    }
+
+    public int getSizeP() {
+        return sizeP;
+    }
 
-        int actualP = p.length;
-        int actualX = x.length;
-        int actualY = y.length;
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    @Override
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public boolean isAtLeastOneParameterIsIntExpression() {
+        return atLeastOneParameterIsIntExpression;
+    }
+
+    public boolean isAtLeastOneVariableIsIntExpression() {
+        return atLeastOneVariableIsIntExpression;
+    }
+
+    @Override
+    public void validate(int actualP, int actualX, int actualY) {
 
         if (sizeP != -1 && sizeP > actualP && !atLeastOneParameterIsIntExpression) {
             throw new IllegalArgumentException(format("p must have at least size %d, but was %d", sizeP, actualP));
@@ -0,0 +1,217 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Evaluates polynomials by the Horner scheme ({@link Polynomial}). A sum over
+ * <code>k</code> with constant bounds is a polynomial, if its inner expression
+ * is a product <code>c_k * v^(k + offset)</code>: <code>v</code> does not depend
+ * on <code>k</code>, and the coefficient <code>c_k</code> is a product or
+ * quotient of factors which depend on <code>k</code> only, like in
+ * <code>sum(binomial(20, k) * (-1)^k / k! * x_1^k, k, 0, 20)</code>. The
+ * coefficients are computed into a table when the class is initialized, so
+ * each term costs one multiplication and one addition.
+ * <p>
+ * Coefficients which depend on <code>p</code> are not supported, since
+ * <code>p</code> may change from one evaluation to the next. If the coefficients
+ * do not depend on <code>k</code> either, the sum is left to
+ * {@link ClosedFormSumVisitor}. The Horner scheme rounds differently than the
+ * sum, so the results may differ in the last few bits. It also overflows
+ * differently: if its result is infinite or NaN, the sum is evaluated instead,
+ * like in <code>sum(k * x_1^k, k, 0, 3)</code> with <code>x_1 = -1e300</code>,
+ * where the terms are infinite with alternating signs, and the sum is NaN. The
+ * other way round, where a term overflows but the Horner scheme does not, the
+ * result of the Horner scheme is kept. Use {@link #rewrite(FunctionDefinition)}.
+ */
+public class HornerVisitor extends TransformationVisitor {
+
+    /*
+     * The Horner scheme does not pay off for fewer terms
+     */
+    private static final int MIN_TERMS = 3;
+
+    private static final TransformationVisitor COPY = new TransformationVisitor();
+
+    /*
+     * Replaces precomputed expressions by the expressions themselves
+     */
+    private static final TransformationVisitor UNWRAP = new TransformationVisitor() {
+        @Override
+        public Expression visit(Precomputed precomputed) {
+            return precomputed.acceptExpression(this);
+        }
+    };
+
+    private int nextIndex;
+
+    private HornerVisitor(int firstIndex) {
+        this.nextIndex = firstIndex;
+    }
+
+    /**
+     * Replaces the polynomial sums of a function by the Horner scheme.
+     *
+     * @param functionDefinition The function.
+     * @return The function with the polynomials.
+     */
+    public static FunctionDefinition rewrite(FunctionDefinition functionDefinition) {
+        int firstIndex = 1 + PrecomputationVisitor.PrecomputedIndexes.max(functionDefinition);
+        return functionDefinition.accept(new HornerVisitor(firstIndex));
+    }
+
+    @Override
+    public Expression visit(Sum sum) {
+
+        Sum transformed = (Sum) super.visit(sum);
+
+        Expression start = transformed.acceptStart(COPY);
+        Expression end = transformed.acceptEnd(COPY);
+
+        if (!transformed.getInvariants().isEmpty() || !transformed.getRecurrences().isEmpty() ||
+                !(start instanceof Int) || !(end instanceof Int)) {
+            return transformed;
+        }
+
+        long terms = (long) ((Int) end).getValue() - ((Int) start).getValue() + 1;
+        if (terms < MIN_TERMS || terms > PrecomputationVisitor.MAX_TABLE_SIZE) {
+            return transformed;
+        }
+
+        String variableName = sum.getVariableName();
+        Term term = new Term();
+        term.collect(transformed.acceptInner(COPY), false);
+
+        Power power = term.power(variableName);
+        if (power == null) {
+            return transformed;
+        }
+
+        Expression coefficient = term.coefficient(power, variableName);
+        if (coefficient == null) {
+            return transformed;
+        }
+
+        Precomputed coefficients = new Precomputed(nextIndex++, coefficient.accept(UNWRAP), variableName,
+                ((Int) start).getValue(), ((Int) end).getValue());
+        if (!PrecomputationVisitor.isComputable(new Sum(coefficients.acceptExpression(COPY), variableName,
+                new Int(coefficients.getStart()), new Int(coefficients.getEnd())))) {
+            return transformed;
+        }
+
+        int offset = Affine.of(unwrap(power.acceptRight(COPY))).getOffset();
+
+        return new Polynomial(transformed, coefficients, power.acceptLeft(COPY), offset);
+    }
+
+    private static Expression unwrap(Expression expression) {
+        while (expression instanceof Parenthesis) {
+            expression = ((Parenthesis) expression).acceptExpression(COPY);
+        }
+        return expression;
+    }
+
+    /**
+     * The factors of a term, as in <code>(-1)^negative * numerator / denominator</code>.
+     */
+    private static class Term {
+
+        private final List<Expression> numerator = new ArrayList<>();
+
+        private final List<Expression> denominator = new ArrayList<>();
+
+        private boolean negative;
+
+        void collect(Expression expression, boolean inverted) {
+
+            if (expression instanceof Parenthesis || expression instanceof Pos) {
+                collect(((UnaryExpression) expression).acceptExpression(COPY), inverted);
+            } else if (expression instanceof Neg) {
+                negative = !negative;
+                collect(((Neg) expression).acceptExpression(COPY), inverted);
+            } else if (expression instanceof Multiplication) {
+                collect(((Multiplication) expression).acceptLeft(COPY), inverted);
+                collect(((Multiplication) expression).acceptRight(COPY), inverted);
+            } else if (expression instanceof Division) {
+                collect(((Division) expression).acceptLeft(COPY), inverted);
+                collect(((Division) expression).acceptRight(COPY), !inverted);
+            } else if (inverted) {
+                denominator.add(expression);
+            } else {
+                numerator.add(expression);
+            }
+        }
+
+        /**
+         * @return The only factor <code>v^(k + offset)</code>, or null.
+         */
+        Power power(String variableName) {
+
+            Power result = null;
+
+            for (Expression factor : numerator) {
+                if (!(factor instanceof Power)) {
+                    continue;
+                }
+                Power power = (Power) factor;
+                Affine exponent = Affine.of(unwrap(power.acceptRight(COPY)));
+                Expression base = power.acceptLeft(COPY);
+                if (exponent != null && exponent.getVariableName().equals(variableName) &&
+                        !References.of(base).intVars.contains(variableName) &&
+                        Dependency.of(base).compareTo(Dependency.PARAMETER) >= 0) {
+                    if (result != null) {
+                        return null;
+                    }
+                    result = power;
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * @return The product of all factors but the power, or null, if they do
+         * not depend on the variable only.
+         */
+        Expression coefficient(Power power, String variableName) {
+
+            Expression coefficient = null;
+
+            for (Expression factor : numerator) {
+                if (factor != power) {
+                    coefficient = coefficient == null ? factor : new Multiplication(coefficient, factor);
+                }
+            }
+            for (Expression factor : denominator) {
+                coefficient = new Division(coefficient == null ? new Doub(1d) : coefficient, factor);
+            }
+            if (coefficient == null) {
+                return null;
+            }
+
+            if (Dependency.of(coefficient) != Dependency.LOOP_INDEX ||
+                    !References.of(coefficient).freeIntVars().equals(Collections.singleton(variableName))) {
+                return null;
+            }
+
+            return negative ? new Neg(coefficient) : coefficient;
+        }
+
+    }
+
+}
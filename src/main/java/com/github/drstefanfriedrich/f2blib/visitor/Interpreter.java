@@ -0,0 +1,113 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates a function with the same results as {@link EvalVisitorImpl}, but
+ * without walking the abstract syntax tree on every evaluation. The tree is
+ * translated once into a tree of nodes which return primitive doubles, and the
+ * loop variables, auxiliary variables and common subexpressions are resolved to
+ * the slots of a frame. Every thread reuses its own frame, and the functions are
+ * written straight into y, so an evaluation does not allocate any memory.
+ */
+public final class Interpreter {
+
+    /**
+     * The state of one evaluation.
+     */
+    static final class Frame {
+
+        double[] p;
+
+        double[] x;
+
+        double[] y;
+
+        final double[] slots;
+
+        Frame(int size) {
+            this.slots = new double[size];
+        }
+
+    }
+
+    /**
+     * An expression.
+     */
+    @FunctionalInterface
+    interface Node {
+        double eval(Frame frame);
+    }
+
+    /**
+     * The assignment of an auxiliary variable or a function, a Markov shift or a
+     * sequence of these.
+     */
+    @FunctionalInterface
+    interface Statement {
+        void execute(Frame frame);
+    }
+
+    private final Statement body;
+
+    private final ThreadLocal<Frame> frames;
+
+    private Interpreter(Statement body, int slots) {
+        this.body = body;
+        this.frames = ThreadLocal.withInitial(() -> new Frame(slots));
+    }
+
+    /**
+     * Translates a function.
+     *
+     * @param functionDefinition The function.
+     * @return The interpreter of the function.
+     */
+    public static Interpreter of(FunctionDefinition functionDefinition) {
+        InterpreterVisitor interpreterVisitor = new InterpreterVisitor();
+        Statement body = functionDefinition.accept(interpreterVisitor);
+        return new Interpreter(body, interpreterVisitor.getSlots());
+    }
+
+    /**
+     * Evaluates the function. The contract is the same as for
+     * {@link com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation#eval(double[], double[], double[])}.
+     *
+     * @param p The parameters of the function. p in IR^k
+     * @param x The variable of the function. x in IR^n
+     * @param y The result of the function evaluation. y in IR^m
+     */
+    public void eval(double[] p, double[] x, double[] y) {
+
+        Frame frame = frames.get();
+        frame.p = p;
+        frame.x = x;
+        frame.y = y;
+
+        // Nothing must be left over from the previous evaluation
+        Arrays.fill(frame.slots, 0);
+
+        try {
+            body.execute(frame);
+        } finally {
+            frame.p = null;
+            frame.x = null;
+            frame.y = null;
+        }
+    }
+
+}
@@ -0,0 +1,702 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.exception.BytecodeGenerationException;
+import com.github.drstefanfriedrich.f2blib.impl.Series;
+import com.github.drstefanfriedrich.f2blib.visitor.Interpreter.Frame;
+import com.github.drstefanfriedrich.f2blib.visitor.Interpreter.Node;
+import com.github.drstefanfriedrich.f2blib.visitor.Interpreter.Statement;
+import org.apache.commons.math3.analysis.function.Acosh;
+import org.apache.commons.math3.analysis.function.Asinh;
+import org.apache.commons.math3.analysis.function.Atanh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+import static org.apache.commons.math3.util.CombinatoricsUtils.binomialCoefficient;
+import static org.apache.commons.math3.util.CombinatoricsUtils.factorial;
+
+/**
+ * Translates the abstract syntax tree of a function into the nodes of an
+ * {@link Interpreter}. Every node evaluates exactly like the corresponding
+ * method of {@link EvalVisitorImpl}; integer values are kept in doubles, too.
+ */
+class InterpreterVisitor extends BaseVisitor {
+
+    private static final Asinh ARSINH = new Asinh();
+
+    private static final Acosh ARCOSH = new Acosh();
+
+    private static final Atanh ARTANH = new Atanh();
+
+    private final Map<String, Integer> intVariable2Slot = new HashMap<>();
+
+    private final Map<String, Integer> auxVariable2Slot = new HashMap<>();
+
+    private final Map<Integer, Integer> sharedVariable2Slot = new HashMap<>();
+
+    private int slots;
+
+    /**
+     * The number of slots of the frame.
+     */
+    int getSlots() {
+        return slots;
+    }
+
+    private int intSlot(String variableName) {
+        return intVariable2Slot.computeIfAbsent(variableName, name -> slots++);
+    }
+
+    private int auxSlot(AuxVar auxVar) {
+        return auxVariable2Slot.computeIfAbsent(auxVar.getVariableName(), name -> slots++);
+    }
+
+    private int sharedSlot(int index) {
+        return sharedVariable2Slot.computeIfAbsent(index, i -> slots++);
+    }
+
+    private static Statement sequence(List<Statement> statements) {
+        Statement[] array = statements.toArray(new Statement[0]);
+        return frame -> {
+            for (Statement statement : array) {
+                statement.execute(frame);
+            }
+        };
+    }
+
+    private Statement invariants(AbstractSumProduct loop) {
+        List<Statement> invariants = new ArrayList<>();
+        for (SharedExpression invariant : loop.getInvariants()) {
+            Node node = invariant.accept(this);
+            invariants.add(node::eval);
+        }
+        return sequence(invariants);
+    }
+
+    /**
+     * The next value of a product which is carried from one iteration to the
+     * next, see {@link RunningProductVisitor}.
+     */
+    private static final class RecurrenceNode {
+
+        private final int slot;
+
+        private final int from;
+
+        private final Node first;
+
+        private final Node next;
+
+        private RecurrenceNode(int slot, int from, Node first, Node next) {
+            this.slot = slot;
+            this.from = from;
+            this.first = first;
+            this.next = next;
+        }
+
+        private void execute(Frame frame, int i, int start) {
+            frame.slots[slot] = i == start || i < from ? first.eval(frame) : next.eval(frame);
+        }
+
+    }
+
+    /**
+     * The term of a sum for a given value of its variable.
+     */
+    @FunctionalInterface
+    private interface Term {
+        double eval(Frame frame, int i);
+    }
+
+    private RecurrenceNode[] recurrences(AbstractSumProduct loop) {
+        List<RecurrenceNode> recurrences = new ArrayList<>();
+        for (Recurrence recurrence : loop.getRecurrences()) {
+            recurrences.add(new RecurrenceNode(sharedSlot(recurrence.getIndex()), recurrence.getFrom(),
+                    recurrence.acceptFirst(this), recurrence.acceptNext(this)));
+        }
+        return recurrences.toArray(new RecurrenceNode[0]);
+    }
+
+    private Node sumProduct(AbstractSumProduct loop, boolean product) {
+
+        Node startNode = loop.acceptStart(this);
+        Node endNode = loop.acceptEnd(this);
+        int slot = intSlot(loop.getVariableName());
+        Statement invariants = invariants(loop);
+        RecurrenceNode[] recurrences = recurrences(loop);
+        Node inner = loop.acceptInner(this);
+
+        return frame -> {
+
+            double tmp = product ? 1 : 0;
+
+            int start = (int) startNode.eval(frame);
+            int end = (int) endNode.eval(frame);
+
+            if (start > end) {
+                return tmp;
+            }
+
+            invariants.execute(frame);
+
+            for (int i = start; i <= end; i++) {
+                frame.slots[slot] = i;
+                for (RecurrenceNode recurrence : recurrences) {
+                    recurrence.execute(frame, i, start);
+                }
+                if (product) {
+                    tmp *= inner.eval(frame);
+                } else {
+                    tmp += inner.eval(frame);
+                }
+            }
+
+            return tmp;
+        };
+    }
+
+    private Node index(IndexedExpression indexedExpression) {
+        IntExpression indexExpression = indexedExpression.getIndexExpression();
+        return indexExpression == null ? null : indexExpression.accept(this);
+    }
+
+    @Override
+    public Node visit(Abs abs) {
+        Node expression = abs.acceptExpression(this);
+        return frame -> Math.abs(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Addition addition) {
+        Node left = addition.acceptLeft(this);
+        Node right = addition.acceptRight(this);
+        return frame -> left.eval(frame) + right.eval(frame);
+    }
+
+    @Override
+    public Node visit(Arccos arccos) {
+        Node expression = arccos.acceptExpression(this);
+        return frame -> Math.acos(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Arcosh arcosh) {
+        Node expression = arcosh.acceptExpression(this);
+        return frame -> ARCOSH.value(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Arcsin arcsin) {
+        Node expression = arcsin.acceptExpression(this);
+        return frame -> Math.asin(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Arctan arctan) {
+        Node expression = arctan.acceptExpression(this);
+        return frame -> Math.atan(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Arsinh arsinh) {
+        Node expression = arsinh.acceptExpression(this);
+        return frame -> ARSINH.value(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Artanh artanh) {
+        Node expression = artanh.acceptExpression(this);
+        return frame -> ARTANH.value(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Binomial binomial) {
+        Node n = binomial.acceptN(this);
+        Node k = binomial.acceptK(this);
+        return frame -> (double) binomialCoefficient((int) n.eval(frame), (int) k.eval(frame));
+    }
+
+    @Override
+    public Node visit(Faculty faculty) {
+        Node n = faculty.acceptExpression(this);
+        return frame -> (double) factorial((int) n.eval(frame));
+    }
+
+    @Override
+    public Node visit(Constant constant) {
+        switch (constant) {
+            case PI:
+                return frame -> Math.PI;
+            case E:
+                return frame -> Math.E;
+            case BOLTZMANN:
+                return frame -> 1.38064852e-23;
+            default:
+                throw new IllegalArgumentException(format("Unrecognized constant: %s", constant.name()));
+        }
+    }
+
+    @Override
+    public Node visit(Cos cos) {
+        Node expression = cos.acceptExpression(this);
+        return frame -> Math.cos(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Cosh cosh) {
+        Node expression = cosh.acceptExpression(this);
+        return frame -> Math.cosh(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Division division) {
+        Node left = division.acceptLeft(this);
+        Node right = division.acceptRight(this);
+        return frame -> left.eval(frame) / right.eval(frame);
+    }
+
+    @Override
+    public Node visit(Exp exp) {
+        Node expression = exp.acceptExpression(this);
+        return frame -> Math.exp(expression.eval(frame));
+    }
+
+    @Override
+    public Statement visit(FunctionDefinition functionDefinition) {
+        return functionDefinition.getFunctionBody().accept(this);
+    }
+
+    @Override
+    public Statement visit(FunctionBody functionBody) {
+
+        if (functionBody.isForLoop()) {
+            return functionBody.getForLoop().accept(this);
+        } else {
+            return functionBody.getFunctionsWrapper().accept(this);
+        }
+    }
+
+    @Override
+    public Statement visit(FunctionsWrapper functionsWrapper) {
+
+        List<Statement> statements = new ArrayList<>();
+
+        functionsWrapper.getAuxiliaryVariables().forEach(av -> statements.add(av.accept(this)));
+
+        functionsWrapper.getFunctions().forEach(f -> statements.add(f.accept(this)));
+
+        functionsWrapper.<Statement>acceptMarkovShift(this).ifPresent(statements::add);
+
+        return sequence(statements);
+    }
+
+    @Override
+    public Statement visit(ForLoop forLoop) {
+
+        int slot = intSlot(forLoop.getVariableName());
+
+        Node startNode = forLoop.acceptStart(this);
+        Node endNode = forLoop.acceptEnd(this);
+        Node stepNode = forLoop.acceptStep(this);
+
+        List<Statement> invariantList = new ArrayList<>();
+        for (SharedExpression invariant : forLoop.getInvariants()) {
+            Node node = invariant.accept(this);
+            invariantList.add(node::eval);
+        }
+        Statement invariants = sequence(invariantList);
+
+        Statement body = forLoop.acceptFunctionsWrapper(this);
+
+        return frame -> {
+
+            int start = (int) startNode.eval(frame);
+            int end = (int) endNode.eval(frame);
+            int step = (int) stepNode.eval(frame);
+
+            invariants.execute(frame);
+
+            if (step == 0) {
+
+                if (start != end) {
+                    throw new BytecodeGenerationException("step evaluating to 0 not allowed");
+                }
+
+                frame.slots[slot] = start;
+                body.execute(frame);
+
+            } else if (step > 0) {
+
+                for (int i = start; i <= end; i += step) {
+                    frame.slots[slot] = i;
+                    body.execute(frame);
+                }
+
+            } else {
+
+                step = -step;
+                for (int i = start; i >= end; i -= step) {
+                    frame.slots[slot] = i;
+                    body.execute(frame);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Statement visit(Function function) {
+        int index = function.getIndex();
+        Node expression = function.acceptExpression(this);
+        return frame -> frame.y[index] = expression.eval(frame);
+    }
+
+    @Override
+    public Statement visit(AuxiliaryVariable auxiliaryVariable) {
+        Node inner = auxiliaryVariable.acceptInner(this);
+        int slot = auxSlot(auxiliaryVariable.getAuxVar());
+        return frame -> frame.slots[slot] = inner.eval(frame);
+    }
+
+    @Override
+    public Node visit(Int i) {
+        double value = i.getValue();
+        return frame -> value;
+    }
+
+    @Override
+    public Node visit(Doub doub) {
+        double value = doub.getValue();
+        return frame -> value;
+    }
+
+    @Override
+    public Node visit(Sqrt sqrt) {
+        Node expression = sqrt.acceptExpression(this);
+        return frame -> Math.sqrt(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(NoOp noOp) {
+        throw new IllegalStateException("visit must not be called on the InterpreterVisitor");
+    }
+
+    @Override
+    public Node visit(Ln ln) {
+        Node expression = ln.acceptExpression(this);
+        return frame -> Math.log(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Multiplication multiplication) {
+        Node left = multiplication.acceptLeft(this);
+        Node right = multiplication.acceptRight(this);
+        return frame -> left.eval(frame) * right.eval(frame);
+    }
+
+    @Override
+    public Node visit(Parenthesis parenthesis) {
+        return parenthesis.acceptExpression(this);
+    }
+
+    @Override
+    public Node visit(Power power) {
+        Node left = power.acceptLeft(this);
+        Node right = power.acceptRight(this);
+        return frame -> Math.pow(left.eval(frame), right.eval(frame));
+    }
+
+    @Override
+    public Node visit(Round round) {
+        Node expression = round.acceptExpression(this);
+        return frame -> (double) Math.round(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Sin sin) {
+        Node expression = sin.acceptExpression(this);
+        return frame -> Math.sin(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Sinh sinh) {
+        Node expression = sinh.acceptExpression(this);
+        return frame -> Math.sinh(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Subtraction subtraction) {
+        Node left = subtraction.acceptLeft(this);
+        Node right = subtraction.acceptRight(this);
+        return frame -> left.eval(frame) - right.eval(frame);
+    }
+
+    @Override
+    public Node visit(Tan tan) {
+        Node expression = tan.acceptExpression(this);
+        return frame -> Math.tan(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Tanh tanh) {
+        Node expression = tanh.acceptExpression(this);
+        return frame -> Math.tanh(expression.eval(frame));
+    }
+
+    @Override
+    public Node visit(Variable variable) {
+
+        Node index = index(variable);
+
+        if (index == null) {
+            int i = variable.getIndex();
+            return frame -> frame.x[i];
+        } else {
+            return frame -> frame.x[(int) index.eval(frame) - 1];
+        }
+    }
+
+    @Override
+    public Node visit(Parameter parameter) {
+
+        Node index = index(parameter);
+
+        if (index == null) {
+            int i = parameter.getIndex();
+            return frame -> frame.p[i];
+        } else {
+            return frame -> frame.p[(int) index.eval(frame) - 1];
+        }
+    }
+
+    @Override
+    public Node visit(Neg neg) {
+        Node expression = neg.acceptExpression(this);
+        return frame -> -expression.eval(frame);
+    }
+
+    @Override
+    public Node visit(Pos pos) {
+        return pos.acceptExpression(this);
+    }
+
+    @Override
+    public Node visit(IntVar intVar) {
+        int slot = intSlot(intVar.getVariableName());
+        return frame -> frame.slots[slot];
+    }
+
+    @Override
+    public Node visit(AuxVar auxVar) {
+        int slot = auxSlot(auxVar);
+        return frame -> frame.slots[slot];
+    }
+
+    @Override
+    public Statement visit(MarkovShift markovShift) {
+
+        Node offsetNode = markovShift.getOffset().accept(this);
+
+        return frame -> {
+
+            int offset = (int) offsetNode.eval(frame);
+            double[] x = frame.x;
+            double[] y = frame.y;
+            int m = y.length;
+            int n = x.length;
+
+            if (offset < 0) {
+                throw new IllegalArgumentException("offset must not be negative");
+            }
+            if (n - offset < m) {
+                throw new IllegalArgumentException("x.lenth - offset must be greater or equal than y.length");
+            }
+
+            // Move to the right
+            for (int i = n - 1; i >= offset + m; i--) {
+                x[i] = x[i - m];
+            }
+
+            // Copy f into x
+            System.arraycopy(y, 0, x, offset, m);
+        };
+    }
+
+    @Override
+    public Node visit(Sum sum) {
+        return sumProduct(sum, false);
+    }
+
+    @Override
+    public Node visit(Prod prod) {
+        return sumProduct(prod, true);
+    }
+
+    @Override
+    public Node visit(SharedExpression sharedExpression) {
+        Node expression = sharedExpression.acceptExpression(this);
+        int slot = sharedSlot(sharedExpression.getIndex());
+        return frame -> frame.slots[slot] = expression.eval(frame);
+    }
+
+    @Override
+    public Node visit(SharedVar sharedVar) {
+        int slot = sharedSlot(sharedVar.getIndex());
+        return frame -> frame.slots[slot];
+    }
+
+    @Override
+    public Node visit(AlternatingSign alternatingSign) {
+        Node exponent = alternatingSign.acceptExpression(this);
+        return frame -> ((int) exponent.eval(frame) & 1) == 0 ? 1d : -1d;
+    }
+
+    @Override
+    public Node visit(ClosedFormSum closedFormSum) {
+
+        Sum sum = closedFormSum.getSum();
+        boolean geometric = closedFormSum.getKind() == ClosedFormSum.Kind.GEOMETRIC;
+
+        Node loop = sum.accept(this);
+        Node startNode = sum.acceptStart(this);
+        Node endNode = sum.acceptEnd(this);
+        Node stepNode = closedFormSum.acceptStep(this);
+        int slot = intSlot(sum.getVariableName());
+        Statement invariants = invariants(sum);
+        RecurrenceNode[] recurrences = recurrences(sum);
+        Node inner = sum.acceptInner(this);
+
+        Term firstTerm = (frame, start) -> {
+
+            invariants.execute(frame);
+
+            frame.slots[slot] = start;
+            for (RecurrenceNode recurrence : recurrences) {
+                recurrence.execute(frame, start, start);
+            }
+
+            return inner.eval(frame);
+        };
+
+        return frame -> {
+
+            int start = (int) startNode.eval(frame);
+            int end = (int) endNode.eval(frame);
+
+            if (start > end) {
+                return 0d;
+            }
+
+            long n = (long) end - start + 1;
+
+            if (geometric) {
+                double step = stepNode.eval(frame);
+                if (step == 1) {
+                    return loop.eval(frame);
+                }
+                return finiteOrLoop(frame, firstTerm.eval(frame, start) * Series.geometric(step, n), loop);
+            }
+
+            double first = firstTerm.eval(frame, start);
+            double step = stepNode.eval(frame);
+
+            return finiteOrLoop(frame, n * first + step * ((n * (n - 1)) >>> 1), loop);
+        };
+    }
+
+    /**
+     * Like the generated code, the loop is evaluated if the closed form is not
+     * finite, and -0 is turned into 0.
+     */
+    private static double finiteOrLoop(Frame frame, double closed, Node loop) {
+        return Double.isFinite(closed) ? closed + 0d : loop.eval(frame);
+    }
+
+    @Override
+    public Node visit(Precomputed precomputed) {
+        return precomputed.acceptExpression(this);
+    }
+
+    @Override
+    public Node visit(Polynomial polynomial) {
+        return polynomial.getSum().accept(this);
+    }
+
+    @Override
+    public Node visit(FusedLoop fusedLoop) {
+
+        List<AbstractSumProduct> loops = fusedLoop.getLoops();
+        int count = loops.size();
+
+        boolean[] product = new boolean[count];
+        int[] accumulators = new int[count];
+        Statement[] invariants = new Statement[count];
+        RecurrenceNode[][] recurrences = new RecurrenceNode[count][];
+        Node[] inners = new Node[count];
+
+        Node startNode = fusedLoop.acceptStart(this);
+        Node endNode = fusedLoop.acceptEnd(this);
+        int slot = intSlot(fusedLoop.getVariableName());
+
+        for (int j = 0; j < count; j++) {
+            product[j] = loops.get(j) instanceof Prod;
+            accumulators[j] = sharedSlot(fusedLoop.getIndexes().get(j));
+            invariants[j] = invariants(loops.get(j));
+            recurrences[j] = recurrences(loops.get(j));
+            inners[j] = loops.get(j).acceptInner(this);
+        }
+
+        return frame -> {
+
+            double[] slots = frame.slots;
+
+            for (int j = 0; j < count; j++) {
+                slots[accumulators[j]] = product[j] ? 1 : 0;
+            }
+
+            int start = (int) startNode.eval(frame);
+            int end = (int) endNode.eval(frame);
+
+            if (start <= end) {
+
+                for (Statement invariant : invariants) {
+                    invariant.execute(frame);
+                }
+
+                for (int i = start; i <= end; i++) {
+                    slots[slot] = i;
+                    for (RecurrenceNode[] loopRecurrences : recurrences) {
+                        for (RecurrenceNode recurrence : loopRecurrences) {
+                            recurrence.execute(frame, i, start);
+                        }
+                    }
+                    for (int j = 0; j < count; j++) {
+                        if (product[j]) {
+                            slots[accumulators[j]] *= inners[j].eval(frame);
+                        } else {
+                            slots[accumulators[j]] += inners[j].eval(frame);
+                        }
+                    }
+                }
+            }
+
+            return slots[accumulators[0]];
+        };
+    }
+
+}
@@ -2,6 +2,7 @@ package com.github.drstefanfriedrich.f2blib.visitor;
 
 import com.github.drstefanfriedrich.f2blib.ast.AuxVar;
 import com.github.drstefanfriedrich.f2blib.ast.IntVar;
+import com.github.drstefanfriedrich.f2blib.ast.SharedVar;
 
 /**
  * Models the array of local variables as specified by the Java virtual machine
@@ -33,6 +34,28 @@ public interface LocalVariables {
 
     int getProdIndex(IntVar intVar);
 
+    int getEndIndex(IntVar intVar);
+
     int getIndexForAuxVar(AuxVar auxVar);
 
+    int getIndexForSharedVar(SharedVar sharedVar);
+
+    int getMaxLocalsForBatch();
+
+    int getBatchIndex();
+
+    int getBatchEnd();
+
+    int getBatchP();
+
+    int getBatchX();
+
+    int getBatchY();
+
+    int getBatchPStride();
+
+    int getBatchXStride();
+
+    int getBatchYStride();
+
 }
@@ -14,12 +14,14 @@ package com.github.drstefanfriedrich.f2blib.visitor;
 
 import com.github.drstefanfriedrich.f2blib.ast.AuxVar;
 import com.github.drstefanfriedrich.f2blib.ast.IntVar;
+import com.github.drstefanfriedrich.f2blib.ast.SharedVar;
 import org.objectweb.asm.MethodVisitor;
 
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Implementation note on the array of local variables:<p>
@@ -37,8 +39,20 @@ import java.util.Set;
  * <code>11: IntVar</code><p>
  * <code>12: summation for the IntVar</code><p>
  * <code>14: multiplication for the IntVar</code><p>
- * <code>16: ...</code><p>
- * <code>...: AuxVar's</code>
+ * <code>16: end of a loop over the IntVar</code><p>
+ * <code>17: ...</code><p>
+ * <code>...: AuxVar's</code><p>
+ * <code>...: SharedVar's, i.e. common subexpressions (int or double)</code><p>
+ * The <code>evalBatch</code> methods need eight more local variables for the loop
+ * over the rows. They are placed behind all variables of the function body:<p>
+ * <code>n: row index</code><p>
+ * <code>n + 1: number of rows, or end of the rows</code><p>
+ * <code>n + 2: p[][], or offset of the current row in p[]</code><p>
+ * <code>n + 3: x[][], or offset of the current row in x[]</code><p>
+ * <code>n + 4: y[][], or offset of the current row in y[]</code><p>
+ * <code>n + 5: stride of p[]</code><p>
+ * <code>n + 6: stride of x[]</code><p>
+ * <code>n + 7: stride of y[]</code>
  */
 public class LocalVariablesImpl implements LocalVariables {
 
@@ -56,14 +70,21 @@ public class LocalVariablesImpl implements LocalVariables {
 
     private static final int MARKOV_SHIFT_END = 10;
 
+    private static final int BATCH_LOCALS = 8;
+
     private final Set<IntVar> tmpIntVars = new HashSet<>();
     private final Map<IntVar, Integer> intVariable2Index = new HashMap<>();
     private final Map<IntVar, Integer> intVariable2SumIndex = new HashMap<>();
     private final Map<IntVar, Integer> intVariable2ProdIndex = new HashMap<>();
+    private final Map<IntVar, Integer> intVariable2EndIndex = new HashMap<>();
 
     private final Set<AuxVar> tmpAuxVars = new HashSet<>();
     private final Map<AuxVar, Integer> auxVar2Index = new HashMap<>();
 
+    private final Map<Integer, SharedVar> tmpSharedVars = new TreeMap<>();
+    private final Map<Integer, Integer> sharedVar2Index = new HashMap<>();
+    private int sharedVarSlots;
+
     /**
      * The maximum number of local variables as needed by {@link MethodVisitor}.visitMaxs.
      */
@@ -75,7 +96,8 @@ public class LocalVariablesImpl implements LocalVariables {
          * 5: Markov shift
          */
         return 4 + 2 + 5 + intVariable2Index.size() + 2 * auxVar2Index.size() +
-                2 * intVariable2SumIndex.size() + 2 * intVariable2ProdIndex.size();
+                2 * intVariable2SumIndex.size() + 2 * intVariable2ProdIndex.size() + intVariable2EndIndex.size() +
+                sharedVarSlots;
     }
 
     /**
@@ -93,12 +115,20 @@ public class LocalVariablesImpl implements LocalVariables {
             nextLocalVariableIndex++;
             intVariable2ProdIndex.put(iv, nextLocalVariableIndex++);
             nextLocalVariableIndex++;
+            intVariable2EndIndex.put(iv, nextLocalVariableIndex++);
         }
 
         for (AuxVar av : tmpAuxVars) {
             auxVar2Index.put(av, nextLocalVariableIndex++);
             nextLocalVariableIndex++;
         }
+
+        for (SharedVar sv : tmpSharedVars.values()) {
+            int slots = sv.evaluatesToDouble() ? 2 : 1;
+            sharedVar2Index.put(sv.getIndex(), nextLocalVariableIndex);
+            nextLocalVariableIndex += slots;
+            sharedVarSlots += slots;
+        }
     }
 
     @Override
@@ -156,6 +186,11 @@ public class LocalVariablesImpl implements LocalVariables {
         return intVariable2ProdIndex.get(intVar);
     }
 
+    @Override
+    public int getEndIndex(IntVar intVar) {
+        return intVariable2EndIndex.get(intVar);
+    }
+
     @Override
     public int getIndexForAuxVar(AuxVar auxVar) {
         return auxVar2Index.get(auxVar);
@@ -165,4 +200,61 @@ public class LocalVariablesImpl implements LocalVariables {
         tmpAuxVars.add(auxVar);
     }
 
+    @Override
+    public int getIndexForSharedVar(SharedVar sharedVar) {
+        return sharedVar2Index.get(sharedVar.getIndex());
+    }
+
+    public void addSharedVar(SharedVar sharedVar) {
+        tmpSharedVars.put(sharedVar.getIndex(), sharedVar);
+    }
+
+    /**
+     * The maximum number of local variables of the <code>evalBatch</code> methods.
+     */
+    @Override
+    public int getMaxLocalsForBatch() {
+        return getMaxLocals() + BATCH_LOCALS;
+    }
+
+    @Override
+    public int getBatchIndex() {
+        return getMaxLocals();
+    }
+
+    @Override
+    public int getBatchEnd() {
+        return getMaxLocals() + 1;
+    }
+
+    @Override
+    public int getBatchP() {
+        return getMaxLocals() + 2;
+    }
+
+    @Override
+    public int getBatchX() {
+        return getMaxLocals() + 3;
+    }
+
+    @Override
+    public int getBatchY() {
+        return getMaxLocals() + 4;
+    }
+
+    @Override
+    public int getBatchPStride() {
+        return getMaxLocals() + 5;
+    }
+
+    @Override
+    public int getBatchXStride() {
+        return getMaxLocals() + 6;
+    }
+
+    @Override
+    public int getBatchYStride() {
+        return getMaxLocals() + 7;
+    }
+
 }
@@ -0,0 +1,302 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.*;
+
+/**
+ * Fuses sums and products over the same range. Within the auxiliary variables
+ * and the functions of a {@link FunctionsWrapper}, loops with the same variable
+ * and the same bounds are evaluated in one {@link FusedLoop}, at the place of
+ * the first one; the other places load the values. In
+ * <code>B := sum(e_k * (1 - V^(k+1)), k, 0, n); D := sum(e_k * V^(k+1), k, 0, n)</code>
+ * the range is walked only once, and {@link CommonSubexpressionVisitor}
+ * computes <code>e_k</code> once per iteration.
+ * <p>
+ * Only the loops which are evaluated whenever their auxiliary variable or
+ * function is evaluated are fused, i.e. the ones which are not part of another
+ * loop. A loop is evaluated earlier than before, so it must not depend on the
+ * auxiliary variables which are assigned in between, including the one of the
+ * first loop. Equal invariants and recurrences of the loops are computed only
+ * once. Every loop accumulates its terms in the same order as before, so the
+ * results are exactly the same. Use {@link #fuse(FunctionDefinition)}.
+ */
+public class LoopFusionVisitor extends TransformationVisitor {
+
+    private int nextIndex;
+
+    private LoopFusionVisitor(int firstIndex) {
+        this.nextIndex = firstIndex;
+    }
+
+    /**
+     * Fuses the loops of a function.
+     *
+     * @param functionDefinition The function.
+     * @return The function with fused loops.
+     */
+    public static FunctionDefinition fuse(FunctionDefinition functionDefinition) {
+        int firstIndex = 1 + CommonSubexpressionVisitor.SharedIndexes.max(functionDefinition);
+        return functionDefinition.accept(new LoopFusionVisitor(firstIndex));
+    }
+
+    /**
+     * A loop and the position of its auxiliary variable or function within the
+     * wrapper; the functions follow the auxiliary variables.
+     */
+    private static class Candidate {
+
+        private final int position;
+
+        private final AbstractSumProduct loop;
+
+        Candidate(int position, AbstractSumProduct loop) {
+            this.position = position;
+            this.loop = loop;
+        }
+
+    }
+
+    /**
+     * Loops which are fused, in the order of evaluation.
+     */
+    private class Group {
+
+        private final Candidate first;
+
+        private final List<Candidate> candidates = new ArrayList<>();
+
+        private final Map<AbstractSumProduct, Integer> indexes = new LinkedHashMap<>();
+
+        private final List<AbstractSumProduct> loops = new ArrayList<>();
+
+        private final List<SharedExpression> invariants = new ArrayList<>();
+
+        private final List<Recurrence> recurrences = new ArrayList<>();
+
+        private final Map<Integer, Integer> renamed = new HashMap<>();
+
+        Group(Candidate first) {
+            this.first = first;
+        }
+
+        boolean accepts(Candidate candidate, List<String> assigned) {
+
+            AbstractSumProduct loop = candidate.loop;
+            if (!loop.getVariableName().equals(first.loop.getVariableName()) ||
+                    !loop.getStart().equals(first.loop.getStart()) || !loop.getEnd().equals(first.loop.getEnd())) {
+                return false;
+            }
+
+            Set<String> auxVars = References.of(loop).auxVars;
+            for (int position = first.position; position < candidate.position; position++) {
+                if (position < assigned.size() && auxVars.contains(assigned.get(position))) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        void add(Candidate candidate) {
+
+            candidates.add(candidate);
+            if (indexes.containsKey(candidate.loop)) {
+                return;
+            }
+            indexes.put(candidate.loop, nextIndex++);
+
+            AbstractSumProduct loop = candidate.loop;
+            List<SharedExpression> loopInvariants = new ArrayList<>();
+            List<Recurrence> loopRecurrences = new ArrayList<>();
+
+            for (SharedExpression invariant : loop.getInvariants()) {
+                Expression expression = invariant.acceptExpression(new Renaming(renamed));
+                SharedExpression same = invariants.stream()
+                        .filter(shared -> shared.equals(new SharedExpression(shared.getIndex(), expression)))
+                        .findFirst().orElse(null);
+                if (same != null) {
+                    renamed.put(invariant.getIndex(), same.getIndex());
+                } else {
+                    loopInvariants.add(new SharedExpression(invariant.getIndex(), expression));
+                }
+            }
+
+            for (Recurrence recurrence : loop.getRecurrences()) {
+                Recurrence same = recurrences.stream()
+                        .filter(shared -> shared.equals(rename(recurrence, shared.getIndex())))
+                        .findFirst().orElse(null);
+                if (same != null) {
+                    renamed.put(recurrence.getIndex(), same.getIndex());
+                } else {
+                    loopRecurrences.add(rename(recurrence, recurrence.getIndex()));
+                }
+            }
+
+            invariants.addAll(loopInvariants);
+            recurrences.addAll(loopRecurrences);
+
+            Expression inner = loop.acceptInner(new Renaming(renamed));
+            if (loop instanceof Prod) {
+                loops.add(new Prod(inner, loop.getVariableName(), loop.getStart(), loop.getEnd(), loopInvariants,
+                        loopRecurrences));
+            } else {
+                loops.add(new Sum(inner, loop.getVariableName(), loop.getStart(), loop.getEnd(), loopInvariants,
+                        loopRecurrences));
+            }
+        }
+
+        /*
+         * The recurrence with another index, as it would be computed in the fused loop
+         */
+        private Recurrence rename(Recurrence recurrence, int index) {
+            Map<Integer, Integer> renamed = new HashMap<>(this.renamed);
+            renamed.put(recurrence.getIndex(), index);
+            Renaming renaming = new Renaming(renamed);
+            return new Recurrence(index, recurrence.getSharedVar().acceptExpression(renaming),
+                    recurrence.acceptFirst(renaming), recurrence.acceptNext(renaming), recurrence.getFrom());
+        }
+
+        /*
+         * The first loop is replaced by the fused loop, the other ones load their values
+         */
+        Expression replace(Candidate candidate) {
+            if (candidates.size() == 1) {
+                return candidate.loop;
+            }
+            if (candidate == first) {
+                return new FusedLoop(loops, new ArrayList<>(indexes.values()));
+            }
+            return new SharedVar(indexes.get(candidate.loop), candidate.loop);
+        }
+
+    }
+
+    @Override
+    public FunctionsWrapper visit(FunctionsWrapper functionsWrapper) {
+
+        List<AuxiliaryVariable> auxiliaryVariables = functionsWrapper.getAuxiliaryVariables();
+        List<Function> functions = functionsWrapper.getFunctions();
+
+        List<String> assigned = new ArrayList<>();
+        List<Expression> elements = new ArrayList<>();
+        for (AuxiliaryVariable auxiliaryVariable : auxiliaryVariables) {
+            assigned.add(auxiliaryVariable.getAuxVar().getVariableName());
+            elements.add(auxiliaryVariable.getInner());
+        }
+        for (Function function : functions) {
+            elements.add(function.getExpression());
+        }
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (int i = 0; i < elements.size(); i++) {
+            int position = i;
+            elements.get(i).accept(new Loops(loop -> {
+                candidates.add(new Candidate(position, loop));
+                return loop;
+            }));
+        }
+
+        Map<Candidate, Group> groups = new IdentityHashMap<>();
+        List<Group> open = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            Group group = open.stream()
+                    .filter(g -> g.accepts(candidate, assigned))
+                    .findFirst().orElseGet(() -> {
+                        Group g = new Group(candidate);
+                        open.add(g);
+                        return g;
+                    });
+            group.add(candidate);
+            groups.put(candidate, group);
+        }
+
+        Iterator<Candidate> iterator = candidates.iterator();
+        Loops replacement = new Loops(loop -> {
+            Candidate candidate = iterator.next();
+            return groups.get(candidate).replace(candidate);
+        });
+
+        List<AuxiliaryVariable> transformedAuxiliaryVariables = new ArrayList<>();
+        for (AuxiliaryVariable auxiliaryVariable : auxiliaryVariables) {
+            Expression inner = auxiliaryVariable.acceptInner(replacement);
+            transformedAuxiliaryVariables.add(new AuxiliaryVariable(auxiliaryVariable.getAuxVar(), inner));
+        }
+
+        List<Function> transformedFunctions = new ArrayList<>();
+        for (Function function : functions) {
+            Expression expression = function.acceptExpression(replacement);
+            transformedFunctions.add(new Function(function.getIndex(), expression));
+        }
+
+        Optional<MarkovShift> markovShift = functionsWrapper.acceptMarkovShift(this);
+
+        return new FunctionsWrapper(transformedAuxiliaryVariables, transformedFunctions, markovShift.orElse(null));
+    }
+
+    /**
+     * Replaces the loops which are not part of another loop. Closed forms and
+     * polynomials are not loops any more, and are not fused.
+     */
+    private static class Loops extends TransformationVisitor {
+
+        private final java.util.function.Function<AbstractSumProduct, Expression> replacement;
+
+        Loops(java.util.function.Function<AbstractSumProduct, Expression> replacement) {
+            this.replacement = replacement;
+        }
+
+        @Override
+        public Expression visit(Sum sum) {
+            return replacement.apply(sum);
+        }
+
+        @Override
+        public Expression visit(Prod prod) {
+            return replacement.apply(prod);
+        }
+
+        @Override
+        public Expression visit(ClosedFormSum closedFormSum) {
+            return closedFormSum;
+        }
+
+        @Override
+        public Expression visit(Polynomial polynomial) {
+            return polynomial;
+        }
+
+    }
+
+    /**
+     * Replaces the indexes of shared variables.
+     */
+    private static class Renaming extends TransformationVisitor {
+
+        private final Map<Integer, Integer> indexes;
+
+        Renaming(Map<Integer, Integer> indexes) {
+            this.indexes = indexes;
+        }
+
+        @Override
+        public Expression visit(SharedVar sharedVar) {
+            return new SharedVar(indexes.getOrDefault(sharedVar.getIndex(), sharedVar.getIndex()),
+                    sharedVar.acceptExpression(this));
+        }
+
+    }
+
+}
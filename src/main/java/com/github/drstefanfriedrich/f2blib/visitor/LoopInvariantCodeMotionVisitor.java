@@ -0,0 +1,324 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Hoists loop-invariant expressions out of sums, products and for loops. An
+ * expression in the inner expression of a sum or a product, or in the body of a
+ * for loop, which has the same value in every iteration, is evaluated only once
+ * before the loop: it becomes an invariant of the loop ({@link SharedExpression}),
+ * and the loop loads its value ({@link SharedVar}).
+ * <p>
+ * Within a sum or a product, an expression is invariant if it does not depend on
+ * the integer variable. Within a for loop, it must not depend on the integer
+ * variable, on an auxiliary variable which is assigned in the body, or on
+ * <code>x</code>, if the body contains a Markov shift. Only the largest invariant
+ * expressions are hoisted, and loops are processed from the inside out, so an
+ * invariant of an inner loop moves further out if it is invariant for the outer
+ * loop as well.
+ * <p>
+ * The invariants are evaluated even if the loop does not iterate at all.
+ * Therefore expressions which might throw an exception (binomial coefficients,
+ * faculties and indexed variables or parameters) are never hoisted. Use
+ * {@link #hoist(FunctionDefinition)}.
+ */
+public class LoopInvariantCodeMotionVisitor extends TransformationVisitor {
+
+    private int nextIndex;
+
+    private LoopInvariantCodeMotionVisitor(int firstIndex) {
+        this.nextIndex = firstIndex;
+    }
+
+    /**
+     * Hoists the loop-invariant expressions of a function.
+     *
+     * @param functionDefinition The function.
+     * @return The function with the invariants hoisted out of its loops.
+     */
+    public static FunctionDefinition hoist(FunctionDefinition functionDefinition) {
+        int firstIndex = 1 + CommonSubexpressionVisitor.SharedIndexes.max(functionDefinition);
+        return functionDefinition.accept(new LoopInvariantCodeMotionVisitor(firstIndex));
+    }
+
+    private static Predicate<References> dependsOnIntVar(String variableName) {
+        return references -> references.intVars.contains(variableName);
+    }
+
+    @Override
+    public ForLoop visit(ForLoop forLoop) {
+
+        Expression start = forLoop.acceptStart(this);
+        Expression end = forLoop.acceptEnd(this);
+        Expression step = forLoop.acceptStep(this);
+        List<SharedExpression> invariants = new ArrayList<>(transformInvariants(forLoop.getInvariants()));
+        FunctionsWrapper functionsWrapper = forLoop.acceptFunctionsWrapper(this);
+
+        References assigned = References.assignedBy(forLoop);
+        Hoisting hoisting = new Hoisting(dependsOnIntVar(forLoop.getVariableName())
+                .or(references -> references.dependsOn(assigned)), invariants);
+
+        return new ForLoop(forLoop.getVariableName(), asIntExpression(start), asIntExpression(end),
+                asIntExpression(step), functionsWrapper.accept(hoisting), invariants);
+    }
+
+    @Override
+    public Expression visit(Sum sum) {
+
+        Expression start = sum.acceptStart(this);
+        Expression end = sum.acceptEnd(this);
+        List<SharedExpression> invariants = new ArrayList<>(transformInvariants(sum.getInvariants()));
+        List<Recurrence> recurrences = transformRecurrences(sum.getRecurrences());
+        Expression inner = sum.acceptInner(this);
+
+        Hoisting hoisting = new Hoisting(dependsOnIntVar(sum.getVariableName()), invariants);
+
+        return new Sum(inner.accept(hoisting), sum.getVariableName(), asIntExpression(start),
+                asIntExpression(end), invariants, hoisting.transformRecurrences(recurrences));
+    }
+
+    @Override
+    public Expression visit(Prod prod) {
+
+        Expression start = prod.acceptStart(this);
+        Expression end = prod.acceptEnd(this);
+        List<SharedExpression> invariants = new ArrayList<>(transformInvariants(prod.getInvariants()));
+        List<Recurrence> recurrences = transformRecurrences(prod.getRecurrences());
+        Expression inner = prod.acceptInner(this);
+
+        Hoisting hoisting = new Hoisting(dependsOnIntVar(prod.getVariableName()), invariants);
+
+        return new Prod(inner.accept(hoisting), prod.getVariableName(), asIntExpression(start),
+                asIntExpression(end), invariants, hoisting.transformRecurrences(recurrences));
+    }
+
+    /**
+     * Replaces the invariant expressions in the body of one loop, whose inner loops
+     * have been processed already, and adds them to the invariants of the loop.
+     */
+    private class Hoisting extends TransformationVisitor {
+
+        private final Predicate<References> variant;
+
+        private final List<SharedExpression> invariants;
+
+        Hoisting(Predicate<References> variant, List<SharedExpression> invariants) {
+            this.variant = variant;
+            this.invariants = invariants;
+        }
+
+        private Expression hoist(Expression expression, Supplier<Expression> transformation) {
+
+            References references = References.of(expression);
+
+            if (references.mayThrow || variant.test(references)) {
+                return transformation.get();
+            }
+
+            int index = nextIndex++;
+            invariants.add(new SharedExpression(index, expression));
+
+            return new SharedVar(index, expression);
+        }
+
+        /*
+         * The invariants of an inner loop which are invariant for this loop, too,
+         * move out of the inner loop. The inner expression and the recurrences of
+         * the inner loop do not contain any invariants any more.
+         */
+        private List<SharedExpression> hoistInvariants(List<SharedExpression> innerInvariants) {
+
+            List<SharedExpression> remaining = new ArrayList<>();
+
+            for (SharedExpression invariant : innerInvariants) {
+                if (variant.test(References.of(invariant))) {
+                    remaining.add((SharedExpression) invariant.accept(this));
+                } else {
+                    invariants.add(invariant);
+                }
+            }
+
+            return remaining;
+        }
+
+        private Sum hoistSum(Sum sum) {
+            Expression start = sum.acceptStart(this);
+            Expression end = sum.acceptEnd(this);
+            List<SharedExpression> remaining = hoistInvariants(sum.getInvariants());
+            TransformationVisitor copy = new TransformationVisitor();
+            List<Recurrence> recurrences = copy.transformRecurrences(sum.getRecurrences());
+            Expression inner = sum.acceptInner(copy);
+            return new Sum(inner, sum.getVariableName(), asIntExpression(start), asIntExpression(end),
+                    remaining, recurrences);
+        }
+
+        @Override
+        public Expression visit(Sum sum) {
+            return hoist(sum, () -> hoistSum(sum));
+        }
+
+        @Override
+        public Expression visit(ClosedFormSum closedFormSum) {
+            return hoist(closedFormSum, () -> new ClosedFormSum(closedFormSum.getKind(),
+                    hoistSum(closedFormSum.getSum()), closedFormSum.acceptStep(this)));
+        }
+
+        @Override
+        public Expression visit(Prod prod) {
+            return hoist(prod, () -> {
+                Expression start = prod.acceptStart(this);
+                Expression end = prod.acceptEnd(this);
+                List<SharedExpression> remaining = hoistInvariants(prod.getInvariants());
+                TransformationVisitor copy = new TransformationVisitor();
+                List<Recurrence> recurrences = copy.transformRecurrences(prod.getRecurrences());
+                Expression inner = prod.acceptInner(copy);
+                return new Prod(inner, prod.getVariableName(), asIntExpression(start), asIntExpression(end),
+                        remaining, recurrences);
+            });
+        }
+
+        @Override
+        public Expression visit(Precomputed precomputed) {
+            return hoist(precomputed, () -> precomputed);
+        }
+
+        @Override
+        public Expression visit(Polynomial polynomial) {
+            return hoist(polynomial, () -> super.visit(polynomial));
+        }
+
+        @Override
+        public Expression visit(Abs abs) {
+            return hoist(abs, () -> super.visit(abs));
+        }
+
+        @Override
+        public Expression visit(Addition addition) {
+            return hoist(addition, () -> super.visit(addition));
+        }
+
+        @Override
+        public Expression visit(Arccos arccos) {
+            return hoist(arccos, () -> super.visit(arccos));
+        }
+
+        @Override
+        public Expression visit(Arcosh arcosh) {
+            return hoist(arcosh, () -> super.visit(arcosh));
+        }
+
+        @Override
+        public Expression visit(Arcsin arcsin) {
+            return hoist(arcsin, () -> super.visit(arcsin));
+        }
+
+        @Override
+        public Expression visit(Arctan arctan) {
+            return hoist(arctan, () -> super.visit(arctan));
+        }
+
+        @Override
+        public Expression visit(Arsinh arsinh) {
+            return hoist(arsinh, () -> super.visit(arsinh));
+        }
+
+        @Override
+        public Expression visit(Artanh artanh) {
+            return hoist(artanh, () -> super.visit(artanh));
+        }
+
+        @Override
+        public Expression visit(Cos cos) {
+            return hoist(cos, () -> super.visit(cos));
+        }
+
+        @Override
+        public Expression visit(Cosh cosh) {
+            return hoist(cosh, () -> super.visit(cosh));
+        }
+
+        @Override
+        public Expression visit(Division division) {
+            return hoist(division, () -> super.visit(division));
+        }
+
+        @Override
+        public Expression visit(Exp exp) {
+            return hoist(exp, () -> super.visit(exp));
+        }
+
+        @Override
+        public Expression visit(Ln ln) {
+            return hoist(ln, () -> super.visit(ln));
+        }
+
+        @Override
+        public Expression visit(Multiplication multiplication) {
+            return hoist(multiplication, () -> super.visit(multiplication));
+        }
+
+        @Override
+        public Expression visit(Neg neg) {
+            return hoist(neg, () -> super.visit(neg));
+        }
+
+        @Override
+        public Expression visit(Power power) {
+            return hoist(power, () -> super.visit(power));
+        }
+
+        @Override
+        public Expression visit(Round round) {
+            return hoist(round, () -> super.visit(round));
+        }
+
+        @Override
+        public Expression visit(Sin sin) {
+            return hoist(sin, () -> super.visit(sin));
+        }
+
+        @Override
+        public Expression visit(Sinh sinh) {
+            return hoist(sinh, () -> super.visit(sinh));
+        }
+
+        @Override
+        public Expression visit(Sqrt sqrt) {
+            return hoist(sqrt, () -> super.visit(sqrt));
+        }
+
+        @Override
+        public Expression visit(Subtraction subtraction) {
+            return hoist(subtraction, () -> super.visit(subtraction));
+        }
+
+        @Override
+        public Expression visit(Tan tan) {
+            return hoist(tan, () -> super.visit(tan));
+        }
+
+        @Override
+        public Expression visit(Tanh tanh) {
+            return hoist(tanh, () -> super.visit(tanh));
+        }
+
+    }
+
+}
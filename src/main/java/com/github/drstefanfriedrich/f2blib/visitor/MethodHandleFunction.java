@@ -0,0 +1,110 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+
+/**
+ * Evaluates a function with the same results as the code generated by
+ * {@link BytecodeVisitorImpl}, but without defining a class. The optimized and
+ * validated abstract syntax tree is assembled once into a single
+ * {@link MethodHandle} from the combinators of
+ * {@link java.lang.invoke.MethodHandles}, which are bound to the static methods
+ * of {@link Math} and of a few helpers. Like for a {@link Closure}, the
+ * variables are kept in the slots of a frame whose indexes are the ones of the
+ * local variables of the generated code, and every thread reuses its own frame.
+ */
+public final class MethodHandleFunction {
+
+    /**
+     * The state of one evaluation.
+     */
+    static final class Frame {
+
+        double[] p;
+
+        double[] x;
+
+        double[] y;
+
+        final double[] doubles;
+
+        final int[] ints;
+
+        Frame(int size) {
+            this.doubles = new double[size];
+            this.ints = new int[size];
+        }
+
+    }
+
+    private final MethodHandle body;
+
+    private final ThreadLocal<Frame> frames;
+
+    private MethodHandleFunction(MethodHandle body, int slots) {
+        this.body = body;
+        this.frames = ThreadLocal.withInitial(() -> new Frame(slots));
+    }
+
+    /**
+     * Assembles a function. Any constant expressions the function contains are
+     * computed right away, like the generated code computes them when its class
+     * is initialized.
+     *
+     * @param functionDefinition The optimized function, which must have been
+     *                           validated with the given local variables.
+     * @param localVariables     The local variables of the function.
+     * @return The assembled function.
+     */
+    public static MethodHandleFunction of(FunctionDefinition functionDefinition, LocalVariables localVariables) {
+        MethodHandleVisitor methodHandleVisitor = new MethodHandleVisitor(localVariables);
+        MethodHandle body = functionDefinition.accept(methodHandleVisitor);
+        return new MethodHandleFunction(body, localVariables.getMaxLocals());
+    }
+
+    /**
+     * Evaluates the function. The contract is the same as for
+     * {@link com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation#eval(double[], double[], double[])}.
+     *
+     * @param p The parameters of the function. p in IR^k
+     * @param x The variable of the function. x in IR^n
+     * @param y The result of the function evaluation. y in IR^m
+     */
+    public void eval(double[] p, double[] x, double[] y) {
+
+        Frame frame = frames.get();
+        frame.p = p;
+        frame.x = x;
+        frame.y = y;
+
+        // Nothing must be left over from the previous evaluation
+        Arrays.fill(frame.doubles, 0);
+        Arrays.fill(frame.ints, 0);
+
+        try {
+            body.invokeExact(frame);
+        } catch (Throwable t) {
+            throw MethodHandleVisitor.rethrow(t);
+        } finally {
+            frame.p = null;
+            frame.x = null;
+            frame.y = null;
+        }
+    }
+
+}
@@ -0,0 +1,1217 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.impl.Series;
+import com.github.drstefanfriedrich.f2blib.visitor.MethodHandleFunction.Frame;
+import org.apache.commons.math3.analysis.function.Acosh;
+import org.apache.commons.math3.analysis.function.Asinh;
+import org.apache.commons.math3.analysis.function.Atanh;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+import static java.lang.invoke.MethodHandles.constant;
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.filterArguments;
+import static java.lang.invoke.MethodHandles.filterReturnValue;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.guardWithTest;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodType.methodType;
+import static org.apache.commons.math3.util.CombinatoricsUtils.binomialCoefficient;
+import static org.apache.commons.math3.util.CombinatoricsUtils.factorial;
+
+/**
+ * Assembles the optimized abstract syntax tree of a function into the
+ * {@link MethodHandle} of a {@link MethodHandleFunction}. Every visit method
+ * returns a handle of type <code>(Frame)double</code> or <code>(Frame)int</code>
+ * for an expression, following the typing rules of {@link BytecodeVisitorImpl},
+ * and of type <code>(Frame)void</code> for everything else. All handles evaluate
+ * exactly like the bytecode generated for them.
+ * <p>
+ * The operands are evaluated from left to right: two operands are combined by
+ * folding the first one into the handle which filters the second one, and a
+ * sequence of statements by folding each statement into the rest of the
+ * sequence. Since Java 8 has no loop combinator, the loops are static methods
+ * which get the handles of their parts as bound arguments.
+ */
+class MethodHandleVisitor extends BaseVisitor {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType DOUBLE_NODE = methodType(double.class, Frame.class);
+
+    private static final MethodType INT_NODE = methodType(int.class, Frame.class);
+
+    private static final MethodType STATEMENT = methodType(void.class, Frame.class);
+
+    private static final MethodType DOUBLE_UNARY = methodType(double.class, double.class);
+
+    private static final MethodType DOUBLE_BINARY = methodType(double.class, double.class, double.class);
+
+    private static final MethodType INT_UNARY = methodType(int.class, int.class);
+
+    private static final MethodType INT_BINARY = methodType(int.class, int.class, int.class);
+
+    private static final Asinh ARSINH = new Asinh();
+
+    private static final Acosh ARCOSH = new Acosh();
+
+    private static final Atanh ARTANH = new Atanh();
+
+    private static final MethodHandle NOTHING = helper("nothing", STATEMENT);
+
+    private static final MethodHandle DOUBLE_ADD = helper("add", DOUBLE_BINARY);
+
+    private static final MethodHandle DOUBLE_SUBTRACT = helper("subtract", DOUBLE_BINARY);
+
+    private static final MethodHandle DOUBLE_MULTIPLY = helper("multiply", DOUBLE_BINARY);
+
+    private static final MethodHandle DOUBLE_DIVIDE = helper("divide", DOUBLE_BINARY);
+
+    private static final MethodHandle DOUBLE_POW = math("pow", DOUBLE_BINARY);
+
+    private static final MethodHandle DOUBLE_NEGATE = helper("negate", DOUBLE_UNARY);
+
+    private static final MethodHandle INT_ADD = helper("add", INT_BINARY);
+
+    private static final MethodHandle INT_SUBTRACT = helper("subtract", INT_BINARY);
+
+    private static final MethodHandle INT_MULTIPLY = helper("multiply", INT_BINARY);
+
+    private static final MethodHandle INT_POW = helper("pow", INT_BINARY);
+
+    private static final MethodHandle INT_NEGATE = helper("negate", INT_UNARY);
+
+    private static final MethodHandle BINOMIAL = helper("binomial", INT_BINARY);
+
+    private static final MethodHandle FACULTY = helper("faculty", INT_UNARY);
+
+    private static final MethodHandle ROUND = helper("round", methodType(int.class, double.class));
+
+    private static final MethodHandle ALTERNATING_SIGN = helper("alternatingSign", INT_UNARY);
+
+    private static final MethodHandle ABS = math("abs", DOUBLE_UNARY);
+
+    private static final MethodHandle ACOS = math("acos", DOUBLE_UNARY);
+
+    private static final MethodHandle ASIN = math("asin", DOUBLE_UNARY);
+
+    private static final MethodHandle ATAN = math("atan", DOUBLE_UNARY);
+
+    private static final MethodHandle COS = math("cos", DOUBLE_UNARY);
+
+    private static final MethodHandle COSH = math("cosh", DOUBLE_UNARY);
+
+    private static final MethodHandle EXP = math("exp", DOUBLE_UNARY);
+
+    private static final MethodHandle LOG = math("log", DOUBLE_UNARY);
+
+    private static final MethodHandle SIN = math("sin", DOUBLE_UNARY);
+
+    private static final MethodHandle SINH = math("sinh", DOUBLE_UNARY);
+
+    private static final MethodHandle SQRT = math("sqrt", DOUBLE_UNARY);
+
+    private static final MethodHandle TAN = math("tan", DOUBLE_UNARY);
+
+    private static final MethodHandle TANH = math("tanh", DOUBLE_UNARY);
+
+    private static final MethodHandle ARSINH_VALUE = helper("arsinh", DOUBLE_UNARY);
+
+    private static final MethodHandle ARCOSH_VALUE = helper("arcosh", DOUBLE_UNARY);
+
+    private static final MethodHandle ARTANH_VALUE = helper("artanh", DOUBLE_UNARY);
+
+    private static final MethodHandle P = helper("p", methodType(double.class, int.class, Frame.class));
+
+    private static final MethodHandle X = helper("x", methodType(double.class, int.class, Frame.class));
+
+    private static final MethodHandle P_AT = helper("pAt", methodType(double.class, int.class, Frame.class));
+
+    private static final MethodHandle X_AT = helper("xAt", methodType(double.class, int.class, Frame.class));
+
+    private static final MethodHandle GET_DOUBLE = helper("getDouble",
+            methodType(double.class, int.class, Frame.class));
+
+    private static final MethodHandle GET_INT = helper("getInt", methodType(int.class, int.class, Frame.class));
+
+    private static final MethodHandle SET_DOUBLE = helper("setDouble",
+            methodType(double.class, double.class, int.class, Frame.class));
+
+    private static final MethodHandle SET_INT = helper("setInt",
+            methodType(int.class, int.class, int.class, Frame.class));
+
+    private static final MethodHandle SET_Y = helper("setY",
+            methodType(void.class, double.class, int.class, Frame.class));
+
+    private static final MethodHandle IS_LESS = helper("isLess",
+            methodType(boolean.class, int.class, int.class, Frame.class));
+
+    private static final MethodHandle DOUBLE_TABLE = helper("table",
+            methodType(double.class, double[].class, int.class, int.class, Frame.class));
+
+    private static final MethodHandle INT_TABLE = helper("table",
+            methodType(int.class, int[].class, int.class, int.class, Frame.class));
+
+    private static final MethodHandle HORNER = helper("horner",
+            methodType(double.class, double[].class, MethodHandle.class, double.class, Frame.class));
+
+    private static final MethodHandle HORNER_POWER = helper("horner",
+            methodType(double.class, double[].class, double.class, MethodHandle.class, double.class, Frame.class));
+
+    private static final MethodHandle MARKOV_SHIFT = helper("markovShift",
+            methodType(void.class, int.class, Frame.class));
+
+    private static final MethodHandle DOUBLE_SUM_PRODUCT = helper("sumProduct",
+            methodType(double.class, MethodHandle.class, MethodHandle.class, MethodHandle.class, MethodHandle.class,
+                    MethodHandle.class, MethodHandle.class, double.class, boolean.class, int.class, Frame.class));
+
+    private static final MethodHandle INT_SUM_PRODUCT = helper("sumProduct",
+            methodType(int.class, MethodHandle.class, MethodHandle.class, MethodHandle.class, MethodHandle.class,
+                    MethodHandle.class, MethodHandle.class, int.class, boolean.class, int.class, Frame.class));
+
+    private static final MethodHandle FUSED_LOOP = helper("fusedLoop",
+            methodType(void.class, MethodHandle.class, MethodHandle.class, MethodHandle.class, MethodHandle.class,
+                    MethodHandle.class, MethodHandle.class, MethodHandle.class, int.class, Frame.class));
+
+    private static final MethodHandle FOR_LOOP = helper("forLoop",
+            methodType(void.class, MethodHandle.class, MethodHandle.class, MethodHandle.class, MethodHandle.class,
+                    MethodHandle.class, int.class, Frame.class));
+
+    private static final MethodHandle GEOMETRIC_SUM = helper("geometricSum",
+            methodType(double.class, MethodHandle.class, MethodHandle.class, MethodHandle.class, MethodHandle.class,
+                    MethodHandle.class, MethodHandle.class, MethodHandle.class, int.class, Frame.class));
+
+    private static final MethodHandle DOUBLE_ARITHMETIC_SUM = helper("arithmeticSum",
+            methodType(double.class, MethodHandle.class, MethodHandle.class, MethodHandle.class, MethodHandle.class,
+                    MethodHandle.class, MethodHandle.class, MethodHandle.class, int.class, Frame.class));
+
+    private static final MethodHandle INT_ARITHMETIC_SUM = helper("intArithmeticSum",
+            methodType(int.class, MethodHandle.class, MethodHandle.class, MethodHandle.class, MethodHandle.class,
+                    MethodHandle.class, MethodHandle.class, int.class, Frame.class));
+
+    private final LocalVariables localVariables;
+
+    /**
+     * The values of the precomputed expressions by index: a Double, an Integer,
+     * a double[] or an int[].
+     */
+    private final Map<Integer, Object> precomputed = new HashMap<>();
+
+    MethodHandleVisitor(LocalVariables localVariables) {
+        this.localVariables = localVariables;
+    }
+
+    private static MethodHandle helper(String name, MethodType type) {
+        return findStatic(MethodHandleVisitor.class, name, type);
+    }
+
+    private static MethodHandle math(String name, MethodType type) {
+        return findStatic(Math.class, name, type);
+    }
+
+    private static MethodHandle findStatic(Class<?> clazz, String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(clazz, name, type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(format("Cannot find method %s.%s%s", clazz.getName(), name, type), e);
+        }
+    }
+
+    /**
+     * The handles are invoked exactly, so every checked exception is one that
+     * cannot occur.
+     */
+    static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    /*
+     * Combinators
+     */
+
+    private static boolean isInt(MethodHandle handle) {
+        return handle.type().returnType() == int.class;
+    }
+
+    private static MethodHandle asDouble(MethodHandle handle) {
+        return isInt(handle) ? handle.asType(DOUBLE_NODE) : handle;
+    }
+
+    private static MethodHandle asInt(MethodHandle handle) {
+        if (!isInt(handle)) {
+            throw new IllegalStateException("An int expression must not evaluate to a double");
+        }
+        return handle;
+    }
+
+    private static MethodHandle constantNode(double value) {
+        return dropArguments(constant(double.class, value), 0, Frame.class);
+    }
+
+    private static MethodHandle constantNode(int value) {
+        return dropArguments(constant(int.class, value), 0, Frame.class);
+    }
+
+    /**
+     * Applies a function to the value of an expression.
+     */
+    private static MethodHandle apply(MethodHandle function, MethodHandle operand) {
+        return filterReturnValue(operand, function);
+    }
+
+    /**
+     * Applies a function to the values of two expressions, which are evaluated
+     * from left to right.
+     */
+    private static MethodHandle apply(MethodHandle function, MethodHandle left, MethodHandle right) {
+        return foldArguments(filterArguments(function, 1, right), left);
+    }
+
+    /**
+     * Binds the leading arguments of a method whose last parameter is the frame.
+     */
+    private static MethodHandle bind(MethodHandle method, Object... values) {
+        return insertArguments(method, 0, values);
+    }
+
+    /**
+     * Passes the value of an expression as the first argument to a handle which
+     * takes the frame as its only other argument.
+     */
+    private static MethodHandle fold(MethodHandle target, MethodHandle operand) {
+        return foldArguments(target, operand);
+    }
+
+    /**
+     * Stores the value of an expression at an index, by a method which takes the
+     * value, the index and the frame.
+     */
+    private static MethodHandle set(MethodHandle setter, int index, MethodHandle value) {
+        return foldArguments(insertArguments(setter, 1, index), value);
+    }
+
+    private static MethodHandle sequence(List<MethodHandle> statements) {
+        if (statements.isEmpty()) {
+            return NOTHING;
+        }
+        MethodHandle sequence = statements.get(statements.size() - 1);
+        for (int i = statements.size() - 2; i >= 0; i--) {
+            sequence = foldArguments(sequence, statements.get(i));
+        }
+        return sequence;
+    }
+
+    private static MethodHandle binary(MethodHandle left, MethodHandle right, MethodHandle doubleFunction,
+                                       MethodHandle intFunction) {
+        if (intFunction != null && isInt(left) && isInt(right)) {
+            return apply(intFunction, left, right);
+        }
+        return apply(doubleFunction, asDouble(left), asDouble(right));
+    }
+
+    private int intVarIndex(String variableName) {
+        return localVariables.getIndexForIntVar(new IntVar(variableName));
+    }
+
+    /**
+     * Stores the value of an expression into the local variable of a shared
+     * variable, and returns it.
+     */
+    private MethodHandle store(SharedVar sharedVar, MethodHandle expression) {
+        int index = localVariables.getIndexForSharedVar(sharedVar);
+        if (sharedVar.evaluatesToDouble()) {
+            return set(SET_DOUBLE, index, asDouble(expression));
+        } else {
+            return set(SET_INT, index, asInt(expression));
+        }
+    }
+
+    private static MethodHandle statement(MethodHandle expression) {
+        return expression.asType(STATEMENT);
+    }
+
+    private MethodHandle invariants(List<SharedExpression> invariants) {
+        List<MethodHandle> statements = new ArrayList<>();
+        for (SharedExpression invariant : invariants) {
+            statements.add(statement(store(invariant.getSharedVar(), invariant.acceptExpression(this))));
+        }
+        return sequence(statements);
+    }
+
+    private MethodHandle firstRecurrences(List<Recurrence> recurrences) {
+        List<MethodHandle> statements = new ArrayList<>();
+        for (Recurrence recurrence : recurrences) {
+            statements.add(statement(store(recurrence.getSharedVar(), recurrence.acceptFirst(this))));
+        }
+        return sequence(statements);
+    }
+
+    /**
+     * The next values of the recurrences, or the first values, as long as the
+     * loop variable is less than the one from which on a recurrence is valid.
+     */
+    private MethodHandle nextRecurrences(List<Recurrence> recurrences, int intVarIndex) {
+        List<MethodHandle> statements = new ArrayList<>();
+        for (Recurrence recurrence : recurrences) {
+            MethodHandle next = statement(store(recurrence.getSharedVar(), recurrence.acceptNext(this)));
+            if (recurrence.isGuarded()) {
+                MethodHandle first = statement(store(recurrence.getSharedVar(), recurrence.acceptFirst(this)));
+                statements.add(guardWithTest(bind(IS_LESS, intVarIndex, recurrence.getFrom()), first, next));
+            } else {
+                statements.add(next);
+            }
+        }
+        return sequence(statements);
+    }
+
+    /*
+     * Expressions
+     */
+
+    @Override
+    public MethodHandle visit(Abs abs) {
+        return apply(ABS, asDouble(abs.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Addition addition) {
+        return binary(addition.acceptLeft(this), addition.acceptRight(this), DOUBLE_ADD, INT_ADD);
+    }
+
+    @Override
+    public MethodHandle visit(Arccos arccos) {
+        return apply(ACOS, asDouble(arccos.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Arcosh arcosh) {
+        return apply(ARCOSH_VALUE, asDouble(arcosh.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Arcsin arcsin) {
+        return apply(ASIN, asDouble(arcsin.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Arctan arctan) {
+        return apply(ATAN, asDouble(arctan.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Arsinh arsinh) {
+        return apply(ARSINH_VALUE, asDouble(arsinh.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Artanh artanh) {
+        return apply(ARTANH_VALUE, asDouble(artanh.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Binomial binomial) {
+        MethodHandle n = asInt(binomial.acceptN(this));
+        MethodHandle k = asInt(binomial.acceptK(this));
+        return apply(BINOMIAL, n, k);
+    }
+
+    @Override
+    public MethodHandle visit(Faculty faculty) {
+        return apply(FACULTY, asInt(faculty.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Constant constant) {
+        switch (constant) {
+            case PI:
+                return constantNode(Math.PI);
+            case E:
+                return constantNode(Math.E);
+            case BOLTZMANN:
+                return constantNode(1.38064852e-23);
+            default:
+                throw new IllegalStateException(format("Unrecognized constant: %s", constant.name()));
+        }
+    }
+
+    @Override
+    public MethodHandle visit(Cos cos) {
+        return apply(COS, asDouble(cos.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Cosh cosh) {
+        return apply(COSH, asDouble(cosh.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Division division) {
+        return binary(division.acceptLeft(this), division.acceptRight(this), DOUBLE_DIVIDE, null);
+    }
+
+    @Override
+    public MethodHandle visit(Exp exp) {
+        return apply(EXP, asDouble(exp.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Int i) {
+        return constantNode(i.getValue());
+    }
+
+    @Override
+    public MethodHandle visit(Doub doub) {
+        return constantNode(doub.getValue());
+    }
+
+    @Override
+    public MethodHandle visit(Sqrt sqrt) {
+        return apply(SQRT, asDouble(sqrt.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(NoOp noOp) {
+        throw new IllegalStateException("NoOp must not be used");
+    }
+
+    @Override
+    public MethodHandle visit(Ln ln) {
+        return apply(LOG, asDouble(ln.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Multiplication multiplication) {
+        return binary(multiplication.acceptLeft(this), multiplication.acceptRight(this), DOUBLE_MULTIPLY,
+                INT_MULTIPLY);
+    }
+
+    @Override
+    public MethodHandle visit(Parenthesis parenthesis) {
+        return parenthesis.acceptExpression(this);
+    }
+
+    @Override
+    public MethodHandle visit(Power power) {
+        return binary(power.acceptLeft(this), power.acceptRight(this), DOUBLE_POW, INT_POW);
+    }
+
+    @Override
+    public MethodHandle visit(Round round) {
+        return apply(ROUND, asDouble(round.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Sin sin) {
+        return apply(SIN, asDouble(sin.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Sinh sinh) {
+        return apply(SINH, asDouble(sinh.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Subtraction subtraction) {
+        return binary(subtraction.acceptLeft(this), subtraction.acceptRight(this), DOUBLE_SUBTRACT, INT_SUBTRACT);
+    }
+
+    @Override
+    public MethodHandle visit(Tan tan) {
+        return apply(TAN, asDouble(tan.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Tanh tanh) {
+        return apply(TANH, asDouble(tanh.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Variable variable) {
+        return indexed(variable, X, X_AT);
+    }
+
+    @Override
+    public MethodHandle visit(Parameter parameter) {
+        return indexed(parameter, P, P_AT);
+    }
+
+    private MethodHandle indexed(IndexedExpression indexedExpression, MethodHandle get, MethodHandle getAt) {
+
+        IntExpression indexExpression = indexedExpression.getIndexExpression();
+
+        if (indexExpression == null) {
+            return bind(get, indexedExpression.getIndex());
+        }
+
+        return fold(getAt, asInt(indexExpression.accept(this)));
+    }
+
+    @Override
+    public MethodHandle visit(Neg neg) {
+        MethodHandle expression = neg.acceptExpression(this);
+        return apply(isInt(expression) ? INT_NEGATE : DOUBLE_NEGATE, expression);
+    }
+
+    @Override
+    public MethodHandle visit(Pos pos) {
+        return pos.acceptExpression(this);
+    }
+
+    @Override
+    public MethodHandle visit(IntVar intVar) {
+        return bind(GET_INT, localVariables.getIndexForIntVar(intVar));
+    }
+
+    @Override
+    public MethodHandle visit(AuxVar auxVar) {
+        return bind(GET_DOUBLE, localVariables.getIndexForAuxVar(auxVar));
+    }
+
+    @Override
+    public MethodHandle visit(SharedExpression sharedExpression) {
+        return store(sharedExpression.getSharedVar(), sharedExpression.acceptExpression(this));
+    }
+
+    @Override
+    public MethodHandle visit(SharedVar sharedVar) {
+        int index = localVariables.getIndexForSharedVar(sharedVar);
+        return bind(sharedVar.evaluatesToDouble() ? GET_DOUBLE : GET_INT, index);
+    }
+
+    @Override
+    public MethodHandle visit(AlternatingSign alternatingSign) {
+        MethodHandle sign = apply(ALTERNATING_SIGN, asInt(alternatingSign.acceptExpression(this)));
+        return alternatingSign.evaluatesToDouble() ? asDouble(sign) : sign;
+    }
+
+    /*
+     * Loops
+     */
+
+    /**
+     * Like the generated code, the loop variable lives in its local variable, and
+     * the invariants are evaluated even if the loop does not iterate at all.
+     */
+    private MethodHandle sumProduct(AbstractSumProduct loop, boolean product) {
+
+        MethodHandle start = asInt(loop.acceptStart(this));
+        MethodHandle end = asInt(loop.acceptEnd(this));
+        int index = intVarIndex(loop.getVariableName());
+        MethodHandle invariants = invariants(loop.getInvariants());
+        MethodHandle first = firstRecurrences(loop.getRecurrences());
+        MethodHandle next = nextRecurrences(loop.getRecurrences(), index);
+        MethodHandle inner = loop.acceptInner(this);
+
+        if (loop.evaluatesToDouble()) {
+            return bind(DOUBLE_SUM_PRODUCT, start, end, invariants, first, next, asDouble(inner),
+                    product ? 1d : 0d, product, index);
+        }
+
+        return bind(INT_SUM_PRODUCT, start, end, invariants, first, next, asInt(inner), product ? 1 : 0, product,
+                index);
+    }
+
+    @Override
+    public MethodHandle visit(Sum sum) {
+        return sumProduct(sum, false);
+    }
+
+    @Override
+    public MethodHandle visit(Prod prod) {
+        return sumProduct(prod, true);
+    }
+
+    /**
+     * Like a sum or a product, but the accumulators are the local variables of
+     * the shared variables of the loops, and each iteration evaluates the inner
+     * expressions of all loops, one after another.
+     */
+    @Override
+    public MethodHandle visit(FusedLoop fusedLoop) {
+
+        List<AbstractSumProduct> loops = fusedLoop.getLoops();
+        List<SharedVar> sharedVars = fusedLoop.getSharedVars();
+        int index = intVarIndex(fusedLoop.getVariableName());
+
+        MethodHandle start = asInt(fusedLoop.acceptStart(this));
+        MethodHandle end = asInt(fusedLoop.acceptEnd(this));
+
+        List<MethodHandle> inits = new ArrayList<>();
+        List<MethodHandle> accumulations = new ArrayList<>();
+        List<SharedExpression> invariantList = new ArrayList<>();
+        List<Recurrence> recurrenceList = new ArrayList<>();
+
+        for (int i = 0; i < loops.size(); i++) {
+            AbstractSumProduct loop = loops.get(i);
+            boolean product = loop instanceof Prod;
+            SharedVar sharedVar = sharedVars.get(i);
+            MethodHandle accumulator = visit(sharedVar);
+            MethodHandle inner = loop.acceptInner(this);
+            if (loop.evaluatesToDouble()) {
+                inits.add(statement(store(sharedVar, constantNode(product ? 1d : 0d))));
+                accumulations.add(statement(store(sharedVar, apply(product ? DOUBLE_MULTIPLY : DOUBLE_ADD,
+                        asDouble(inner), accumulator))));
+            } else {
+                inits.add(statement(store(sharedVar, constantNode(product ? 1 : 0))));
+                accumulations.add(statement(store(sharedVar, apply(product ? INT_MULTIPLY : INT_ADD,
+                        asInt(inner), accumulator))));
+            }
+            invariantList.addAll(loop.getInvariants());
+            recurrenceList.addAll(loop.getRecurrences());
+        }
+
+        MethodHandle loop = bind(FUSED_LOOP, start, end, sequence(inits), invariants(invariantList),
+                firstRecurrences(recurrenceList), nextRecurrences(recurrenceList, index), sequence(accumulations),
+                index);
+
+        // The value of the first loop is the value of the expression
+        return foldArguments(visit(sharedVars.get(0)), loop);
+    }
+
+    /**
+     * The number of terms is computed as a long, since <code>end - start + 1</code>
+     * might not fit into an int. The first term is the inner expression, evaluated
+     * like in the first iteration of the sum.
+     */
+    @Override
+    public MethodHandle visit(ClosedFormSum closedFormSum) {
+
+        Sum sum = closedFormSum.getSum();
+        int index = intVarIndex(sum.getVariableName());
+
+        MethodHandle start = asInt(sum.acceptStart(this));
+        MethodHandle end = asInt(sum.acceptEnd(this));
+        MethodHandle invariants = invariants(sum.getInvariants());
+        MethodHandle first = firstRecurrences(sum.getRecurrences());
+        MethodHandle inner = sum.acceptInner(this);
+        MethodHandle step = closedFormSum.acceptStep(this);
+
+        if (closedFormSum.getKind() == ClosedFormSum.Kind.GEOMETRIC) {
+            MethodHandle loop = asDouble(sum.accept(this));
+            return bind(GEOMETRIC_SUM, start, end, invariants, first, asDouble(inner), asDouble(step), loop, index);
+        } else if (closedFormSum.evaluatesToDouble()) {
+            MethodHandle loop = asDouble(sum.accept(this));
+            return bind(DOUBLE_ARITHMETIC_SUM, start, end, invariants, first, asDouble(inner), asDouble(step),
+                    loop, index);
+        } else {
+            return bind(INT_ARITHMETIC_SUM, start, end, invariants, first, asInt(inner), asInt(step), index);
+        }
+    }
+
+    /**
+     * A precomputed expression is computed once, while the handle is assembled,
+     * like the generated code computes it when its class is initialized. A table
+     * gets one value for each value of the integer variable, from start to end.
+     */
+    @Override
+    public MethodHandle visit(Precomputed p) {
+
+        Object value = precomputed(p);
+
+        if (!p.isTable()) {
+            if (p.evaluatesToDouble()) {
+                return constantNode((Double) value);
+            } else {
+                return constantNode((Integer) value);
+            }
+        }
+
+        int index = intVarIndex(p.getVariableName());
+
+        if (p.evaluatesToDouble()) {
+            return bind(DOUBLE_TABLE, value, p.getStart(), index);
+        } else {
+            return bind(INT_TABLE, value, p.getStart(), index);
+        }
+    }
+
+    private Object precomputed(Precomputed p) {
+        Object value = precomputed.get(p.getIndex());
+        if (value == null) {
+            value = precompute(p);
+            precomputed.put(p.getIndex(), value);
+        }
+        return value;
+    }
+
+    private Object precompute(Precomputed p) {
+
+        MethodHandle expression = p.acceptExpression(this);
+        Frame frame = new Frame(localVariables.getMaxLocals());
+
+        try {
+
+            if (!p.isTable()) {
+                if (p.evaluatesToDouble()) {
+                    return (double) asDouble(expression).invokeExact(frame);
+                } else {
+                    return (int) asInt(expression).invokeExact(frame);
+                }
+            }
+
+            int index = intVarIndex(p.getVariableName());
+            int length = p.getEnd() - p.getStart() + 1;
+
+            if (p.evaluatesToDouble()) {
+                MethodHandle node = asDouble(expression);
+                double[] table = new double[length];
+                for (int i = 0; i < length; i++) {
+                    frame.ints[index] = p.getStart() + i;
+                    table[i] = (double) node.invokeExact(frame);
+                }
+                return table;
+            } else {
+                MethodHandle node = asInt(expression);
+                int[] table = new int[length];
+                for (int i = 0; i < length; i++) {
+                    frame.ints[index] = p.getStart() + i;
+                    table[i] = (int) node.invokeExact(frame);
+                }
+                return table;
+            }
+
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * The Horner scheme runs from the last coefficient down to the first one. If
+     * the result is not finite, the sum is evaluated instead.
+     */
+    @Override
+    public MethodHandle visit(Polynomial polynomial) {
+
+        Precomputed coefficients = polynomial.getCoefficients();
+        double power = coefficients.getStart() + polynomial.getOffset();
+
+        MethodHandle variable = asDouble(polynomial.acceptVariable(this));
+        Object value = precomputed(coefficients);
+
+        double[] table;
+        if (value instanceof int[]) {
+            int[] ints = (int[]) value;
+            table = new double[ints.length];
+            for (int i = 0; i < ints.length; i++) {
+                table[i] = ints[i];
+            }
+        } else {
+            table = (double[]) value;
+        }
+
+        MethodHandle loop = asDouble(polynomial.getSum().accept(this));
+
+        if (power == 0) {
+            return fold(bind(HORNER, table, loop), variable);
+        }
+
+        return fold(bind(HORNER_POWER, table, power, loop), variable);
+    }
+
+    /*
+     * Statements
+     */
+
+    @Override
+    public MethodHandle visit(FunctionDefinition functionDefinition) {
+        return functionDefinition.getFunctionBody().accept(this);
+    }
+
+    @Override
+    public MethodHandle visit(FunctionBody functionBody) {
+
+        if (functionBody.isForLoop()) {
+            return functionBody.getForLoop().accept(this);
+        } else {
+            return functionBody.getFunctionsWrapper().accept(this);
+        }
+    }
+
+    @Override
+    public MethodHandle visit(FunctionsWrapper functionsWrapper) {
+
+        List<MethodHandle> statements = new ArrayList<>();
+
+        functionsWrapper.getAuxiliaryVariables().forEach(av -> statements.add(av.accept(this)));
+
+        functionsWrapper.getFunctions().forEach(f -> statements.add(f.accept(this)));
+
+        functionsWrapper.<MethodHandle>acceptMarkovShift(this).ifPresent(statements::add);
+
+        return sequence(statements);
+    }
+
+    @Override
+    public MethodHandle visit(ForLoop forLoop) {
+
+        int index = intVarIndex(forLoop.getVariableName());
+
+        MethodHandle start = asInt(forLoop.acceptStart(this));
+        MethodHandle end = asInt(forLoop.acceptEnd(this));
+        MethodHandle step = asInt(forLoop.acceptStep(this));
+        MethodHandle invariants = invariants(forLoop.getInvariants());
+        MethodHandle body = forLoop.acceptFunctionsWrapper(this);
+
+        return bind(FOR_LOOP, start, end, step, invariants, body, index);
+    }
+
+    @Override
+    public MethodHandle visit(Function function) {
+        return set(SET_Y, function.getIndex(), asDouble(function.acceptExpression(this)));
+    }
+
+    @Override
+    public MethodHandle visit(AuxiliaryVariable auxiliaryVariable) {
+        int index = localVariables.getIndexForAuxVar(auxiliaryVariable.getAuxVar());
+        MethodHandle inner = asDouble(auxiliaryVariable.acceptInner(this));
+        return statement(set(SET_DOUBLE, index, inner));
+    }
+
+    @Override
+    public MethodHandle visit(MarkovShift markovShift) {
+        return fold(MARKOV_SHIFT, asInt(markovShift.getOffset().accept(this)));
+    }
+
+    /*
+     * The methods the handles are bound to
+     */
+
+    private static void nothing(Frame frame) {
+    }
+
+    private static double add(double a, double b) {
+        return a + b;
+    }
+
+    private static double subtract(double a, double b) {
+        return a - b;
+    }
+
+    private static double multiply(double a, double b) {
+        return a * b;
+    }
+
+    private static double divide(double a, double b) {
+        return a / b;
+    }
+
+    private static double negate(double a) {
+        return -a;
+    }
+
+    private static int add(int a, int b) {
+        return a + b;
+    }
+
+    private static int subtract(int a, int b) {
+        return a - b;
+    }
+
+    private static int multiply(int a, int b) {
+        return a * b;
+    }
+
+    private static int pow(int a, int b) {
+        return (int) Math.pow(a, b);
+    }
+
+    private static int negate(int a) {
+        return -a;
+    }
+
+    private static int binomial(int n, int k) {
+        return (int) binomialCoefficient(n, k);
+    }
+
+    private static int faculty(int n) {
+        return (int) factorial(n);
+    }
+
+    private static int round(double a) {
+        return (int) Math.round(a);
+    }
+
+    // 1 - 2 * (n & 1), which is correct for negative n, too
+    private static int alternatingSign(int n) {
+        return 1 - ((n & 1) << 1);
+    }
+
+    private static double arsinh(double a) {
+        return ARSINH.value(a);
+    }
+
+    private static double arcosh(double a) {
+        return ARCOSH.value(a);
+    }
+
+    private static double artanh(double a) {
+        return ARTANH.value(a);
+    }
+
+    private static double p(int index, Frame frame) {
+        return frame.p[index];
+    }
+
+    private static double x(int index, Frame frame) {
+        return frame.x[index];
+    }
+
+    private static double pAt(int index, Frame frame) {
+        return frame.p[index - 1];
+    }
+
+    private static double xAt(int index, Frame frame) {
+        return frame.x[index - 1];
+    }
+
+    private static double getDouble(int index, Frame frame) {
+        return frame.doubles[index];
+    }
+
+    private static int getInt(int index, Frame frame) {
+        return frame.ints[index];
+    }
+
+    private static double setDouble(double value, int index, Frame frame) {
+        frame.doubles[index] = value;
+        return value;
+    }
+
+    private static int setInt(int value, int index, Frame frame) {
+        frame.ints[index] = value;
+        return value;
+    }
+
+    private static void setY(double value, int index, Frame frame) {
+        frame.y[index] = value;
+    }
+
+    private static boolean isLess(int index, int value, Frame frame) {
+        return frame.ints[index] < value;
+    }
+
+    private static double table(double[] table, int start, int index, Frame frame) {
+        return table[frame.ints[index] - start];
+    }
+
+    private static int table(int[] table, int start, int index, Frame frame) {
+        return table[frame.ints[index] - start];
+    }
+
+    private static double horner(double[] table, double v) {
+        int last = table.length - 1;
+        double acc = table[last];
+        for (int i = last - 1; i >= 0; i--) {
+            acc = acc * v + table[i];
+        }
+        return acc;
+    }
+
+    private static double horner(double[] table, MethodHandle loop, double v, Frame frame) throws Throwable {
+        return finiteOrLoop(horner(table, v), loop, frame);
+    }
+
+    private static double horner(double[] table, double power, MethodHandle loop, double v, Frame frame)
+            throws Throwable {
+        return finiteOrLoop(horner(table, v) * Math.pow(v, power), loop, frame);
+    }
+
+    private static void markovShift(int offset, Frame frame) {
+
+        double[] x = frame.x;
+        double[] y = frame.y;
+        int m = y.length;
+        int n = x.length;
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        if (n - offset < m) {
+            throw new IllegalArgumentException("x.lenth - offset must be greater or equal than y.length");
+        }
+
+        // Move to the right
+        for (int i = n - 1; i >= offset + m; i--) {
+            x[i] = x[i - m];
+        }
+
+        // Copy f into x
+        System.arraycopy(y, 0, x, offset, m);
+    }
+
+    private static double sumProduct(MethodHandle start, MethodHandle end, MethodHandle invariants,
+                                     MethodHandle first, MethodHandle next, MethodHandle term, double acc,
+                                     boolean product, int index, Frame frame) throws Throwable {
+        int[] ints = frame.ints;
+        ints[index] = (int) start.invokeExact(frame);
+        int last = (int) end.invokeExact(frame);
+        invariants.invokeExact(frame);
+        if (ints[index] > last) {
+            return acc;
+        }
+        first.invokeExact(frame);
+        acc = product ? (double) term.invokeExact(frame) * acc : (double) term.invokeExact(frame) + acc;
+        while (++ints[index] <= last) {
+            next.invokeExact(frame);
+            acc = product ? (double) term.invokeExact(frame) * acc : (double) term.invokeExact(frame) + acc;
+        }
+        return acc;
+    }
+
+    private static int sumProduct(MethodHandle start, MethodHandle end, MethodHandle invariants,
+                                  MethodHandle first, MethodHandle next, MethodHandle term, int acc,
+                                  boolean product, int index, Frame frame) throws Throwable {
+        int[] ints = frame.ints;
+        ints[index] = (int) start.invokeExact(frame);
+        int last = (int) end.invokeExact(frame);
+        invariants.invokeExact(frame);
+        if (ints[index] > last) {
+            return acc;
+        }
+        first.invokeExact(frame);
+        acc = product ? (int) term.invokeExact(frame) * acc : (int) term.invokeExact(frame) + acc;
+        while (++ints[index] <= last) {
+            next.invokeExact(frame);
+            acc = product ? (int) term.invokeExact(frame) * acc : (int) term.invokeExact(frame) + acc;
+        }
+        return acc;
+    }
+
+    private static void fusedLoop(MethodHandle start, MethodHandle end, MethodHandle init, MethodHandle invariants,
+                                  MethodHandle first, MethodHandle next, MethodHandle body, int index,
+                                  Frame frame) throws Throwable {
+        int[] ints = frame.ints;
+        ints[index] = (int) start.invokeExact(frame);
+        int last = (int) end.invokeExact(frame);
+        init.invokeExact(frame);
+        invariants.invokeExact(frame);
+        if (ints[index] > last) {
+            return;
+        }
+        first.invokeExact(frame);
+        body.invokeExact(frame);
+        while (++ints[index] <= last) {
+            next.invokeExact(frame);
+            body.invokeExact(frame);
+        }
+    }
+
+    private static void forLoop(MethodHandle start, MethodHandle end, MethodHandle step, MethodHandle invariants,
+                                MethodHandle body, int index, Frame frame) throws Throwable {
+
+        int[] ints = frame.ints;
+        ints[index] = (int) start.invokeExact(frame);
+        int last = (int) end.invokeExact(frame);
+        int increment = (int) step.invokeExact(frame);
+
+        invariants.invokeExact(frame);
+
+        if (increment == 0) {
+
+            if (ints[index] != last) {
+                throw new IllegalArgumentException("step must not be 0");
+            }
+            body.invokeExact(frame);
+
+        } else if (increment > 0) {
+
+            while (ints[index] <= last) {
+                body.invokeExact(frame);
+                ints[index] += increment;
+            }
+
+        } else {
+
+            while (ints[index] >= last) {
+                body.invokeExact(frame);
+                ints[index] += increment;
+            }
+        }
+    }
+
+    // first * (ratio^n - 1) / (ratio - 1), unless the ratio is 1 or the closed form is not finite
+    private static double geometricSum(MethodHandle start, MethodHandle end, MethodHandle invariants,
+                                       MethodHandle first, MethodHandle term, MethodHandle ratio,
+                                       MethodHandle loop, int index, Frame frame) throws Throwable {
+        int from = (int) start.invokeExact(frame);
+        frame.ints[index] = from;
+        long n = (long) (int) end.invokeExact(frame) - from + 1;
+        if (n <= 0) {
+            return 0d;
+        }
+        double r = (double) ratio.invokeExact(frame);
+        if (r == 1) {
+            return (double) loop.invokeExact(frame);
+        }
+        double geometric = Series.geometric(r, n);
+        invariants.invokeExact(frame);
+        first.invokeExact(frame);
+        return finiteOrLoop(geometric * (double) term.invokeExact(frame), loop, frame);
+    }
+
+    // n * first + difference * (n * (n - 1) / 2), unless the closed form is not finite
+    private static double arithmeticSum(MethodHandle start, MethodHandle end, MethodHandle invariants,
+                                        MethodHandle first, MethodHandle term, MethodHandle difference,
+                                        MethodHandle loop, int index, Frame frame) throws Throwable {
+        int from = (int) start.invokeExact(frame);
+        frame.ints[index] = from;
+        long n = (long) (int) end.invokeExact(frame) - from + 1;
+        if (n <= 0) {
+            return 0d;
+        }
+        invariants.invokeExact(frame);
+        first.invokeExact(frame);
+        double firstTerm = n * (double) term.invokeExact(frame);
+        return finiteOrLoop(firstTerm + ((n * (n - 1)) >>> 1) * (double) difference.invokeExact(frame), loop,
+                frame);
+    }
+
+    // Like the generated code, -0 is turned into 0
+    private static double finiteOrLoop(double closed, MethodHandle loop, Frame frame) throws Throwable {
+        return Double.isFinite(closed) ? closed + 0d : (double) loop.invokeExact(frame);
+    }
+
+    // The same in int arithmetic, which overflows like the sum
+    private static int intArithmeticSum(MethodHandle start, MethodHandle end, MethodHandle invariants,
+                                        MethodHandle first, MethodHandle term, MethodHandle difference,
+                                        int index, Frame frame) throws Throwable {
+        int from = (int) start.invokeExact(frame);
+        frame.ints[index] = from;
+        long n = (long) (int) end.invokeExact(frame) - from + 1;
+        if (n <= 0) {
+            return 0;
+        }
+        invariants.invokeExact(frame);
+        first.invokeExact(frame);
+        int firstTerm = (int) n * (int) term.invokeExact(frame);
+        return firstTerm + (int) ((n * (n - 1)) >>> 1) * (int) difference.invokeExact(frame);
+    }
+
+}
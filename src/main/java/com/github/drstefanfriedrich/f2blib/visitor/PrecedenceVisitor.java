@@ -243,4 +243,39 @@ public class PrecedenceVisitor implements Visitor {
         throw new IllegalStateException(EXCEPTION_MESSAGE);
     }
 
+    @Override
+    public Integer visit(SharedExpression sharedExpression) {
+        return sharedExpression.acceptExpression(this);
+    }
+
+    @Override
+    public Integer visit(SharedVar sharedVar) {
+        return sharedVar.acceptExpression(this);
+    }
+
+    @Override
+    public Integer visit(AlternatingSign alternatingSign) {
+        return 1;
+    }
+
+    @Override
+    public Integer visit(ClosedFormSum closedFormSum) {
+        return closedFormSum.getSum().accept(this);
+    }
+
+    @Override
+    public Integer visit(Precomputed precomputed) {
+        return precomputed.acceptExpression(this);
+    }
+
+    @Override
+    public Integer visit(Polynomial polynomial) {
+        return polynomial.getSum().accept(this);
+    }
+
+    @Override
+    public Integer visit(FusedLoop fusedLoop) {
+        return fusedLoop.getLoops().get(0).accept(this);
+    }
+
 }
@@ -0,0 +1,300 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Moves work from the evaluation of a function to the initialization of its
+ * class ({@link Precomputed}). Every expression is classified by its
+ * {@link Dependency}:
+ * <ul>
+ * <li>A constant expression, like <code>sum(sin(k) + cos(k), k, 1, 10000)</code>,
+ * is computed once into a static field.</li>
+ * <li>An expression which depends on the integer variable of an enclosing sum or
+ * product with constant bounds only, like <code>binomial(20, k) / k!</code>
+ * within a sum over <code>k</code> from 0 to 20, is computed into a static table
+ * with one value per iteration, if it costs more than loading the value from the
+ * table, and if the table has at most {@value #MAX_TABLE_SIZE} values.</li>
+ * <li>Expressions which depend on <code>p</code> or <code>x</code> are computed
+ * on every evaluation, as before.</li>
+ * </ul>
+ * Only the largest such expressions are precomputed. The values are computed by
+ * the same generated code as before, so they are exactly the same. An expression
+ * which might throw an exception (binomial coefficients and faculties) is only
+ * precomputed if the interpreter computes it without an exception, so that
+ * initializing the class does not fail. Use {@link #precompute(FunctionDefinition)}.
+ */
+public class PrecomputationVisitor extends TransformationVisitor {
+
+    static final int MAX_TABLE_SIZE = 1 << 16;
+
+    /*
+     * The estimated cost of a division; cheaper expressions are not worth a table
+     */
+    private static final long MIN_TABLE_COST = 4;
+
+    private static final TransformationVisitor COPY = new TransformationVisitor();
+
+    /*
+     * The enclosing sums and products with constant bounds, by their integer variable
+     */
+    private final Map<String, AbstractSumProduct> loops = new HashMap<>();
+
+    private int nextIndex;
+
+    private PrecomputationVisitor(int firstIndex) {
+        this.nextIndex = firstIndex;
+    }
+
+    /**
+     * Precomputes the expressions of a function which do not depend on
+     * <code>p</code> and <code>x</code>.
+     *
+     * @param functionDefinition The function.
+     * @return The function with the precomputed expressions.
+     */
+    public static FunctionDefinition precompute(FunctionDefinition functionDefinition) {
+        int firstIndex = 1 + PrecomputedIndexes.max(functionDefinition);
+        return functionDefinition.accept(new PrecomputationVisitor(firstIndex));
+    }
+
+    private Expression precompute(Expression expression, Supplier<Expression> transformation) {
+
+        Dependency dependency = Dependency.of(expression);
+
+        if (dependency == Dependency.CONSTANT && isComputable(expression)) {
+            return new Precomputed(nextIndex++, expression);
+        }
+
+        if (dependency == Dependency.LOOP_INDEX) {
+            Set<String> intVars = References.of(expression).freeIntVars();
+            AbstractSumProduct loop = intVars.size() == 1 ? loops.get(intVars.iterator().next()) : null;
+            if (loop != null && expression.<Long>accept(new CostEstimationVisitor()) > MIN_TABLE_COST) {
+                String variableName = loop.getVariableName();
+                int start = ((Int) loop.acceptStart(COPY)).getValue();
+                int end = ((Int) loop.acceptEnd(COPY)).getValue();
+                if (isComputable(new Sum(expression, variableName, new Int(start), new Int(end)))) {
+                    return new Precomputed(nextIndex++, expression, variableName, start, end);
+                }
+            }
+        }
+
+        return transformation.get();
+    }
+
+    /**
+     * @return true, if the expression can be computed when the class is
+     * initialized, i.e. it does not throw an exception.
+     */
+    static boolean isComputable(Expression expression) {
+
+        if (!References.of(expression).mayThrow) {
+            return true;
+        }
+
+        try {
+            expression.accept(new EvalVisitorImpl(new double[0], new double[0], 0));
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /*
+     * The values of a table are computed in the static initializer, so the
+     * number of iterations must be known when the function is compiled.
+     */
+    private Expression iterate(AbstractSumProduct loop, Supplier<Expression> transformation) {
+
+        Expression start = loop.acceptStart(COPY);
+        Expression end = loop.acceptEnd(COPY);
+
+        if (!(start instanceof Int) || !(end instanceof Int)) {
+            return transformation.get();
+        }
+
+        long size = (long) ((Int) end).getValue() - ((Int) start).getValue() + 1;
+        if (size < 1 || size > MAX_TABLE_SIZE || ((Int) end).getValue() == Integer.MAX_VALUE) {
+            return transformation.get();
+        }
+
+        loops.put(loop.getVariableName(), loop);
+        Expression transformed = transformation.get();
+        loops.remove(loop.getVariableName());
+
+        return transformed;
+    }
+
+    @Override
+    public Expression visit(Sum sum) {
+        return precompute(sum, () -> iterate(sum, () -> super.visit(sum)));
+    }
+
+    @Override
+    public Expression visit(Prod prod) {
+        return precompute(prod, () -> iterate(prod, () -> super.visit(prod)));
+    }
+
+    @Override
+    public Expression visit(Abs abs) {
+        return precompute(abs, () -> super.visit(abs));
+    }
+
+    @Override
+    public Expression visit(Addition addition) {
+        return precompute(addition, () -> super.visit(addition));
+    }
+
+    @Override
+    public Expression visit(Arccos arccos) {
+        return precompute(arccos, () -> super.visit(arccos));
+    }
+
+    @Override
+    public Expression visit(Arcosh arcosh) {
+        return precompute(arcosh, () -> super.visit(arcosh));
+    }
+
+    @Override
+    public Expression visit(Arcsin arcsin) {
+        return precompute(arcsin, () -> super.visit(arcsin));
+    }
+
+    @Override
+    public Expression visit(Arctan arctan) {
+        return precompute(arctan, () -> super.visit(arctan));
+    }
+
+    @Override
+    public Expression visit(Arsinh arsinh) {
+        return precompute(arsinh, () -> super.visit(arsinh));
+    }
+
+    @Override
+    public Expression visit(Artanh artanh) {
+        return precompute(artanh, () -> super.visit(artanh));
+    }
+
+    @Override
+    public Expression visit(Binomial binomial) {
+        return precompute(binomial, () -> super.visit(binomial));
+    }
+
+    @Override
+    public Expression visit(Cos cos) {
+        return precompute(cos, () -> super.visit(cos));
+    }
+
+    @Override
+    public Expression visit(Cosh cosh) {
+        return precompute(cosh, () -> super.visit(cosh));
+    }
+
+    @Override
+    public Expression visit(Division division) {
+        return precompute(division, () -> super.visit(division));
+    }
+
+    @Override
+    public Expression visit(Exp exp) {
+        return precompute(exp, () -> super.visit(exp));
+    }
+
+    @Override
+    public Expression visit(Faculty faculty) {
+        return precompute(faculty, () -> super.visit(faculty));
+    }
+
+    @Override
+    public Expression visit(Ln ln) {
+        return precompute(ln, () -> super.visit(ln));
+    }
+
+    @Override
+    public Expression visit(Multiplication multiplication) {
+        return precompute(multiplication, () -> super.visit(multiplication));
+    }
+
+    @Override
+    public Expression visit(Neg neg) {
+        return precompute(neg, () -> super.visit(neg));
+    }
+
+    @Override
+    public Expression visit(Power power) {
+        return precompute(power, () -> super.visit(power));
+    }
+
+    @Override
+    public Expression visit(Round round) {
+        return precompute(round, () -> super.visit(round));
+    }
+
+    @Override
+    public Expression visit(Sin sin) {
+        return precompute(sin, () -> super.visit(sin));
+    }
+
+    @Override
+    public Expression visit(Sinh sinh) {
+        return precompute(sinh, () -> super.visit(sinh));
+    }
+
+    @Override
+    public Expression visit(Sqrt sqrt) {
+        return precompute(sqrt, () -> super.visit(sqrt));
+    }
+
+    @Override
+    public Expression visit(Subtraction subtraction) {
+        return precompute(subtraction, () -> super.visit(subtraction));
+    }
+
+    @Override
+    public Expression visit(Tan tan) {
+        return precompute(tan, () -> super.visit(tan));
+    }
+
+    @Override
+    public Expression visit(Tanh tanh) {
+        return precompute(tanh, () -> super.visit(tanh));
+    }
+
+    /**
+     * The largest index of a precomputed expression in the AST, or -1.
+     */
+    static class PrecomputedIndexes extends BaseVisitor {
+
+        private int max = -1;
+
+        static int max(ASTElement element) {
+            PrecomputedIndexes precomputedIndexes = new PrecomputedIndexes();
+            element.accept(precomputedIndexes);
+            return precomputedIndexes.max;
+        }
+
+        @Override
+        public <T> T visit(Precomputed precomputed) {
+            max = Math.max(max, precomputed.getIndex());
+            return super.visit(precomputed);
+        }
+
+    }
+
+}
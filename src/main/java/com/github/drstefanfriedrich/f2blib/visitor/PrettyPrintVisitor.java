@@ -533,4 +533,55 @@ public class PrettyPrintVisitor implements Visitor {
         return null;
     }
 
+    @Override
+    public Void visit(SharedExpression sharedExpression) {
+        sharedExpression.acceptExpression(this);
+        return null;
+    }
+
+    @Override
+    public Void visit(SharedVar sharedVar) {
+        sharedVar.acceptExpression(this);
+        return null;
+    }
+
+    @Override
+    public Void visit(AlternatingSign alternatingSign) {
+
+        int precedenceThis = alternatingSign.accept(precedenceVisitor);
+        int precedenceExponent = alternatingSign.acceptExpression(precedenceVisitor);
+
+        pw.print("(-1) ^ ");
+
+        if (precedenceThis < precedenceExponent) {
+            pw.print("(");
+            alternatingSign.acceptExpression(this);
+            pw.print(")");
+        } else {
+            alternatingSign.acceptExpression(this);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visit(ClosedFormSum closedFormSum) {
+        return closedFormSum.getSum().accept(this);
+    }
+
+    @Override
+    public Void visit(Precomputed precomputed) {
+        return precomputed.acceptExpression(this);
+    }
+
+    @Override
+    public Void visit(Polynomial polynomial) {
+        return polynomial.getSum().accept(this);
+    }
+
+    @Override
+    public Void visit(FusedLoop fusedLoop) {
+        return fusedLoop.getLoops().get(0).accept(this);
+    }
+
 }
@@ -0,0 +1,169 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The variables which are read by an expression, or written by a for loop, and
+ * whether the evaluation of an expression might throw an exception.
+ */
+class References extends BaseVisitor {
+
+    final Set<String> intVars = new HashSet<>();
+
+    /*
+     * The integer variables of the sums and products within the expression
+     */
+    final Set<String> boundIntVars = new HashSet<>();
+
+    final Set<String> auxVars = new HashSet<>();
+
+    boolean variables;
+
+    boolean parameters;
+
+    boolean sharedVars;
+
+    boolean mayThrow;
+
+    static References of(Expression expression) {
+        References references = new References();
+        expression.accept(references);
+        return references;
+    }
+
+    static References assignedBy(ForLoop forLoop) {
+
+        References references = new References();
+
+        forLoop.acceptFunctionsWrapper(new BaseVisitor() {
+
+            @Override
+            public <T> T visit(AuxiliaryVariable auxiliaryVariable) {
+                references.auxVars.add(auxiliaryVariable.getAuxVar().getVariableName());
+                return null;
+            }
+
+            @Override
+            public <T> T visit(MarkovShift markovShift) {
+                references.variables = true;
+                return null;
+            }
+
+        });
+
+        return references;
+    }
+
+    /**
+     * @return The integer variables of enclosing sums, products and for loops.
+     */
+    Set<String> freeIntVars() {
+        Set<String> freeIntVars = new HashSet<>(intVars);
+        freeIntVars.removeAll(boundIntVars);
+        return freeIntVars;
+    }
+
+    boolean dependsOn(References assigned) {
+        return variables && assigned.variables || auxVars.stream().anyMatch(assigned.auxVars::contains);
+    }
+
+    @Override
+    public <T> T visit(IntVar intVar) {
+        intVars.add(intVar.getVariableName());
+        return null;
+    }
+
+    @Override
+    public <T> T visit(AuxVar auxVar) {
+        auxVars.add(auxVar.getVariableName());
+        return null;
+    }
+
+    @Override
+    public <T> T visit(Variable variable) {
+        variables = true;
+        if (variable.getIndexExpression() != null) {
+            // The index might be out of bounds
+            mayThrow = true;
+            variable.getIndexExpression().accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public <T> T visit(Parameter parameter) {
+        parameters = true;
+        if (parameter.getIndexExpression() != null) {
+            mayThrow = true;
+            parameter.getIndexExpression().accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public <T> T visit(Sum sum) {
+        boundIntVars.add(sum.getVariableName());
+        return super.visit(sum);
+    }
+
+    @Override
+    public <T> T visit(Prod prod) {
+        boundIntVars.add(prod.getVariableName());
+        return super.visit(prod);
+    }
+
+    @Override
+    public <T> T visit(Precomputed precomputed) {
+        boolean mayThrow = this.mayThrow;
+        precomputed.acceptExpression(this);
+        // Loading a precomputed value does not throw
+        this.mayThrow = mayThrow;
+        return null;
+    }
+
+    /*
+     * Only the coefficients and the variable of a polynomial are evaluated, not its sum
+     */
+    @Override
+    public <T> T visit(Polynomial polynomial) {
+        boundIntVars.add(polynomial.getSum().getVariableName());
+        polynomial.getCoefficients().accept(this);
+        polynomial.acceptVariable(this);
+        return null;
+    }
+
+    @Override
+    public <T> T visit(Binomial binomial) {
+        mayThrow = true;
+        return super.visit(binomial);
+    }
+
+    @Override
+    public <T> T visit(Faculty faculty) {
+        mayThrow = true;
+        return super.visit(faculty);
+    }
+
+    @Override
+    public <T> T visit(SharedVar sharedVar) {
+        sharedVars = true;
+        sharedVar.acceptExpression(this);
+        return null;
+    }
+
+}
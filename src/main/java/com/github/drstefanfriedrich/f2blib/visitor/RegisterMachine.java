@@ -0,0 +1,561 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.impl.Series;
+import org.apache.commons.math3.analysis.function.Acosh;
+import org.apache.commons.math3.analysis.function.Asinh;
+import org.apache.commons.math3.analysis.function.Atanh;
+
+import static java.lang.String.format;
+import static org.apache.commons.math3.util.CombinatoricsUtils.binomialCoefficient;
+import static org.apache.commons.math3.util.CombinatoricsUtils.factorial;
+
+/**
+ * Evaluates a function with the same results as the code generated by
+ * {@link BytecodeVisitorImpl}, but without defining a class. The optimized and
+ * validated abstract syntax tree is compiled once into a linear array of
+ * instructions, which a single loop executes, without any recursion. The
+ * instructions work on two files of registers, one of doubles and one of ints.
+ * The first registers are the local variables of the generated code, see
+ * {@link LocalVariables}; then follow the constants and the temporary values.
+ * Like the local variables of the generated code, every register is written
+ * before it is read, so the registers of a thread are reused without being
+ * cleared, and an evaluation does not allocate any memory.
+ * <p>
+ * An instruction is an opcode followed by its operands; the first operand of an
+ * instruction which computes a value is the register of the result.
+ */
+public final class RegisterMachine {
+
+    // D[a] = p[n], D[a] = p[I[b] - 1], and the same for x
+    static final int LOAD_P = 0;
+    static final int LOAD_P_AT = 1;
+    static final int LOAD_X = 2;
+    static final int LOAD_X_AT = 3;
+
+    // D[a] = doubleTables[n][I[b] - m], I[a] = intTables[n][I[b] - m]
+    static final int DOUBLE_TABLE = 4;
+    static final int INT_TABLE = 5;
+
+    // a = b
+    static final int DOUBLE_MOVE = 6;
+    static final int INT_MOVE = 7;
+    static final int INT_TO_DOUBLE = 8;
+
+    // a = b op c
+    static final int DOUBLE_ADD = 9;
+    static final int DOUBLE_SUB = 10;
+    static final int DOUBLE_MUL = 11;
+    static final int DOUBLE_DIV = 12;
+    static final int DOUBLE_POW = 13;
+    static final int INT_ADD = 14;
+    static final int INT_SUB = 15;
+    static final int INT_MUL = 16;
+    static final int INT_POW = 17;
+
+    // a = op b
+    static final int DOUBLE_NEG = 18;
+    static final int INT_NEG = 19;
+    static final int DOUBLE_ALTERNATING_SIGN = 20;
+    static final int INT_ALTERNATING_SIGN = 21;
+    static final int ROUND = 22;
+    static final int FACULTY = 23;
+    static final int ABS = 24;
+    static final int ARCCOS = 25;
+    static final int ARCOSH = 26;
+    static final int ARCSIN = 27;
+    static final int ARCTAN = 28;
+    static final int ARSINH = 29;
+    static final int ARTANH = 30;
+    static final int COS = 31;
+    static final int COSH = 32;
+    static final int EXP = 33;
+    static final int LN = 34;
+    static final int SIN = 35;
+    static final int SINH = 36;
+    static final int SQRT = 37;
+    static final int TAN = 38;
+    static final int TANH = 39;
+
+    // I[a] = binomial(I[b], I[c])
+    static final int BINOMIAL = 40;
+
+    // y[n] = D[a]
+    static final int STORE_Y = 41;
+
+    // Jump to n: always, if I[a] < I[b], if I[a] > I[b], if I[a] != I[b], if I[a] < m,
+    // if I[a] != 0, if I[a] < 0, if D[a] == D[b], and if ++I[a] <= I[b]
+    static final int GOTO = 42;
+    static final int IF_LESS = 43;
+    static final int IF_GREATER = 44;
+    static final int IF_NOT_EQUAL = 45;
+    static final int IF_LESS_THAN = 46;
+    static final int IF_NOT_ZERO = 47;
+    static final int IF_NEGATIVE = 48;
+    static final int IF_DOUBLE_EQUAL = 49;
+    static final int INCREMENT_IF_NOT_GREATER = 50;
+
+    // throw an exception, since the step of a for loop is 0
+    static final int STEP_ZERO = 51;
+
+    // Markov shift with the offset I[a]
+    static final int MARKOV_SHIFT = 52;
+
+    // Closed form sums with n = I[c] - I[b] + 1 terms, the first term in d and the difference or ratio in e;
+    // a closed form of doubles which is not finite is not stored, but the sum is evaluated by the loop at m
+    static final int DOUBLE_ARITHMETIC = 53;
+    static final int INT_ARITHMETIC = 54;
+    static final int GEOMETRIC = 55;
+
+    // D[a] = Horner scheme of the coefficients doubleTables[n] at D[b], times D[b] ^ D[c] for the second one;
+    // a result which is not finite is not stored, but the sum is evaluated by the loop at m
+    static final int HORNER = 56;
+    static final int HORNER_POWER = 57;
+
+    static final int RETURN = 58;
+
+    private static final Asinh ARSINH_FUNCTION = new Asinh();
+
+    private static final Acosh ARCOSH_FUNCTION = new Acosh();
+
+    private static final Atanh ARTANH_FUNCTION = new Atanh();
+
+    /**
+     * The state of one evaluation.
+     */
+    static final class Frame {
+
+        double[] p;
+
+        double[] x;
+
+        double[] y;
+
+        final double[] doubles;
+
+        final int[] ints;
+
+        Frame(double[] doubles, int[] ints) {
+            this.doubles = doubles.clone();
+            this.ints = ints.clone();
+        }
+
+    }
+
+    private final int[] code;
+
+    private final double[][] doubleTables;
+
+    private final int[][] intTables;
+
+    private final ThreadLocal<Frame> frames;
+
+    /**
+     * @param code         The instructions.
+     * @param doubleTables The tables of doubles the instructions refer to.
+     * @param intTables    The tables of ints the instructions refer to.
+     * @param doubles      The initial values of the double registers, i.e. the constants.
+     * @param ints         The initial values of the int registers, i.e. the constants.
+     */
+    RegisterMachine(int[] code, double[][] doubleTables, int[][] intTables, double[] doubles, int[] ints) {
+        this.code = code;
+        this.doubleTables = doubleTables;
+        this.intTables = intTables;
+        this.frames = ThreadLocal.withInitial(() -> new Frame(doubles, ints));
+    }
+
+    /**
+     * Compiles a function. Any constant expressions the function contains are
+     * computed right away, like the generated code computes them when its class
+     * is initialized.
+     *
+     * @param functionDefinition The optimized function, which must have been
+     *                           validated with the given local variables.
+     * @param localVariables     The local variables of the function.
+     * @return The compiled function.
+     */
+    public static RegisterMachine of(FunctionDefinition functionDefinition, LocalVariables localVariables) {
+        RegisterMachineCompiler compiler = new RegisterMachineCompiler(localVariables);
+        functionDefinition.accept(compiler);
+        return compiler.getRegisterMachine();
+    }
+
+    /**
+     * The number of instructions of the compiled function.
+     */
+    int size() {
+        int size = 0;
+        for (int pc = 0; pc < code.length; pc += length(code[pc])) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Evaluates the function. The contract is the same as for
+     * {@link com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation#eval(double[], double[], double[])}.
+     *
+     * @param p The parameters of the function. p in IR^k
+     * @param x The variable of the function. x in IR^n
+     * @param y The result of the function evaluation. y in IR^m
+     */
+    public void eval(double[] p, double[] x, double[] y) {
+
+        Frame frame = frames.get();
+        frame.p = p;
+        frame.x = x;
+        frame.y = y;
+
+        try {
+            execute(frame);
+        } finally {
+            frame.p = null;
+            frame.x = null;
+            frame.y = null;
+        }
+    }
+
+    /**
+     * Runs the instructions from the first one up to the return instruction.
+     */
+    void execute(Frame frame) {
+
+        final int[] code = this.code;
+        final double[] d = frame.doubles;
+        final int[] i = frame.ints;
+        int pc = 0;
+
+        while (true) {
+            switch (code[pc]) {
+                case LOAD_P:
+                    d[code[pc + 1]] = frame.p[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LOAD_P_AT:
+                    d[code[pc + 1]] = frame.p[i[code[pc + 2]] - 1];
+                    pc += 3;
+                    break;
+                case LOAD_X:
+                    d[code[pc + 1]] = frame.x[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case LOAD_X_AT:
+                    d[code[pc + 1]] = frame.x[i[code[pc + 2]] - 1];
+                    pc += 3;
+                    break;
+                case DOUBLE_TABLE:
+                    d[code[pc + 1]] = doubleTables[code[pc + 2]][i[code[pc + 3]] - code[pc + 4]];
+                    pc += 5;
+                    break;
+                case INT_TABLE:
+                    i[code[pc + 1]] = intTables[code[pc + 2]][i[code[pc + 3]] - code[pc + 4]];
+                    pc += 5;
+                    break;
+                case DOUBLE_MOVE:
+                    d[code[pc + 1]] = d[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case INT_MOVE:
+                    i[code[pc + 1]] = i[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case INT_TO_DOUBLE:
+                    d[code[pc + 1]] = i[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case DOUBLE_ADD:
+                    d[code[pc + 1]] = d[code[pc + 2]] + d[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DOUBLE_SUB:
+                    d[code[pc + 1]] = d[code[pc + 2]] - d[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DOUBLE_MUL:
+                    d[code[pc + 1]] = d[code[pc + 2]] * d[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DOUBLE_DIV:
+                    d[code[pc + 1]] = d[code[pc + 2]] / d[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case DOUBLE_POW:
+                    d[code[pc + 1]] = Math.pow(d[code[pc + 2]], d[code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case INT_ADD:
+                    i[code[pc + 1]] = i[code[pc + 2]] + i[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case INT_SUB:
+                    i[code[pc + 1]] = i[code[pc + 2]] - i[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case INT_MUL:
+                    i[code[pc + 1]] = i[code[pc + 2]] * i[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case INT_POW:
+                    i[code[pc + 1]] = (int) Math.pow(i[code[pc + 2]], i[code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case DOUBLE_NEG:
+                    d[code[pc + 1]] = -d[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case INT_NEG:
+                    i[code[pc + 1]] = -i[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case DOUBLE_ALTERNATING_SIGN:
+                    d[code[pc + 1]] = 1 - ((i[code[pc + 2]] & 1) << 1);
+                    pc += 3;
+                    break;
+                case INT_ALTERNATING_SIGN:
+                    i[code[pc + 1]] = 1 - ((i[code[pc + 2]] & 1) << 1);
+                    pc += 3;
+                    break;
+                case ROUND:
+                    i[code[pc + 1]] = (int) Math.round(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case FACULTY:
+                    i[code[pc + 1]] = (int) factorial(i[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ABS:
+                    d[code[pc + 1]] = Math.abs(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ARCCOS:
+                    d[code[pc + 1]] = Math.acos(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ARCOSH:
+                    d[code[pc + 1]] = ARCOSH_FUNCTION.value(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ARCSIN:
+                    d[code[pc + 1]] = Math.asin(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ARCTAN:
+                    d[code[pc + 1]] = Math.atan(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ARSINH:
+                    d[code[pc + 1]] = ARSINH_FUNCTION.value(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case ARTANH:
+                    d[code[pc + 1]] = ARTANH_FUNCTION.value(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case COS:
+                    d[code[pc + 1]] = Math.cos(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case COSH:
+                    d[code[pc + 1]] = Math.cosh(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case EXP:
+                    d[code[pc + 1]] = Math.exp(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case LN:
+                    d[code[pc + 1]] = Math.log(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SIN:
+                    d[code[pc + 1]] = Math.sin(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SINH:
+                    d[code[pc + 1]] = Math.sinh(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SQRT:
+                    d[code[pc + 1]] = Math.sqrt(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case TAN:
+                    d[code[pc + 1]] = Math.tan(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case TANH:
+                    d[code[pc + 1]] = Math.tanh(d[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case BINOMIAL:
+                    i[code[pc + 1]] = (int) binomialCoefficient(i[code[pc + 2]], i[code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case STORE_Y:
+                    frame.y[code[pc + 2]] = d[code[pc + 1]];
+                    pc += 3;
+                    break;
+                case GOTO:
+                    pc = code[pc + 1];
+                    break;
+                case IF_LESS:
+                    pc = i[code[pc + 1]] < i[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case IF_GREATER:
+                    pc = i[code[pc + 1]] > i[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case IF_NOT_EQUAL:
+                    pc = i[code[pc + 1]] != i[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case IF_LESS_THAN:
+                    pc = i[code[pc + 1]] < code[pc + 2] ? code[pc + 3] : pc + 4;
+                    break;
+                case IF_NOT_ZERO:
+                    pc = i[code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case IF_NEGATIVE:
+                    pc = i[code[pc + 1]] < 0 ? code[pc + 2] : pc + 3;
+                    break;
+                case IF_DOUBLE_EQUAL:
+                    pc = d[code[pc + 1]] == d[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case INCREMENT_IF_NOT_GREATER:
+                    pc = ++i[code[pc + 1]] <= i[code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case STEP_ZERO:
+                    throw new IllegalArgumentException("step must not be 0");
+                case MARKOV_SHIFT:
+                    markovShift(i[code[pc + 1]], frame.x, frame.y);
+                    pc += 2;
+                    break;
+                case DOUBLE_ARITHMETIC: {
+                    long n = (long) i[code[pc + 3]] - i[code[pc + 2]] + 1;
+                    pc = finiteOrLoop(d, n * d[code[pc + 4]] + ((n * (n - 1)) >>> 1) * d[code[pc + 5]], pc, 7);
+                    break;
+                }
+                case INT_ARITHMETIC: {
+                    long n = (long) i[code[pc + 3]] - i[code[pc + 2]] + 1;
+                    i[code[pc + 1]] = (int) n * i[code[pc + 4]] + (int) ((n * (n - 1)) >>> 1) * i[code[pc + 5]];
+                    pc += 6;
+                    break;
+                }
+                case GEOMETRIC: {
+                    long n = (long) i[code[pc + 3]] - i[code[pc + 2]] + 1;
+                    pc = finiteOrLoop(d, Series.geometric(d[code[pc + 5]], n) * d[code[pc + 4]], pc, 7);
+                    break;
+                }
+                case HORNER:
+                    pc = finiteOrLoop(d, horner(doubleTables[code[pc + 3]], d[code[pc + 2]]), pc, 5);
+                    break;
+                case HORNER_POWER: {
+                    double v = d[code[pc + 2]];
+                    pc = finiteOrLoop(d, horner(doubleTables[code[pc + 3]], v) * Math.pow(v, d[code[pc + 4]]), pc, 6);
+                    break;
+                }
+                case RETURN:
+                    return;
+                default:
+                    throw new IllegalStateException(format("Unknown opcode %d at %d", code[pc], pc));
+            }
+        }
+    }
+
+    private static double horner(double[] coefficients, double v) {
+        int last = coefficients.length - 1;
+        double acc = coefficients[last];
+        for (int i = last - 1; i >= 0; i--) {
+            acc = acc * v + coefficients[i];
+        }
+        return acc;
+    }
+
+    private static void markovShift(int offset, double[] x, double[] y) {
+
+        int m = y.length;
+        int n = x.length;
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        if (n - offset < m) {
+            throw new IllegalArgumentException("x.lenth - offset must be greater or equal than y.length");
+        }
+
+        // Move to the right
+        for (int i = n - 1; i >= offset + m; i--) {
+            x[i] = x[i - m];
+        }
+
+        // Copy f into x
+        System.arraycopy(y, 0, x, offset, m);
+    }
+
+    /**
+     * Like the generated code, a closed form or Horner scheme which is not finite
+     * is replaced by the loop, whose position is the last int of the instruction,
+     * and -0 is turned into 0. Returns the next instruction.
+     */
+    private int finiteOrLoop(double[] d, double value, int pc, int length) {
+        if (Double.isFinite(value)) {
+            d[code[pc + 1]] = value + 0d;
+            return pc + length;
+        }
+        return code[pc + length - 1];
+    }
+
+    /**
+     * The number of ints an instruction takes, including its opcode.
+     */
+    static int length(int opcode) {
+        switch (opcode) {
+            case RETURN:
+            case STEP_ZERO:
+                return 1;
+            case GOTO:
+            case MARKOV_SHIFT:
+                return 2;
+            case DOUBLE_ADD:
+            case DOUBLE_SUB:
+            case DOUBLE_MUL:
+            case DOUBLE_DIV:
+            case DOUBLE_POW:
+            case INT_ADD:
+            case INT_SUB:
+            case INT_MUL:
+            case INT_POW:
+            case BINOMIAL:
+            case IF_LESS:
+            case IF_GREATER:
+            case IF_NOT_EQUAL:
+            case IF_LESS_THAN:
+            case IF_DOUBLE_EQUAL:
+            case INCREMENT_IF_NOT_GREATER:
+                return 4;
+            case DOUBLE_TABLE:
+            case INT_TABLE:
+            case HORNER:
+                return 5;
+            case INT_ARITHMETIC:
+            case HORNER_POWER:
+                return 6;
+            case DOUBLE_ARITHMETIC:
+            case GEOMETRIC:
+                return 7;
+            default:
+                return 3;
+        }
+    }
+
+}
@@ -0,0 +1,1130 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.visitor.RegisterMachine.Frame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.drstefanfriedrich.f2blib.visitor.RegisterMachine.*;
+import static java.lang.String.format;
+
+/**
+ * Compiles the optimized abstract syntax tree of a function into the
+ * instructions of a {@link RegisterMachine}. The instructions do exactly what
+ * the bytecode generated by {@link BytecodeVisitorImpl} does, in the same order
+ * and with the same types. Every visit method of an expression returns the
+ * register which holds its value; variables and constants are not copied into
+ * registers of their own.
+ */
+class RegisterMachineCompiler extends BaseVisitor {
+
+    /**
+     * A double or an int register, or an operand which is not a register, e.g.
+     * the index of a table.
+     */
+    private static final class Register {
+
+        private final boolean isDouble;
+
+        private final int index;
+
+        private final boolean immediate;
+
+        private Register(boolean isDouble, int index) {
+            this(isDouble, index, false);
+        }
+
+        private Register(boolean isDouble, int index, boolean immediate) {
+            this.isDouble = isDouble;
+            this.index = index;
+            this.immediate = immediate;
+        }
+
+    }
+
+    /**
+     * A part of the abstract syntax tree, e.g. the right operand of a binary
+     * expression.
+     */
+    @FunctionalInterface
+    private interface Subtree {
+
+        Object accept(Visitor visitor);
+
+    }
+
+    /**
+     * A position in the instructions, which may be bound after the jumps to it
+     * have been emitted.
+     */
+    private static final class Label {
+
+        private int position = -1;
+
+        private final List<Integer> jumps = new ArrayList<>();
+
+    }
+
+    /**
+     * The instructions which are currently emitted.
+     */
+    private static final class Code {
+
+        private int[] code = new int[64];
+
+        private int size;
+
+        /**
+         * The position of the result register of the last instruction, or -1 if
+         * the last instruction does not compute a value or a label is bound
+         * behind it.
+         */
+        private int result = -1;
+
+        private boolean resultIsDouble;
+
+        private void add(int value) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, 2 * size);
+            }
+            code[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(code, size);
+        }
+
+    }
+
+    private final LocalVariables localVariables;
+
+    private final int locals;
+
+    private Code code = new Code();
+
+    private final BitSet doubleRegisters = new BitSet();
+
+    private final BitSet intRegisters = new BitSet();
+
+    private int doubleCount;
+
+    private int intCount;
+
+    private final Map<Long, Register> doubleConstants = new HashMap<>();
+
+    private final Map<Integer, Register> intConstants = new HashMap<>();
+
+    private final List<double[]> doubleTables = new ArrayList<>();
+
+    private final List<int[]> intTables = new ArrayList<>();
+
+    /**
+     * The values of the precomputed expressions by index: a register for a
+     * single value, or the index of a table.
+     */
+    private final Map<Integer, Object> precomputed = new HashMap<>();
+
+    RegisterMachineCompiler(LocalVariables localVariables) {
+        this.localVariables = localVariables;
+        this.locals = localVariables.getMaxLocals();
+        this.doubleRegisters.set(0, locals);
+        this.intRegisters.set(0, locals);
+        this.doubleCount = locals;
+        this.intCount = locals;
+    }
+
+    /**
+     * The compiled function, after the function definition has been visited.
+     */
+    RegisterMachine getRegisterMachine() {
+        return newRegisterMachine(code.toArray());
+    }
+
+    private RegisterMachine newRegisterMachine(int[] instructions) {
+
+        double[] doubles = new double[doubleCount];
+        int[] ints = new int[intCount];
+        doubleConstants.forEach((bits, register) -> doubles[register.index] = Double.longBitsToDouble(bits));
+        intConstants.forEach((value, register) -> ints[register.index] = value);
+
+        return new RegisterMachine(instructions, doubleTables.toArray(new double[0][]),
+                intTables.toArray(new int[0][]), doubles, ints);
+    }
+
+    /*
+     * Registers: the local variables are followed by the constants and the
+     * temporary values. A temporary register is released as soon as its value has
+     * been used, and may then hold another value. Constants are never released,
+     * and a constant gets a register which no instruction has written so far, since
+     * the registers are initialized only once per thread.
+     */
+
+    private Register temporary(boolean isDouble) {
+        BitSet registers = isDouble ? doubleRegisters : intRegisters;
+        int index = registers.nextClearBit(locals);
+        registers.set(index);
+        if (isDouble) {
+            doubleCount = Math.max(doubleCount, index + 1);
+        } else {
+            intCount = Math.max(intCount, index + 1);
+        }
+        return new Register(isDouble, index);
+    }
+
+    private boolean isTemporary(Register register) {
+        if (register.immediate || register.index < locals) {
+            return false;
+        }
+        Map<?, Register> constants = register.isDouble ? doubleConstants : intConstants;
+        return !constants.containsValue(register);
+    }
+
+    private void release(Register register) {
+        if (isTemporary(register)) {
+            (register.isDouble ? doubleRegisters : intRegisters).clear(register.index);
+        }
+    }
+
+    private Register constant(double value) {
+        return doubleConstants.computeIfAbsent(Double.doubleToRawLongBits(value), bits -> {
+            doubleRegisters.set(doubleCount);
+            return new Register(true, doubleCount++);
+        });
+    }
+
+    private Register constant(int value) {
+        return intConstants.computeIfAbsent(value, v -> {
+            intRegisters.set(intCount);
+            return new Register(false, intCount++);
+        });
+    }
+
+    private Register local(boolean isDouble, int index) {
+        return new Register(isDouble, index);
+    }
+
+    private Register immediate(int value) {
+        return new Register(false, value, true);
+    }
+
+    /*
+     * Instructions
+     */
+
+    private void emit(int opcode, int... operands) {
+        code.add(opcode);
+        for (int operand : operands) {
+            code.add(operand);
+        }
+        code.result = -1;
+    }
+
+    /**
+     * Emits an instruction which computes a value into a new temporary register.
+     * The operands are released first, so the result may reuse one of them.
+     */
+    private Register compute(boolean isDouble, int opcode, Register... operands) {
+
+        for (Register operand : operands) {
+            release(operand);
+        }
+
+        Register result = temporary(isDouble);
+
+        code.add(opcode);
+        code.add(result.index);
+        for (Register operand : operands) {
+            code.add(operand.index);
+        }
+        code.result = code.size - operands.length - 1;
+        code.resultIsDouble = isDouble;
+
+        return result;
+    }
+
+    /**
+     * Copies a value into a register, e.g. a local variable. If the value has just
+     * been computed into a temporary register, the instruction computes it into
+     * the target register right away.
+     */
+    private void move(Register target, Register source) {
+
+        if (target.index == source.index && target.isDouble == source.isDouble) {
+            return;
+        }
+
+        if (target.isDouble && !source.isDouble) {
+            emit(INT_TO_DOUBLE, target.index, source.index);
+        } else if (code.result >= 0 && code.code[code.result] == source.index
+                && code.resultIsDouble == source.isDouble && isTemporary(source)
+                && target.isDouble == source.isDouble) {
+            code.code[code.result] = target.index;
+        } else {
+            emit(target.isDouble ? DOUBLE_MOVE : INT_MOVE, target.index, source.index);
+        }
+
+        release(source);
+    }
+
+    private Register asDouble(Register register) {
+        if (register.isDouble) {
+            return register;
+        }
+        return compute(true, INT_TO_DOUBLE, register);
+    }
+
+    private Register asInt(Register register) {
+        if (register.isDouble) {
+            throw new IllegalStateException("An int expression must not evaluate to a double");
+        }
+        return register;
+    }
+
+    private void jump(int opcode, Label label, int... operands) {
+        emit(opcode, operands);
+        code.add(label.position);
+        if (label.position < 0) {
+            label.jumps.add(code.size - 1);
+        }
+    }
+
+    private void bind(Label label) {
+        label.position = code.size;
+        for (int jump : label.jumps) {
+            code.code[jump] = label.position;
+        }
+        code.result = -1;
+    }
+
+    /**
+     * The generated code keeps an operand on the operand stack while the next
+     * one is evaluated. Here a local variable is read only by the instruction
+     * which uses its value; if a loop is evaluated in between, which might
+     * change the local variable, the value is copied first.
+     */
+    private Register keep(Register register, Subtree next) {
+
+        if (register.isDouble || register.index >= locals) {
+            return register;
+        }
+
+        LoopScanner loopScanner = new LoopScanner();
+        next.accept(loopScanner);
+        if (!loopScanner.found) {
+            return register;
+        }
+
+        Register copy = temporary(false);
+        emit(INT_MOVE, copy.index, register.index);
+        return copy;
+    }
+
+    private static final class LoopScanner extends BaseVisitor {
+
+        private boolean found;
+
+        @Override
+        public <T> T visit(Sum sum) {
+            found = true;
+            return null;
+        }
+
+        @Override
+        public <T> T visit(Prod prod) {
+            found = true;
+            return null;
+        }
+
+        @Override
+        public <T> T visit(FusedLoop fusedLoop) {
+            found = true;
+            return null;
+        }
+
+        @Override
+        public <T> T visit(ClosedFormSum closedFormSum) {
+            found = true;
+            return null;
+        }
+
+    }
+
+    private Register intVar(String variableName) {
+        return local(false, localVariables.getIndexForIntVar(new IntVar(variableName)));
+    }
+
+    private Register sharedVar(SharedVar sharedVar) {
+        return local(sharedVar.evaluatesToDouble(), localVariables.getIndexForSharedVar(sharedVar));
+    }
+
+    /*
+     * Expressions
+     */
+
+    private Register unary(UnaryExpression unaryExpression, int opcode) {
+        Register expression = asDouble(unaryExpression.acceptExpression(this));
+        return compute(true, opcode, expression);
+    }
+
+    private Register binary(BinaryExpression binaryExpression, int doubleOpcode, int intOpcode) {
+
+        Register left = binaryExpression.acceptLeft(this);
+        if (intOpcode >= 0 && !left.isDouble) {
+            left = keep(left, binaryExpression::acceptRight);
+        } else {
+            left = asDouble(left);
+        }
+
+        Register right = binaryExpression.acceptRight(this);
+
+        if (intOpcode >= 0 && !left.isDouble && !right.isDouble) {
+            return compute(false, intOpcode, left, right);
+        }
+
+        return compute(true, doubleOpcode, asDouble(left), asDouble(right));
+    }
+
+    @Override
+    public Register visit(Abs abs) {
+        return unary(abs, ABS);
+    }
+
+    @Override
+    public Register visit(Addition addition) {
+        return binary(addition, DOUBLE_ADD, INT_ADD);
+    }
+
+    @Override
+    public Register visit(Arccos arccos) {
+        return unary(arccos, ARCCOS);
+    }
+
+    @Override
+    public Register visit(Arcosh arcosh) {
+        return unary(arcosh, ARCOSH);
+    }
+
+    @Override
+    public Register visit(Arcsin arcsin) {
+        return unary(arcsin, ARCSIN);
+    }
+
+    @Override
+    public Register visit(Arctan arctan) {
+        return unary(arctan, ARCTAN);
+    }
+
+    @Override
+    public Register visit(Arsinh arsinh) {
+        return unary(arsinh, ARSINH);
+    }
+
+    @Override
+    public Register visit(Artanh artanh) {
+        return unary(artanh, ARTANH);
+    }
+
+    @Override
+    public Register visit(Binomial binomial) {
+        Register n = keep(asInt(binomial.acceptN(this)), binomial::acceptK);
+        Register k = asInt(binomial.acceptK(this));
+        return compute(false, BINOMIAL, n, k);
+    }
+
+    @Override
+    public Register visit(Faculty faculty) {
+        Register n = asInt(faculty.acceptExpression(this));
+        return compute(false, FACULTY, n);
+    }
+
+    @Override
+    public Register visit(Constant constant) {
+        switch (constant) {
+            case PI:
+                return constant(Math.PI);
+            case E:
+                return constant(Math.E);
+            case BOLTZMANN:
+                return constant(1.38064852e-23);
+            default:
+                throw new IllegalStateException(format("Unrecognized constant: %s", constant.name()));
+        }
+    }
+
+    @Override
+    public Register visit(Cos cos) {
+        return unary(cos, COS);
+    }
+
+    @Override
+    public Register visit(Cosh cosh) {
+        return unary(cosh, COSH);
+    }
+
+    @Override
+    public Register visit(Division division) {
+        return binary(division, DOUBLE_DIV, -1);
+    }
+
+    @Override
+    public Register visit(Exp exp) {
+        return unary(exp, EXP);
+    }
+
+    @Override
+    public Register visit(Int i) {
+        return constant(i.getValue());
+    }
+
+    @Override
+    public Register visit(Doub doub) {
+        return constant(doub.getValue());
+    }
+
+    @Override
+    public Register visit(Ln ln) {
+        return unary(ln, LN);
+    }
+
+    @Override
+    public Register visit(Multiplication multiplication) {
+        return binary(multiplication, DOUBLE_MUL, INT_MUL);
+    }
+
+    @Override
+    public Register visit(Parameter parameter) {
+        return indexed(parameter, LOAD_P, LOAD_P_AT);
+    }
+
+    @Override
+    public Register visit(Variable variable) {
+        return indexed(variable, LOAD_X, LOAD_X_AT);
+    }
+
+    private Register indexed(IndexedExpression indexedExpression, int opcode, int indexedOpcode) {
+
+        IntExpression indexExpression = indexedExpression.getIndexExpression();
+
+        if (indexExpression == null) {
+            Register result = temporary(true);
+            code.add(opcode);
+            code.add(result.index);
+            code.add(indexedExpression.getIndex());
+            code.result = code.size - 2;
+            code.resultIsDouble = true;
+            return result;
+        }
+
+        return compute(true, indexedOpcode, asInt(indexExpression.accept(this)));
+    }
+
+    @Override
+    public Register visit(Parenthesis parenthesis) {
+        return parenthesis.acceptExpression(this);
+    }
+
+    @Override
+    public Register visit(Power power) {
+        return binary(power, DOUBLE_POW, INT_POW);
+    }
+
+    @Override
+    public Register visit(Round round) {
+        Register expression = asDouble(round.acceptExpression(this));
+        return compute(false, ROUND, expression);
+    }
+
+    @Override
+    public Register visit(Sin sin) {
+        return unary(sin, SIN);
+    }
+
+    @Override
+    public Register visit(Sinh sinh) {
+        return unary(sinh, SINH);
+    }
+
+    @Override
+    public Register visit(Subtraction subtraction) {
+        return binary(subtraction, DOUBLE_SUB, INT_SUB);
+    }
+
+    @Override
+    public Register visit(Tan tan) {
+        return unary(tan, TAN);
+    }
+
+    @Override
+    public Register visit(Tanh tanh) {
+        return unary(tanh, TANH);
+    }
+
+    @Override
+    public Register visit(Neg neg) {
+        Register expression = neg.acceptExpression(this);
+        return compute(expression.isDouble, expression.isDouble ? DOUBLE_NEG : INT_NEG, expression);
+    }
+
+    @Override
+    public Register visit(Pos pos) {
+        return pos.acceptExpression(this);
+    }
+
+    @Override
+    public Register visit(Sqrt sqrt) {
+        return unary(sqrt, SQRT);
+    }
+
+    @Override
+    public Register visit(IntVar intVar) {
+        return local(false, localVariables.getIndexForIntVar(intVar));
+    }
+
+    @Override
+    public Register visit(AuxVar auxVar) {
+        return local(true, localVariables.getIndexForAuxVar(auxVar));
+    }
+
+    @Override
+    public Register visit(NoOp noOp) {
+        throw new IllegalStateException("NoOp must not be used");
+    }
+
+    @Override
+    public Register visit(SharedExpression sharedExpression) {
+        Register shared = sharedVar(sharedExpression.getSharedVar());
+        move(shared, sharedExpression.acceptExpression(this));
+        return shared;
+    }
+
+    @Override
+    public Register visit(SharedVar sharedVar) {
+        return sharedVar(sharedVar);
+    }
+
+    @Override
+    public Register visit(AlternatingSign alternatingSign) {
+        // 1 - 2 * (n & 1), which is correct for negative n, too
+        Register exponent = asInt(alternatingSign.acceptExpression(this));
+        boolean isDouble = alternatingSign.evaluatesToDouble();
+        return compute(isDouble, isDouble ? DOUBLE_ALTERNATING_SIGN : INT_ALTERNATING_SIGN, exponent);
+    }
+
+    /*
+     * Loops
+     */
+
+    /**
+     * Stores the start into the loop variable and returns the register of the
+     * end, which is kept during the loop.
+     */
+    private Register range(Register loopVariable, Subtree start, Subtree end,
+                           Subtree body) {
+
+        move(loopVariable, asInt((Register) start.accept(this)));
+
+        Register last = asInt((Register) end.accept(this));
+        if (!isTemporary(last)) {
+            last = keep(last, body);
+        }
+
+        return last;
+    }
+
+    private void storeInvariants(List<SharedExpression> invariants) {
+        for (SharedExpression invariant : invariants) {
+            move(sharedVar(invariant.getSharedVar()), invariant.acceptExpression(this));
+        }
+    }
+
+    private void storeFirstRecurrences(List<Recurrence> recurrences) {
+        for (Recurrence recurrence : recurrences) {
+            move(sharedVar(recurrence.getSharedVar()), recurrence.acceptFirst(this));
+        }
+    }
+
+    /**
+     * Every further iteration computes the next values of the recurrences, or
+     * the first values, as long as the loop variable is less than the one from
+     * which on a recurrence is valid.
+     */
+    private void storeNextRecurrences(List<Recurrence> recurrences, Register loopVariable) {
+        for (Recurrence recurrence : recurrences) {
+            Register shared = sharedVar(recurrence.getSharedVar());
+            if (!recurrence.isGuarded()) {
+                move(shared, recurrence.acceptNext(this));
+                continue;
+            }
+            Label first = new Label();
+            Label value = new Label();
+            jump(IF_LESS_THAN, first, loopVariable.index, recurrence.getFrom());
+            move(shared, recurrence.acceptNext(this));
+            jump(GOTO, value);
+            bind(first);
+            move(shared, recurrence.acceptFirst(this));
+            bind(value);
+        }
+    }
+
+    /**
+     * The loop of a sum, a product or fused loops. The first iteration computes
+     * the first values of the recurrences, every further one the next values.
+     */
+    private void loop(Register loopVariable, Register last, List<Recurrence> recurrences, Runnable body) {
+
+        Label loop = new Label();
+        Label end = new Label();
+
+        jump(IF_LESS, end, last.index, loopVariable.index);
+
+        if (recurrences.isEmpty()) {
+            bind(loop);
+        } else {
+            Label first = new Label();
+            storeFirstRecurrences(recurrences);
+            jump(GOTO, first);
+            bind(loop);
+            storeNextRecurrences(recurrences, loopVariable);
+            bind(first);
+        }
+
+        body.run();
+
+        jump(INCREMENT_IF_NOT_GREATER, loop, loopVariable.index, last.index);
+        bind(end);
+    }
+
+    private Register sumProduct(AbstractSumProduct sumProduct, boolean product) {
+
+        boolean isDouble = sumProduct.evaluatesToDouble();
+        Register loopVariable = intVar(sumProduct.getVariableName());
+
+        Register last = range(loopVariable, sumProduct::acceptStart, sumProduct::acceptEnd, sumProduct::acceptInner);
+        Register accumulator = temporary(isDouble);
+        if (isDouble) {
+            emit(DOUBLE_MOVE, accumulator.index, constant(product ? 1d : 0d).index);
+        } else {
+            emit(INT_MOVE, accumulator.index, constant(product ? 1 : 0).index);
+        }
+        storeInvariants(sumProduct.getInvariants());
+
+        loop(loopVariable, last, sumProduct.getRecurrences(), () -> accumulate(sumProduct, product, accumulator));
+
+        release(last);
+
+        return accumulator;
+    }
+
+    private void accumulate(AbstractSumProduct sumProduct, boolean product, Register accumulator) {
+
+        Register inner = sumProduct.acceptInner(this);
+
+        if (accumulator.isDouble) {
+            inner = asDouble(inner);
+            emit(product ? DOUBLE_MUL : DOUBLE_ADD, accumulator.index, inner.index, accumulator.index);
+        } else {
+            emit(product ? INT_MUL : INT_ADD, accumulator.index, asInt(inner).index, accumulator.index);
+        }
+
+        release(inner);
+    }
+
+    @Override
+    public Register visit(Sum sum) {
+        return sumProduct(sum, false);
+    }
+
+    @Override
+    public Register visit(Prod prod) {
+        return sumProduct(prod, true);
+    }
+
+    /**
+     * Like a sum or a product, but the accumulators are the local variables of
+     * the shared variables of the loops, and each iteration evaluates the inner
+     * expressions of all loops, one after another.
+     */
+    @Override
+    public Register visit(FusedLoop fusedLoop) {
+
+        List<AbstractSumProduct> loops = fusedLoop.getLoops();
+        List<SharedVar> sharedVars = fusedLoop.getSharedVars();
+        Register loopVariable = intVar(fusedLoop.getVariableName());
+
+        Register last = range(loopVariable, fusedLoop::acceptStart, fusedLoop::acceptEnd,
+                visitor -> {
+                    loops.forEach(loop -> loop.acceptInner(visitor));
+                    return null;
+                });
+
+        for (int i = 0; i < loops.size(); i++) {
+            boolean product = loops.get(i) instanceof Prod;
+            Register accumulator = sharedVar(sharedVars.get(i));
+            if (accumulator.isDouble) {
+                emit(DOUBLE_MOVE, accumulator.index, constant(product ? 1d : 0d).index);
+            } else {
+                emit(INT_MOVE, accumulator.index, constant(product ? 1 : 0).index);
+            }
+        }
+
+        List<Recurrence> recurrences = new ArrayList<>();
+        for (AbstractSumProduct sumProduct : loops) {
+            storeInvariants(sumProduct.getInvariants());
+            recurrences.addAll(sumProduct.getRecurrences());
+        }
+
+        loop(loopVariable, last, recurrences, () -> {
+            for (int i = 0; i < loops.size(); i++) {
+                accumulate(loops.get(i), loops.get(i) instanceof Prod, sharedVar(sharedVars.get(i)));
+            }
+        });
+
+        release(last);
+
+        // The value of the first loop is the value of the expression
+        return sharedVar(sharedVars.get(0));
+    }
+
+    /**
+     * The number of terms is computed as a long, since <code>end - start + 1</code>
+     * might not fit into an int. The first term is the inner expression, evaluated
+     * like in the first iteration of the sum.
+     */
+    @Override
+    public Register visit(ClosedFormSum closedFormSum) {
+
+        Sum sum = closedFormSum.getSum();
+        boolean isDouble = closedFormSum.evaluatesToDouble();
+        Register loopVariable = intVar(sum.getVariableName());
+
+        Label empty = new Label();
+        Label end = new Label();
+
+        Register result = temporary(isDouble);
+
+        move(loopVariable, asInt(sum.acceptStart(this)));
+        Register start = temporary(false);
+        emit(INT_MOVE, start.index, loopVariable.index);
+        Register last = asInt(sum.acceptEnd(this));
+        if (!isTemporary(last)) {
+            last = keep(last, sum::acceptInner);
+        }
+        jump(IF_LESS, empty, last.index, start.index);
+
+        if (closedFormSum.getKind() == ClosedFormSum.Kind.GEOMETRIC) {
+
+            // first * (ratio^n - 1) / (ratio - 1), unless the ratio is 1 or the closed form is not finite
+            Label loop = new Label();
+            Register ratio = asDouble(closedFormSum.acceptStep(this));
+            jump(IF_DOUBLE_EQUAL, loop, ratio.index, constant(1d).index);
+            Register first = asDouble(firstTerm(sum));
+            jump(GEOMETRIC, loop, result.index, start.index, last.index, first.index, ratio.index);
+            release(first);
+            release(ratio);
+            jump(GOTO, end);
+
+            bind(loop);
+            move(result, sum.accept(this));
+            jump(GOTO, end);
+
+        } else if (isDouble) {
+
+            // n * first + difference * (n * (n - 1) / 2), unless the closed form is not finite
+            Label loop = new Label();
+            Register first = asDouble(firstTerm(sum));
+            Register difference = asDouble(closedFormSum.acceptStep(this));
+            jump(DOUBLE_ARITHMETIC, loop, result.index, start.index, last.index, first.index, difference.index);
+            release(difference);
+            release(first);
+            jump(GOTO, end);
+
+            bind(loop);
+            move(result, sum.accept(this));
+            jump(GOTO, end);
+
+        } else {
+
+            // The same in int arithmetic, which overflows like the sum
+            Register first = firstTerm(sum);
+            Register difference = closedFormSum.acceptStep(this);
+            emit(INT_ARITHMETIC, result.index, start.index, last.index, first.index, difference.index);
+            release(difference);
+            release(first);
+            jump(GOTO, end);
+        }
+
+        bind(empty);
+        if (isDouble) {
+            emit(DOUBLE_MOVE, result.index, constant(0d).index);
+        } else {
+            emit(INT_MOVE, result.index, constant(0).index);
+        }
+
+        bind(end);
+
+        release(last);
+        release(start);
+
+        return result;
+    }
+
+    /**
+     * The inner expression of a sum, evaluated like in its first iteration. The
+     * loop variable holds the start already.
+     */
+    private Register firstTerm(Sum sum) {
+        storeInvariants(sum.getInvariants());
+        storeFirstRecurrences(sum.getRecurrences());
+        return sum.acceptInner(this);
+    }
+
+    /**
+     * A precomputed expression is computed once, while the function is compiled,
+     * like the generated code computes it when its class is initialized. A table
+     * gets one value for each value of the integer variable, from start to end.
+     */
+    @Override
+    public Register visit(Precomputed p) {
+
+        Object value = precomputed(p);
+
+        if (!p.isTable()) {
+            return (Register) value;
+        }
+
+        Register loopVariable = intVar(p.getVariableName());
+
+        return compute(p.evaluatesToDouble(), p.evaluatesToDouble() ? DOUBLE_TABLE : INT_TABLE,
+                immediate((Integer) value), loopVariable, immediate(p.getStart()));
+    }
+
+    private Object precomputed(Precomputed p) {
+        Object value = precomputed.get(p.getIndex());
+        if (value == null) {
+            value = precompute(p);
+            precomputed.put(p.getIndex(), value);
+        }
+        return value;
+    }
+
+    /*
+     * The expression is compiled into instructions of their own, which are
+     * executed right away.
+     */
+    private Object precompute(Precomputed p) {
+
+        Code function = code;
+        code = new Code();
+
+        Register register = p.acceptExpression(this);
+        if (p.evaluatesToDouble()) {
+            register = asDouble(register);
+        }
+        emit(RETURN);
+
+        RegisterMachine registerMachine = newRegisterMachine(code.toArray());
+        Frame frame = new Frame(new double[doubleCount], new int[intCount]);
+        code = function;
+        release(register);
+
+        Register loopVariable = p.isTable() ? intVar(p.getVariableName()) : null;
+        int length = p.isTable() ? p.getEnd() - p.getStart() + 1 : 1;
+        double[] doubles = new double[length];
+        int[] ints = new int[length];
+
+        for (int i = 0; i < length; i++) {
+            initialize(frame);
+            if (loopVariable != null) {
+                frame.ints[loopVariable.index] = p.getStart() + i;
+            }
+            registerMachine.execute(frame);
+            if (register.isDouble) {
+                doubles[i] = frame.doubles[register.index];
+            } else {
+                ints[i] = frame.ints[register.index];
+            }
+        }
+
+        if (p.isTable()) {
+            if (p.evaluatesToDouble()) {
+                doubleTables.add(doubles);
+                return doubleTables.size() - 1;
+            } else {
+                intTables.add(ints);
+                return intTables.size() - 1;
+            }
+        }
+
+        return p.evaluatesToDouble() ? constant(doubles[0]) : constant(ints[0]);
+    }
+
+    private void initialize(Frame frame) {
+        doubleConstants.forEach((bits, register) -> frame.doubles[register.index] = Double.longBitsToDouble(bits));
+        intConstants.forEach((value, register) -> frame.ints[register.index] = value);
+    }
+
+    /**
+     * The Horner scheme runs from the last coefficient down to the first one. If
+     * the result is not finite, the sum is evaluated instead.
+     */
+    @Override
+    public Register visit(Polynomial polynomial) {
+
+        Precomputed coefficients = polynomial.getCoefficients();
+        int power = coefficients.getStart() + polynomial.getOffset();
+
+        Label loop = new Label();
+        Label end = new Label();
+
+        Register result = temporary(true);
+        Register variable = asDouble(polynomial.acceptVariable(this));
+
+        int table = (Integer) precomputed(coefficients);
+        if (!coefficients.evaluatesToDouble()) {
+            int[] ints = intTables.get(table);
+            double[] doubles = new double[ints.length];
+            for (int i = 0; i < ints.length; i++) {
+                doubles[i] = ints[i];
+            }
+            doubleTables.add(doubles);
+            table = doubleTables.size() - 1;
+        }
+
+        if (power == 0) {
+            jump(HORNER, loop, result.index, variable.index, table);
+        } else {
+            jump(HORNER_POWER, loop, result.index, variable.index, table, constant((double) power).index);
+        }
+        release(variable);
+        jump(GOTO, end);
+
+        bind(loop);
+        move(result, polynomial.getSum().accept(this));
+        bind(end);
+
+        return result;
+    }
+
+    /*
+     * Statements
+     */
+
+    @Override
+    public Void visit(FunctionDefinition functionDefinition) {
+        functionDefinition.getFunctionBody().accept(this);
+        emit(RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visit(FunctionBody functionBody) {
+        if (functionBody.isForLoop()) {
+            functionBody.getForLoop().accept(this);
+        } else {
+            functionBody.getFunctionsWrapper().accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(FunctionsWrapper functionsWrapper) {
+        functionsWrapper.getAuxiliaryVariables().forEach(av -> av.accept(this));
+        functionsWrapper.getFunctions().forEach(f -> f.accept(this));
+        functionsWrapper.acceptMarkovShift(this);
+        return null;
+    }
+
+    @Override
+    public Void visit(Function function) {
+        Register expression = asDouble(function.acceptExpression(this));
+        emit(STORE_Y, expression.index, function.getIndex());
+        release(expression);
+        return null;
+    }
+
+    @Override
+    public Void visit(AuxiliaryVariable auxiliaryVariable) {
+        Register auxVar = local(true, localVariables.getIndexForAuxVar(auxiliaryVariable.getAuxVar()));
+        move(auxVar, auxiliaryVariable.acceptInner(this));
+        return null;
+    }
+
+    @Override
+    public Void visit(MarkovShift markovShift) {
+        Register offset = asInt(markovShift.getOffset().accept(this));
+        emit(MARKOV_SHIFT, offset.index);
+        release(offset);
+        return null;
+    }
+
+    @Override
+    public Void visit(ForLoop forLoop) {
+
+        Register loopVariable = intVar(forLoop.getVariableName());
+
+        Label stepNonZero = new Label();
+        Label stepPos = new Label();
+        Label stepNeg = new Label();
+        Label forEnd = new Label();
+        Label throwException = new Label();
+
+        Register last = range(loopVariable, forLoop::acceptStart, forLoop::acceptEnd,
+                forLoop::acceptFunctionsWrapper);
+        Register step = asInt(forLoop.acceptStep(this));
+        if (!isTemporary(step)) {
+            step = keep(step, forLoop::acceptFunctionsWrapper);
+        }
+        storeInvariants(forLoop.getInvariants());
+
+        // step = 0: the body is evaluated once, if start = end
+        jump(IF_NOT_ZERO, stepNonZero, step.index);
+        jump(IF_NOT_EQUAL, throwException, loopVariable.index, last.index);
+        forLoop.acceptFunctionsWrapper(this);
+        jump(GOTO, forEnd);
+
+        bind(throwException);
+        emit(STEP_ZERO);
+
+        bind(stepNonZero);
+        jump(IF_NEGATIVE, stepNeg, step.index);
+
+        // step > 0
+        bind(stepPos);
+        jump(IF_GREATER, forEnd, loopVariable.index, last.index);
+        forLoop.acceptFunctionsWrapper(this);
+        emit(INT_ADD, loopVariable.index, loopVariable.index, step.index);
+        jump(GOTO, stepPos);
+
+        // step < 0
+        bind(stepNeg);
+        jump(IF_LESS, forEnd, loopVariable.index, last.index);
+        forLoop.acceptFunctionsWrapper(this);
+        emit(INT_ADD, loopVariable.index, loopVariable.index, step.index);
+        jump(GOTO, stepNeg);
+
+        bind(forEnd);
+
+        release(step);
+        release(last);
+
+        return null;
+    }
+
+}
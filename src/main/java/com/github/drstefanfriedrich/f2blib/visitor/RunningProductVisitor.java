@@ -0,0 +1,171 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.*;
+
+/**
+ * Carries products from one iteration of the enclosing loop to the next. In
+ * <code>sum(q_k * prod(1 - q_l, l, a, a + k - 1), k, m, n)</code> the product of
+ * one iteration is the product of the previous one, times one more factor: it
+ * becomes a {@link Recurrence} of the sum, and the evaluation takes linear
+ * instead of quadratic time.
+ * <p>
+ * The product must be part of the inner expression of a sum or a product over
+ * <code>k</code>, not of a loop within it. Its start must not depend on
+ * <code>k</code>, and its end minus its start must be <code>k + c</code> for a
+ * constant <code>c</code>. Its factors must not depend on <code>k</code>.
+ * <p>
+ * The product of the first iteration is computed as before. Every further
+ * iteration multiplies the product of the previous one by the factor for
+ * <code>l = end</code>, if the range of the product is not empty; otherwise it
+ * computes the (empty) product as before, which keeps the semantics of empty
+ * ranges. The factors are multiplied in the same order as before, so the results
+ * are exactly the same, as long as the bounds of the product do not overflow. Use {@link #carry(FunctionDefinition)}.
+ */
+public class RunningProductVisitor extends TransformationVisitor {
+
+    private final Deque<Loop> loops = new ArrayDeque<>();
+
+    private int nextIndex;
+
+    private RunningProductVisitor(int firstIndex) {
+        this.nextIndex = firstIndex;
+    }
+
+    /**
+     * Carries the products of a function from one iteration to the next.
+     *
+     * @param functionDefinition The function.
+     * @return The function with running products.
+     */
+    public static FunctionDefinition carry(FunctionDefinition functionDefinition) {
+        int firstIndex = 1 + CommonSubexpressionVisitor.SharedIndexes.max(functionDefinition);
+        return functionDefinition.accept(new RunningProductVisitor(firstIndex));
+    }
+
+    /**
+     * A sum or a product which is being transformed, with the running products
+     * found in its inner expression.
+     */
+    private static class Loop {
+
+        private final String variableName;
+
+        /*
+         * The constant start of the loop, or null
+         */
+        private final Integer start;
+
+        private final Map<Expression, Recurrence> recurrences = new LinkedHashMap<>();
+
+        Loop(String variableName, Expression start) {
+            this.variableName = variableName;
+            this.start = start instanceof Int ? ((Int) start).getValue() : null;
+        }
+
+    }
+
+    @Override
+    public Expression visit(Sum sum) {
+
+        Expression start = sum.acceptStart(this);
+        Expression end = sum.acceptEnd(this);
+        List<SharedExpression> invariants = transformInvariants(sum.getInvariants());
+        List<Recurrence> recurrences = new ArrayList<>(transformRecurrences(sum.getRecurrences()));
+
+        loops.push(new Loop(sum.getVariableName(), start));
+        Expression inner = sum.acceptInner(this);
+        recurrences.addAll(loops.pop().recurrences.values());
+
+        return new Sum(inner, sum.getVariableName(), asIntExpression(start), asIntExpression(end), invariants,
+                recurrences);
+    }
+
+    @Override
+    public Expression visit(Prod prod) {
+
+        Expression start = prod.acceptStart(this);
+        Expression end = prod.acceptEnd(this);
+        List<SharedExpression> invariants = transformInvariants(prod.getInvariants());
+        List<Recurrence> recurrences = new ArrayList<>(transformRecurrences(prod.getRecurrences()));
+
+        loops.push(new Loop(prod.getVariableName(), start));
+        Expression inner = prod.acceptInner(this);
+        recurrences.addAll(loops.pop().recurrences.values());
+
+        Prod transformed = new Prod(inner, prod.getVariableName(), asIntExpression(start), asIntExpression(end),
+                invariants, recurrences);
+
+        if (loops.isEmpty() || !invariants.isEmpty() || !recurrences.isEmpty()) {
+            return transformed;
+        }
+
+        return runningProduct(transformed, inner, start, end);
+    }
+
+    private Expression runningProduct(Prod prod, Expression inner, Expression start, Expression end) {
+
+        Loop loop = loops.peek();
+
+        Affine length = Affine.difference(end, start);
+        if (length == null || !length.getVariableName().equals(loop.variableName) ||
+                length.getOffset() == Integer.MIN_VALUE) {
+            return prod;
+        }
+
+        if (References.of(start).intVars.contains(loop.variableName) ||
+                References.of(inner).intVars.contains(loop.variableName)) {
+            return prod;
+        }
+
+        // The range of the product is empty for k + c < 0. It is enough to start
+        // over in these iterations if the loop might start before.
+        int from = -length.getOffset();
+        if (loop.start != null && (long) loop.start + 1 >= from) {
+            from = Integer.MIN_VALUE;
+        }
+        int guard = from;
+
+        return loop.recurrences.computeIfAbsent(prod, p -> {
+            int index = nextIndex++;
+            Expression factor = inner.accept(new Substitution(prod.getVariableName(), end));
+            return new Recurrence(index, p, p, new Multiplication(new SharedVar(index, p), factor), guard);
+        }).getSharedVar();
+    }
+
+    /**
+     * Replaces an integer variable by an expression.
+     */
+    private static class Substitution extends TransformationVisitor {
+
+        private final String variableName;
+
+        private final Expression expression;
+
+        Substitution(String variableName, Expression expression) {
+            this.variableName = variableName;
+            this.expression = expression;
+        }
+
+        @Override
+        public Expression visit(IntVar intVar) {
+            return intVar.getVariableName().equals(variableName) ? expression.accept(new TransformationVisitor()) :
+                    intVar;
+        }
+
+    }
+
+}
@@ -17,6 +17,7 @@ import com.github.drstefanfriedrich.f2blib.ast.*;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 import static java.lang.Math.max;
 
@@ -46,11 +47,15 @@ public class StackDepthVisitorImpl implements StackDepthVisitor {
 
     @Override
     public Integer visit(FunctionsWrapper functionsWrapper) {
-        return max(
+        return max(max(
                 functionsWrapper.getFunctions().stream()
                         .map(f -> ((Integer) f.accept(this)))
                         .max(Comparator.naturalOrder())
                         .orElseThrow(() -> new IllegalStateException("Empty function not allowed")),
+                functionsWrapper.getAuxiliaryVariables().stream()
+                        .map(av -> ((Integer) av.accept(this)))
+                        .max(Comparator.naturalOrder())
+                        .orElse(0)),
                 (int) functionsWrapper.acceptMarkovShift(this).orElse(0)
         );
     }
@@ -227,9 +232,33 @@ public class StackDepthVisitorImpl implements StackDepthVisitor {
 
     @Override
     public Integer visit(ForLoop forLoop) {
-        return 2 + (Integer) forLoop.acceptFunctionsWrapper(this) +
+        return max(2 + (Integer) forLoop.acceptFunctionsWrapper(this) +
                 Collections.max(Arrays.<Integer>asList(forLoop.acceptStart(this),
-                        forLoop.acceptEnd(this), forLoop.acceptStep(this)));
+                        forLoop.acceptEnd(this), forLoop.acceptStep(this))),
+                invariants(forLoop.getInvariants()));
+    }
+
+    /**
+     * The invariants are evaluated one after another and stored, without a copy on
+     * the operand stack.
+     */
+    private int invariants(List<SharedExpression> invariants) {
+        return invariants.stream()
+                .map(invariant -> (Integer) invariant.acceptExpression(this))
+                .max(Comparator.naturalOrder())
+                .orElse(0);
+    }
+
+    /**
+     * The same holds for the values of the recurrences. A guarded recurrence
+     * compares the loop variable before it computes its value.
+     */
+    private int recurrences(List<Recurrence> recurrences) {
+        return recurrences.stream()
+                .map(recurrence -> max(max((Integer) recurrence.acceptFirst(this),
+                        (Integer) recurrence.acceptNext(this)), recurrence.isGuarded() ? 4 : 0))
+                .max(Comparator.naturalOrder())
+                .orElse(0);
     }
 
     @Override
@@ -242,14 +271,24 @@ public class StackDepthVisitorImpl implements StackDepthVisitor {
         return 5;
     }
 
+    /*
+     * The end of the loop and the partial result are kept in local variables. The
+     * partial result is loaded above the inner expression.
+     */
     @Override
     public Integer visit(Sum sum) {
-        return 3 + (Integer) sum.acceptInner(this);
+        return max(max(4, bounds(sum)), max(max((Integer) sum.acceptInner(this),
+                invariants(sum.getInvariants())), recurrences(sum.getRecurrences())));
     }
 
     @Override
     public Integer visit(Prod prod) {
-        return 3 + (Integer) prod.acceptInner(this);
+        return max(max(4, bounds(prod)), max(max((Integer) prod.acceptInner(this),
+                invariants(prod.getInvariants())), recurrences(prod.getRecurrences())));
+    }
+
+    private int bounds(AbstractSumProduct sumProduct) {
+        return max((Integer) sumProduct.acceptStart(this), (Integer) sumProduct.acceptEnd(this));
     }
 
     @Override
@@ -262,4 +301,72 @@ public class StackDepthVisitorImpl implements StackDepthVisitor {
         return auxiliaryVariable.acceptInner(this);
     }
 
+    @Override
+    public Integer visit(SharedExpression sharedExpression) {
+        // The value is duplicated before it is stored
+        return 2 + (Integer) sharedExpression.acceptExpression(this);
+    }
+
+    @Override
+    public Integer visit(SharedVar sharedVar) {
+        return 2;
+    }
+
+    @Override
+    public Integer visit(AlternatingSign alternatingSign) {
+        return max((Integer) alternatingSign.acceptExpression(this), 2);
+    }
+
+    /**
+     * The bounds, the first term and the step are stored in local variables, so
+     * each of them is computed on an empty stack. The number of terms n is a long,
+     * which is computed from two longs. The triangular number needs n below n - 1,
+     * beside the product of n and the first term. The closed form of doubles is
+     * copied to check whether it is finite. If it is not, or if the ratio of a
+     * geometric series is 1, the loop is evaluated.
+     */
+    @Override
+    public Integer visit(ClosedFormSum closedFormSum) {
+        Sum sum = closedFormSum.getSum();
+        int first = max(max((Integer) sum.acceptInner(this), invariants(sum.getInvariants())),
+                recurrences(sum.getRecurrences()));
+        return max(max(max(8, bounds(sum)), max(first, (Integer) closedFormSum.acceptStep(this))),
+                (Integer) sum.accept(this));
+    }
+
+    /*
+     * A table is indexed by the integer variable: GETSTATIC, ILOAD, LDC. The
+     * depth also covers the static initializer, which stores the values of the
+     * expression into the table: array, index and value.
+     */
+    @Override
+    public Integer visit(Precomputed precomputed) {
+        return max(3, 4 + (Integer) precomputed.acceptExpression(this));
+    }
+
+    /*
+     * The accumulator and the variable are kept in local variables. The Horner
+     * scheme needs the product of both and the table and the index, or the
+     * accumulator, the variable and its power. The coefficients are computed by the static initializer.
+     * If the result is not finite, the sum is evaluated instead.
+     */
+    @Override
+    public Integer visit(Polynomial polynomial) {
+        int coefficients = polynomial.getCoefficients().accept(this);
+        int sum = polynomial.getSum().accept(this);
+        return max(max(coefficients, sum), max(6, (Integer) polynomial.acceptVariable(this)));
+    }
+
+    /*
+     * Every loop is evaluated like a sum or a product, one after another.
+     */
+    @Override
+    public Integer visit(FusedLoop fusedLoop) {
+        int depth = 0;
+        for (AbstractSumProduct loop : fusedLoop.getLoops()) {
+            depth = max(depth, (Integer) loop.accept(this));
+        }
+        return depth;
+    }
+
 }
@@ -0,0 +1,214 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.*;
+
+/**
+ * Replaces powers by cheaper operations. Only powers with a double value are
+ * reduced; a power of two ints is rounded to an int, which multiplications do
+ * not reproduce.
+ * <ul>
+ * <li><code>x^n</code> with a constant <code>2 &lt;= n &lt;= {@value #MAX_EXPONENT}</code>
+ * becomes a chain of multiplications, by repeated squaring. The factors which
+ * are used twice are shared later by {@link CommonSubexpressionVisitor}.</li>
+ * <li><code>(-1)^n</code> with an integer exponent becomes an
+ * {@link AlternatingSign}; this is exact, for int powers as well.</li>
+ * <li><code>v^(k + c)</code> within a sum or a product over <code>k</code>
+ * becomes a {@link Recurrence} of the loop: <code>Math.pow</code> is called in
+ * the first iteration only, and every further iteration multiplies the value
+ * of the previous one by <code>v</code>. The base must not depend on
+ * <code>k</code> or on a loop within the loop over <code>k</code>, and it must
+ * not throw an exception, since it is evaluated in every iteration. The loop
+ * must start at a constant with <code>start + c &gt;= 0</code>: for negative
+ * exponents, <code>0^(-1) * 0</code> is not <code>0^0</code>.</li>
+ * </ul>
+ * Other than the rest of the optimizer, multiplications do not reproduce
+ * <code>Math.pow</code> bit for bit: a chain of multiplications is off by a
+ * few ulps at most, and the error of a running power grows by about one ulp
+ * per iteration.
+ */
+public class StrengthReductionVisitor extends TransformationVisitor {
+
+    /**
+     * The largest constant exponent which is replaced by multiplications.
+     */
+    public static final int MAX_EXPONENT = 8;
+
+    private final Deque<Loop> loops = new ArrayDeque<>();
+
+    private int nextIndex;
+
+    private StrengthReductionVisitor(int firstIndex) {
+        this.nextIndex = firstIndex;
+    }
+
+    /**
+     * Reduces the powers of a function.
+     *
+     * @param functionDefinition The function.
+     * @return The function with its powers reduced.
+     */
+    public static FunctionDefinition reduce(FunctionDefinition functionDefinition) {
+        int firstIndex = 1 + CommonSubexpressionVisitor.SharedIndexes.max(functionDefinition);
+        return functionDefinition.accept(new StrengthReductionVisitor(firstIndex));
+    }
+
+    /**
+     * A sum or a product which is being transformed, with the recurrences found
+     * in its inner expression.
+     */
+    private static class Loop {
+
+        private final String variableName;
+
+        /*
+         * The constant start of the loop, or null
+         */
+        private final Integer start;
+
+        private final Map<Expression, Recurrence> recurrences = new LinkedHashMap<>();
+
+        Loop(String variableName, Expression start) {
+            this.variableName = variableName;
+            this.start = start instanceof Int ? ((Int) start).getValue() : null;
+        }
+
+    }
+
+    @Override
+    public Expression visit(Sum sum) {
+
+        Expression start = sum.acceptStart(this);
+        Expression end = sum.acceptEnd(this);
+        List<SharedExpression> invariants = transformInvariants(sum.getInvariants());
+        List<Recurrence> recurrences = new ArrayList<>(transformRecurrences(sum.getRecurrences()));
+
+        loops.push(new Loop(sum.getVariableName(), start));
+        Expression inner = sum.acceptInner(this);
+        recurrences.addAll(loops.pop().recurrences.values());
+
+        return new Sum(inner, sum.getVariableName(), asIntExpression(start), asIntExpression(end), invariants,
+                recurrences);
+    }
+
+    @Override
+    public Expression visit(Prod prod) {
+
+        Expression start = prod.acceptStart(this);
+        Expression end = prod.acceptEnd(this);
+        List<SharedExpression> invariants = transformInvariants(prod.getInvariants());
+        List<Recurrence> recurrences = new ArrayList<>(transformRecurrences(prod.getRecurrences()));
+
+        loops.push(new Loop(prod.getVariableName(), start));
+        Expression inner = prod.acceptInner(this);
+        recurrences.addAll(loops.pop().recurrences.values());
+
+        return new Prod(inner, prod.getVariableName(), asIntExpression(start), asIntExpression(end), invariants,
+                recurrences);
+    }
+
+    @Override
+    public Expression visit(Power power) {
+
+        Expression base = power.acceptLeft(this);
+        Expression exponent = power.acceptRight(this);
+        Power transformed = new Power(base, exponent);
+
+        if (isMinusOne(base) && !exponent.evaluatesToDouble()) {
+            return new AlternatingSign(asIntExpression(exponent), transformed.evaluatesToDouble());
+        }
+
+        if (!base.evaluatesToDouble()) {
+            return transformed;
+        }
+
+        if (exponent instanceof Int) {
+            int n = ((Int) exponent).getValue();
+            return n >= 2 && n <= MAX_EXPONENT ? multiply(base, n) : transformed;
+        }
+
+        return runningPower(transformed, base, exponent);
+    }
+
+    private static boolean isMinusOne(Expression expression) {
+
+        if (expression instanceof Parenthesis) {
+            return isMinusOne(((Parenthesis) expression).acceptExpression(new TransformationVisitor()));
+        }
+
+        if (expression instanceof Neg) {
+            Expression operand = ((Neg) expression).acceptExpression(new TransformationVisitor());
+            return operand instanceof Int && ((Int) operand).getValue() == 1 ||
+                    operand instanceof Doub && ((Doub) operand).getValue() == 1;
+        }
+
+        return expression instanceof Int && ((Int) expression).getValue() == -1 ||
+                expression instanceof Doub && ((Doub) expression).getValue() == -1;
+    }
+
+    /*
+     * x^n by repeated squaring, e.g. x^5 = ((x * x) * (x * x)) * x
+     */
+    private static Expression multiply(Expression base, int n) {
+
+        if (n == 1) {
+            return base;
+        }
+
+        Expression half = multiply(base, n / 2);
+        Expression square = new Multiplication(half, half);
+
+        return n % 2 == 0 ? square : new Multiplication(square, base);
+    }
+
+    private Expression runningPower(Power power, Expression base, Expression exponent) {
+
+        Affine affine = Affine.of(exponent);
+        if (affine == null) {
+            return power;
+        }
+
+        Loop loop = loops.stream()
+                .filter(l -> l.variableName.equals(affine.getVariableName()))
+                .findFirst()
+                .orElse(null);
+
+        if (loop == null || loop.start == null || (long) loop.start + affine.getOffset() < 0) {
+            return power;
+        }
+
+        References references = References.of(base);
+        if (references.mayThrow) {
+            return power;
+        }
+
+        // The loops are iterated from the innermost one
+        for (Loop l : loops) {
+            if (references.intVars.contains(l.variableName)) {
+                return power;
+            }
+            if (l == loop) {
+                break;
+            }
+        }
+
+        return loop.recurrences.computeIfAbsent(power, p -> {
+            int index = nextIndex++;
+            return new Recurrence(index, p, p, new Multiplication(new SharedVar(index, p), base));
+        }).getSharedVar();
+    }
+
+}
@@ -243,4 +243,39 @@ public class SymbolVisitor implements Visitor {
         throw new IllegalStateException(EXCEPTION_MESSAGE);
     }
 
+    @Override
+    public String visit(SharedExpression sharedExpression) {
+        throw new IllegalStateException(EXCEPTION_MESSAGE);
+    }
+
+    @Override
+    public String visit(SharedVar sharedVar) {
+        throw new IllegalStateException(EXCEPTION_MESSAGE);
+    }
+
+    @Override
+    public String visit(AlternatingSign alternatingSign) {
+        throw new IllegalStateException(EXCEPTION_MESSAGE);
+    }
+
+    @Override
+    public String visit(ClosedFormSum closedFormSum) {
+        return closedFormSum.getSum().accept(this);
+    }
+
+    @Override
+    public String visit(Precomputed precomputed) {
+        return precomputed.acceptExpression(this);
+    }
+
+    @Override
+    public String visit(Polynomial polynomial) {
+        return polynomial.getSum().accept(this);
+    }
+
+    @Override
+    public String visit(FusedLoop fusedLoop) {
+        return fusedLoop.getLoops().get(0).accept(this);
+    }
+
 }
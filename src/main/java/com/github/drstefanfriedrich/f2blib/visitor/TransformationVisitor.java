@@ -0,0 +1,361 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link Visitor} which returns a transformed copy of the abstract syntax tree.
+ * Every visit method returns the transformed element; this implementation
+ * copies each element with its transformed children, so subclasses only
+ * override the elements they rewrite. Leaves are immutable and returned as
+ * they are.
+ */
+public class TransformationVisitor implements Visitor {
+
+    /**
+     * Some elements only accept an {@link IntExpression} as child. A transformed
+     * child which is not an IntExpression any more is wrapped in a
+     * {@link Parenthesis}, which does not change the generated code.
+     */
+    protected static IntExpression asIntExpression(Expression expression) {
+        return expression instanceof IntExpression ? (IntExpression) expression : new Parenthesis(expression);
+    }
+
+    @Override
+    public FunctionDefinition visit(FunctionDefinition functionDefinition) {
+        return new FunctionDefinition(functionDefinition.getName(), functionDefinition.getFunctionBody().accept(this));
+    }
+
+    @Override
+    public FunctionBody visit(FunctionBody functionBody) {
+
+        if (functionBody.isForLoop()) {
+            return new FunctionBody((ForLoop) functionBody.getForLoop().accept(this));
+        } else {
+            return new FunctionBody((FunctionsWrapper) functionBody.getFunctionsWrapper().accept(this));
+        }
+    }
+
+    @Override
+    public FunctionsWrapper visit(FunctionsWrapper functionsWrapper) {
+
+        List<AuxiliaryVariable> auxiliaryVariables = functionsWrapper.getAuxiliaryVariables().stream()
+                .map(av -> (AuxiliaryVariable) av.accept(this))
+                .collect(Collectors.toList());
+
+        List<Function> functions = functionsWrapper.getFunctions().stream()
+                .map(f -> (Function) f.accept(this))
+                .collect(Collectors.toList());
+
+        Optional<MarkovShift> markovShift = functionsWrapper.acceptMarkovShift(this);
+
+        return new FunctionsWrapper(auxiliaryVariables, functions, markovShift.orElse(null));
+    }
+
+    @Override
+    public ForLoop visit(ForLoop forLoop) {
+        Expression start = forLoop.acceptStart(this);
+        Expression end = forLoop.acceptEnd(this);
+        Expression step = forLoop.acceptStep(this);
+        List<SharedExpression> invariants = transformInvariants(forLoop.getInvariants());
+        FunctionsWrapper functionsWrapper = forLoop.acceptFunctionsWrapper(this);
+        return new ForLoop(forLoop.getVariableName(), asIntExpression(start), asIntExpression(end),
+                asIntExpression(step), functionsWrapper, invariants);
+    }
+
+    protected List<SharedExpression> transformInvariants(List<SharedExpression> invariants) {
+        return invariants.stream()
+                .map(invariant -> (SharedExpression) invariant.accept(this))
+                .collect(Collectors.toList());
+    }
+
+    protected List<Recurrence> transformRecurrences(List<Recurrence> recurrences) {
+        return recurrences.stream()
+                .map(recurrence -> recurrence.with(recurrence.acceptFirst(this), recurrence.acceptNext(this)))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Function visit(Function function) {
+        return new Function(function.getIndex(), function.acceptExpression(this));
+    }
+
+    @Override
+    public AuxiliaryVariable visit(AuxiliaryVariable auxiliaryVariable) {
+        return new AuxiliaryVariable(auxiliaryVariable.getAuxVar(), auxiliaryVariable.acceptInner(this));
+    }
+
+    @Override
+    public MarkovShift visit(MarkovShift markovShift) {
+        return new MarkovShift(asIntExpression(markovShift.getOffset().accept(this)));
+    }
+
+    @Override
+    public Expression visit(Abs abs) {
+        return new Abs(abs.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Addition addition) {
+        return new Addition(addition.acceptLeft(this), addition.acceptRight(this));
+    }
+
+    @Override
+    public Expression visit(Arccos arccos) {
+        return new Arccos(arccos.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Arcosh arcosh) {
+        return new Arcosh(arcosh.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Arcsin arcsin) {
+        return new Arcsin(arcsin.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Arctan arctan) {
+        return new Arctan(arctan.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Arsinh arsinh) {
+        return new Arsinh(arsinh.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Artanh artanh) {
+        return new Artanh(artanh.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Binomial binomial) {
+        Expression n = binomial.acceptN(this);
+        Expression k = binomial.acceptK(this);
+        return new Binomial(asIntExpression(n), asIntExpression(k));
+    }
+
+    @Override
+    public Expression visit(Constant constant) {
+        return constant;
+    }
+
+    @Override
+    public Expression visit(Cos cos) {
+        return new Cos(cos.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Cosh cosh) {
+        return new Cosh(cosh.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Division division) {
+        return new Division(division.acceptLeft(this), division.acceptRight(this));
+    }
+
+    @Override
+    public Expression visit(Exp exp) {
+        return new Exp(exp.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Faculty faculty) {
+        return new Faculty(asIntExpression(faculty.acceptExpression(this)));
+    }
+
+    @Override
+    public Expression visit(Int i) {
+        return i;
+    }
+
+    @Override
+    public Expression visit(Ln ln) {
+        return new Ln(ln.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Multiplication multiplication) {
+        return new Multiplication(multiplication.acceptLeft(this), multiplication.acceptRight(this));
+    }
+
+    @Override
+    public Expression visit(Parameter parameter) {
+        if (parameter.getIndexExpression() == null) {
+            return parameter;
+        }
+        return new Parameter(asIntExpression(parameter.getIndexExpression().accept(this)));
+    }
+
+    @Override
+    public Expression visit(Parenthesis parenthesis) {
+        return new Parenthesis(parenthesis.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Power power) {
+        return new Power(power.acceptLeft(this), power.acceptRight(this));
+    }
+
+    @Override
+    public Expression visit(Round round) {
+        return new Round(round.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Sin sin) {
+        return new Sin(sin.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Sinh sinh) {
+        return new Sinh(sinh.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Subtraction subtraction) {
+        return new Subtraction(subtraction.acceptLeft(this), subtraction.acceptRight(this));
+    }
+
+    @Override
+    public Expression visit(Tan tan) {
+        return new Tan(tan.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Tanh tanh) {
+        return new Tanh(tanh.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Variable variable) {
+        if (variable.getIndexExpression() == null) {
+            return variable;
+        }
+        return new Variable(asIntExpression(variable.getIndexExpression().accept(this)));
+    }
+
+    @Override
+    public Expression visit(Neg neg) {
+        return new Neg(neg.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Pos pos) {
+        return new Pos(pos.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(Doub doub) {
+        return doub;
+    }
+
+    @Override
+    public Expression visit(Sqrt sqrt) {
+        return new Sqrt(sqrt.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(NoOp noOp) {
+        return noOp;
+    }
+
+    @Override
+    public Expression visit(IntVar intVar) {
+        return intVar;
+    }
+
+    @Override
+    public Expression visit(Sum sum) {
+        Expression start = sum.acceptStart(this);
+        Expression end = sum.acceptEnd(this);
+        List<SharedExpression> invariants = transformInvariants(sum.getInvariants());
+        List<Recurrence> recurrences = transformRecurrences(sum.getRecurrences());
+        Expression inner = sum.acceptInner(this);
+        return new Sum(inner, sum.getVariableName(), asIntExpression(start), asIntExpression(end), invariants,
+                recurrences);
+    }
+
+    @Override
+    public Expression visit(Prod prod) {
+        Expression start = prod.acceptStart(this);
+        Expression end = prod.acceptEnd(this);
+        List<SharedExpression> invariants = transformInvariants(prod.getInvariants());
+        List<Recurrence> recurrences = transformRecurrences(prod.getRecurrences());
+        Expression inner = prod.acceptInner(this);
+        return new Prod(inner, prod.getVariableName(), asIntExpression(start), asIntExpression(end), invariants,
+                recurrences);
+    }
+
+    @Override
+    public Expression visit(AuxVar auxVar) {
+        return auxVar;
+    }
+
+    @Override
+    public Expression visit(SharedExpression sharedExpression) {
+        return new SharedExpression(sharedExpression.getIndex(), sharedExpression.acceptExpression(this));
+    }
+
+    @Override
+    public Expression visit(SharedVar sharedVar) {
+        return sharedVar;
+    }
+
+    @Override
+    public Expression visit(AlternatingSign alternatingSign) {
+        return new AlternatingSign(asIntExpression(alternatingSign.acceptExpression(this)),
+                alternatingSign.evaluatesToDouble());
+    }
+
+    @Override
+    public Expression visit(ClosedFormSum closedFormSum) {
+        Expression sum = closedFormSum.getSum().accept(this);
+        Expression step = closedFormSum.acceptStep(this);
+        return new ClosedFormSum(closedFormSum.getKind(), (Sum) sum, step);
+    }
+
+    /**
+     * Precomputed expressions are compiled as they are.
+     */
+    @Override
+    public Expression visit(Precomputed precomputed) {
+        return precomputed;
+    }
+
+    /**
+     * The sum of a polynomial is not evaluated, so it is not transformed.
+     */
+    @Override
+    public Expression visit(Polynomial polynomial) {
+        Expression variable = polynomial.acceptVariable(this);
+        return new Polynomial(polynomial.getSum(), polynomial.getCoefficients(), variable, polynomial.getOffset());
+    }
+
+    @Override
+    public Expression visit(FusedLoop fusedLoop) {
+        List<AbstractSumProduct> loops = fusedLoop.getLoops().stream()
+                .map(loop -> (AbstractSumProduct) loop.accept(this))
+                .collect(Collectors.toList());
+        return new FusedLoop(loops, fusedLoop.getIndexes());
+    }
+
+}
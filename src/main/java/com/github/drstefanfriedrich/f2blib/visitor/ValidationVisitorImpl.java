@@ -189,6 +189,7 @@ public class ValidationVisitorImpl extends BaseVisitor implements ValidationVisi
         forLoop.acceptStart(this);
         forLoop.acceptEnd(this);
         forLoop.acceptStep(this);
+        forLoop.getInvariants().forEach(invariant -> invariant.accept(this));
 
         putIntVariableInScope(variableName);
         forLoop.acceptFunctionsWrapper(this);
@@ -232,14 +233,27 @@ public class ValidationVisitorImpl extends BaseVisitor implements ValidationVisi
 
         sum.acceptStart(this);
         sum.acceptEnd(this);
+        sum.getInvariants().forEach(invariant -> invariant.accept(this));
 
         putIntVariableInScope(variableName);
+        sum.getRecurrences().forEach(recurrence -> {
+            localVariables.addSharedVar(recurrence.getSharedVar());
+            recurrence.acceptFirst(this);
+            recurrence.acceptNext(this);
+        });
         sum.acceptInner(this);
         removeIntVariableFromScope(variableName);
 
         return null;
     }
 
+    @Override
+    public Void visit(ClosedFormSum closedFormSum) {
+        closedFormSum.getSum().accept(this);
+        closedFormSum.acceptStep(this);
+        return null;
+    }
+
     @Override
     public Void visit(Prod prod) {
 
@@ -248,8 +262,14 @@ public class ValidationVisitorImpl extends BaseVisitor implements ValidationVisi
 
         prod.acceptStart(this);
         prod.acceptEnd(this);
+        prod.getInvariants().forEach(invariant -> invariant.accept(this));
 
         putIntVariableInScope(variableName);
+        prod.getRecurrences().forEach(recurrence -> {
+            localVariables.addSharedVar(recurrence.getSharedVar());
+            recurrence.acceptFirst(this);
+            recurrence.acceptNext(this);
+        });
         prod.acceptInner(this);
         removeIntVariableFromScope(variableName);
 
@@ -271,6 +291,7 @@ public class ValidationVisitorImpl extends BaseVisitor implements ValidationVisi
             tmpParameterIndexes.add(parameter.getIndex());
         } else {
             atLeastOneParameterIsIntExpression = true;
+            parameter.getIndexExpression().accept(this);
         }
         return null;
     }
@@ -281,6 +302,7 @@ public class ValidationVisitorImpl extends BaseVisitor implements ValidationVisi
             tmpVariableIndexes.add(variable.getIndex());
         } else {
             atLeastOneVariableIsIntExpression = true;
+            variable.getIndexExpression().accept(this);
         }
         return null;
     }
@@ -295,4 +317,32 @@ public class ValidationVisitorImpl extends BaseVisitor implements ValidationVisi
                 atLeastOneVariableIsIntExpression);
     }
 
+    @Override
+    public Void visit(SharedExpression sharedExpression) {
+
+        localVariables.addSharedVar(sharedExpression.getSharedVar());
+        sharedExpression.acceptExpression(this);
+
+        return null;
+    }
+
+    @Override
+    public Void visit(Precomputed precomputed) {
+        precomputed.acceptExpression(this);
+        return null;
+    }
+
+    @Override
+    public Void visit(Polynomial polynomial) {
+        polynomial.getSum().accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visit(FusedLoop fusedLoop) {
+        fusedLoop.getLoops().forEach(loop -> loop.accept(this));
+        fusedLoop.getSharedVars().forEach(localVariables::addSharedVar);
+        return null;
+    }
+
 }
@@ -104,4 +104,18 @@ public interface Visitor {
 
     <T> T visit(AuxiliaryVariable auxiliaryVariable);
 
+    <T> T visit(SharedExpression sharedExpression);
+
+    <T> T visit(SharedVar sharedVar);
+
+    <T> T visit(AlternatingSign alternatingSign);
+
+    <T> T visit(ClosedFormSum closedFormSum);
+
+    <T> T visit(Precomputed precomputed);
+
+    <T> T visit(Polynomial polynomial);
+
+    <T> T visit(FusedLoop fusedLoop);
+
 }
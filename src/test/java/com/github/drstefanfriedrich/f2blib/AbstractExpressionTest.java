@@ -12,12 +12,16 @@
 
 package com.github.drstefanfriedrich.f2blib;
 
+import com.github.drstefanfriedrich.f2blib.exception.BytecodeGenerationException;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.Arrays;
+
 import static com.github.drstefanfriedrich.f2blib.util.TestUtil.closeTo;
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 /**
@@ -259,4 +263,112 @@ public abstract class AbstractExpressionTest {
         assertExpression("(-1)^3/3!", -1 / (double) 6);
     }
 
+    @Test
+    public void unusedAuxiliaryVariablesAreReported() {
+
+        kernel.load("function Unused;\n" +
+                "begin\n" +
+                "    A := x_1 + 1;\n" +
+                "    B := ln(x_1) / 0;\n" +
+                "    C := A * 2;\n" +
+                "    A := x_2;\n" +
+                "    f_1 := A + 1;\n" +
+                "end\n");
+
+        double[] y = new double[1];
+        kernel.eval("Unused", new double[0], new double[]{0, 2}, y);
+
+        assertThat(y[0], closeTo(3));
+        assertThat(kernel.getLoadDiagnostics("Unused").getUnusedAuxiliaryVariables(), is(Arrays.asList("A", "B", "C")));
+    }
+
+    @Test
+    public void unusedAuxiliaryVariablesAreValidated() {
+
+        exception.expect(BytecodeGenerationException.class);
+        exception.expectMessage("The variable 'k' is not defined");
+
+        kernel.load("function Unused;\n" +
+                "begin\n" +
+                "    A := k;\n" +
+                "    f_1 := x_1;\n" +
+                "end\n");
+    }
+
+    @Test
+    public void unusedAuxiliaryVariablesDetermineTheSizeOfX() {
+
+        kernel.load("function Unused;\n" +
+                "begin\n" +
+                "    A := x_5;\n" +
+                "    f_1 := x_1;\n" +
+                "end\n");
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("x must have at least size 4, but was 1");
+
+        kernel.eval("Unused", new double[0], new double[]{1}, new double[1]);
+    }
+
+    @Test
+    public void seriesWithSpecialValues() {
+
+        kernel.load("function Series;\n" +
+                "begin\n" +
+                "    A := 2;\n" +
+                "    f_1 := sum(i / x_2 * A * euler, i, round(p_1), 3);\n" +
+                "    f_2 := sum(x_1 ^ k, k, 0, 5);\n" +
+                "end\n");
+
+        double[] y = new double[2];
+        kernel.eval("Series", new double[]{3}, new double[]{-1, 0}, y);
+
+        assertThat(y[0], is(Double.POSITIVE_INFINITY));
+        assertThat(Double.doubleToRawLongBits(y[1]), is(Double.doubleToRawLongBits(0.0)));
+    }
+
+    @Test
+    public void polynomialsWithSpecialValues() {
+
+        kernel.load("function Polynomials;\n" +
+                "begin\n" +
+                "    f_1 := sum(k * x_1 ^ k, k, 0, 3);\n" +
+                "    f_2 := sum(k * x_1 ^ (k + 1), k, 1, 4);\n" +
+                "    f_3 := sum(k * x_2 ^ k, k, 1, 3);\n" +
+                "end\n");
+
+        double[] y = new double[3];
+        kernel.eval("Polynomials", new double[0], new double[]{-1e300, -0.0}, y);
+
+        // The terms are infinite with alternating signs
+        assertThat(y[0], is(Double.NaN));
+        assertThat(y[1], is(Double.NaN));
+        assertThat(Double.doubleToRawLongBits(y[2]), is(Double.doubleToRawLongBits(0.0)));
+    }
+
+    @Test
+    public void commonSubexpressionsOfIndexExpressions() {
+
+        kernel.load("function Indexes;\n" +
+                "begin\n" +
+                "    A := sin(x_1);\n" +
+                "    f_1 := sum(x_{k + 1} * (k + 1), k, 1, 3);\n" +
+                "    f_2 := x_{round(p_1) + 1} + (round(p_1) + 1);\n" +
+                "    f_3 := x_{round(A * A) + 1} + A * A;\n" +
+                "end\n");
+
+        double[] y = new double[3];
+        kernel.eval("Indexes", new double[]{1.2}, new double[]{0.5, 1.5, 2.5, 3.5}, y);
+
+        assertThat(y[0], closeTo(24.5));
+        assertThat(y[1], closeTo(3.5));
+        assertThat(y[2], closeTo(0.5 + Math.sin(0.5) * Math.sin(0.5)));
+    }
+
+    @Test
+    public void noDiagnostics() {
+        assertExpression("1", 1);
+        assertThat(kernel.getLoadDiagnostics("ExpressionTest"), is(LoadDiagnostics.NONE));
+    }
+
 }
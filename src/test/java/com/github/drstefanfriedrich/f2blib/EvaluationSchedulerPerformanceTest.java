@@ -0,0 +1,133 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib;
+
+import com.github.drstefanfriedrich.f2blib.scheduler.EvaluationRequest;
+import com.github.drstefanfriedrich.f2blib.scheduler.EvaluationScheduler;
+import com.github.drstefanfriedrich.f2blib.scheduler.WaitStrategy;
+import com.github.drstefanfriedrich.f2blib.util.TestUtil;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The same workload as {@link BytecodePerformanceTest}, but the requests are
+ * evaluated by an {@link EvaluationScheduler} instead of worker threads taking
+ * them one by one from a {@link java.util.concurrent.BlockingQueue}.
+ */
+public class EvaluationSchedulerPerformanceTest extends AbstractPerformanceTest {
+
+    private static final String FUNCTION_DEFINITION;
+
+    static {
+        try {
+            FUNCTION_DEFINITION = readFunctionByFileName("PerformanceTestFunction.f");
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static class SchedulerRequest implements EvaluationRequest {
+
+        private final RequestResponse requestResponse;
+        private final CountDownLatch latch;
+
+        SchedulerRequest(RequestResponse requestResponse, CountDownLatch latch) {
+            this.requestResponse = requestResponse;
+            this.latch = latch;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return FUNCTION_NAME;
+        }
+
+        @Override
+        public double[] getP() {
+            return requestResponse.getP();
+        }
+
+        @Override
+        public double[] getX() {
+            return requestResponse.getX();
+        }
+
+        @Override
+        public double[] getY() {
+            return requestResponse.getY();
+        }
+
+        @Override
+        public void completed() {
+            latch.countDown();
+        }
+
+        @Override
+        public void failed(RuntimeException e) {
+            throw e;
+        }
+
+    }
+
+    @Test
+    public void performance() throws InterruptedException {
+        TestUtil.assumePerformanceTest();
+
+        FunctionEvaluationKernel kernel = new FunctionEvaluationFactory().get().create();
+        kernel.load(FUNCTION_DEFINITION);
+
+        StringBuilder durations = new StringBuilder();
+
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+
+            CountDownLatch latch = new CountDownLatch(NUMBER_OBJECTS);
+            List<SchedulerRequest> requests = new ArrayList<>();
+            prepareTestObjects().forEach(rr -> requests.add(new SchedulerRequest(rr, latch)));
+
+            EvaluationScheduler scheduler = new EvaluationScheduler(kernel, EvaluationScheduler.DEFAULT_CAPACITY,
+                    NUMBER_CORES, EvaluationScheduler.DEFAULT_MAX_BATCH_SIZE, waitStrategy);
+
+            long start = System.currentTimeMillis();
+
+            try {
+
+                scheduler.start();
+
+                for (SchedulerRequest request : requests) {
+                    scheduler.submit(request);
+                }
+
+                assertTrue(latch.await(60, TimeUnit.SECONDS));
+
+            } finally {
+                scheduler.close();
+            }
+
+            long end = System.currentTimeMillis();
+
+            durations.append(waitStrategy).append("=").append(end - start).append(" (max queue depth ")
+                    .append(scheduler.getMaxQueueDepth()).append(") ");
+        }
+
+        fail("Performance should always be better. That's why we fail the unit test. " +
+                "Total duration (ms): " + durations);
+    }
+
+}
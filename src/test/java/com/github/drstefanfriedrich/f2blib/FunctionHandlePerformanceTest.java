@@ -0,0 +1,85 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib;
+
+import com.github.drstefanfriedrich.f2blib.util.TestUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the string-keyed evaluation of a function with the evaluation through
+ * a resolved {@link FunctionHandle} and with the batch evaluation within a single
+ * thread, and finally with the parallel batch evaluation. The function is cheap
+ * on purpose, so the overhead per invocation dominates the measurement.
+ */
+public class FunctionHandlePerformanceTest extends AbstractPerformanceTest {
+
+    private static final int REPETITIONS = 1000;
+
+    private static final String FUNCTION_DEFINITION = "function " + FUNCTION_NAME + ";\n" +
+            "begin\n" +
+            "    f_1 := x_1 * p_1 + x_2;\n" +
+            "    f_2 := x_1 - p_2;\n" +
+            "    f_3 := x_2 * x_2;\n" +
+            "    f_4 := p_1 + p_2;\n" +
+            "end";
+
+    private final FunctionEvaluationKernel kernel = new FunctionEvaluationFactory().get().create();
+
+    @Test
+    public void performance() {
+        TestUtil.assumePerformanceTest();
+
+        kernel.load(FUNCTION_DEFINITION);
+        FunctionHandle handle = kernel.resolve(FUNCTION_NAME);
+        List<RequestResponse> testObjects = new ArrayList<>(prepareTestObjects());
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < REPETITIONS; i++) {
+            for (RequestResponse rr : testObjects) {
+                kernel.eval(FUNCTION_NAME, rr.getP(), rr.getX(), rr.getY());
+            }
+        }
+        long middle = System.currentTimeMillis();
+        for (int i = 0; i < REPETITIONS; i++) {
+            for (RequestResponse rr : testObjects) {
+                handle.eval(rr.getP(), rr.getX(), rr.getY());
+            }
+        }
+        long afterHandle = System.currentTimeMillis();
+
+        double[][] p = testObjects.stream().map(RequestResponse::getP).toArray(double[][]::new);
+        double[][] x = testObjects.stream().map(RequestResponse::getX).toArray(double[][]::new);
+        double[][] y = testObjects.stream().map(RequestResponse::getY).toArray(double[][]::new);
+
+        long beforeBatch = System.currentTimeMillis();
+        for (int i = 0; i < REPETITIONS; i++) {
+            handle.evalBatch(p, x, y);
+        }
+        long afterBatch = System.currentTimeMillis();
+        for (int i = 0; i < REPETITIONS; i++) {
+            handle.evalBatchParallel(p, x, y);
+        }
+        long end = System.currentTimeMillis();
+
+        fail("Performance should always be better. That's why we fail the unit test. " +
+                "Total duration (ms): " + (end - start) + ", eval by name (ms): " + (middle - start) +
+                ", eval by handle (ms): " + (afterHandle - middle) + ", batch eval (ms): " + (afterBatch - beforeBatch) +
+                ", parallel batch eval (ms): " + (end - afterBatch));
+    }
+
+}
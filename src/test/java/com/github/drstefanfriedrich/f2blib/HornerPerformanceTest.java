@@ -0,0 +1,105 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib;
+
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGeneratorImpl;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionOptimizer;
+import com.github.drstefanfriedrich.f2blib.generator.IsolatedClassDefinitionStrategy;
+import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import com.github.drstefanfriedrich.f2blib.util.TestUtil;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the evaluation of the polynomials <code>f_3</code> and <code>f_4</code>
+ * of the performance test function with and without the optimizer. Without the
+ * optimizer, every term calls <code>Math.pow</code>, <code>factorial</code> and
+ * <code>binomialCoefficient</code>; with the optimizer, the coefficients are
+ * precomputed and the polynomials are evaluated by the Horner scheme. The largest
+ * relative difference of the results is reported as well.
+ */
+public class HornerPerformanceTest extends AbstractPerformanceTest {
+
+    private static final int REPETITIONS = 1_000_000;
+
+    private static final String FUNCTION_DEFINITION = "function " + FUNCTION_NAME + ";\n" +
+            "begin\n" +
+            "    f_1 := sum(binomial(20, k) * (-1)^k/k! * x_1^k, k, 0, 20);\n" +
+            "    f_2 := sum(binomial(30, k) * binomial(30 + k, k) * ((x_1 - 1) / 2)^k, k, 0, 30);\n" +
+            "end";
+
+    private static FunctionEvaluation generate(boolean optimized) {
+        return new FunctionEvaluationBytecodeGeneratorImpl(new IsolatedClassDefinitionStrategy(),
+                new FunctionOptimizer(optimized))
+                .generateAndInstantiate(new AntlrFunctionParser().parse(FUNCTION_DEFINITION))
+                .getFunctionEvaluation();
+    }
+
+    private static long measure(FunctionEvaluation functionEvaluation, double[][] x) {
+
+        double[] p = {};
+        double[] y = new double[2];
+
+        // Warm up
+        for (int i = 0; i < REPETITIONS / 10; i++) {
+            functionEvaluation.eval(p, x[i % x.length], y);
+        }
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < REPETITIONS; i++) {
+            functionEvaluation.eval(p, x[i % x.length], y);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static double maxRelativeDifference(FunctionEvaluation unoptimized, FunctionEvaluation optimized,
+                                                double[][] x) {
+
+        double max = 0;
+        double[] expected = new double[2];
+        double[] actual = new double[2];
+
+        for (double[] row : x) {
+            unoptimized.eval(new double[0], row, expected);
+            optimized.eval(new double[0], row, actual);
+            for (int i = 0; i < expected.length; i++) {
+                max = Math.max(max, Math.abs(actual[i] - expected[i]) / Math.abs(expected[i]));
+            }
+        }
+
+        return max;
+    }
+
+    @Test
+    public void performance() {
+        TestUtil.assumePerformanceTest();
+
+        FunctionEvaluation unoptimized = generate(false);
+        FunctionEvaluation optimized = generate(true);
+
+        Random random = new Random(42);
+        double[][] x = new double[1000][];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = new double[]{2 * random.nextDouble()};
+        }
+
+        fail(String.format("Performance should always be better. That's why we fail the unit test, " +
+                        "unoptimized (ms): %d, optimized (ms): %d, max. relative difference: %g",
+                measure(unoptimized, x), measure(optimized, x), maxRelativeDifference(unoptimized, optimized, x)));
+    }
+
+}
@@ -16,6 +16,7 @@ import org.junit.Test;
 
 import static com.github.drstefanfriedrich.f2blib.util.TestUtil.closeTo;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertArrayEquals;
 
 /**
  * Some very simple integration tests for the project.
@@ -156,4 +157,55 @@ public class IntegrationTest {
         assertThat(y[0], closeTo(1));
     }
 
+    @Test
+    public void functionFromReadmeBatch() {
+
+        kernel.load(FUNCTION);
+
+        double[][] x = new double[][]{{2.51, 1.28}, {0.5, -0.75}};
+        double[][] p = new double[][]{{-1.45, 8.27}, {3.1, 0.2}};
+        double[][] y = new double[2][2];
+
+        kernel.evalBatch("some.packagename.SomeClassName", p, x, y);
+
+        for (int i = 0; i < 2; i++) {
+            double[] expected = new double[2];
+            kernel.eval("some.packagename.SomeClassName", p[i], x[i], expected);
+            assertArrayEquals(expected, y[i], 0);
+        }
+    }
+
+    @Test
+    public void gaussSumBatch() {
+
+        kernel.load(GAUSS_SUM);
+
+        double[] x = new double[]{0, 0, 0};
+        double[] p = new double[]{1, 100, 1, 1, 10, 1, 1, 4, 1};
+        double[] y = new double[3];
+
+        kernel.evalBatch("some.packagename.GaußSum", p, 3, x, 1, y, 1, 3);
+
+        assertThat(y[0], closeTo(5050));
+        assertThat(y[1], closeTo(55));
+        assertThat(y[2], closeTo(10));
+        assertArrayEquals(y, x, 0);
+    }
+
+    @Test
+    public void indexedParamsAndVarsBatch() {
+
+        kernel.load(INDEXED_PARAMS_AND_VARS);
+
+        double[] x = new double[]{99, 0, 0, 99};
+        double[] p = new double[]{99, 0, 1, 1, 1, 99};
+        double[] y = new double[]{99, 0, 99};
+
+        kernel.evalBatch("some.packagename.IndexedParameter", p, 1, 4, x, 1, 2, y, 1, 1, 1);
+
+        assertThat(y[0], closeTo(99));
+        assertThat(y[1], closeTo(1));
+        assertThat(y[2], closeTo(99));
+    }
+
 }
@@ -0,0 +1,84 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib;
+
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGeneratorImpl;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionOptimizer;
+import com.github.drstefanfriedrich.f2blib.generator.IsolatedClassDefinitionStrategy;
+import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import com.github.drstefanfriedrich.f2blib.util.TestUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the evaluation of the actuarial pattern <code>sum(q_k * prod(1 - q_l,
+ * l, 1, k - 1), k, 1, n)</code> with and without the optimizer, for growing
+ * <code>n</code>. Without the optimizer, the duration grows with the square of
+ * <code>n</code>; with the optimizer, the product is carried from one iteration
+ * to the next, and the duration grows linearly.
+ */
+public class RunningProductPerformanceTest extends AbstractPerformanceTest {
+
+    private static final int REPETITIONS = 5000;
+
+    private static final int[] LENGTHS = {100, 200, 400, 800};
+
+    private static final String FUNCTION_DEFINITION = "function " + FUNCTION_NAME + ";\n" +
+            "begin\n" +
+            "    f_1 := sum(p_1 / (k + 1) * prod(1 - x_1 / (l + 2), l, 1, k - 1), k, 1, round(p_2));\n" +
+            "end";
+
+    private static FunctionEvaluation generate(boolean optimized) {
+        return new FunctionEvaluationBytecodeGeneratorImpl(new IsolatedClassDefinitionStrategy(),
+                new FunctionOptimizer(optimized))
+                .generateAndInstantiate(new AntlrFunctionParser().parse(FUNCTION_DEFINITION))
+                .getFunctionEvaluation();
+    }
+
+    private static long measure(FunctionEvaluation functionEvaluation, int n) {
+
+        double[] p = {0.5, n};
+        double[] x = {0.3};
+        double[] y = new double[1];
+
+        // Warm up
+        for (int i = 0; i < REPETITIONS / 10; i++) {
+            functionEvaluation.eval(p, x, y);
+        }
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < REPETITIONS; i++) {
+            functionEvaluation.eval(p, x, y);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void performance() {
+        TestUtil.assumePerformanceTest();
+
+        FunctionEvaluation unoptimized = generate(false);
+        FunctionEvaluation optimized = generate(true);
+
+        StringBuilder result = new StringBuilder();
+        for (int n : LENGTHS) {
+            result.append(String.format(", n = %d: unoptimized (ms): %d, optimized (ms): %d",
+                    n, measure(unoptimized, n), measure(optimized, n)));
+        }
+
+        fail("Performance should always be better. That's why we fail the unit test" + result);
+    }
+
+}
@@ -0,0 +1,149 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidatorImpl;
+import com.google.common.base.Strings;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class BytecodeCacheTest {
+
+    private static final String SOURCE_1 = "function Func; begin f_1 := 2 * x_1; end";
+
+    private static final String SOURCE_2 = "function Func; begin f_1 := 4 * x_1; end";
+
+    private static final byte[] BYTECODE = {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 1, 2, 3};
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path directory;
+
+    private BytecodeCache underTest;
+
+    @Before
+    public void setup() {
+        directory = temporaryFolder.getRoot().toPath().resolve("cache");
+        underTest = new BytecodeCache(directory);
+    }
+
+    private static BytecodeCache.Entry entry(String prettyPrintedFunction) {
+        return new BytecodeCache.Entry("Func", BYTECODE,
+                new FunctionEvaluationValidatorImpl(3, -1, 2, false, true), prettyPrintedFunction, 42);
+    }
+
+    private Path file(String source) {
+        return directory.resolve(BytecodeCache.key(source) + ".f2b");
+    }
+
+    @Test
+    public void missingEntry() {
+        assertThat(underTest.get(SOURCE_1).isPresent(), is(false));
+    }
+
+    @Test
+    public void putAndGet() {
+
+        underTest.put(SOURCE_1, entry("f_1 := 2 * x_1;"));
+
+        Optional<BytecodeCache.Entry> entry = underTest.get(SOURCE_1);
+
+        assertThat(entry.isPresent(), is(true));
+        assertThat(entry.get().getClassName(), is("Func"));
+        assertArrayEquals(BYTECODE, entry.get().getBytecode());
+        assertThat(entry.get().getPrettyPrintedFunction(), is("f_1 := 2 * x_1;"));
+        assertThat(entry.get().getCost(), is(42L));
+        assertThat(entry.get().getFunctionEvaluationValidator().getSizeP(), is(3));
+        assertThat(entry.get().getFunctionEvaluationValidator().getSizeX(), is(-1));
+        assertThat(entry.get().getFunctionEvaluationValidator().getSizeY(), is(2));
+        assertThat(entry.get().getFunctionEvaluationValidator().isAtLeastOneParameterIsIntExpression(), is(false));
+        assertThat(entry.get().getFunctionEvaluationValidator().isAtLeastOneVariableIsIntExpression(), is(true));
+
+        assertThat(underTest.get(SOURCE_2).isPresent(), is(false));
+    }
+
+    @Test
+    public void unusedAuxiliaryVariables() {
+
+        underTest.put(SOURCE_1, new BytecodeCache.Entry("Func", BYTECODE,
+                new FunctionEvaluationValidatorImpl(3, -1, 2, false, true), "f_1 := 2 * x_1;", 42,
+                Arrays.asList("A", "B")));
+
+        assertThat(underTest.get(SOURCE_1).get().getUnusedAuxiliaryVariables(), is(Arrays.asList("A", "B")));
+    }
+
+    @Test
+    public void largePrettyPrintedFunction() {
+
+        String prettyPrintedFunction = Strings.repeat("f_1 := 2 * x_1;\n", 10000);
+
+        underTest.put(SOURCE_1, entry(prettyPrintedFunction));
+
+        assertThat(underTest.get(SOURCE_1).get().getPrettyPrintedFunction(), is(prettyPrintedFunction));
+    }
+
+    @Test
+    public void corruptEntryIsRemoved() throws IOException {
+
+        underTest.put(SOURCE_1, entry("f_1 := 2 * x_1;"));
+
+        byte[] content = Files.readAllBytes(file(SOURCE_1));
+        content[content.length - 12] ^= 1;
+        Files.write(file(SOURCE_1), content);
+
+        assertThat(underTest.get(SOURCE_1).isPresent(), is(false));
+        assertThat(Files.exists(file(SOURCE_1)), is(false));
+    }
+
+    @Test
+    public void truncatedEntryIsRemoved() throws IOException {
+
+        underTest.put(SOURCE_1, entry("f_1 := 2 * x_1;"));
+
+        byte[] content = Files.readAllBytes(file(SOURCE_1));
+        Files.write(file(SOURCE_1), Arrays.copyOf(content, content.length / 2));
+
+        assertThat(underTest.get(SOURCE_1).isPresent(), is(false));
+        assertThat(Files.exists(file(SOURCE_1)), is(false));
+    }
+
+    @Test
+    public void entryWithOtherKeyIsRemoved() throws IOException {
+
+        underTest.put(SOURCE_2, entry("f_1 := 4 * x_1;"));
+        Files.move(file(SOURCE_2), file(SOURCE_1));
+
+        assertThat(underTest.get(SOURCE_1).isPresent(), is(false));
+        assertThat(Files.exists(file(SOURCE_1)), is(false));
+    }
+
+    @Test
+    public void keyDependsOnSource() {
+        assertThat(BytecodeCache.key(SOURCE_1).equals(BytecodeCache.key(SOURCE_2)), is(false));
+        assertThat(BytecodeCache.key(SOURCE_1), is(BytecodeCache.key(SOURCE_1)));
+    }
+
+}
@@ -0,0 +1,165 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static com.github.drstefanfriedrich.f2blib.util.TestUtil.closeTo;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class ClassDefinitionStrategyTest {
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private static byte[] bytecode(String className, double factor) {
+        FunctionDefinition fd = new FunctionDefinition(className, new FunctionBody(new FunctionsWrapper(
+                new Function(0, new Multiplication(new Doub(factor), new Variable(0))))));
+        return new FunctionEvaluationBytecodeGeneratorImpl(new IsolatedClassDefinitionStrategy())
+                .generateAndInstantiate(fd).getBytecode();
+    }
+
+    private static double eval(Class<? extends FunctionEvaluation> clazz, double x) throws ReflectiveOperationException {
+        double[] y = new double[1];
+        clazz.getConstructor().newInstance().eval(new double[0], new double[]{x}, y);
+        return y[0];
+    }
+
+    private static void defineTwice(ClassDefinitionStrategy underTest, String className)
+            throws ReflectiveOperationException {
+
+        Class<? extends FunctionEvaluation> first = underTest.define(className, bytecode(className, 2));
+        Class<? extends FunctionEvaluation> second = underTest.define(className, bytecode(className, 3));
+
+        assertThat(eval(first, 1.5), closeTo(3));
+        assertThat(eval(second, 1.5), closeTo(4.5));
+        assertThat(second, is(not(sameInstance(first))));
+    }
+
+    @Test
+    public void isolated() throws ReflectiveOperationException {
+        defineTwice(new IsolatedClassDefinitionStrategy(), "some.pkg.Isolated");
+    }
+
+    @Test
+    public void grouped() throws ReflectiveOperationException {
+        defineTwice(new GroupedClassDefinitionStrategy(), "some.pkg.Grouped");
+    }
+
+    @Test
+    public void hidden() throws ReflectiveOperationException {
+
+        assumeTrue("Hidden classes are not supported", HiddenClassDefinitionStrategy.isSupported());
+
+        defineTwice(new HiddenClassDefinitionStrategy(), "some.pkg.Hidden");
+        defineTwice(new HiddenClassDefinitionStrategy(), "HiddenWithoutPackage");
+    }
+
+    @Test
+    public void hiddenClassesOfAPackageShareTheirClassLoader() {
+
+        assumeTrue("Hidden classes are not supported", HiddenClassDefinitionStrategy.isSupported());
+
+        HiddenClassDefinitionStrategy underTest = new HiddenClassDefinitionStrategy();
+
+        Class<?> first = underTest.define("some.pkg.First", bytecode("some.pkg.First", 2));
+        Class<?> second = underTest.define("some.pkg.Second", bytecode("some.pkg.Second", 2));
+
+        assertThat(second.getClassLoader(), is(sameInstance(first.getClassLoader())));
+    }
+
+    @Test
+    public void groupsAreLimitedBySize() {
+
+        GroupedClassDefinitionStrategy underTest = new GroupedClassDefinitionStrategy(2);
+
+        Class<?> first = underTest.define("some.pkg.First", bytecode("some.pkg.First", 2));
+        Class<?> second = underTest.define("some.pkg.Second", bytecode("some.pkg.Second", 2));
+        Class<?> third = underTest.define("some.pkg.Third", bytecode("some.pkg.Third", 2));
+
+        assertThat(second.getClassLoader(), is(sameInstance(first.getClassLoader())));
+        assertThat(third.getClassLoader(), is(not(sameInstance(first.getClassLoader()))));
+    }
+
+    @Test
+    public void groupIsDroppedWhenAllClassesAreReleased() {
+
+        GroupedClassDefinitionStrategy underTest = new GroupedClassDefinitionStrategy(4);
+
+        Class<?> first = underTest.define("some.pkg.First", bytecode("some.pkg.First", 2));
+        Class<?> second = underTest.define("some.pkg.Second", bytecode("some.pkg.Second", 2));
+
+        underTest.release(first);
+        assertThat(underTest.getCurrentGroup(), is(sameInstance(first.getClassLoader())));
+
+        underTest.release(first);
+        underTest.release(second);
+        assertThat(underTest.getCurrentGroup(), is(nullValue()));
+
+        Class<?> third = underTest.define("some.pkg.Third", bytecode("some.pkg.Third", 2));
+        assertThat(third.getClassLoader(), is(not(sameInstance(first.getClassLoader()))));
+    }
+
+    @Test
+    public void releaseIgnoresForeignClasses() {
+
+        GroupedClassDefinitionStrategy underTest = new GroupedClassDefinitionStrategy(4);
+        Class<?> first = underTest.define("some.pkg.First", bytecode("some.pkg.First", 2));
+
+        underTest.release(String.class);
+        underTest.release(getClass());
+
+        assertThat(underTest.getCurrentGroup(), is(sameInstance(first.getClassLoader())));
+    }
+
+    @Test
+    public void invalidGroupSize() {
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("The group size must be positive, but was 0");
+
+        new GroupedClassDefinitionStrategy(0);
+    }
+
+    @Test
+    public void fromSystemProperties() {
+
+        String previous = System.getProperty(ClassDefinitionStrategy.STRATEGY_PROPERTY);
+
+        try {
+            System.setProperty(ClassDefinitionStrategy.STRATEGY_PROPERTY, "grouped");
+            assertThat(ClassDefinitionStrategy.fromSystemProperties(), instanceOf(GroupedClassDefinitionStrategy.class));
+
+            System.setProperty(ClassDefinitionStrategy.STRATEGY_PROPERTY, "isolated");
+            assertThat(ClassDefinitionStrategy.fromSystemProperties(), instanceOf(IsolatedClassDefinitionStrategy.class));
+
+            System.setProperty(ClassDefinitionStrategy.STRATEGY_PROPERTY, "unknown");
+            exception.expect(IllegalArgumentException.class);
+            exception.expectMessage("Unknown class definition strategy: unknown");
+            ClassDefinitionStrategy.fromSystemProperties();
+        } finally {
+            if (previous == null) {
+                System.clearProperty(ClassDefinitionStrategy.STRATEGY_PROPERTY);
+            } else {
+                System.setProperty(ClassDefinitionStrategy.STRATEGY_PROPERTY, previous);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidatorImpl;
+import com.github.drstefanfriedrich.f2blib.visitor.PrettyPrintVisitor;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.core.IsCollectionContaining.hasItems;
+import static org.junit.Assert.assertThat;
+
+public class FunctionCompilerTest {
+
+    private static final String FUNCTION = "function some.packagename.Func;\n" +
+            "begin\n" +
+            "    f_1 := 2 * x_1 + p_1;\n" +
+            "end";
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path sourceDirectory;
+
+    private Path outputDirectory;
+
+    private final FunctionCompiler underTest = new FunctionCompiler();
+
+    @Before
+    public void setup() throws IOException {
+
+        sourceDirectory = temporaryFolder.newFolder("functions").toPath();
+        outputDirectory = temporaryFolder.newFolder("classes").toPath();
+
+        Files.createDirectories(sourceDirectory.resolve("tariffs"));
+        Files.write(sourceDirectory.resolve("Func.f"), FUNCTION.getBytes(StandardCharsets.UTF_8));
+        Files.write(sourceDirectory.resolve("README.txt"), "Not a function".getBytes(StandardCharsets.UTF_8));
+
+        try (InputStream in = getClass().getResourceAsStream(
+                "/com/github/drstefanfriedrich/f2blib/lifeinsurance/LifeInsuranceFormula.f")) {
+            Files.copy(in, sourceDirectory.resolve("tariffs/LifeInsuranceFormula.f"));
+        }
+    }
+
+    @Test
+    public void compile() throws IOException, ClassNotFoundException {
+
+        assertThat(underTest.compile(sourceDirectory, outputDirectory), hasItems("some.packagename.Func",
+                "com.github.drstefanfriedrich.f2blib.lifeinsurance.LifeInsuranceFormula"));
+
+        assertThat(Files.isRegularFile(outputDirectory.resolve("some/packagename/Func.class")), is(true));
+        assertThat(Files.isRegularFile(outputDirectory.resolve(
+                "com/github/drstefanfriedrich/f2blib/lifeinsurance/LifeInsuranceFormula.class")), is(true));
+
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{outputDirectory.toUri().toURL()},
+                getClass().getClassLoader())) {
+
+            PrecompiledFunctionIndex index = PrecompiledFunctionIndex.read(classLoader);
+            PrecompiledFunctionIndex.Entry entry = index.get("some.packagename.Func");
+
+            FunctionDefinition fd = new AntlrFunctionParser().parse(FUNCTION);
+            PrettyPrintVisitor prettyPrintVisitor = new PrettyPrintVisitor();
+            fd.accept(prettyPrintVisitor);
+            FunctionEvaluationValidatorImpl validator = (FunctionEvaluationValidatorImpl)
+                    new FunctionEvaluationBytecodeGeneratorImpl().generateAndInstantiate(fd).getFunctionEvaluationValidator();
+
+            assertThat(index.getEntries().size(), is(2));
+            assertThat(entry.getPrettyPrintedFunction(), is(prettyPrintVisitor.getString()));
+            assertThat(entry.getFunctionEvaluationValidator().getSizeP(), is(validator.getSizeP()));
+            assertThat(entry.getFunctionEvaluationValidator().getSizeX(), is(validator.getSizeX()));
+            assertThat(entry.getFunctionEvaluationValidator().getSizeY(), is(1));
+            assertThat(entry.getCost() > 0, is(true));
+            assertThat(index.get("Unknown"), nullValue());
+            assertThat(classLoader.loadClass("some.packagename.Func"), notNullValue());
+        }
+    }
+
+    @Test
+    public void indexIsReproducible() throws IOException {
+
+        underTest.compile(sourceDirectory, outputDirectory);
+        byte[] first = Files.readAllBytes(outputDirectory.resolve(PrecompiledFunctionIndex.INDEX_RESOURCE));
+
+        underTest.compile(sourceDirectory, outputDirectory);
+        byte[] second = Files.readAllBytes(outputDirectory.resolve(PrecompiledFunctionIndex.INDEX_RESOURCE));
+
+        assertThat(new String(second, StandardCharsets.UTF_8), is(new String(first, StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void functionDefinedTwice() throws IOException {
+
+        Files.write(sourceDirectory.resolve("tariffs/Func.f"), FUNCTION.getBytes(StandardCharsets.UTF_8));
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Function some.packagename.Func is defined twice");
+
+        underTest.compile(sourceDirectory, outputDirectory);
+    }
+
+    @Test
+    public void invalidFunction() throws IOException {
+
+        Files.write(sourceDirectory.resolve("Invalid.f"), "function ;".getBytes(StandardCharsets.UTF_8));
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Cannot parse");
+
+        underTest.compile(sourceDirectory, outputDirectory);
+    }
+
+}
@@ -0,0 +1,338 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.generator;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class FunctionOptimizerTest {
+
+    private static final String[] FUNCTIONS = {
+            "function f1;\nbegin\n    f_1 := 1 + 2 + 3 + 4 + 5 + 6 + 7 + 8 + 9 + 10 + x_1;\nend\n",
+            "function f2;\nbegin\n    f_1 := binomial(10, 6) * x_1 + 5! / x_2;\nend\n",
+            "function f3;\nbegin\n    f_1 := sin(1) + cos(2) * x_1 + exp(-1) ^ x_2;\n    f_2 := x_1 * 1 - 0 + --x_2;\nend\n",
+            "function f4;\nbegin\n    f_1 := x_1 + 0;\n    f_2 := x_1 - 0.0 + x_2 * 1.0;\n    f_3 := round(x_1) * 1 + 2 ^ 3;\nend\n",
+            "function f5;\nbegin\n    f_1 := arsinh(1) + arcosh(2) * artanh(0.5) + pi * euler + boltzmann;\n    f_2 := 1 / 3 + x_1 / 1;\nend\n",
+            "function f6;\nbegin\n    f_1 := sum(k * (1 + 1) * x_1, k, 1, 1 + 1) + prod(p_1 + 0, k, 1, 2 * 1);\nend\n",
+            "function f7;\nbegin\n    for i from 1 to 3 step 1;\n    begin\n        f_1 := sin(x_1) * sin(x_1) + i;\n" +
+                    "        f_2 := sin(x_1) + sin(x_2 * i);\n        f_3 := x_{round(p_1 * 0) + 2} * sin(x_2 * i);\n" +
+                    "        markov_shift(0);\n    end\nend\n",
+            "function f8;\nbegin\n    A := x_1 * 2;\n    B := sin(A);\n    A := x_2 * 2;\n    C := sin(A);\n" +
+                    "    f_1 := B + C;\n    f_2 := sin(A) * sin(x_1 * 2);\nend\n",
+            "function f9;\nbegin\n    f_1 := sin(x_1) + sum(sin(x_1) * k + sum(k * l * sin(x_1), l, 1, k), k, 1, 3);\n" +
+                    "    f_2 := sum(k * 2, k, 1, round(p_1) + 3) * sum(k * 2, k, 1, round(p_1) + 3) + sum(cos(x_2), k, 1, 2);\n" +
+                    "    f_3 := cos(x_2) * binomial(round(p_1) + 5, 2) / binomial(round(p_1) + 5, 2);\nend\n",
+            "function f10;\nbegin\n    f_1 := sum(exp(x_1) * k + sin(x_2) / prod(cos(x_1) + l, l, 1, k), k, 1, 4);\n" +
+                    "    f_2 := sum(sqrt(x_1 * x_2), k, 3, 2) + prod(x_1 + k, k, 1, 3) * sum(binomial(5, 2) * k, k, 1, 3);\n" +
+                    "    f_3 := sum(k * x_{round(p_1 * 0) + 1} * ln(x_2), k, 1, 3);\nend\n",
+            "function f11;\nbegin\n    for i from 1 to 3 step 1;\n    begin\n        A := x_1 * 2;\n" +
+                    "        f_1 := A + exp(x_2) * i + sum(A * k * ln(x_2), k, 1, 2);\n" +
+                    "        f_2 := x_1 + cos(p_1) * i;\n        markov_shift(0);\n    end\nend\n",
+            "function f12;\nbegin\n    f_1 := sum(x_1 * prod(1 - x_2 / (l + 2), l, 1, k - 1), k, round(p_1) - 3, 6);\n" +
+                    "    f_2 := sum(x_{1 + k - k} * prod(cos(x_1 * l), l, round(p_1), round(p_1) + k - 1), k, 0, 5);\n" +
+                    "    f_3 := sum(prod(l, l, 1, k) + prod(x_2 + l, l, 3, k + 1), k, -2, 10);\nend\n",
+            "function f13;\nbegin\n    A := prod(sin(k) * cos(k), k, 1, 100);\n" +
+                    "    f_1 := A * x_1 + sum(sin(k) + cos(k), k, 1, 100) + sum(k, k, 1, 10);\n" +
+                    "    f_2 := sum(binomial(20, k) * (-1) ^ k / k! * sin(x_1 * k), k, 0, 20);\n" +
+                    "    f_3 := sum(x_2 * sum(ln(k + l), l, 1, 5), k, -3, 10) + sum(binomial(k, 3) * x_2, k, 3, 5);\nend\n",
+            "function f14;\nbegin\n    for i from 1 to 2 step 1;\n    begin\n        V := 1 / (1 + x_2 * i);\n" +
+                    "        A := sum(x_1 * prod(1 - x_2 / (l + 2), l, 0, k - 1) * V ^ (k + 1), k, 0, round(p_1) + 3);\n" +
+                    "        B := V * sum(prod(1 - x_2 / (l + 2), l, 0, k - 1) * (1 - V ^ (k + 1)), k, 0, round(p_1) + 3);\n" +
+                    "        C := sum(A * k, k, 0, round(p_1) + 3) + sum(k * k, k, 0, round(p_1) + 3);\n" +
+                    "        f_1 := A + B + C + prod(1 + x_1 / (k + 1), k, 0, round(p_1) + 3);\n" +
+                    "        markov_shift(0);\n    end\nend\n"
+    };
+
+    private static final double[][] VALUES = {
+            {0.0, 0.0, 0.0}, {-0.0, -0.0, -0.0}, {1.5, -2.5, 0.5}, {Double.NaN, 1.0, 2.0},
+            {Double.POSITIVE_INFINITY, -0.0, 1.0}, {Double.MAX_VALUE, Double.MIN_VALUE, -1.0}
+    };
+
+    @Test
+    public void disabledOptimizerReturnsTheFunction() {
+        FunctionDefinition fd = new AntlrFunctionParser().parse(FUNCTIONS[0]);
+        assertThat(new FunctionOptimizer(false).optimize(fd), is(sameInstance(fd)));
+        assertThat(new FunctionOptimizer(true).optimize(fd), is(not(fd)));
+    }
+
+    @Test
+    public void optimizedFunctionsReturnTheSameResultsBitForBit() {
+
+        FunctionEvaluationBytecodeGenerator optimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(true));
+        FunctionEvaluationBytecodeGenerator unoptimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(false));
+
+        for (String function : FUNCTIONS) {
+
+            FunctionDefinition fd = new AntlrFunctionParser().parse(function);
+            FunctionEvaluationWrapper expected = unoptimized.generateAndInstantiate(fd);
+            FunctionEvaluationWrapper actual = optimized.generateAndInstantiate(fd);
+
+            for (double[] x : VALUES) {
+
+                double[] p = {x[1]};
+                double[] xExpected = x.clone();
+                double[] xActual = x.clone();
+                double[] yExpected = new double[3];
+                double[] yActual = new double[3];
+
+                expected.getFunctionEvaluation().eval(p, xExpected, yExpected);
+                actual.getFunctionEvaluation().eval(p, xActual, yActual);
+
+                for (int i = 0; i < yExpected.length; i++) {
+                    assertThat(function, Double.doubleToRawLongBits(yActual[i]),
+                            is(Double.doubleToRawLongBits(yExpected[i])));
+                    assertThat(function, Double.doubleToRawLongBits(xActual[i]),
+                            is(Double.doubleToRawLongBits(xExpected[i])));
+                }
+            }
+        }
+    }
+
+    private static final String INDEXES = "function indexes;\nbegin\n    A := sin(x_1);\n" +
+            "    f_1 := sum(x_{k + 1} * (k + 1), k, 1, 3);\n" +
+            "    f_2 := x_{round(p_1) + 1} + (round(p_1) + 1);\n" +
+            "    f_3 := x_{round(A * A) + 1} + A * A;\nend\n";
+
+    @Test
+    public void commonSubexpressionsOfIndexExpressions() {
+
+        FunctionDefinition fd = new AntlrFunctionParser().parse(INDEXES);
+        FunctionEvaluationWrapper optimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(true)).generateAndInstantiate(fd);
+        FunctionEvaluationWrapper unoptimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(false)).generateAndInstantiate(fd);
+
+        for (double p1 : new double[]{0.2, 1.2, 2.4}) {
+
+            double[] p = {p1};
+            double[] x = {0.5, 1.5, -2.5, 3.5};
+            double[] expected = new double[3];
+            double[] actual = new double[3];
+
+            unoptimized.getFunctionEvaluation().eval(p, x, expected);
+            optimized.getFunctionEvaluation().eval(p, x, actual);
+
+            for (int j = 0; j < expected.length; j++) {
+                assertThat(INDEXES + " at " + p1,
+                        Double.doubleToRawLongBits(actual[j]), is(Double.doubleToRawLongBits(expected[j])));
+            }
+        }
+    }
+
+    private static final String POWERS = "function powers;\nbegin\n    f_1 := x_1 ^ 3;\n    f_2 := x_2 ^ 8;\n" +
+            "    f_3 := sum(x_3 ^ (k + 1), k, 0, 99);\n" +
+            "    f_4 := sum((-1) ^ k * k, k, -3, 4) + prod((-1.0) ^ (k + 1), k, -3, 4);\n" +
+            "    f_5 := sum(x_3 ^ k, k, 3, 2) + sum(sum(x_3 ^ k * l, l, 1, 2), k, 0, 5);\nend\n";
+
+    @Test
+    public void reducedPowersAreAccurate() {
+
+        FunctionDefinition fd = new AntlrFunctionParser().parse(POWERS);
+        FunctionEvaluationWrapper optimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(true)).generateAndInstantiate(fd);
+        FunctionEvaluationWrapper unoptimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(false)).generateAndInstantiate(fd);
+
+        // Multiplication chains are off by a few ulps, a running power by about one ulp per iteration
+        double[] ulps = {3, 6, 128, 0, 8};
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10_000; i++) {
+
+            double[] x = {4 * random.nextDouble() - 2, 4 * random.nextDouble() - 2, 1.05 * random.nextDouble()};
+            double[] p = {};
+            double[] expected = new double[5];
+            double[] actual = new double[5];
+
+            unoptimized.getFunctionEvaluation().eval(p, x, expected);
+            optimized.getFunctionEvaluation().eval(p, x, actual);
+
+            for (int j = 0; j < expected.length; j++) {
+                assertThat(POWERS, Math.abs(actual[j] - expected[j]),
+                        is(lessThanOrEqualTo(ulps[j] * Math.ulp(expected[j]))));
+            }
+        }
+    }
+
+    private static final String SERIES = "function series;\nbegin\n" +
+            "    f_1 := sum(k * 100000 + round(p_1), k, round(p_1), 100000);\n" +
+            "    f_2 := sum(x_1 ^ k, k, round(p_1), 1000);\n" +
+            "    f_3 := sum(x_2 * (k - 1) / 3 + x_1, k, round(p_1), 1000);\nend\n";
+
+    @Test
+    public void closedFormSumsAreAccurate() {
+
+        FunctionDefinition fd = new AntlrFunctionParser().parse(SERIES);
+        FunctionEvaluationWrapper optimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(true)).generateAndInstantiate(fd);
+        FunctionEvaluationWrapper unoptimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(false)).generateAndInstantiate(fd);
+
+        // Sums of ints are exact; the loop rounds once per iteration, the closed form only a few times
+        double[] ulps = {0, 256, 256};
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10_000; i++) {
+
+            double[] x = {i % 100 == 0 ? 1 : 1.05 * random.nextDouble(), 2 * random.nextDouble()};
+            double[] p = {random.nextInt(1200) - 100};
+            double[] expected = new double[3];
+            double[] actual = new double[3];
+
+            unoptimized.getFunctionEvaluation().eval(p, x, expected);
+            optimized.getFunctionEvaluation().eval(p, x, actual);
+
+            for (int j = 0; j < expected.length; j++) {
+                assertThat(SERIES, Math.abs(actual[j] - expected[j]),
+                        is(lessThanOrEqualTo(ulps[j] * Math.ulp(expected[j]))));
+            }
+        }
+    }
+
+    private static final String SPECIAL_SERIES = "function specialSeries;\nbegin\n" +
+            "    f_1 := sum(k / -0 * x_1, k, round(p_1), 3);\n" +
+            "    f_2 := sum(x_1 ^ k, k, 0, 5);\n" +
+            "    f_3 := sum(x_1 * k - x_1, k, round(p_1), 4);\n" +
+            "    f_4 := sum(x_1 ^ k, k, round(p_1), 3);\nend\n";
+
+    @Test
+    public void closedFormSumsAgreeWithTheLoopForSpecialValues() {
+
+        FunctionDefinition fd = new AntlrFunctionParser().parse(SPECIAL_SERIES);
+        FunctionEvaluationWrapper optimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(true)).generateAndInstantiate(fd);
+        FunctionEvaluationWrapper unoptimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(false)).generateAndInstantiate(fd);
+
+        double[] values = {0.0, -0.0, 1.0, -1.0, 1e300, -1e300, Double.MAX_VALUE, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NaN};
+
+        for (double value : values) {
+            for (double start : new double[]{-2, 1, 3}) {
+
+                double[] x = {value};
+                double[] p = {start};
+                double[] expected = new double[4];
+                double[] actual = new double[4];
+
+                unoptimized.getFunctionEvaluation().eval(p, x, expected);
+                optimized.getFunctionEvaluation().eval(p, x, actual);
+
+                for (int j = 0; j < expected.length; j++) {
+                    assertThat(SPECIAL_SERIES + " at " + value + ", " + start,
+                            Double.doubleToRawLongBits(actual[j]), is(Double.doubleToRawLongBits(expected[j])));
+                }
+            }
+        }
+    }
+
+    private static final String SPECIAL_POLYNOMIALS = "function specialPolynomials;\nbegin\n" +
+            "    f_1 := sum(k * x_1 ^ k, k, 0, 3);\n" +
+            "    f_2 := sum(k * x_1 ^ (k + 1), k, 1, 4);\n" +
+            "    f_3 := sum((-1) ^ k * k * x_1 ^ (k - 1), k, 1, 5);\nend\n";
+
+    @Test
+    public void polynomialsAgreeWithTheLoopForSpecialValues() {
+
+        FunctionDefinition fd = new AntlrFunctionParser().parse(SPECIAL_POLYNOMIALS);
+        FunctionEvaluationWrapper optimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(true)).generateAndInstantiate(fd);
+        FunctionEvaluationWrapper unoptimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(false)).generateAndInstantiate(fd);
+
+        double[] values = {0.0, -0.0, 1.0, -1.0, 1e300, -1e300, Double.MAX_VALUE, -Double.MAX_VALUE,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN};
+
+        for (double value : values) {
+
+            double[] x = {value};
+            double[] expected = new double[3];
+            double[] actual = new double[3];
+
+            unoptimized.getFunctionEvaluation().eval(new double[0], x, expected);
+            optimized.getFunctionEvaluation().eval(new double[0], x, actual);
+
+            for (int j = 0; j < expected.length; j++) {
+                assertThat(SPECIAL_POLYNOMIALS + " at " + value,
+                        Double.doubleToRawLongBits(actual[j]), is(Double.doubleToRawLongBits(expected[j])));
+            }
+        }
+    }
+
+    private static final String POLYNOMIALS = "function polynomials;\nbegin\n" +
+            "    f_1 := sum(binomial(20, k) * (-1)^k / k! * x_1^k, k, 0, 20);\n" +
+            "    f_2 := sum(binomial(20, k) / k! * abs(x_1)^k, k, 0, 20);\n" +
+            "    f_3 := sum((-1)^k / (k + 1) * x_2^(k - 1), k, 1, 40);\n" +
+            "    f_4 := sum(1 / (k + 1) * abs(x_2)^(k - 1), k, 1, 40);\nend\n";
+
+    @Test
+    public void polynomialsAreAccurate() {
+
+        FunctionDefinition fd = new AntlrFunctionParser().parse(POLYNOMIALS);
+        FunctionEvaluationWrapper optimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(true)).generateAndInstantiate(fd);
+        FunctionEvaluationWrapper unoptimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(false)).generateAndInstantiate(fd);
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10_000; i++) {
+
+            double[] x = {4 * random.nextDouble() - 2, 1.9 * random.nextDouble() - 0.95};
+            double[] p = {};
+            double[] expected = new double[4];
+            double[] actual = new double[4];
+
+            unoptimized.getFunctionEvaluation().eval(p, x, expected);
+            optimized.getFunctionEvaluation().eval(p, x, actual);
+
+            // The error is relative to the sum of the absolute values of the terms, computed by f_2 and f_4
+            assertThat(POLYNOMIALS, Math.abs(actual[0] - expected[0]),
+                    is(lessThanOrEqualTo(16 * Math.ulp(expected[1]))));
+            assertThat(POLYNOMIALS, Math.abs(actual[1] - expected[1]),
+                    is(lessThanOrEqualTo(16 * Math.ulp(expected[1]))));
+            assertThat(POLYNOMIALS, Math.abs(actual[2] - expected[2]),
+                    is(lessThanOrEqualTo(16 * Math.ulp(expected[3]))));
+            assertThat(POLYNOMIALS, Math.abs(actual[3] - expected[3]),
+                    is(lessThanOrEqualTo(16 * Math.ulp(expected[3]))));
+        }
+    }
+
+    @Test
+    public void closedFormSumInAuxiliaryVariable() {
+
+        FunctionDefinition fd = new AntlrFunctionParser().parse(
+                "function f;\nbegin\n    A := sum(x_1 * k, k, 1, 10);\n    f_1 := A;\nend\n");
+        FunctionEvaluationWrapper optimized = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(true)).generateAndInstantiate(fd);
+        double[] y = new double[1];
+
+        optimized.getFunctionEvaluation().eval(new double[0], new double[]{2}, y);
+
+        assertThat(y[0], is(110.0));
+    }
+
+}
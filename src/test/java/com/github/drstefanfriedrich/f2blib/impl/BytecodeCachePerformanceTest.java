@@ -0,0 +1,84 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.generator.BytecodeCache;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGeneratorImpl;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import com.github.drstefanfriedrich.f2blib.util.TestUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.String.format;
+import static org.junit.Assert.fail;
+
+/**
+ * Loads many functions into a kernel, once with an empty (cold) and once with a
+ * filled (warm) bytecode cache, to show how much the cache speeds up the start of
+ * an application.
+ */
+public class BytecodeCachePerformanceTest {
+
+    private static final int NUMBER_FUNCTIONS = 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static List<String> functionDefinitions() {
+
+        List<String> result = new ArrayList<>();
+
+        for (int i = 0; i < NUMBER_FUNCTIONS; i++) {
+            result.add(format("function com.github.drstefanfriedrich.f2blib.performance.Tariff%d;\n" +
+                    "begin\n" +
+                    "    V := (1 + p_1)^(-x_2);\n" +
+                    "    f_1 := sum(V^k * (1 - x_1 / %d)^k, k, 0, round(x_2));\n" +
+                    "    f_2 := p_2 * exp(-x_1 * %d) + sin(x_1) * cos(x_2);\n" +
+                    "end", i, i + 100, i + 1));
+        }
+
+        return result;
+    }
+
+    private long loadAll(BytecodeCache bytecodeCache, List<String> functionDefinitions) {
+
+        long start = System.currentTimeMillis();
+
+        FunctionEvaluationKernel kernel = new F2BLibImpl(new AntlrFunctionParser(),
+                new FunctionEvaluationBytecodeGeneratorImpl(), bytecodeCache);
+        functionDefinitions.forEach(kernel::load);
+
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void performance() {
+        TestUtil.assumePerformanceTest();
+
+        List<String> functionDefinitions = functionDefinitions();
+        BytecodeCache bytecodeCache = new BytecodeCache(temporaryFolder.getRoot().toPath());
+
+        long withoutCache = loadAll(null, functionDefinitions);
+        long cold = loadAll(bytecodeCache, functionDefinitions);
+        long warm = loadAll(bytecodeCache, functionDefinitions);
+
+        fail("Performance should always be better. That's why we fail the unit test. " +
+                "Total duration (ms): without cache=" + withoutCache + ", cold cache=" + cold + ", warm cache=" + warm);
+    }
+
+}
@@ -13,15 +13,33 @@
 package com.github.drstefanfriedrich.f2blib.impl;
 
 import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.FunctionHandle;
 import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.generator.BytecodeCache;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGeneratorImpl;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionCompiler;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGenerator;
 import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationWrapper;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import com.github.drstefanfriedrich.f2blib.parser.FunctionParser;
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidatorImpl;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static com.github.drstefanfriedrich.f2blib.util.TestUtil.closeTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.core.IsCollectionContaining.hasItem;
 import static org.junit.Assert.assertThat;
-import static org.mockito.Mockito.when;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
 
 public class F2BLibImplTest extends AbstractF2BLibImplTest {
 
@@ -35,6 +53,9 @@ public class F2BLibImplTest extends AbstractF2BLibImplTest {
             "    f_1 := 4 * x_1 + 100;\n" +
             "end";
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void cacheWorks() {
 
@@ -131,6 +152,91 @@ public class F2BLibImplTest extends AbstractF2BLibImplTest {
         assertThat(underTest.remove(FunctionEvaluationAsset.class.getName()), is(false));
     }
 
+    @Test
+    public void removeReleasesClass() {
+
+        FunctionDefinition fd = new FunctionDefinition("f", new FunctionBody(new FunctionsWrapper(new Function(0, new Variable(0)))));
+
+        when(parserMock.parse("someFakeDefinition")).thenReturn(fd);
+        when(generatorMock.generateAndInstantiate(fd)).thenReturn(
+                new FunctionEvaluationWrapper(new FunctionEvaluationAsset(), new FunctionEvaluationValidatorAsset()));
+
+        underTest.load("someFakeDefinition");
+        verify(generatorMock, never()).release(any());
+
+        underTest.remove(FunctionEvaluationAsset.class.getName());
+        verify(generatorMock).release(FunctionEvaluationAsset.class);
+    }
+
+    @Test
+    public void loadAgainReleasesPreviousClass() {
+
+        FunctionDefinition fd = new FunctionDefinition("f", new FunctionBody(new FunctionsWrapper(new Function(0, new Variable(0)))));
+
+        when(parserMock.parse("someFakeDefinition")).thenReturn(fd);
+        when(generatorMock.generateAndInstantiate(fd)).thenReturn(
+                new FunctionEvaluationWrapper(new FunctionEvaluationAsset(), new FunctionEvaluationValidatorAsset()));
+
+        underTest.load("someFakeDefinition");
+        underTest.load("someFakeDefinition");
+
+        verify(generatorMock, times(1)).release(FunctionEvaluationAsset.class);
+    }
+
+    @Test
+    public void evictedFunctionsAreDefinedAgain() {
+
+        FunctionEvaluationBytecodeGenerator generator = spy(new FunctionEvaluationBytecodeGeneratorImpl());
+        F2BLibImpl kernel = new F2BLibImpl(new AntlrFunctionParser(), generator, null, 1);
+        double[] y = new double[1];
+
+        kernel.load(FUNCTION_1);
+        kernel.load(FUNCTION_1.replace("Func", "Func2"));
+
+        assertThat(kernel.getCompiledFunctionCount(), is(0L));
+        assertThat(kernel.getCompiledFunctionCacheStats().evictionCount(), is(2L));
+
+        FunctionHandle handle = kernel.resolve("Func");
+
+        for (int i = 0; i < 3; i++) {
+            handle.eval(new double[0], new double[]{1.63}, y);
+            assertThat(y[0], closeTo(3.26));
+            kernel.eval("Func2", new double[0], new double[]{1.5}, y);
+            assertThat(y[0], closeTo(3));
+        }
+
+        assertThat(kernel.getCompiledFunctionCacheStats().missCount(), is(6L));
+        verify(generator, times(8)).release(any());
+    }
+
+    @Test
+    public void recentlyUsedFunctionsAreKept() {
+
+        F2BLibImpl kernel = new F2BLibImpl(new AntlrFunctionParser(), new FunctionEvaluationBytecodeGeneratorImpl(),
+                null, Long.MAX_VALUE);
+        double[] y = new double[1];
+
+        kernel.load(FUNCTION_1);
+        kernel.eval("Func", new double[0], new double[]{1.63}, y);
+        kernel.eval("Func", new double[0], new double[]{1.63}, y);
+
+        assertThat(y[0], closeTo(3.26));
+        assertThat(kernel.getCompiledFunctionCount(), is(1L));
+        assertThat(kernel.getCompiledFunctionCacheStats().hitCount(), is(2L));
+        assertThat(kernel.getCompiledFunctionCacheStats().missCount(), is(0L));
+
+        kernel.load(FUNCTION_2);
+        kernel.eval("Func", new double[0], new double[]{1.63}, y);
+
+        assertThat(y[0], closeTo(106.52));
+        assertThat(kernel.getCompiledFunctionCount(), is(1L));
+
+        kernel.remove("Func");
+
+        assertThat(kernel.getCompiledFunctionCount(), is(0L));
+        assertThat(kernel.getCompiledFunctionCacheStats().evictionCount(), is(0L));
+    }
+
     @Test
     public void list() {
 
@@ -146,4 +252,82 @@ public class F2BLibImplTest extends AbstractF2BLibImplTest {
         assertThat(underTest.list(), hasItem(FunctionEvaluationAsset.class.getName()));
     }
 
+    @Test
+    public void loadFromBytecodeCache() {
+
+        BytecodeCache bytecodeCache = new BytecodeCache(temporaryFolder.getRoot().toPath());
+        double[] y = new double[1];
+
+        FunctionEvaluationKernel cold = new F2BLibImpl(new AntlrFunctionParser(),
+                new FunctionEvaluationBytecodeGeneratorImpl(), bytecodeCache);
+        cold.load(FUNCTION_2);
+
+        FunctionParser parser = spy(new AntlrFunctionParser());
+        FunctionEvaluationKernel warm = new F2BLibImpl(parser, new FunctionEvaluationBytecodeGeneratorImpl(),
+                bytecodeCache);
+        warm.load(FUNCTION_2);
+        warm.eval("Func", new double[0], new double[]{1.63}, y);
+
+        verify(parser, never()).parse(any());
+        assertThat(y[0], closeTo(106.52));
+        assertThat(warm.print("Func"), is(cold.print("Func")));
+    }
+
+    @Test
+    public void invalidClassInBytecodeCacheIsGeneratedAgain() {
+
+        BytecodeCache bytecodeCache = new BytecodeCache(temporaryFolder.getRoot().toPath());
+        bytecodeCache.put(FUNCTION_1, new BytecodeCache.Entry("Func", new byte[]{1, 2, 3},
+                new FunctionEvaluationValidatorImpl(-1, 1, 1, false, false), "broken", 1));
+        double[] y = new double[1];
+
+        FunctionEvaluationKernel kernel = new F2BLibImpl(new AntlrFunctionParser(),
+                new FunctionEvaluationBytecodeGeneratorImpl(), bytecodeCache);
+        kernel.load(FUNCTION_1);
+        kernel.eval("Func", new double[0], new double[]{1.63}, y);
+
+        assertThat(y[0], closeTo(3.26));
+        assertThat(bytecodeCache.get(FUNCTION_1).get().getPrettyPrintedFunction(), is(kernel.print("Func")));
+    }
+
+    @Test
+    public void loadPrecompiled() throws IOException {
+
+        Path sourceDirectory = temporaryFolder.newFolder("functions").toPath();
+        Path outputDirectory = temporaryFolder.newFolder("classes").toPath();
+        Files.write(sourceDirectory.resolve("Func.f"), FUNCTION_2.getBytes(StandardCharsets.UTF_8));
+        new FunctionCompiler().compile(sourceDirectory, outputDirectory);
+
+        double[] y = new double[1];
+        FunctionParser parser = mock(FunctionParser.class);
+        FunctionEvaluationKernel kernel = new F2BLibImpl(parser, mock(FunctionEvaluationBytecodeGenerator.class));
+
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{outputDirectory.toUri().toURL()},
+                getClass().getClassLoader())) {
+
+            thread.setContextClassLoader(classLoader);
+
+            kernel.loadPrecompiled("Func");
+            kernel.eval("Func", new double[0], new double[]{1.63}, y);
+
+            FunctionEvaluationKernel reference = new F2BLibAssembler().create();
+            reference.load(FUNCTION_2);
+
+            assertThat(y[0], closeTo(106.52));
+            assertThat(kernel.print("Func"), is(reference.print("Func")));
+            verify(parser, never()).parse(any());
+
+            exception.expect(IllegalArgumentException.class);
+            exception.expectMessage("Precompiled function not found: Unknown");
+
+            kernel.loadPrecompiled("Unknown");
+
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
 }
@@ -0,0 +1,418 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import com.github.drstefanfriedrich.f2blib.FunctionHandle;
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationWrapper;
+import com.github.drstefanfriedrich.f2blib.visitor.FunctionEvaluationValidator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.github.drstefanfriedrich.f2blib.util.TestUtil.closeTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class FunctionHandleImplTest extends AbstractF2BLibImplTest {
+
+    private static final String FUNCTION_1 = "function Func;\n" +
+            "begin\n" +
+            "    f_1 := 2 * x_1;\n" +
+            "end";
+
+    private static final String FUNCTION_2 = "function Func;\n" +
+            "begin\n" +
+            "    f_1 := 4 * x_1 + 100;\n" +
+            "end";
+
+    private static final String EXPENSIVE_FUNCTION = "function Expensive;\n" +
+            "begin\n" +
+            "    f_1 := sum(sin(k * x_1) * p_1, k, 1, 5000);\n" +
+            "end";
+
+    private FunctionEvaluationValidator loadAsset() {
+
+        FunctionDefinition fd = new FunctionDefinition("f", new FunctionBody(new FunctionsWrapper(new Function(0, new Variable(0)))));
+        FunctionEvaluationValidator validator = spy(new FunctionEvaluationValidatorAsset());
+
+        when(parserMock.parse("someFakeDefinition")).thenReturn(fd);
+        when(generatorMock.generateAndInstantiate(fd)).thenReturn(
+                new FunctionEvaluationWrapper(new FunctionEvaluationAsset(), validator));
+
+        underTest.load("someFakeDefinition");
+
+        return validator;
+    }
+
+    @Test
+    public void resolveAndEval() {
+
+        loadAsset();
+        double[] y = new double[1];
+
+        FunctionHandle handle = underTest.resolve(FunctionEvaluationAsset.class.getName());
+        handle.eval(new double[0], new double[0], y);
+
+        assertThat(handle.getFunctionName(), is(FunctionEvaluationAsset.class.getName()));
+        assertThat(y[0], closeTo(1.234));
+    }
+
+    @Test
+    public void unknownFunctionToResolve() {
+
+        exception.expect(IllegalArgumentException.class);
+
+        underTest.resolve("unknown");
+    }
+
+    @Test
+    public void validateOncePerShape() {
+
+        FunctionEvaluationValidator validator = loadAsset();
+        FunctionHandle handle = underTest.resolve(FunctionEvaluationAsset.class.getName());
+
+        for (int i = 0; i < 10; i++) {
+            handle.eval(new double[0], new double[1], new double[1]);
+        }
+
+        verify(validator, times(1)).validate(any(), any(), any());
+
+        handle.eval(new double[0], new double[2], new double[1]);
+        handle.eval(new double[0], new double[2], new double[1]);
+
+        verify(validator, times(2)).validate(any(), any(), any());
+    }
+
+    @Test
+    public void invalidShapeIsRejectedEveryTime() {
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(FUNCTION_1);
+        FunctionHandle handle = fek.resolve("Func");
+
+        try {
+            handle.eval(new double[0], new double[]{1.63}, new double[2]);
+        } catch (IllegalArgumentException e) {
+            // The invalid shape must not be remembered as validated
+        }
+
+        exception.expect(IllegalArgumentException.class);
+
+        handle.eval(new double[0], new double[]{1.63}, new double[2]);
+    }
+
+    @Test
+    public void handleIsBoundToResolvedDefinition() {
+
+        double[] y = new double[1];
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+
+        fek.load(FUNCTION_1);
+        FunctionHandle handle = fek.resolve("Func");
+
+        fek.load(FUNCTION_2);
+        fek.remove("Func");
+
+        handle.eval(new double[0], new double[]{1.63}, y);
+
+        assertThat(y[0], closeTo(3.26));
+    }
+
+    @Test
+    public void evalKernel() {
+
+        double[] y = new double[1];
+
+        FunctionEvaluationKernel fek = new EvalAssembler().create();
+        fek.load(FUNCTION_2);
+
+        FunctionHandle handle = fek.resolve("Func");
+        handle.eval(new double[0], new double[]{1.63}, y);
+
+        assertThat(y[0], closeTo(106.52));
+    }
+
+    @Test
+    public void evalBatchValidatesOncePerShape() {
+
+        FunctionEvaluationValidator validator = loadAsset();
+        FunctionHandle handle = underTest.resolve(FunctionEvaluationAsset.class.getName());
+
+        double[][] y = new double[5][1];
+        handle.evalBatch(new double[5][0], new double[5][1], y);
+
+        verify(validator, times(1)).validate(any(), any(), any());
+        for (double[] row : y) {
+            assertThat(row[0], closeTo(1.234));
+        }
+    }
+
+    @Test
+    public void evalBatchDifferentNumberOfRows() {
+
+        loadAsset();
+        FunctionHandle handle = underTest.resolve(FunctionEvaluationAsset.class.getName());
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("p, x and y must have the same number of rows, but were 2, 3 and 3");
+
+        handle.evalBatch(new double[2][0], new double[3][1], new double[3][1]);
+    }
+
+    @Test
+    public void evalBatchStridedArrayTooShort() {
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(FUNCTION_1);
+        FunctionHandle handle = fek.resolve("Func");
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("x must have at least size 4, but was 3");
+
+        handle.evalBatch(new double[0], 0, 0, new double[3], 1, 1, new double[3], 0, 1, 3);
+    }
+
+    @Test
+    public void evalBatchStridedInvalidShape() {
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(FUNCTION_1);
+        FunctionHandle handle = fek.resolve("Func");
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("y must have size 1, but was 2");
+
+        handle.evalBatch(new double[0], 0, new double[2], 1, new double[4], 2, 2);
+    }
+
+    @Test
+    public void evalBatchStridedAtOffset() {
+
+        double[] x = new double[]{5, 1.63, 5};
+        double[] y = new double[]{7, 7, 7};
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(FUNCTION_2);
+        fek.evalBatch("Func", new double[0], 0, 0, x, 1, 1, y, 2, 1, 1);
+
+        assertThat(y[0], closeTo(7));
+        assertThat(y[1], closeTo(7));
+        assertThat(y[2], closeTo(106.52));
+    }
+
+    @Test
+    public void evalBatchEvalKernel() {
+
+        double[] y = new double[2];
+
+        FunctionEvaluationKernel fek = new EvalAssembler().create();
+        fek.load(FUNCTION_2);
+        fek.evalBatch("Func", new double[0], 0, new double[]{1.63, 0}, 1, y, 1, 2);
+
+        assertThat(y[0], closeTo(106.52));
+        assertThat(y[1], closeTo(100));
+    }
+
+    @Test
+    public void evalBatchParallelIsBitIdentical() {
+
+        int rows = 500;
+        Random random = new Random(4711);
+
+        double[][] p = new double[rows][1];
+        double[][] x = new double[rows][1];
+        for (int i = 0; i < rows; i++) {
+            p[i][0] = random.nextDouble();
+            x[i][0] = random.nextDouble();
+        }
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(EXPENSIVE_FUNCTION);
+        FunctionHandle handle = fek.resolve("Expensive");
+
+        double[][] expected = new double[rows][1];
+        handle.evalBatch(p, x, expected);
+
+        double[][] y = new double[rows][1];
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            handle.evalBatchParallel(p, x, y, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int i = 0; i < rows; i++) {
+            assertArrayEquals(expected[i], y[i], 0);
+        }
+
+        double[] yFlat = new double[rows];
+        fek.evalBatchParallel("Expensive", flatten(p), 1, flatten(x), 1, yFlat, 1, rows);
+
+        assertArrayEquals(flatten(expected), yFlat, 0);
+    }
+
+    @Test
+    public void sequentialCutoffDependsOnCost() {
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(FUNCTION_1);
+        fek.load(EXPENSIVE_FUNCTION);
+
+        int cheap = ((AbstractFEKImpl) fek).cache.get("Func").getSequentialCutoff();
+        int expensive = ((AbstractFEKImpl) fek).cache.get("Expensive").getSequentialCutoff();
+
+        assertThat(cheap > 1000, is(true));
+        assertThat(expensive, is(1));
+    }
+
+    @Test
+    public void evalAsync() throws Exception {
+
+        for (FunctionEvaluationKernel fek : new FunctionEvaluationKernel[]{new F2BLibAssembler().create(),
+                new EvalAssembler().create()}) {
+
+            fek.load(FUNCTION_2);
+
+            double[] y = fek.evalAsync("Func", new double[0], new double[]{1.63}).get();
+
+            assertThat(y.length, is(1));
+            assertThat(y[0], closeTo(106.52));
+        }
+    }
+
+    @Test
+    public void evalAsyncReusesRecycledBuffers() throws Exception {
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(FUNCTION_1);
+        FunctionHandle handle = fek.resolve("Func");
+
+        double[] y1 = handle.evalAsync(new double[0], new double[]{1.63}).get();
+        handle.recycle(y1);
+        handle.recycle(new double[5]);
+        double[] y2 = handle.evalAsync(new double[0], new double[]{2}).get();
+
+        assertThat(y2, sameInstance(y1));
+        assertThat(y2[0], closeTo(4));
+        assertThat(((AbstractFEKImpl) fek).cache.get("Func").getResultBufferPool().size(), is(0));
+    }
+
+    @Test
+    public void recycleByNameDoesNotResolve() throws Exception {
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(FUNCTION_1);
+        FunctionInfo fi = ((AbstractFEKImpl) fek).cache.get("Func");
+
+        double[] y = fek.evalAsync("Func", new double[0], new double[]{1.63}).get();
+        fi.setHandle(null);
+        fek.recycle("Func", y);
+
+        assertThat(fi.getResultBufferPool().size(), is(1));
+        assertThat(fi.getHandle(), is(nullValue()));
+
+        exception.expect(IllegalArgumentException.class);
+
+        fek.recycle("unknown", y);
+    }
+
+    @Test
+    public void evalAsyncFailureRecyclesBuffer() throws Exception {
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(FUNCTION_1);
+
+        CompletableFuture<double[]> result = fek.evalAsync("Func", new double[0], new double[0]);
+
+        try {
+            result.get();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RuntimeException.class));
+        }
+
+        assertThat(result.isCompletedExceptionally(), is(true));
+        assertThat(((AbstractFEKImpl) fek).cache.get("Func").getResultBufferPool().size(), is(1));
+    }
+
+    @Test
+    public void evalAsyncIsRejectedIfExecutorIsSaturated() throws Exception {
+
+        FunctionEvaluationKernel fek = new F2BLibAssembler().create();
+        fek.load(FUNCTION_1);
+        FunctionInfo fi = ((AbstractFEKImpl) fek).cache.get("Func");
+
+        AsyncExecutor asyncExecutor = new AsyncExecutor(1, 1);
+        FunctionHandle handle = new FunctionHandleImpl("Func", fi, asyncExecutor);
+
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        asyncExecutor.execute(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        running.await();
+
+        CompletableFuture<double[]> queued = handle.evalAsync(new double[0], new double[]{1.63});
+        CompletableFuture<double[]> rejected = handle.evalAsync(new double[0], new double[]{1.63});
+
+        assertThat(asyncExecutor.getQueueSize(), is(1));
+        assertThat(rejected.isCompletedExceptionally(), is(true));
+
+        release.countDown();
+
+        assertThat(queued.get()[0], closeTo(3.26));
+
+        exception.expect(ExecutionException.class);
+        exception.expectCause(instanceOf(RejectedExecutionException.class));
+
+        rejected.get();
+    }
+
+    @Test
+    public void evalAsyncUnknownSizeOfY() throws Exception {
+
+        loadAsset();
+
+        CompletableFuture<double[]> result = underTest.evalAsync(FunctionEvaluationAsset.class.getName(),
+                new double[0], new double[0]);
+
+        exception.expect(ExecutionException.class);
+        exception.expectCause(instanceOf(IllegalStateException.class));
+
+        result.get();
+    }
+
+    private static double[] flatten(double[][] rows) {
+        return Arrays.stream(rows).flatMapToDouble(Arrays::stream).toArray();
+    }
+
+}
@@ -0,0 +1,119 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+
+import static com.github.drstefanfriedrich.f2blib.util.TestUtil.assumePerformanceTest;
+import static com.github.drstefanfriedrich.f2blib.util.TestUtil.closeTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Loads and removes lots of functions, and checks that the generated classes
+ * are unloaded, i.e. that the used metaspace does not grow. The class
+ * definition strategy can be chosen by the system property
+ * <code>com.github.drstefanfriedrich.f2blib.classdefinition</code>.
+ */
+public class MetaspaceSoakTest {
+
+    private static final String DEBUGGING_PROPERTY = "com.github.drstefanfriedrich.f2blib.debugging";
+
+    private static final int FUNCTIONS = Integer.getInteger("com.github.drstefanfriedrich.f2blib.soak.functions",
+            100_000);
+
+    private static final int WARMUP = 5_000;
+
+    private static final int VERSIONS = 100;
+
+    private static final long MAX_GROWTH = 8 * 1024 * 1024;
+
+    private String debugging;
+
+    @Before
+    public void setup() {
+        // Do not write 100k class files to disk
+        debugging = System.clearProperty(DEBUGGING_PROPERTY);
+    }
+
+    @After
+    public void tearDown() {
+        if (debugging != null) {
+            System.setProperty(DEBUGGING_PROPERTY, debugging);
+        }
+    }
+
+    private static String tariff(int i) {
+        return "function soak.Tariff" + (i % VERSIONS) + ";\n" +
+                "begin\n" +
+                "    f_1 := " + i + " * x_1 + p_1;\n" +
+                "end";
+    }
+
+    private static void loadAndRemove(FunctionEvaluationKernel kernel, int from, int to) {
+
+        double[] y = new double[1];
+
+        for (int i = from; i < to; i++) {
+
+            kernel.load(tariff(i));
+            kernel.eval("soak.Tariff" + (i % VERSIONS), new double[]{1}, new double[]{2}, y);
+            assertThat(y[0], closeTo(2.0 * i + 1));
+
+            if (i % VERSIONS == VERSIONS - 1) {
+                for (int j = 0; j < VERSIONS; j++) {
+                    kernel.remove("soak.Tariff" + j);
+                }
+            }
+        }
+    }
+
+    private static long usedMetaspace() {
+
+        System.gc();
+
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> "Metaspace".equals(pool.getName()))
+                .mapToLong(pool -> pool.getUsage().getUsed())
+                .sum();
+    }
+
+    @Test
+    public void loadAndRemove() {
+
+        assumePerformanceTest();
+
+        FunctionEvaluationKernel kernel = new F2BLibAssembler().create();
+
+        loadAndRemove(kernel, 0, WARMUP);
+        long before = usedMetaspace();
+
+        long start = System.currentTimeMillis();
+        loadAndRemove(kernel, WARMUP, FUNCTIONS);
+        long end = System.currentTimeMillis();
+
+        long after = usedMetaspace();
+
+        System.out.println(String.format("%d functions loaded and removed in %d ms, metaspace before: %d, after: %d",
+                FUNCTIONS - WARMUP, end - start, before, after));
+
+        assertThat(after - before, lessThan(MAX_GROWTH));
+    }
+
+}
@@ -0,0 +1,40 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TieredAssemblerTest {
+
+    private final TieredAssembler underTest = new TieredAssembler();
+
+    @Test
+    public void correctImplementation() {
+
+        FunctionEvaluationKernel kernel = underTest.create();
+
+        assertThat(kernel, instanceOf(TieredImpl.class));
+    }
+
+    @Test
+    public void correctKernelIdentifier() {
+
+        assertThat(underTest.getKernelIdentifier(), is("tiered"));
+    }
+
+}
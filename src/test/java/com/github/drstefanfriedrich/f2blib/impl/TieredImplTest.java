@@ -0,0 +1,178 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.impl;
+
+import com.github.drstefanfriedrich.f2blib.FunctionHandle;
+import com.github.drstefanfriedrich.f2blib.exception.BytecodeGenerationException;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGenerator;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGeneratorImpl;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static com.github.drstefanfriedrich.f2blib.util.TestUtil.closeTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TieredImplTest {
+
+    private static final String FUNCTION = "function Func;\n" +
+            "begin\n" +
+            "    f_1 := 2 * x_1 + p_1;\n" +
+            "end";
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private static TieredImpl kernel(long threshold) {
+        return new TieredImpl(new AntlrFunctionParser(), new FunctionEvaluationBytecodeGeneratorImpl(), threshold);
+    }
+
+    private static void awaitTier(TieredImpl kernel, TieredImpl.Tier tier) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        while (kernel.getTier("Func") != tier && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertThat(kernel.getTier("Func"), is(tier));
+    }
+
+    private static double eval(TieredImpl kernel, double x) {
+        double[] y = new double[1];
+        kernel.eval("Func", new double[]{1}, new double[]{x}, y);
+        return y[0];
+    }
+
+    @Test
+    public void interpretedBelowThreshold() {
+
+        TieredImpl underTest = kernel(10);
+        underTest.load(FUNCTION);
+
+        for (int i = 0; i < 9; i++) {
+            assertThat(eval(underTest, i), closeTo(2 * i + 1));
+        }
+
+        assertThat(underTest.getTier("Func"), is(TieredImpl.Tier.INTERPRETED));
+        assertThat(underTest.getInterpretedEvaluations("Func"), is(9L));
+        assertThat(underTest.getCompilations(), is(0L));
+    }
+
+    @Test
+    public void compiledAfterThreshold() throws InterruptedException {
+
+        TieredImpl underTest = kernel(10);
+        underTest.load(FUNCTION);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(eval(underTest, i), closeTo(2 * i + 1));
+        }
+
+        awaitTier(underTest, TieredImpl.Tier.COMPILED);
+
+        assertThat(eval(underTest, 3), closeTo(7));
+        assertThat(underTest.getInterpretedEvaluations("Func"), is(10L));
+        assertThat(underTest.getCompilations(), is(1L));
+        assertThat(underTest.getCompilationFailures(), is(0L));
+        assertThat(underTest.getCompilationTimeNanos() > 0, is(true));
+    }
+
+    @Test
+    public void compiledRightAfterLoadIfThresholdIsNotPositive() throws InterruptedException {
+
+        TieredImpl underTest = kernel(0);
+        underTest.load(FUNCTION);
+
+        awaitTier(underTest, TieredImpl.Tier.COMPILED);
+
+        assertThat(eval(underTest, 3), closeTo(7));
+        assertThat(underTest.getInterpretedEvaluations("Func"), is(0L));
+    }
+
+    @Test
+    public void existingHandlesSwitchToCompiledClass() throws InterruptedException {
+
+        TieredImpl underTest = kernel(5);
+        underTest.load(FUNCTION);
+
+        FunctionHandle handle = underTest.resolve("Func");
+        double[][] p = new double[5][];
+        double[][] x = new double[5][];
+        double[][] y = new double[5][];
+        for (int i = 0; i < 5; i++) {
+            p[i] = new double[]{1};
+            x[i] = new double[]{i};
+            y[i] = new double[1];
+        }
+
+        handle.evalBatch(p, x, y);
+        awaitTier(underTest, TieredImpl.Tier.COMPILED);
+        handle.evalBatch(p, x, y);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(y[i][0], closeTo(2 * i + 1));
+        }
+        assertThat(underTest.getInterpretedEvaluations("Func"), is(5L));
+    }
+
+    @Test
+    public void interpretedIfCompilationFails() throws InterruptedException {
+
+        FunctionEvaluationBytecodeGenerator generator = mock(FunctionEvaluationBytecodeGenerator.class);
+        when(generator.generateAndInstantiate(any())).thenThrow(new BytecodeGenerationException("test"));
+
+        TieredImpl underTest = new TieredImpl(new AntlrFunctionParser(), generator, 1);
+        underTest.load(FUNCTION);
+
+        eval(underTest, 0);
+        awaitTier(underTest, TieredImpl.Tier.FAILED);
+
+        assertThat(eval(underTest, 3), closeTo(7));
+        assertThat(underTest.getInterpretedEvaluations("Func"), is(2L));
+        assertThat(underTest.getCompilations(), is(0L));
+        assertThat(underTest.getCompilationFailures(), is(1L));
+    }
+
+    @Test
+    public void reloadStartsInterpreted() throws InterruptedException {
+
+        TieredImpl underTest = kernel(1);
+        underTest.load(FUNCTION);
+        eval(underTest, 0);
+        awaitTier(underTest, TieredImpl.Tier.COMPILED);
+
+        underTest.load(FUNCTION);
+
+        assertThat(underTest.getTier("Func"), is(TieredImpl.Tier.INTERPRETED));
+        assertThat(underTest.getInterpretedEvaluations("Func"), is(0L));
+    }
+
+    @Test
+    public void unknownFunction() {
+
+        TieredImpl underTest = kernel(10);
+
+        exception.expect(IllegalArgumentException.class);
+
+        underTest.getTier("Func");
+    }
+
+}
@@ -0,0 +1,113 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+
+package com.github.drstefanfriedrich.f2blib.parser;
+
+import com.github.drstefanfriedrich.f2blib.antlr.FunctionsLexer;
+import com.github.drstefanfriedrich.f2blib.antlr.FunctionsParser;
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.util.TestUtil;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.String.format;
+import static org.junit.Assert.fail;
+
+/**
+ * Parses a corpus of large function definitions many times, once like before
+ * with new recognizers and full LL prediction for every function, and once with
+ * {@link AntlrFunctionParser}, to show the throughput of the parser.
+ */
+public class ParserPerformanceTest {
+
+    private static final int NUMBER_FUNCTIONS = 200;
+
+    private static final int NUMBER_AUXILIARY_VARIABLES = 20;
+
+    private static final int NUMBER_TERMS = 10;
+
+    private static final int ROUNDS = 10;
+
+    private static List<String> functionDefinitions() {
+
+        List<String> result = new ArrayList<>();
+
+        for (int i = 0; i < NUMBER_FUNCTIONS; i++) {
+
+            StringBuilder sb = new StringBuilder(format("function com.github.drstefanfriedrich.f2blib.performance.Formula%d;\n" +
+                    "begin\n", i));
+
+            for (int j = 1; j <= NUMBER_AUXILIARY_VARIABLES; j++) {
+                sb.append(format("    A%d := ", j));
+                for (int k = 1; k <= NUMBER_TERMS; k++) {
+                    sb.append(format("%ssin(x_%d * %d.5) ^ (p_1 - %d) / (1 + exp(-x_{%d}))",
+                            k == 1 ? "" : " + ", k, i + j + k, k, k));
+                }
+                sb.append(";\n");
+            }
+
+            sb.append("    f_1 := sum(A1 * binomial(20, k) / (1 + x_2)^k, k, 0, round(p_2));\n" +
+                    "end\n");
+
+            result.add(sb.toString());
+        }
+
+        return result;
+    }
+
+    private static long parseAll(List<String> functionDefinitions, FunctionParser parser) {
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < ROUNDS; i++) {
+            functionDefinitions.forEach(parser::parse);
+        }
+
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * The parser as it was before: new recognizers and LL prediction.
+     */
+    private static FunctionParser llParser() {
+        return functionDefinition -> {
+            FunctionsLexer lexer = new FunctionsLexer(CharStreams.fromString(functionDefinition));
+            FunctionsParser parser = new FunctionsParser(new CommonTokenStream(lexer));
+            return (FunctionDefinition) parser.function_definition().accept(new AntlrVisitor());
+        };
+    }
+
+    @Test
+    public void performance() {
+        TestUtil.assumePerformanceTest();
+
+        List<String> functionDefinitions = functionDefinitions();
+        long characters = functionDefinitions.stream().mapToLong(String::length).sum() * ROUNDS;
+
+        // Warm up the JIT and the DFA caches
+        parseAll(functionDefinitions, llParser());
+        parseAll(functionDefinitions, new AntlrFunctionParser());
+
+        long ll = parseAll(functionDefinitions, llParser());
+        long twoStage = parseAll(functionDefinitions, new AntlrFunctionParser());
+
+        fail("Performance should always be better. That's why we fail the unit test. " +
+                format("Total duration (ms) for %d functions with %d characters: new recognizers with LL=%d, " +
+                        "reused recognizers with SLL and LL=%d", NUMBER_FUNCTIONS * ROUNDS, characters, ll, twoStage));
+    }
+
+}
@@ -12,8 +12,11 @@
 
 package com.github.drstefanfriedrich.f2blib.parser;
 
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.junit.Test;
 
+import static org.junit.Assert.fail;
+
 /**
  * Test elementary grammar syntax.
  */
@@ -489,4 +492,15 @@ public class SyntaxTest extends AbstractParserTest {
                 END);
     }
 
+    @Test
+    public void parserIsReusableAfterWrongGrammar() {
+        try {
+            parser.parse("function f;begin f_1:=x_1 +; end");
+            fail("The parser wrongly recognized this rule and did not throw an exception");
+        } catch (ParseCancellationException e) {
+            // The lexer and the parser of this thread are reused for the next function
+        }
+        assertGrammar("function f;begin f_1:=x_1 + 1; end");
+    }
+
 }
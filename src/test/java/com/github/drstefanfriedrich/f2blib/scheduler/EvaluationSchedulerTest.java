@@ -0,0 +1,256 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.scheduler;
+
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationFactory;
+import com.github.drstefanfriedrich.f2blib.FunctionEvaluationKernel;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.drstefanfriedrich.f2blib.util.TestUtil.closeTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class EvaluationSchedulerTest {
+
+    private static final String DOUBLE = "function Double;\n" +
+            "begin\n" +
+            "    f_1 := 2 * x_1;\n" +
+            "end";
+
+    private static final String SQUARE = "function Square;\n" +
+            "begin\n" +
+            "    f_1 := x_1 * x_1;\n" +
+            "    f_2 := p_1;\n" +
+            "end";
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private FunctionEvaluationKernel kernel;
+
+    private static class Request implements EvaluationRequest {
+
+        private final String functionName;
+        private final double[] p;
+        private final double[] x;
+        private final double[] y;
+        private final CountDownLatch latch;
+
+        private volatile boolean completed;
+        private volatile RuntimeException failure;
+
+        private Request(String functionName, double[] p, double[] x, int sizeY, CountDownLatch latch) {
+            this.functionName = functionName;
+            this.p = p;
+            this.x = x;
+            this.y = new double[sizeY];
+            this.latch = latch;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return functionName;
+        }
+
+        @Override
+        public double[] getP() {
+            return p;
+        }
+
+        @Override
+        public double[] getX() {
+            return x;
+        }
+
+        @Override
+        public double[] getY() {
+            return y;
+        }
+
+        @Override
+        public void completed() {
+            completed = true;
+            latch.countDown();
+        }
+
+        @Override
+        public void failed(RuntimeException e) {
+            failure = e;
+            latch.countDown();
+        }
+
+    }
+
+    @Before
+    public void setup() {
+        kernel = new FunctionEvaluationFactory().get().create();
+        kernel.load(DOUBLE);
+        kernel.load(SQUARE);
+    }
+
+    @Test
+    public void evaluateMixedFunctions() throws InterruptedException {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            evaluateMixedFunctions(waitStrategy);
+        }
+    }
+
+    private void evaluateMixedFunctions(WaitStrategy waitStrategy) throws InterruptedException {
+
+        int count = 1000;
+        CountDownLatch latch = new CountDownLatch(count);
+        List<Request> requests = new ArrayList<>();
+
+        EvaluationScheduler underTest = new EvaluationScheduler(kernel, 64, 2, 16, waitStrategy);
+
+        try {
+
+            underTest.start();
+
+            for (int i = 0; i < count; i++) {
+                Request request = i % 3 == 0
+                        ? new Request("Square", new double[]{i}, new double[]{i}, 2, latch)
+                        : new Request("Double", new double[0], new double[]{i}, 1, latch);
+                requests.add(request);
+                underTest.submit(request);
+            }
+
+            assertThat(latch.await(30, TimeUnit.SECONDS), is(true));
+
+        } finally {
+            underTest.close();
+        }
+
+        assertThat(underTest.getEvaluatedRequests(), is((long) count));
+        assertThat(underTest.getEvaluatedBatches() <= count, is(true));
+        assertThat(underTest.getMaxQueueDepth() <= underTest.getCapacity(), is(true));
+
+        for (int i = 0; i < count; i++) {
+            Request request = requests.get(i);
+            assertThat(request.completed, is(true));
+            if (i % 3 == 0) {
+                assertThat(request.y[0], closeTo((double) i * i));
+                assertThat(request.y[1], closeTo(i));
+            } else {
+                assertThat(request.y[0], closeTo(2 * i));
+            }
+        }
+    }
+
+    @Test
+    public void invalidRequestsFailSeparately() throws InterruptedException {
+
+        CountDownLatch latch = new CountDownLatch(3);
+        Request valid1 = new Request("Double", new double[0], new double[]{1}, 1, latch);
+        Request invalid = new Request("Double", new double[0], new double[]{2}, 3, latch);
+        Request unknown = new Request("Unknown", new double[0], new double[]{3}, 1, latch);
+
+        EvaluationScheduler underTest = new EvaluationScheduler(kernel, 8, 1, 8, WaitStrategy.PARK);
+
+        // Enqueue before starting, so that all requests end up in one batch
+        assertThat(underTest.offer(valid1), is(true));
+        assertThat(underTest.offer(invalid), is(true));
+        assertThat(underTest.offer(unknown), is(true));
+        assertThat(underTest.getQueueDepth(), is(3));
+
+        underTest.start();
+
+        assertThat(latch.await(30, TimeUnit.SECONDS), is(true));
+        underTest.close();
+
+        assertThat(valid1.completed, is(true));
+        assertThat(valid1.failure, nullValue());
+        assertThat(valid1.y[0], closeTo(2));
+        assertThat(invalid.failure, instanceOf(IllegalArgumentException.class));
+        assertThat(unknown.failure, notNullValue());
+        assertThat(underTest.getEvaluatedBatches(), is(1L));
+        assertThat(underTest.getMaxQueueDepth(), is(3L));
+    }
+
+    @Test
+    public void failedBatchDoesNotChangeTheVariablesOfOtherRequests() throws InterruptedException {
+
+        kernel.load("function Shift;\n" +
+                "begin\n" +
+                "    for i from 1 to 2 step 1;\n" +
+                "    begin\n" +
+                "        f_1 := x_1 + binomial(round(p_1), 2);\n" +
+                "        markov_shift(0);\n" +
+                "    end\n" +
+                "end");
+
+        CountDownLatch latch = new CountDownLatch(2);
+        Request valid = new Request("Shift", new double[]{5}, new double[]{1}, 1, latch);
+        Request invalid = new Request("Shift", new double[]{1}, new double[]{1}, 1, latch);
+
+        EvaluationScheduler underTest = new EvaluationScheduler(kernel, 8, 1, 8, WaitStrategy.PARK);
+
+        // The second request fails after the first one has been evaluated
+        assertThat(underTest.offer(valid), is(true));
+        assertThat(underTest.offer(invalid), is(true));
+
+        underTest.start();
+
+        assertThat(latch.await(30, TimeUnit.SECONDS), is(true));
+        underTest.close();
+
+        assertThat(valid.completed, is(true));
+        assertThat(valid.y[0], closeTo(21));
+        assertThat(valid.x[0], closeTo(21));
+        assertThat(invalid.failure, notNullValue());
+        assertThat(underTest.getEvaluatedBatches(), is(1L));
+    }
+
+    @Test
+    public void offerFailsIfFull() {
+
+        EvaluationScheduler underTest = new EvaluationScheduler(kernel, 2, 1, 1, WaitStrategy.YIELD);
+        CountDownLatch latch = new CountDownLatch(3);
+
+        assertThat(underTest.offer(new Request("Double", new double[0], new double[]{1}, 1, latch)), is(true));
+        assertThat(underTest.offer(new Request("Double", new double[0], new double[]{1}, 1, latch)), is(true));
+        assertThat(underTest.offer(new Request("Double", new double[0], new double[]{1}, 1, latch)), is(false));
+    }
+
+    @Test
+    public void startTwice() {
+
+        EvaluationScheduler underTest = new EvaluationScheduler(kernel);
+        underTest.start();
+
+        exception.expect(IllegalStateException.class);
+
+        underTest.start();
+    }
+
+    @Test
+    public void invalidBatchSize() {
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("maxBatchSize must be positive, but was 0");
+
+        new EvaluationScheduler(kernel, 8, 1, 0, WaitStrategy.PARK);
+    }
+
+}
@@ -0,0 +1,147 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.scheduler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class RingBufferTest {
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void capacityMustBePowerOfTwo() {
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("capacity must be a power of two, but was 6");
+
+        new RingBuffer<Integer>(6);
+    }
+
+    @Test
+    public void offerAndPoll() {
+
+        RingBuffer<Integer> underTest = new RingBuffer<>(4);
+
+        assertThat(underTest.poll(), nullValue());
+
+        for (int round = 0; round < 3; round++) {
+
+            for (int i = 0; i < 4; i++) {
+                assertThat(underTest.offer(i), is(true));
+            }
+
+            assertThat(underTest.offer(4), is(false));
+            assertThat(underTest.size(), is(4));
+
+            for (int i = 0; i < 4; i++) {
+                assertThat(underTest.poll(), is(i));
+            }
+
+            assertThat(underTest.poll(), nullValue());
+            assertThat(underTest.size(), is(0));
+        }
+    }
+
+    @Test
+    public void drainTo() {
+
+        RingBuffer<Integer> underTest = new RingBuffer<>(8);
+        Integer[] target = new Integer[3];
+
+        for (int i = 0; i < 5; i++) {
+            underTest.offer(i);
+        }
+
+        assertThat(underTest.drainTo(target, 3), is(3));
+        assertThat(target[2], is(2));
+        assertThat(underTest.drainTo(target, 3), is(2));
+        assertThat(target[1], is(4));
+        assertThat(underTest.drainTo(target, 3), is(0));
+    }
+
+    @Test
+    public void concurrentProducersAndConsumers() throws Exception {
+
+        int producers = 4;
+        int elementsPerProducer = 10000;
+
+        RingBuffer<Integer> underTest = new RingBuffer<>(16);
+        ExecutorService executorService = Executors.newFixedThreadPool(producers + 2);
+
+        try {
+
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int p = 0; p < producers; p++) {
+                int first = p * elementsPerProducer;
+                futures.add(executorService.submit(() -> {
+                    for (int i = first; i < first + elementsPerProducer; i++) {
+                        while (!underTest.offer(i)) {
+                            Thread.yield();
+                        }
+                    }
+                }));
+            }
+
+            List<Future<Set<Integer>>> consumers = new ArrayList<>();
+
+            for (int c = 0; c < 2; c++) {
+                consumers.add(executorService.submit(() -> {
+                    Set<Integer> result = new HashSet<>();
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Integer element = underTest.poll();
+                        if (element == null) {
+                            if (futures.stream().allMatch(Future::isDone) && underTest.size() == 0) {
+                                break;
+                            }
+                            Thread.yield();
+                        } else {
+                            result.add(element);
+                        }
+                    }
+                    return result;
+                }));
+            }
+
+            Set<Integer> all = new HashSet<>();
+            int total = 0;
+            for (Future<Set<Integer>> consumer : consumers) {
+                Set<Integer> result = consumer.get();
+                total += result.size();
+                all.addAll(result);
+            }
+
+            assertThat(total, is(producers * elementsPerProducer));
+            assertThat(all.size(), is(producers * elementsPerProducer));
+
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+}
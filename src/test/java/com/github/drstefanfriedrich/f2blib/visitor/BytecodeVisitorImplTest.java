@@ -13,21 +13,51 @@
 package com.github.drstefanfriedrich.f2blib.visitor;
 
 import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGeneratorImpl;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionOptimizer;
+import com.github.drstefanfriedrich.f2blib.generator.IsolatedClassDefinitionStrategy;
 import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 
 import static com.github.drstefanfriedrich.f2blib.util.TestUtil.assumePerformanceTest;
 import static com.github.drstefanfriedrich.f2blib.util.TestUtil.closeTo;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
 public class BytecodeVisitorImplTest extends AbstractCalculatingVisitorTest {
 
+    private static final String WITHOUT_LOOPS = "function f;\nbegin\n    A := x_1 * p_1;\n" +
+            "    f_1 := A + sin(x_2);\n    f_2 := A * x_3;\nend\n";
+
+    private static final String[] WITH_LOOPS = {
+            "function f1;\nbegin\n    A := x_1 * 2;\n    B := sin(A);\n    A := x_2 * 2;\n" +
+                    "    f_1 := B + sin(A) * sin(x_1 * 2);\n    f_2 := sum(k * (-1) ^ k, k, 1, round(p_1) + 5);\n" +
+                    "    f_3 := sum(x_2 * k + 1, k, 1, 10) + sum(x_1 * 0.5 ^ k, k, 0, 20) + sum(k, k, 3, 2);\nend\n",
+            "function f2;\nbegin\n    f_1 := sum(binomial(20, k) * (-1)^k / k! * x_1^k, k, 0, 20) + " +
+                    "sum(k * x_1^(k - 1), k, 1, 5) - sum(-(x_1 - 1)^(k + 2) / (k + 1) / 2, k, 1, 10);\n" +
+                    "    f_2 := sum(2 * k + 1, k, 1, 10) + sum(x_1 * (k - 1) / p_1, k, 1, 10) + " +
+                    "sum(x_2 ^ k, k, 0, 10) + sum(x_1 * (1 - p_1) ^ (k + 1) / 2, k, 0, 10);\n" +
+                    "    f_3 := sum(x_1 * (k - 1) / 3 - k, k, round(p_1), 12) + sum(x_1 ^ k, k, round(p_1), 10) + " +
+                    "x_1 * prod(sin(k) * cos(k), k, 1, 100) + sum(x_1 * sin(k) / k!, k, 0, 12);\nend\n",
+            "function f3;\nbegin\n    f_1 := sum(x_1 * prod(1 - x_2 / (l + 2), l, 1, k - 1), k, round(p_1) - 3, 6);\n" +
+                    "    f_2 := sum(x_{1 + k - k} * prod(cos(x_1 * l), l, round(p_1), round(p_1) + k - 1), k, 0, 5);\n" +
+                    "    f_3 := sum(prod(l, l, 1, k) + prod(x_2 + l, l, 3, k + 1), k, -2, 10) + " +
+                    "sum(k * 2, k, 1, round(p_1) + 3) * sum(k * 2, k, 1, round(p_1) + 3);\nend\n",
+            "function f4;\nbegin\n    for i from 1 to 3 step 1;\n    begin\n        V := 1 / (1 + x_2 * i);\n" +
+                    "        A := sum(x_1 * prod(1 - x_2 / (l + 2), l, 0, k - 1) * V ^ (k + 1), k, 0, round(p_1) + 3);\n" +
+                    "        f_1 := A + prod(1 + x_1 / (k + 1), k, 0, round(p_1) + 3);\n" +
+                    "        f_2 := sum(binomial(20, k) / k! * x_3 ^ k, k, 0, 20) + i;\n" +
+                    "        f_3 := sum(i * x_3 ^ k, k, 0, 2 * i);\n        markov_shift(1);\n    end\nend\n"
+    };
+
     @Rule
     public ExpectedException exception = ExpectedException.none();
 
@@ -68,6 +98,7 @@ public class BytecodeVisitorImplTest extends AbstractCalculatingVisitorTest {
         assertThat(y[2], closeTo(50.58293575689467));
         assertThat(y[3], closeTo(-3.7776177920749547));
         assertThat(y[4], closeTo(0));
+        assertBatchMatches(functionEvaluation, p, x, y);
     }
 
     @Test
@@ -137,6 +168,7 @@ public class BytecodeVisitorImplTest extends AbstractCalculatingVisitorTest {
         functionEvaluation.eval(p, x, y);
 
         assertThat(y[0], closeTo(yValue));
+        assertBatchMatches(functionEvaluation, p, x, y);
 
     }
 
@@ -162,6 +194,7 @@ public class BytecodeVisitorImplTest extends AbstractCalculatingVisitorTest {
         functionEvaluation.eval(p, x, y);
 
         assertThat(y[0], closeTo(yValue));
+        assertBatchMatches(functionEvaluation, p, x, y);
 
     }
 
@@ -302,6 +335,85 @@ public class BytecodeVisitorImplTest extends AbstractCalculatingVisitorTest {
         functionEvaluation.eval(p, x, y);
     }
 
+    @Test
+    public void batchMethodsAreGeneratedForFunctionsWithAndWithoutLoops() {
+
+        for (String function : new String[]{WITHOUT_LOOPS, WITH_LOOPS[0], WITH_LOOPS[1]}) {
+
+            Class<?> clazz = generate(function).getClass();
+
+            try {
+                clazz.getDeclaredMethod("evalBatch", double[][].class, double[][].class, double[][].class,
+                        int.class, int.class);
+                clazz.getDeclaredMethod("evalBatch", double[].class, int.class, int.class, double[].class,
+                        int.class, int.class, double[].class, int.class, int.class, int.class);
+            } catch (NoSuchMethodException e) {
+                fail(function + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void batchMethodsOfOptimizedFunctionsCalculateLikeEval() {
+
+        double[][] values = {{0.0, 0.0, 0.0, 0.0}, {1.5, -2.5, 0.5, 1.0}, {Double.NaN, 1.0, 2.0, 3.0},
+                {-0.75, 3.5, 1.25, -1.0}, {0.3, 0.2, 0.1, 4.0}};
+
+        for (String function : WITH_LOOPS) {
+
+            FunctionEvaluation functionEvaluation = generate(function);
+
+            for (double[] x : values) {
+
+                double[] p = {x[3] + 2};
+                double[] y = new double[3];
+
+                functionEvaluation.eval(p, x.clone(), y);
+
+                assertBatchMatches(functionEvaluation, p, x, y);
+            }
+        }
+    }
+
+    private static FunctionEvaluation generate(String function) {
+        return new FunctionEvaluationBytecodeGeneratorImpl(new IsolatedClassDefinitionStrategy(),
+                new FunctionOptimizer(true)).generateAndInstantiate(new AntlrFunctionParser().parse(function))
+                .getFunctionEvaluation();
+    }
+
+    /**
+     * Both batch methods must calculate exactly the same as eval. The first row of
+     * the batch is left untouched to check the addressing of the rows.
+     */
+    private void assertBatchMatches(FunctionEvaluation functionEvaluation, double[] p, double[] x, double[] expected) {
+
+        int n = expected.length;
+
+        double[][] pRows = new double[][]{new double[p.length], p.clone(), p.clone()};
+        double[][] xRows = new double[][]{new double[x.length], x.clone(), x.clone()};
+        double[][] yRows = new double[3][n];
+
+        functionEvaluation.evalBatch(pRows, xRows, yRows, 1, 3);
+
+        assertArrayEquals(new double[n], yRows[0], 0);
+        assertArrayEquals(expected, yRows[1], 0);
+        assertArrayEquals(expected, yRows[2], 0);
+
+        double[] pFlat = new double[3 * p.length];
+        double[] xFlat = new double[3 * x.length];
+        double[] yFlat = new double[3 * n];
+        for (int i = 1; i < 3; i++) {
+            System.arraycopy(p, 0, pFlat, i * p.length, p.length);
+            System.arraycopy(x, 0, xFlat, i * x.length, x.length);
+        }
+
+        functionEvaluation.evalBatch(pFlat, p.length, p.length, xFlat, x.length, x.length, yFlat, n, n, 2);
+
+        assertArrayEquals(new double[n], Arrays.copyOfRange(yFlat, 0, n), 0);
+        assertArrayEquals(expected, Arrays.copyOfRange(yFlat, n, 2 * n), 0);
+        assertArrayEquals(expected, Arrays.copyOfRange(yFlat, 2 * n, 3 * n), 0);
+    }
+
     private FunctionEvaluation instantiate(Class<? extends FunctionEvaluation> clazz) {
         try {
             return clazz.getConstructor((Class<?>[]) null).newInstance();
@@ -0,0 +1,126 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class ClosedFormSumVisitorTest {
+
+    private static final String FUNCTION = "function MyFunc;\nbegin\n    f_1 := %s;\nend\n";
+
+    private static FunctionDefinition parse(String expression) {
+        return new AntlrFunctionParser().parse(String.format(FUNCTION, expression));
+    }
+
+    private static Expression close(String expression) {
+        FunctionDefinition closed = ClosedFormSumVisitor.close(parse(expression));
+        return closed.getFunctionBody().getFunctionsWrapper().getFunctions().get(0).getExpression();
+    }
+
+    private static String print(Expression expression) {
+        PrettyPrintVisitor ppv = new PrettyPrintVisitor();
+        expression.accept(ppv);
+        return ppv.getString();
+    }
+
+    private static void assertClosed(String expression, ClosedFormSum.Kind kind, String step) {
+        Expression closed = close(expression);
+        assertThat(expression, closed, is(instanceOf(ClosedFormSum.class)));
+        assertThat(expression, ((ClosedFormSum) closed).getKind(), is(kind));
+        assertThat(expression, print(((ClosedFormSum) closed).acceptStep(new TransformationVisitor())), is(step));
+    }
+
+    private static double eval(FunctionDefinition functionDefinition, double[] x, double[] p) {
+        EvalVisitorImpl evalVisitor = new EvalVisitorImpl(x, p, 1);
+        functionDefinition.accept(evalVisitor);
+        return evalVisitor.getResult()[0];
+    }
+
+    @Test
+    public void linearSumsAreArithmeticSeries() {
+        assertClosed("sum(k, k, 1, 10)", ClosedFormSum.Kind.ARITHMETIC, "1");
+        assertClosed("sum(2 * k + 1, k, 1, 10)", ClosedFormSum.Kind.ARITHMETIC, "2");
+        assertClosed("sum(1 - k * 3, k, 1, 10)", ClosedFormSum.Kind.ARITHMETIC, "-3");
+        assertClosed("sum(x_1 * (k - 1) / p_1, k, 1, 10)", ClosedFormSum.Kind.ARITHMETIC, "x_1 * 1 / p_1");
+        assertClosed("sum(sin(x_1), k, 1, 10)", ClosedFormSum.Kind.ARITHMETIC, "0");
+    }
+
+    @Test
+    public void powersAreGeometricSeries() {
+        assertClosed("sum(x_2 ^ k, k, 0, 10)", ClosedFormSum.Kind.GEOMETRIC, "x_2");
+        assertClosed("sum(x_1 * (1 - p_1) ^ (k + 1) / 2, k, 0, 10)", ClosedFormSum.Kind.GEOMETRIC, "(1 - p_1)");
+        assertClosed("sum(-0.5 ^ (k - 3), k, 0, 10)", ClosedFormSum.Kind.GEOMETRIC, "0.5");
+    }
+
+    @Test
+    public void printedLikeTheSum() {
+        assertThat(print(close("sum(2 * k + 1, k, 1, 10)")), is("sum_{k = 1}^{10}(2 * k + 1)"));
+    }
+
+    @Test
+    public void otherSumsAreNotClosed() {
+        String[] expressions = {
+                "sum(k * k, k, 1, 10)",
+                "sum(sin(k), k, 1, 10)",
+                "sum(x_1 / k, k, 1, 10)",
+                "sum(2 ^ k, k, 1, 10)",
+                "sum(x_1 ^ (2 * k), k, 1, 10)",
+                "sum(x_1 ^ k + k, k, 1, 10)",
+                "sum(x_{k}, k, 1, 2)",
+                "prod(x_1 * k, k, 1, 10)"
+        };
+        for (String expression : expressions) {
+            assertThat(expression, close(expression), is(instanceOf(AbstractSumProduct.class)));
+        }
+    }
+
+    @Test
+    public void innerSumsAreClosedFirst() {
+        Expression closed = close("sum(sum(k * l, l, 1, 3), k, 1, 10)");
+        assertThat(closed, is(instanceOf(Sum.class)));
+        assertThat(((Sum) closed).acceptInner(new TransformationVisitor()), is(instanceOf(ClosedFormSum.class)));
+    }
+
+    @Test
+    public void interpreterEvaluatesClosedForms() {
+
+        String[] expressions = {
+                "sum(x_1 * (k - 1) / 3 - k, k, round(p_1), 12)",
+                "sum(x_1 * x_2 ^ (k + 1), k, round(p_1), 30)",
+                "sum(x_1 ^ k, k, round(p_1), 10)",
+                "sum(sum(k * l * x_2, l, 1, k), k, round(p_1), 10)"
+        };
+
+        for (String expression : expressions) {
+            for (double p : new double[]{-7, 0, 3, 20}) {
+                for (double[] x : new double[][]{{0.75, 0.3}, {1, -1}, {-1.5, 1}}) {
+
+                    FunctionDefinition fd = parse(expression);
+                    double expected = eval(fd, x, new double[]{p});
+                    double actual = eval(ClosedFormSumVisitor.close(fd), x, new double[]{p});
+
+                    assertThat(expression, Math.abs(actual - expected),
+                            is(lessThanOrEqualTo(16 * Math.ulp(Math.max(1, Math.abs(expected))))));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionEvaluationBytecodeGeneratorImpl;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionOptimizer;
+import com.github.drstefanfriedrich.f2blib.generator.IsolatedClassDefinitionStrategy;
+import com.github.drstefanfriedrich.f2blib.impl.FunctionEvaluation;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+public class ClosureTest {
+
+    private static final String[] FUNCTIONS = {
+            "function f1;\nbegin\n    f_1 := abs(x_1) + arccos(x_2 / 4) + arcosh(x_3 + 2) + arcsin(x_2 / 4) + arctan(x_1);\n" +
+                    "    f_2 := arsinh(x_1) + artanh(x_2 / 4) + binomial(7, 3) + pi + euler + boltzmann;\n" +
+                    "    f_3 := cos(x_1) + cosh(x_2) / exp(x_3) + sqrt(x_3) * ln(x_3 + 1) - round(x_1) ^ 2 + sin(x_2) + " +
+                    "sinh(x_3) + tan(x_1) + tanh(-x_2) + +x_{2} + p_{2 - 1} + 7 / 2 + 2 ^ 3 - -3;\nend\n",
+            "function f2;\nbegin\n    A := x_1 * 2;\n    B := sin(A);\n    A := x_2 * 2;\n" +
+                    "    f_1 := B + sin(A) * sin(x_1 * 2);\n    f_2 := sum(k * (-1) ^ k, k, 1, round(p_1) + 5);\n" +
+                    "    f_3 := sum(x_2 * k + 1, k, 1, 10) + sum(x_1 * 0.5 ^ k, k, 0, 20) + sum(k, k, 3, 2);\nend\n",
+            "function f3;\nbegin\n    for i from 1 to 3 step 1;\n    begin\n        V := 1 / (1 + x_2 * i);\n" +
+                    "        A := sum(x_1 * prod(1 - x_2 / (l + 2), l, 0, k - 1) * V ^ (k + 1), k, 0, round(p_1) + 3);\n" +
+                    "        B := V * sum(prod(1 - x_2 / (l + 2), l, 0, k - 1) * (1 - V ^ (k + 1)), k, 0, round(p_1) + 3);\n" +
+                    "        f_1 := A + B + prod(1 + x_1 / (k + 1), k, 0, round(p_1) + 3);\n" +
+                    "        f_2 := sum(binomial(20, k) / k! * x_3 ^ k, k, 0, 20) + i;\n" +
+                    "        markov_shift(1);\n    end\nend\n",
+            "function f4;\nbegin\n    for i from 3 to 1 step -1;\n    begin\n        f_1 := x_1 + i;\n" +
+                    "        markov_shift(0);\n    end\nend\n",
+            "function f5;\nbegin\n    f_1 := sum(binomial(20, k) * (-1)^k / k! * x_1^k, k, 0, 20) + " +
+                    "sum(k * x_1^(k - 1), k, 1, 5) - sum(-(x_1 - 1)^(k + 2) / (k + 1) / 2, k, 1, 10);\n" +
+                    "    f_2 := sum(2 * k + 1, k, 1, 10) + sum(x_1 * (k - 1) / p_1, k, 1, 10) + " +
+                    "sum(x_2 ^ k, k, 0, 10) + sum(x_1 * (1 - p_1) ^ (k + 1) / 2, k, 0, 10);\n" +
+                    "    f_3 := sum(x_1 * (k - 1) / 3 - k, k, round(p_1), 12) + sum(x_1 ^ k, k, round(p_1), 10) + " +
+                    "x_1 * prod(sin(k) * cos(k), k, 1, 100) + sum(x_1 * sin(k) / k!, k, 0, 12);\nend\n",
+            "function f6;\nbegin\n    f_1 := sum(x_1 * prod(1 - x_2 / (l + 2), l, 1, k - 1), k, round(p_1) - 3, 6);\n" +
+                    "    f_2 := sum(x_{1 + k - k} * prod(cos(x_1 * l), l, round(p_1), round(p_1) + k - 1), k, 0, 5);\n" +
+                    "    f_3 := sum(prod(l, l, 1, k) + prod(x_2 + l, l, 3, k + 1), k, -2, 10) + " +
+                    "sum(k * 2, k, 1, round(p_1) + 3) * sum(k * 2, k, 1, round(p_1) + 3);\nend\n"
+    };
+
+    private static final double[][] VALUES = {
+            {0.0, 0.0, 0.0, 0.0}, {-0.0, -0.0, -0.0, 1.0}, {1.5, -2.5, 0.5, 1.0}, {Double.NaN, 1.0, 2.0, 3.0},
+            {-0.75, 3.5, 1.25, -1.0}, {0.3, 0.2, 0.1, 4.0}
+    };
+
+    private static FunctionDefinition optimize(String function) {
+        return new FunctionOptimizer(true).optimize(new AntlrFunctionParser().parse(function));
+    }
+
+    private static Closure closure(FunctionDefinition fd) {
+        ValidationVisitor validationVisitor = new ValidationVisitorImpl();
+        fd.accept(validationVisitor);
+        return Closure.of(fd, validationVisitor.getLocalVariables());
+    }
+
+    @Test
+    public void closureReturnsTheSameResultsAsTheGeneratedCode() {
+
+        FunctionEvaluationBytecodeGeneratorImpl generator = new FunctionEvaluationBytecodeGeneratorImpl(
+                new IsolatedClassDefinitionStrategy(), new FunctionOptimizer(true));
+
+        for (String function : FUNCTIONS) {
+
+            FunctionEvaluation expected = generator.generateAndInstantiate(
+                    new AntlrFunctionParser().parse(function)).getFunctionEvaluation();
+            Closure actual = closure(optimize(function));
+
+            for (double[] values : VALUES) {
+
+                double[] p = {values[3] + 2};
+                double[] xExpected = values.clone();
+                double[] xActual = values.clone();
+                double[] yExpected = new double[3];
+                double[] yActual = new double[3];
+
+                expected.eval(p, xExpected, yExpected);
+                actual.eval(p, xActual, yActual);
+
+                for (int i = 0; i < yExpected.length; i++) {
+                    assertThat(function, Double.doubleToRawLongBits(yActual[i]),
+                            is(Double.doubleToRawLongBits(yExpected[i])));
+                }
+                for (int i = 0; i < xExpected.length; i++) {
+                    assertThat(function, Double.doubleToRawLongBits(xActual[i]),
+                            is(Double.doubleToRawLongBits(xExpected[i])));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stepMustNotBeZero() {
+        closure(optimize("function f;\nbegin\n    for i from 1 to round(x_1) step 0;\n    begin\n" +
+                "        f_1 := i;\n    end\nend\n")).eval(new double[0], new double[]{3}, new double[1]);
+    }
+
+    @Test
+    public void evaluationDoesNotAllocate() {
+
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported()
+                && threadMXBean.isThreadAllocatedMemoryEnabled());
+
+        Closure closure = closure(optimize(FUNCTIONS[2]));
+        double[] p = {3};
+        double[] x = {0.5, 0.25, 0.125, 0};
+        double[] y = new double[2];
+        int evaluations = 10_000;
+
+        for (int i = 0; i < evaluations; i++) {
+            closure.eval(p, x, y);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < evaluations; i++) {
+            closure.eval(p, x, y);
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        // Less than one byte per evaluation, i.e. only the measurement itself
+        assertThat(allocated, is(lessThan((long) evaluations)));
+    }
+
+}
@@ -0,0 +1,150 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.ast.SharedExpression;
+import com.github.drstefanfriedrich.f2blib.ast.SharedVar;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class CommonSubexpressionVisitorTest {
+
+    private static final String FUNCTION = "function MyFunc;\nbegin\n%send\n";
+
+    private static FunctionDefinition eliminate(String body) {
+        return CommonSubexpressionVisitor.eliminate(new AntlrFunctionParser().parse(String.format(FUNCTION, body)));
+    }
+
+    private static String print(FunctionDefinition functionDefinition) {
+        PrettyPrintVisitor ppv = new PrettyPrintVisitor();
+        functionDefinition.accept(ppv);
+        return ppv.getString();
+    }
+
+    /**
+     * Counts the shared expressions and their uses.
+     */
+    private static class SharingCounter extends BaseVisitor {
+
+        private int definitions;
+
+        private int uses;
+
+        static SharingCounter of(FunctionDefinition functionDefinition) {
+            SharingCounter counter = new SharingCounter();
+            functionDefinition.accept(counter);
+            return counter;
+        }
+
+        @Override
+        public <T> T visit(SharedExpression sharedExpression) {
+            definitions++;
+            return super.visit(sharedExpression);
+        }
+
+        @Override
+        public <T> T visit(SharedVar sharedVar) {
+            uses++;
+            return null;
+        }
+
+    }
+
+    private static void assertSharing(String body, int definitions, int uses) {
+
+        FunctionDefinition functionDefinition = eliminate(body);
+        SharingCounter counter = SharingCounter.of(functionDefinition);
+
+        assertThat(body, counter.definitions, is(definitions));
+        assertThat(body, counter.uses, is(uses));
+
+        // The shared expressions are printed like the expressions themselves
+        assertThat(print(functionDefinition), is(print(new AntlrFunctionParser()
+                .parse(String.format(FUNCTION, body)))));
+    }
+
+    @Test
+    public void nothingToShare() {
+        assertSharing("    f_1 := sin(x_1) + cos(x_1);\n", 0, 0);
+    }
+
+    @Test
+    public void leavesAreNotShared() {
+        assertSharing("    f_1 := x_1 * x_1 + p_1 * 2;\n", 0, 0);
+    }
+
+    @Test
+    public void sameExpressionInOneFunction() {
+        assertSharing("    f_1 := sin(x_1) * sin(x_1);\n", 1, 1);
+    }
+
+    @Test
+    public void acrossAuxiliaryVariablesAndFunctions() {
+        assertSharing("    A := round(p_1) * x_1;\n    f_1 := round(p_1) + A;\n    f_2 := round(p_1) - 1;\n", 1, 2);
+    }
+
+    @Test
+    public void largestExpressionIsShared() {
+        // sin(x_1) is evaluated only once, inside the first sin(x_1) + 1
+        assertSharing("    f_1 := (sin(x_1) + 1) * (sin(x_1) + 1);\n", 1, 1);
+    }
+
+    @Test
+    public void withinTheInnerExpressionOfASum() {
+        assertSharing("    f_1 := sum(sin(k * x_1) * sin(k * x_1), k, 1, 3);\n", 1, 1);
+    }
+
+    @Test
+    public void outerValueIsUsedInASum() {
+        assertSharing("    f_1 := round(p_1) + sum(k * round(p_1), k, 1, round(p_1));\n", 1, 2);
+    }
+
+    @Test
+    public void innerValueIsNotUsedAfterTheSum() {
+        // The sum might not be evaluated at all
+        assertSharing("    f_1 := sum(sin(x_1), k, 1, 3) + sin(x_1);\n", 0, 0);
+    }
+
+    @Test
+    public void separateSumsDoNotShareInnerValues() {
+        assertSharing("    f_1 := sum(sin(k * x_1), k, 1, 3) + sum(sin(k * x_1), k, 0, 3);\n", 0, 0);
+    }
+
+    @Test
+    public void sameSumsAreShared() {
+        assertSharing("    f_1 := sum(sin(k * x_1), k, 1, 3) + sum(sin(k * x_1), k, 1, 3);\n", 1, 1);
+    }
+
+    @Test
+    public void assignmentOfAuxiliaryVariableDropsValues() {
+        assertSharing("    A := x_1;\n    B := sin(A);\n    A := x_2;\n    f_1 := sin(A) + B;\n", 0, 0);
+        assertSharing("    A := x_1;\n    B := sin(A);\n    f_1 := sin(A) + B;\n", 1, 1);
+    }
+
+    @Test
+    public void forLoopBody() {
+        assertSharing("for i from round(p_1) to round(p_1) + 3 step 1;\nbegin\n" +
+                "    f_1 := round(p_1) + sin(x_1) * sin(x_1);\nend\n", 2, 3);
+    }
+
+    @Test
+    public void markovShiftDropsValuesOfX() {
+        assertSharing("for i from round(x_1) to round(x_1) + 3 step 1;\nbegin\n" +
+                "    f_1 := round(x_1);\n    markov_shift(0);\nend\n", 1, 1);
+    }
+
+}
@@ -0,0 +1,128 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ConstantFoldingVisitorTest {
+
+    private static final String FUNCTION = "function MyFunc;\nbegin\n    f_1 := %s;\nend\n";
+
+    private static FunctionDefinition parse(String expression) {
+        return new AntlrFunctionParser().parse(String.format(FUNCTION, expression));
+    }
+
+    private static String fold(String expression) {
+        FunctionDefinition folded = parse(expression).accept(new ConstantFoldingVisitor());
+        PrettyPrintVisitor ppv = new PrettyPrintVisitor();
+        folded.accept(ppv);
+        return ppv.getString();
+    }
+
+    private static Expression foldExpression(String expression) {
+        FunctionDefinition folded = parse(expression).accept(new ConstantFoldingVisitor());
+        return folded.getFunctionBody().getFunctionsWrapper().getFunctions().get(0).getExpression();
+    }
+
+    private static String printed(String expression) {
+        return String.format(FUNCTION, expression);
+    }
+
+    @Test
+    public void intArithmetic() {
+        assertThat(fold("1 + 2 + 3 + 4 + 5 + 6 + 7 + 8 + 9 + 10"), is(printed("55")));
+        assertThat(fold("(2 + 3) * 4 - 1"), is(printed("19")));
+        assertThat(fold("2 ^ 10"), is(printed("1024")));
+    }
+
+    @Test
+    public void intArithmeticOverflows() {
+        assertThat(foldExpression("2147483647 + 1"), is(instanceOf(Int.class)));
+        assertThat(fold("2147483647 + 1"), is(printed("-2147483648")));
+    }
+
+    @Test
+    public void divisionIsAlwaysDouble() {
+        Expression folded = foldExpression("1 / 2");
+        assertThat(folded, is(instanceOf(Doub.class)));
+        assertThat(((Doub) folded).getValue(), is(0.5));
+    }
+
+    @Test
+    public void mixedArithmeticIsDouble() {
+        Expression folded = foldExpression("1 + 2.5");
+        assertThat(folded, is(instanceOf(Doub.class)));
+        assertThat(((Doub) folded).getValue(), is(3.5));
+    }
+
+    @Test
+    public void functionsOfConstants() {
+        assertThat(((Doub) foldExpression("sin(pi)")).getValue(), is(Math.sin(Math.PI)));
+        assertThat(((Doub) foldExpression("exp(1)")).getValue(), is(Math.exp(1)));
+        assertThat(((Int) foldExpression("round(2.5)")).getValue(), is(3));
+    }
+
+    @Test
+    public void binomialAndFaculty() {
+        assertThat(fold("binomial(10, 6)"), is(printed("210")));
+        assertThat(fold("5!"), is(printed("120")));
+    }
+
+    @Test
+    public void throwingBinomialIsNotFolded() {
+        assertThat(foldExpression("binomial(2, 3)"), is(instanceOf(Binomial.class)));
+        assertThat(foldExpression("(-1)!"), is(instanceOf(Faculty.class)));
+    }
+
+    @Test
+    public void identities() {
+        assertThat(fold("x_1 * 1"), is(printed("x_1")));
+        assertThat(fold("1 * x_1"), is(printed("x_1")));
+        assertThat(fold("x_1 / 1"), is(printed("x_1")));
+        assertThat(fold("x_1 ^ 1"), is(printed("x_1")));
+        assertThat(fold("x_1 - 0"), is(printed("x_1")));
+        assertThat(fold("--x_1"), is(printed("x_1")));
+        assertThat(fold("+x_1"), is(printed("x_1")));
+    }
+
+    @Test
+    public void doubleAdditionOfZeroIsKept() {
+        // -0.0 + 0 is +0.0
+        assertThat(fold("x_1 + 0"), is(printed("x_1 + 0")));
+    }
+
+    @Test
+    public void typeIsKept() {
+        // round(x_1) * 1.0 is a double, round(x_1) an int
+        assertThat(foldExpression("round(x_1) * 1.0"), is(instanceOf(Multiplication.class)));
+        assertThat(fold("round(x_1) + 0"), is(printed("round x_1")));
+    }
+
+    @Test
+    public void partialFolding() {
+        assertThat(fold("x_1 * (2 + 3) + sin(0)"), is(printed("x_1 * 5 + 0.0")));
+    }
+
+    @Test
+    public void intExpressionsStayIntExpressions() {
+        assertThat(fold("binomial(2 + 3, round(x_1))"), is(printed("binomial(5, round x_1)")));
+        assertThat(fold("sum(k * x_1, k, 1 + 1, 2 * 3)"), is(printed("sum_{k = 2}^{6}(k * x_1)")));
+    }
+
+}
@@ -0,0 +1,104 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.github.drstefanfriedrich.f2blib.ast.ASTTest.FUNCTION_NAME;
+import static com.github.drstefanfriedrich.f2blib.ast.ASTTest.createFunctionDefinition;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Tests of the cost estimation.
+ */
+public class CostEstimationVisitorTest {
+
+    private CostEstimationVisitor underTest;
+
+    @Before
+    public void setup() {
+        underTest = new CostEstimationVisitor();
+    }
+
+    @Test
+    public void minimalFunctionDefinition() {
+
+        FunctionDefinition fd = createFunctionDefinition(FUNCTION_NAME, new Variable(0));
+
+        fd.accept(underTest);
+
+        assertThat(underTest.getCost(), is(2L));
+    }
+
+    @Test
+    public void mathFunctionsAreExpensive() {
+
+        FunctionDefinition fd = createFunctionDefinition(FUNCTION_NAME,
+                new Sin(new Addition(new Variable(0), new Parameter(0))));
+
+        fd.accept(underTest);
+
+        assertThat(underTest.getCost(), is(24L));
+    }
+
+    @Test
+    public void sumWithConstantBounds() {
+
+        FunctionDefinition fd = createFunctionDefinition(FUNCTION_NAME,
+                new Sum(new Variable(0), "k", new Int(1), new Int(10)));
+
+        fd.accept(underTest);
+
+        assertThat(underTest.getCost(), is(33L));
+    }
+
+    @Test
+    public void sumWithUnknownBounds() {
+
+        FunctionDefinition fd = createFunctionDefinition(FUNCTION_NAME,
+                new Sum(new Variable(0), "k", new Int(1), new Round(new Parameter(0))));
+
+        fd.accept(underTest);
+
+        assertThat(underTest.getCost(), is(5 + CostEstimationVisitor.UNKNOWN_ITERATIONS * 3));
+    }
+
+    @Test
+    public void forLoopWithConstantBounds() {
+
+        FunctionDefinition fd = new FunctionDefinition(FUNCTION_NAME, new FunctionBody(
+                new ForLoop("i", new Int(1), new Int(10), new Int(2),
+                        new FunctionsWrapper(new Function(0, new Variable(0))))));
+
+        fd.accept(underTest);
+
+        assertThat(underTest.getCost(), is(3 + 5 * 3L));
+    }
+
+    @Test
+    public void costIsSaturated() {
+
+        Expression expression = new Variable(0);
+        for (int i = 0; i < 5; i++) {
+            expression = new Prod(expression, "k" + i, new Int(1), new Int(Integer.MAX_VALUE));
+        }
+
+        createFunctionDefinition(FUNCTION_NAME, expression).accept(underTest);
+
+        assertThat(underTest.getCost(), is(Long.MAX_VALUE));
+    }
+
+}
@@ -0,0 +1,84 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.AuxiliaryVariable;
+import com.github.drstefanfriedrich.f2blib.ast.FunctionBody;
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.ast.FunctionsWrapper;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DeadAuxiliaryVariableVisitorTest {
+
+    private static FunctionDefinition parse(String body) {
+        return new AntlrFunctionParser().parse(String.format("function MyFunc;\nbegin\n%send\n", body));
+    }
+
+    /**
+     * The remaining assignments, e.g. "A := x_1".
+     */
+    private static List<String> assignments(FunctionDefinition fd) {
+        FunctionBody functionBody = DeadAuxiliaryVariableVisitor.eliminate(fd).getFunctionBody();
+        FunctionsWrapper functionsWrapper = functionBody.getForLoop() == null ? functionBody.getFunctionsWrapper()
+                : functionBody.getForLoop().acceptFunctionsWrapper(new TransformationVisitor());
+        return functionsWrapper.getAuxiliaryVariables().stream()
+                .map(DeadAuxiliaryVariableVisitorTest::print)
+                .collect(Collectors.toList());
+    }
+
+    private static String print(AuxiliaryVariable auxiliaryVariable) {
+        PrettyPrintVisitor prettyPrintVisitor = new PrettyPrintVisitor();
+        auxiliaryVariable.accept(prettyPrintVisitor);
+        return prettyPrintVisitor.getString().trim();
+    }
+
+    @Test
+    public void usedAssignmentsAreKept() {
+
+        FunctionDefinition fd = parse("    A := x_1;\n    B := A + 1;\n    f_1 := B;\n");
+
+        assertThat(assignments(fd), is(Arrays.asList("A := x_1;", "B := A + 1;")));
+        assertThat(DeadAuxiliaryVariableVisitor.unused(fd), is(Collections.emptyList()));
+    }
+
+    @Test
+    public void unusedAndOverwrittenAssignmentsAreDropped() {
+
+        FunctionDefinition fd = parse("    A := x_1;\n    C := A * 2;\n    B := A + 1;\n    A := x_2;\n" +
+                "    f_1 := A;\n");
+
+        assertThat(assignments(fd), is(Collections.singletonList("A := x_2;")));
+        assertThat(DeadAuxiliaryVariableVisitor.unused(fd), is(Arrays.asList("A", "C", "B")));
+    }
+
+    @Test
+    public void valuesOfThePreviousIterationAreUsed() {
+
+        FunctionDefinition fd = parse("    for i from 1 to 3 step 1;\n    begin\n" +
+                "        B := C + 1;\n        A := B;\n        C := x_1;\n        D := x_2;\n" +
+                "        f_1 := A;\n        markov_shift(0);\n    end\n");
+
+        assertThat(assignments(fd), is(Arrays.asList("B := C + 1;", "A := B;", "C := x_1;")));
+        assertThat(DeadAuxiliaryVariableVisitor.unused(fd), is(Collections.singletonList("D")));
+    }
+
+}
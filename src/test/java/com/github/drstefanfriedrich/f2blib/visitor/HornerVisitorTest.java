@@ -0,0 +1,94 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HornerVisitorTest {
+
+    private static final String FUNCTION = "function MyFunc;\nbegin\n    f_1 := %s;\nend\n";
+
+    private static Expression rewrite(String expression) {
+        FunctionDefinition fd = new AntlrFunctionParser().parse(String.format(FUNCTION, expression));
+        FunctionDefinition precomputed = PrecomputationVisitor.precompute(fd.accept(new ConstantFoldingVisitor()));
+        FunctionDefinition rewritten = HornerVisitor.rewrite(precomputed);
+        return rewritten.getFunctionBody().getFunctionsWrapper().getFunctions().get(0).getExpression();
+    }
+
+    private static String print(Expression expression) {
+        PrettyPrintVisitor ppv = new PrettyPrintVisitor();
+        expression.accept(ppv);
+        return ppv.getString();
+    }
+
+    @Test
+    public void polynomialSumsAreRewritten() {
+
+        Polynomial polynomial = (Polynomial) rewrite("sum(binomial(20, k) * (-1)^k / k! * x_1^k, k, 0, 20)");
+
+        Precomputed coefficients = polynomial.getCoefficients();
+        assertThat(coefficients.isTable(), is(true));
+        assertThat(coefficients.getStart(), is(0));
+        assertThat(coefficients.getEnd(), is(20));
+        assertThat(print(coefficients), is("binomial(20, k) * -1 ^ k / k!"));
+        assertThat(print(polynomial.acceptVariable(new TransformationVisitor())), is("x_1"));
+        assertThat(polynomial.getOffset(), is(0));
+    }
+
+    @Test
+    public void polynomialsArePrintedLikeTheSum() {
+        assertThat(print(rewrite("sum(k * x_1^(k - 1), k, 1, 5)")), is("sum_{k = 1}^{5}(k * x_1 ^ (k - 1))"));
+    }
+
+    @Test
+    public void factorsAndSignsBelongToTheCoefficients() {
+
+        Neg neg = (Neg) rewrite("-sum(-(x_1 - 1)^(k + 2) / (k + 1) / 2, k, 1, 10)");
+        Polynomial polynomial = neg.acceptExpression(new TransformationVisitor());
+
+        assertThat(print(polynomial.getCoefficients()), is("-(1.0 / (k + 1) / 2)"));
+        assertThat(print(polynomial.acceptVariable(new TransformationVisitor())), is("x_1 - 1"));
+        assertThat(polynomial.getOffset(), is(2));
+    }
+
+    @Test
+    public void otherSumsAreNotRewritten() {
+        String[] expressions = {
+                // The coefficients do not depend on k, or on p
+                "sum(3 * x_1^k, k, 0, 10)",
+                "sum(p_1 * k * x_1^k, k, 0, 10)",
+                // The bounds are not constant, or there are too few terms
+                "sum(k * x_1^k, k, 0, round(p_1))",
+                "sum(k * x_1^k, k, 0, 1)",
+                // Not a power of one variable
+                "sum(k * x_1^(2 * k), k, 0, 10)",
+                "sum(k * x_1^k * x_2^k, k, 0, 10)",
+                "sum(k * (x_1 + k)^k, k, 0, 10)",
+                "sum(k / x_1^k, k, 0, 10)",
+                "sum(k + x_1^k, k, 0, 10)",
+                // The coefficients would throw
+                "sum(binomial(k, 3) * x_1^k, k, 0, 10)"
+        };
+        for (String expression : expressions) {
+            assertThat(expression, rewrite(expression), is(not(instanceOf(Polynomial.class))));
+        }
+    }
+
+}
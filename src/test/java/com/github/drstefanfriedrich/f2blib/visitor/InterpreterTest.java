@@ -0,0 +1,124 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.generator.FunctionOptimizer;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+public class InterpreterTest {
+
+    private static final String[] FUNCTIONS = {
+            "function f1;\nbegin\n    f_1 := abs(x_1) + arccos(x_2 / 4) + arcosh(x_3 + 2) + arcsin(x_2 / 4) + arctan(x_1);\n" +
+                    "    f_2 := arsinh(x_1) + artanh(x_2 / 4) + binomial(7, 3) + pi + euler + boltzmann;\n" +
+                    "    f_3 := cos(x_1) + cosh(x_2) / exp(x_3) + sqrt(x_3) * ln(x_3 + 1) - round(x_1) ^ 2 + sin(x_2) + " +
+                    "sinh(x_3) + tan(x_1) + tanh(-x_2) + +x_{2} + p_{2 - 1};\nend\n",
+            "function f2;\nbegin\n    A := x_1 * 2;\n    B := sin(A);\n    A := x_2 * 2;\n" +
+                    "    f_1 := B + sin(A) * sin(x_1 * 2);\n    f_2 := sum(k * (-1) ^ k, k, 1, round(p_1) + 5);\n" +
+                    "    f_3 := sum(x_2 * k + 1, k, 1, 10) + sum(x_1 * 0.5 ^ k, k, 0, 20) + sum(k, k, 3, 2);\nend\n",
+            "function f3;\nbegin\n    for i from 1 to 3 step 1;\n    begin\n        V := 1 / (1 + x_2 * i);\n" +
+                    "        A := sum(x_1 * prod(1 - x_2 / (l + 2), l, 0, k - 1) * V ^ (k + 1), k, 0, round(p_1) + 3);\n" +
+                    "        B := V * sum(prod(1 - x_2 / (l + 2), l, 0, k - 1) * (1 - V ^ (k + 1)), k, 0, round(p_1) + 3);\n" +
+                    "        f_1 := A + B + prod(1 + x_1 / (k + 1), k, 0, round(p_1) + 3);\n" +
+                    "        f_2 := sum(binomial(20, k) / k! * x_3 ^ k, k, 0, 20) + i;\n" +
+                    "        markov_shift(1);\n    end\nend\n",
+            "function f4;\nbegin\n    for i from 3 to 1 step -1;\n    begin\n        f_1 := x_1 + i;\n" +
+                    "        markov_shift(0);\n    end\nend\n"
+    };
+
+    private static final double[][] VALUES = {
+            {0.0, 0.0, 0.0, 0.0}, {1.5, -2.5, 0.5, 1.0}, {Double.NaN, 1.0, 2.0, 3.0}, {-0.75, 3.5, 1.25, -1.0}
+    };
+
+    private static FunctionDefinition parse(String function) {
+        return new AntlrFunctionParser().parse(function);
+    }
+
+    private static void assertSameResults(FunctionDefinition fd) {
+
+        Interpreter interpreter = Interpreter.of(fd);
+
+        for (double[] values : VALUES) {
+
+            double[] p = {values[3] + 2};
+            double[] xExpected = values.clone();
+            double[] xActual = values.clone();
+            double[] yActual = new double[3];
+
+            EvalVisitorImpl evalVisitor = new EvalVisitorImpl(xExpected, p, 3);
+            fd.accept(evalVisitor);
+            double[] yExpected = evalVisitor.getResult();
+
+            interpreter.eval(p, xActual, yActual);
+
+            for (int i = 0; i < yExpected.length; i++) {
+                assertThat(fd.getName(), Double.doubleToRawLongBits(yActual[i]),
+                        is(Double.doubleToRawLongBits(yExpected[i])));
+            }
+            for (int i = 0; i < xExpected.length; i++) {
+                assertThat(fd.getName(), Double.doubleToRawLongBits(xActual[i]),
+                        is(Double.doubleToRawLongBits(xExpected[i])));
+            }
+        }
+    }
+
+    @Test
+    public void interpreterReturnsTheSameResultsAsTheEvalVisitor() {
+        for (String function : FUNCTIONS) {
+            assertSameResults(parse(function));
+            assertSameResults(new FunctionOptimizer(true).optimizeForInterpreter(parse(function)));
+            assertSameResults(LoopFusionVisitor.fuse(ClosedFormSumVisitor.close(RunningProductVisitor.carry(
+                    parse(function)))));
+        }
+    }
+
+    @Test
+    public void evaluationDoesNotAllocate() {
+
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported()
+                && threadMXBean.isThreadAllocatedMemoryEnabled());
+
+        Interpreter interpreter = Interpreter.of(new FunctionOptimizer(true).optimizeForInterpreter(
+                parse(FUNCTIONS[2])));
+        double[] p = {3};
+        double[] x = {0.5, 0.25, 0.125, 0};
+        double[] y = new double[2];
+        int evaluations = 10_000;
+
+        for (int i = 0; i < evaluations; i++) {
+            interpreter.eval(p, x, y);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < evaluations; i++) {
+            interpreter.eval(p, x, y);
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        // Less than one byte per evaluation, i.e. only the measurement itself
+        assertThat(allocated, is(lessThan((long) evaluations)));
+    }
+
+}
@@ -0,0 +1,118 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class LoopFusionVisitorTest {
+
+    private static final String FUNCTION = "function MyFunc;\nbegin\n%send\n";
+
+    private static FunctionsWrapper fuse(String body) {
+        FunctionDefinition fd = new AntlrFunctionParser().parse(String.format(FUNCTION, body));
+        return LoopFusionVisitor.fuse(RunningProductVisitor.carry(fd)).getFunctionBody().getFunctionsWrapper();
+    }
+
+    private static Expression aux(FunctionsWrapper functionsWrapper, int index) {
+        return functionsWrapper.getAuxiliaryVariables().get(index).getInner();
+    }
+
+    private static double[] eval(String body, boolean fused, double[] x, double[] p) {
+        FunctionDefinition fd = new AntlrFunctionParser().parse(String.format(FUNCTION, body));
+        fd = RunningProductVisitor.carry(fd);
+        EvalVisitorImpl evalVisitor = new EvalVisitorImpl(x, p, 2);
+        (fused ? LoopFusionVisitor.fuse(fd) : fd).accept(evalVisitor);
+        return evalVisitor.getResult();
+    }
+
+    @Test
+    public void loopsWithTheSameRangeAreFused() {
+
+        FunctionsWrapper fused = fuse("    A := sum(x_1 * k, k, 0, round(p_1));\n" +
+                "    f_1 := A + 2 * prod(x_2 + k, k, 0, round(p_1));\n");
+
+        assertThat(aux(fused, 0), is(instanceOf(FusedLoop.class)));
+        List<AbstractSumProduct> loops = ((FusedLoop) aux(fused, 0)).getLoops();
+        assertThat(loops.size(), is(2));
+        assertThat(loops.get(0), is(instanceOf(Sum.class)));
+        assertThat(loops.get(1), is(instanceOf(Prod.class)));
+
+        TransformationVisitor copy = new TransformationVisitor();
+        Expression f1 = fused.getFunctions().get(0).getExpression();
+        Expression prod = ((Multiplication) ((Addition) f1).acceptRight(copy)).acceptRight(copy);
+        assertThat(prod, is(instanceOf(SharedVar.class)));
+        assertThat(((SharedVar) prod).getIndex(), is(((FusedLoop) aux(fused, 0)).getIndexes().get(1)));
+    }
+
+    @Test
+    public void equalRecurrencesAreComputedOnce() {
+
+        FunctionsWrapper fused = fuse("    B := sum(p_{2 + k} * prod(1 - p_{2 + l}, l, 0, k - 1), k, 0, round(p_1));\n" +
+                "    D := sum(x_1 * p_{2 + k} * prod(1 - p_{2 + l}, l, 0, k - 1), k, 0, round(p_1));\n" +
+                "    f_1 := B + D;\n");
+
+        List<AbstractSumProduct> loops = ((FusedLoop) aux(fused, 0)).getLoops();
+        assertThat(loops.get(0).getRecurrences().size(), is(1));
+        assertThat(loops.get(1).getRecurrences().size(), is(0));
+        assertThat(aux(fused, 1), is(instanceOf(SharedVar.class)));
+    }
+
+    @Test
+    public void otherLoopsAreNotFused() {
+
+        String[] bodies = {
+                // Different bounds or variables
+                "    A := sum(x_1 * k, k, 0, 5);\n    f_1 := A + sum(x_2 * k, k, 1, 5);\n",
+                "    A := sum(x_1 * k, k, 0, 5);\n    f_1 := A + sum(x_2 * l, l, 0, 5);\n",
+                // The second loop depends on the first one
+                "    A := sum(x_1 * k, k, 0, 5);\n    f_1 := sum(A * k, k, 0, 5);\n",
+                // The auxiliary variable is assigned in between
+                "    A := sum(x_1 * k, k, 0, 5);\n    B := x_2;\n    f_1 := A + sum(B * k, k, 0, 5);\n",
+                // Loops within loops are evaluated only if the outer loop is
+                "    A := sum(x_1 * k, k, 0, 5);\n    f_1 := A + sum(sum(x_2 * k, k, 0, 5) * l, l, 1, 3);\n"
+        };
+
+        for (String body : bodies) {
+            assertThat(body, aux(fuse(body), 0), is(instanceOf(Sum.class)));
+        }
+    }
+
+    @Test
+    public void interpreterEvaluatesFusedLoops() {
+
+        String body = "    V := 1 / (1 + p_2);\n" +
+                "    A := sum(p_{3 + k} * prod(1 - p_{3 + l}, l, 0, k - 1) * V ^ (k + 1), k, round(p_1), 4);\n" +
+                "    B := V * sum(prod(1 - p_{3 + l}, l, 0, k - 1) * (1 - V ^ (k + 1)), k, round(p_1), 4);\n" +
+                "    C := sum(A * k, k, round(p_1), 4) + prod(x_1 + k, k, round(p_1), 4);\n" +
+                "    f_1 := A + B;\n    f_2 := C;\n";
+
+        for (double p1 : new double[]{-2, 0, 3, 7}) {
+            double[] x = {0.75};
+            double[] p = {p1, 0.03, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7};
+            double[] expected = eval(body, false, x, p);
+            double[] actual = eval(body, true, x, p);
+            for (int i = 0; i < expected.length; i++) {
+                assertThat(body, Double.doubleToRawLongBits(actual[i]), is(Double.doubleToRawLongBits(expected[i])));
+            }
+        }
+    }
+
+}
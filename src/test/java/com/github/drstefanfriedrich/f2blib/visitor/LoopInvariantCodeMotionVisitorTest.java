@@ -0,0 +1,161 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.FunctionDefinition;
+import com.github.drstefanfriedrich.f2blib.ast.SharedExpression;
+import com.github.drstefanfriedrich.f2blib.ast.SharedVar;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class LoopInvariantCodeMotionVisitorTest {
+
+    private static final String FUNCTION = "function MyFunc;\nbegin\n%send\n";
+
+    private static FunctionDefinition parse(String body) {
+        return new AntlrFunctionParser().parse(String.format(FUNCTION, body));
+    }
+
+    private static String print(FunctionDefinition functionDefinition) {
+        PrettyPrintVisitor ppv = new PrettyPrintVisitor();
+        functionDefinition.accept(ppv);
+        return ppv.getString();
+    }
+
+    /**
+     * Counts the invariants and their uses.
+     */
+    private static class InvariantCounter extends BaseVisitor {
+
+        private int invariants;
+
+        private int uses;
+
+        static InvariantCounter of(FunctionDefinition functionDefinition) {
+            InvariantCounter counter = new InvariantCounter();
+            functionDefinition.accept(counter);
+            return counter;
+        }
+
+        @Override
+        public <T> T visit(SharedExpression sharedExpression) {
+            invariants++;
+            return super.visit(sharedExpression);
+        }
+
+        @Override
+        public <T> T visit(SharedVar sharedVar) {
+            uses++;
+            return null;
+        }
+
+    }
+
+    private static void assertHoisting(String body, int invariants, int uses) {
+
+        FunctionDefinition functionDefinition = LoopInvariantCodeMotionVisitor.hoist(parse(body));
+        InvariantCounter counter = InvariantCounter.of(functionDefinition);
+
+        assertThat(body, counter.invariants, is(invariants));
+        assertThat(body, counter.uses, is(uses));
+
+        // The hoisted expressions are printed where they have been before
+        assertThat(print(functionDefinition), is(print(parse(body))));
+    }
+
+    private static void assertSameResults(String body, double... x) {
+
+        FunctionDefinition original = parse(body);
+        FunctionDefinition hoisted = LoopInvariantCodeMotionVisitor.hoist(original);
+
+        double[] p = {x[1]};
+        EvalVisitorImpl expected = new EvalVisitorImpl(x.clone(), p, 2);
+        EvalVisitorImpl actual = new EvalVisitorImpl(x.clone(), p, 2);
+        original.accept(expected);
+        hoisted.accept(actual);
+
+        for (int i = 0; i < 2; i++) {
+            assertThat(body, Double.doubleToRawLongBits(actual.getResult()[i]),
+                    is(Double.doubleToRawLongBits(expected.getResult()[i])));
+        }
+    }
+
+    @Test
+    public void nothingToHoist() {
+        assertHoisting("    f_1 := sum(sin(k * x_1), k, 1, 3) + sin(x_1);\n", 0, 0);
+    }
+
+    @Test
+    public void leavesAreNotHoisted() {
+        assertHoisting("    f_1 := sum(k * x_1 + p_1 * k + 2, k, 1, 3);\n", 0, 0);
+    }
+
+    @Test
+    public void invariantPartOfASum() {
+        assertHoisting("    f_1 := sum(k * sin(x_1), k, 1, 3);\n", 1, 1);
+        assertHoisting("    f_1 := prod(k * sin(x_1), k, 1, 3);\n", 1, 1);
+    }
+
+    @Test
+    public void largestInvariantIsHoisted() {
+        assertHoisting("    f_1 := sum(k * (sin(x_1) + cos(x_2)), k, 1, 3);\n", 1, 1);
+    }
+
+    @Test
+    public void expressionsWhichMightThrowAreNotHoisted() {
+        assertHoisting("    f_1 := sum(k * binomial(5, 2) + k * 3!, k, 1, 3);\n", 0, 0);
+        // The index is hoisted, but not the access of the array
+        assertHoisting("    f_1 := sum(k * x_{round(p_1)}, k, 1, 3);\n", 1, 1);
+    }
+
+    @Test
+    public void invariantOfInnerLoopMovesOut() {
+
+        String body = "    f_1 := sum(k * prod(l * sin(x_1), l, 1, k), k, 1, 3);\n";
+        assertHoisting(body, 1, 1);
+
+        // The product depends on k, but does not keep any invariants
+        assertThat(LoopInvariantCodeMotionVisitor.hoist(parse(body)).toString(),
+                containsString("end=IntVar{variableName=k}}"));
+    }
+
+    @Test
+    public void invariantInnerLoopIsHoisted() {
+        assertHoisting("    f_1 := sum(k * prod(l * sin(x_1), l, 1, 3), k, 1, 3);\n", 2, 2);
+    }
+
+    @Test
+    public void forLoopBody() {
+        assertHoisting("for i from 1 to 3 step 1;\nbegin\n    A := sin(x_1) * i;\n" +
+                "    f_1 := A + cos(x_2) + sin(A);\nend\n", 2, 2);
+    }
+
+    @Test
+    public void markovShiftKeepsValuesOfXInTheLoop() {
+        assertHoisting("for i from 1 to 3 step 1;\nbegin\n    f_1 := sin(x_1) * i + cos(p_1);\n" +
+                "    markov_shift(0);\nend\n", 1, 1);
+    }
+
+    @Test
+    public void interpreterResultsAreTheSame() {
+        assertSameResults("    f_1 := sum(k * sin(x_1) + prod(l * cos(x_2), l, 1, k), k, 1, 3);\n" +
+                "    f_2 := sum(sqrt(x_1), k, 3, 2) + sum(k * binomial(round(p_1), 2), k, 3, 2);\n", 1.5, -2.5);
+        assertSameResults("for i from 1 to 3 step 1;\nbegin\n    A := sin(x_1) * i;\n" +
+                "    f_1 := A + cos(x_2) + sin(A);\n    f_2 := exp(x_2) * i;\n    markov_shift(0);\nend\n", 0.5, 2.0);
+    }
+
+}
@@ -0,0 +1,114 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PrecomputationVisitorTest {
+
+    private static final String FUNCTION = "function MyFunc;\nbegin\n    f_1 := %s;\nend\n";
+
+    private static Expression parse(String expression) {
+        FunctionDefinition fd = new AntlrFunctionParser().parse(String.format(FUNCTION, expression));
+        return fd.getFunctionBody().getFunctionsWrapper().getFunctions().get(0).getExpression();
+    }
+
+    private static List<Precomputed> precompute(String expression) {
+
+        FunctionDefinition fd = new AntlrFunctionParser().parse(String.format(FUNCTION, expression));
+        List<Precomputed> precomputed = new ArrayList<>();
+
+        PrecomputationVisitor.precompute(fd.accept(new ConstantFoldingVisitor())).accept(new BaseVisitor() {
+            @Override
+            public <T> T visit(Precomputed p) {
+                precomputed.add(p);
+                return super.visit(p);
+            }
+        });
+
+        return precomputed;
+    }
+
+    private static String print(Precomputed precomputed) {
+        PrettyPrintVisitor ppv = new PrettyPrintVisitor();
+        precomputed.accept(ppv);
+        return ppv.getString();
+    }
+
+    @Test
+    public void expressionsAreClassifiedByTheirStrongestDependency() {
+        assertThat(Dependency.of(parse("sum(sin(k), k, 1, 10) + 3")), is(Dependency.CONSTANT));
+        assertThat(Dependency.of(parse("sum(sin(k), k, 1, 10) + 3").accept(new TransformationVisitor() {
+            @Override
+            public Expression visit(Int i) {
+                return new IntVar("j");
+            }
+        })), is(Dependency.LOOP_INDEX));
+        assertThat(Dependency.of(parse("sum(sin(k) * p_1, k, 1, 10)")), is(Dependency.PARAMETER));
+        assertThat(Dependency.of(parse("p_{round(x_1)} + p_1")), is(Dependency.VARIABLE));
+        assertThat(Dependency.of(parse("A * p_1")), is(Dependency.VARIABLE));
+    }
+
+    @Test
+    public void constantsAreComputedOnce() {
+
+        List<Precomputed> precomputed = precompute("x_1 * prod(sin(k) * cos(k), k, 1, 10000) + x_2 * sum(k, k, 1, 10)");
+
+        assertThat(precomputed.size(), is(2));
+        assertThat(precomputed.get(0).isTable(), is(false));
+        assertThat(precomputed.get(0).evaluatesToDouble(), is(true));
+        assertThat(print(precomputed.get(0)), is("prod_{k = 1}^{10000}(sin k * cos k)"));
+        assertThat(precomputed.get(1).evaluatesToDouble(), is(false));
+    }
+
+    @Test
+    public void expressionsOfTheIntegerVariableAreTabulated() {
+
+        List<Precomputed> precomputed = precompute("sum(x_1 * sin(k) / k!, k, -2, 20)");
+
+        assertThat(precomputed.size(), is(1));
+        assertThat(precomputed.get(0).isTable(), is(true));
+        assertThat(precomputed.get(0).getVariableName(), is("k"));
+        assertThat(precomputed.get(0).getStart(), is(-2));
+        assertThat(precomputed.get(0).getEnd(), is(20));
+
+        // The inner sum depends on k only
+        assertThat(print(precompute("sum(x_2 * sum(ln(k + l), l, 1, 5), k, 1, 10)").get(0)),
+                is("sum_{l = 1}^{5}(ln(k + l))"));
+    }
+
+    @Test
+    public void otherExpressionsAreComputedOnEveryEvaluation() {
+        // Depends on p or x
+        assertThat(precompute("sum(sin(p_1 * k), k, 1, 10) + x_1").size(), is(0));
+        // Too cheap for a table
+        assertThat(precompute("sum(x_1 * (k + 1), k, 1, 10)").size(), is(0));
+        // The bounds are not constant, or the table would be too large
+        assertThat(precompute("sum(x_1 * sin(k), k, 1, round(p_1))").size(), is(0));
+        assertThat(precompute("sum(x_1 * sin(k), k, 1, 100000)").size(), is(0));
+        // Depends on two integer variables
+        assertThat(precompute("sum(sum(x_1 * sin(k * l), l, 1, 5), k, 1, 10)").size(), is(0));
+        // Would throw when the class is initialized
+        assertThat(precompute("sum(x_1 * binomial(k, 3), k, 0, 5)").size(), is(0));
+        assertThat(precompute("x_1 + binomial(2, 3)").size(), is(0));
+    }
+
+}
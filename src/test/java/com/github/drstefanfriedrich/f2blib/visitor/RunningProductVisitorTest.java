@@ -0,0 +1,121 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RunningProductVisitorTest {
+
+    private static final String FUNCTION = "function MyFunc;\nbegin\n    f_1 := %s;\nend\n";
+
+    private static FunctionDefinition parse(String expression) {
+        return new AntlrFunctionParser().parse(String.format(FUNCTION, expression));
+    }
+
+    private static Expression carry(String expression) {
+        FunctionDefinition carried = RunningProductVisitor.carry(parse(expression));
+        return carried.getFunctionBody().getFunctionsWrapper().getFunctions().get(0).getExpression();
+    }
+
+    private static List<Recurrence> recurrences(String expression) {
+        return ((AbstractSumProduct) carry(expression)).getRecurrences();
+    }
+
+    private static String print(Expression expression) {
+        PrettyPrintVisitor ppv = new PrettyPrintVisitor();
+        expression.accept(ppv);
+        return ppv.getString();
+    }
+
+    private static double eval(FunctionDefinition functionDefinition, double[] x, double[] p) {
+        EvalVisitorImpl evalVisitor = new EvalVisitorImpl(x, p, 1);
+        functionDefinition.accept(evalVisitor);
+        return evalVisitor.getResult()[0];
+    }
+
+    @Test
+    public void productWithinSumBecomesRecurrence() {
+        assertThat(recurrences("sum(x_1 * prod(1 - x_2, l, 1, k), k, 1, 10)").size(), is(1));
+        assertThat(recurrences("sum(prod(1 - p_{6 + l}, l, round(p_2), round(p_2) + k - 1), k, 0, 10)").size(), is(1));
+        assertThat(recurrences("sum(prod(l, l, 1, 2 + k + 3), k, 1, 10)").size(), is(1));
+        assertThat(recurrences("prod(prod(x_1 + l, l, 0, k), k, 1, 10)").size(), is(1));
+        // The same product is computed only once
+        assertThat(recurrences("sum(prod(x_1 + l, l, 1, k) * sin(prod(x_1 + l, l, 1, k)), k, 1, 10)").size(), is(1));
+    }
+
+    @Test
+    public void recurrenceMultipliesTheLastFactor() {
+
+        Recurrence recurrence = recurrences("sum(prod(x_1 + l, l, 1, k - 1), k, 1, 10)").get(0);
+
+        assertThat(print(recurrence.acceptFirst(new TransformationVisitor())), is("prod_{l = 1}^{k - 1}(x_1 + l)"));
+        assertThat(print(recurrence.acceptNext(new TransformationVisitor())),
+                is("prod_{l = 1}^{k - 1}(x_1 + l) * (x_1 + k - 1)"));
+    }
+
+    @Test
+    public void recurrenceIsPrintedLikeTheProduct() {
+        assertThat(print(carry("sum(prod(x_1 + l, l, 1, k), k, 1, 10)")),
+                is("sum_{k = 1}^{10}(prod_{l = 1}^{k}(x_1 + l))"));
+    }
+
+    @Test
+    public void emptyRangesAreGuardedIfTheSumMightStartBeforeThem() {
+        assertThat(recurrences("sum(prod(x_1 + l, l, 1, k - 1), k, 1, 10)").get(0).isGuarded(), is(false));
+        assertThat(recurrences("sum(prod(x_1 + l, l, 1, k - 1), k, 0, 10)").get(0).isGuarded(), is(true));
+        assertThat(recurrences("sum(prod(x_1 + l, l, 1, k - 1), k, -5, 10)").get(0).getFrom(), is(2));
+        assertThat(recurrences("sum(prod(x_1 + l, l, 1, k - 1), k, round(p_1), 10)").get(0).getFrom(), is(2));
+    }
+
+    @Test
+    public void noRecurrenceForOtherProducts() {
+        // The start depends on k
+        assertThat(recurrences("sum(prod(x_1 + l, l, k, 10), k, 1, 10)").size(), is(0));
+        // The factors depend on k
+        assertThat(recurrences("sum(prod(x_1 + l * k, l, 1, k), k, 1, 10)").size(), is(0));
+        // The end is not k + c
+        assertThat(recurrences("sum(prod(x_1 + l, l, 1, 2 * k), k, 1, 10)").size(), is(0));
+        assertThat(recurrences("sum(prod(x_1 + l, l, 1, round(p_1)), k, 1, 10)").size(), is(0));
+        // The product is part of an inner loop
+        assertThat(recurrences("sum(sum(prod(x_1 + l, l, 1, k), j, 1, 3), k, 1, 10)").size(), is(0));
+    }
+
+    @Test
+    public void interpreterEvaluatesRunningProductsBitForBit() {
+
+        String[] expressions = {
+                "sum(x_1 * prod(1 - x_2 / (l + 2), l, 1, k - 1), k, round(p_1), 6)",
+                "sum(prod(cos(x_2 * l), l, round(p_1), round(p_1) + k - 1), k, 0, 8)",
+                "sum(prod(x_1 + l, l, 3, k), k, -3, 12) + prod(prod(x_2 + l, l, 1, k), k, 1, 4)"
+        };
+
+        for (String expression : expressions) {
+            for (double p : new double[]{-7, -2.5, 0, 3, 20}) {
+
+                FunctionDefinition fd = parse(expression);
+                double expected = eval(fd, new double[]{0.75, 0.3}, new double[]{p});
+                double actual = eval(RunningProductVisitor.carry(fd), new double[]{0.75, 0.3}, new double[]{p});
+
+                assertThat(expression, Double.doubleToRawLongBits(actual), is(Double.doubleToRawLongBits(expected)));
+            }
+        }
+    }
+
+}
@@ -145,7 +145,20 @@ public class StackDepthVisitorImplTest {
 
         fd.accept(underTest);
 
-        assertThat(underTest.getMaxStackDepth(), is(12));
+        assertThat(underTest.getMaxStackDepth(), is(8));
+    }
+
+    @Test
+    public void auxiliaryVariables() {
+
+        FunctionDefinition fd = new FunctionDefinition(FUNCTION_NAME, new FunctionBody(new FunctionsWrapper(
+                new AuxiliaryVariable(new AuxVar("A"),
+                        new Sum(new Multiplication(new Variable(0), new IntVar("k")), "k", new Int(1), new Int(10))),
+                new Function(0, new AuxVar("A")))));
+
+        fd.accept(underTest);
+
+        assertThat(underTest.getMaxStackDepth(), is(4));
     }
 
 }
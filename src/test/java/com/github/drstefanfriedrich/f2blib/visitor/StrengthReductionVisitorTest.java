@@ -0,0 +1,130 @@
+/*****************************************************************************
+ *
+ * Copyright (c) 2019 Stefan Friedrich
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ *
+ ******************************************************************************/
+
+package com.github.drstefanfriedrich.f2blib.visitor;
+
+import com.github.drstefanfriedrich.f2blib.ast.*;
+import com.github.drstefanfriedrich.f2blib.parser.AntlrFunctionParser;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class StrengthReductionVisitorTest {
+
+    private static final String FUNCTION = "function MyFunc;\nbegin\n    f_1 := %s;\nend\n";
+
+    private static Expression reduce(String expression) {
+        // As in the optimizer, constants are folded and parentheses removed first
+        FunctionDefinition reduced = StrengthReductionVisitor.reduce(new AntlrFunctionParser()
+                .parse(String.format(FUNCTION, expression)).accept(new ConstantFoldingVisitor()));
+        return reduced.getFunctionBody().getFunctionsWrapper().getFunctions().get(0).getExpression();
+    }
+
+    private static int recurrences(String expression) {
+        return ((AbstractSumProduct) reduce(expression)).getRecurrences().size();
+    }
+
+    private static String print(Expression expression) {
+        PrettyPrintVisitor ppv = new PrettyPrintVisitor();
+        expression.accept(ppv);
+        return ppv.getString();
+    }
+
+    @Test
+    public void constantExponentBecomesMultiplications() {
+        assertThat(print(reduce("x_1 ^ 2")), is("x_1 * x_1"));
+        assertThat(print(reduce("x_1 ^ 3")), is("x_1 * x_1 * x_1"));
+        assertThat(reduce("x_1 ^ 4"), is(new Multiplication(new Multiplication(new Variable(0), new Variable(0)),
+                new Multiplication(new Variable(0), new Variable(0)))));
+        assertThat(print(reduce("sin(x_1) ^ 2")), is("sin x_1 * sin x_1"));
+    }
+
+    @Test
+    public void otherExponentsAreKept() {
+        assertThat(reduce("x_1 ^ 9"), is(instanceOf(Power.class)));
+        assertThat(reduce("x_1 ^ -2"), is(instanceOf(Power.class)));
+        assertThat(reduce("x_1 ^ 2.0"), is(instanceOf(Power.class)));
+        assertThat(reduce("x_1 ^ x_2"), is(instanceOf(Power.class)));
+    }
+
+    @Test
+    public void intPowersAreKept() {
+        assertThat(reduce("round(x_1) ^ 2"), is(instanceOf(Power.class)));
+    }
+
+    @Test
+    public void powerOfMinusOneBecomesAlternatingSign() {
+        assertThat(reduce("(-1) ^ round(x_1)"), is(new AlternatingSign(new Round(new Variable(0)), false)));
+        assertThat(reduce("(-1.0) ^ round(x_1)"), is(new AlternatingSign(new Round(new Variable(0)), true)));
+        assertThat(reduce("(-1) ^ x_1"), is(instanceOf(Power.class)));
+        assertThat(print(reduce("sum((-1) ^ (k + 1), k, 1, 3)")), is("sum_{k = 1}^{3}((-1) ^ (k + 1))"));
+    }
+
+    @Test
+    public void powerOfLoopIndexBecomesRecurrence() {
+        assertThat(recurrences("sum(x_1 ^ k, k, 0, 10)"), is(1));
+        assertThat(recurrences("sum(x_1 ^ (k + 1), k, 0, 10)"), is(1));
+        assertThat(recurrences("prod(x_1 ^ (2 + k), k, 1, 10)"), is(1));
+        assertThat(recurrences("sum(x_1 ^ (k - 1), k, 1, 10)"), is(1));
+        // The same power is computed only once
+        assertThat(recurrences("sum(x_1 ^ (k + 1) * sin(x_1 ^ (k + 1)), k, 0, 10)"), is(1));
+    }
+
+    @Test
+    public void recurrenceIsPrintedLikeThePower() {
+        assertThat(print(reduce("sum(x_1 ^ (k + 1), k, 0, 10)")), is("sum_{k = 0}^{10}(x_1 ^ (k + 1))"));
+    }
+
+    @Test
+    public void recurrenceOfOuterLoop() {
+        Expression sum = reduce("sum(sum(x_1 ^ k * l, l, 1, 3), k, 0, 10)");
+        assertThat(((AbstractSumProduct) sum).getRecurrences().size(), is(1));
+    }
+
+    @Test
+    public void noRecurrenceForNegativeExponents() {
+        assertThat(recurrences("sum(x_1 ^ (k - 1), k, 0, 10)"), is(0));
+        assertThat(recurrences("sum(x_1 ^ k, k, round(p_1), 10)"), is(0));
+    }
+
+    @Test
+    public void noRecurrenceForVariantOrThrowingBase() {
+        assertThat(recurrences("sum(k ^ k, k, 0, 10)"), is(0));
+        assertThat(recurrences("sum(sum((x_1 * l) ^ k, l, 1, 3), k, 0, 10)"), is(0));
+        assertThat(recurrences("sum(x_{round(p_1)} ^ k, k, 0, 10)"), is(0));
+        assertThat(recurrences("sum(x_1 ^ (2 * k), k, 0, 10)"), is(0));
+    }
+
+    @Test
+    public void interpreterEvaluatesRecurrences() {
+
+        FunctionDefinition reduced = StrengthReductionVisitor.reduce(new AntlrFunctionParser()
+                .parse(String.format(FUNCTION, "sum(x_1 ^ (k + 1), k, 0, 10) + sum(x_1 ^ k, k, 3, 2)"))
+                .accept(new ConstantFoldingVisitor()));
+        assertThat(reduced.toString(), containsString("Recurrence"));
+
+        EvalVisitorImpl evalVisitor = new EvalVisitorImpl(new double[]{0.9}, new double[0], 1);
+        reduced.accept(evalVisitor);
+
+        double expected = 0;
+        for (int k = 0; k <= 10; k++) {
+            expected += Math.pow(0.9, k + 1);
+        }
+
+        assertThat(Math.abs(evalVisitor.getResult()[0] - expected), is(lessThanOrEqualTo(16 * Math.ulp(expected))));
+    }
+
+}